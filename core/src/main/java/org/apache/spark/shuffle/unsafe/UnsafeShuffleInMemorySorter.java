@@ -20,6 +20,7 @@ package org.apache.spark.shuffle.unsafe;
 import java.util.Comparator;
 
 import org.apache.spark.util.collection.Sorter;
+import org.apache.spark.util.collection.unsafe.sort.RadixSort;
 
 final class UnsafeShuffleInMemorySorter {
 
@@ -44,8 +45,18 @@ final class UnsafeShuffleInMemorySorter {
    */
   private int pointerArrayInsertPosition = 0;
 
+  /**
+   * Whether to sort by partition id with a radix sort rather than a comparison sort.
+   */
+  private final boolean useRadixSort;
+
   public UnsafeShuffleInMemorySorter(int initialSize) {
+    this(initialSize, true);
+  }
+
+  UnsafeShuffleInMemorySorter(int initialSize, boolean useRadixSort) {
     assert (initialSize > 0);
+    this.useRadixSort = useRadixSort;
     this.pointerArray = new long[initialSize];
     this.sorter = new Sorter<PackedRecordPointer, long[]>(UnsafeShuffleSortDataFormat.INSTANCE);
   }
@@ -118,7 +129,30 @@ final class UnsafeShuffleInMemorySorter {
    * Return an iterator over record pointers in sorted order.
    */
   public UnsafeShuffleSorterIterator getSortedIterator() {
-    sorter.sort(pointerArray, 0, pointerArrayInsertPosition, SORT_COMPARATOR);
+    if (useRadixSort) {
+      radixSort();
+    } else {
+      sorter.sort(pointerArray, 0, pointerArrayInsertPosition, SORT_COMPARATOR);
+    }
     return new UnsafeShuffleSorterIterator(pointerArrayInsertPosition, pointerArray);
   }
+
+  /**
+   * Sorts the pointers by partition id with a radix sort on the id's three bytes, which are the
+   * top 24 bits of each packed pointer. Records within a partition need no particular order.
+   */
+  private void radixSort() {
+    final int numRecords = pointerArrayInsertPosition;
+    final long[] scratch;
+    final int scratchOffset;
+    if (pointerArray.length - numRecords >= numRecords) {
+      // The unused end of the pointer array is large enough, as it is after most expansions.
+      scratch = pointerArray;
+      scratchOffset = numRecords;
+    } else {
+      scratch = new long[numRecords];
+      scratchOffset = 0;
+    }
+    RadixSort.sort(pointerArray, numRecords, 1, 0, 0L, 5, 8, scratch, scratchOffset);
+  }
 }
@@ -17,6 +17,8 @@
 
 package org.apache.spark.unsafe.map;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.Override;
 import java.lang.UnsupportedOperationException;
 import java.util.Iterator;
@@ -29,19 +31,26 @@ import com.google.common.annotations.VisibleForTesting;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.apache.spark.SparkEnv;
+import org.apache.spark.TaskContext;
+import org.apache.spark.executor.ShuffleWriteMetrics;
 import org.apache.spark.shuffle.ShuffleMemoryManager;
+import org.apache.spark.storage.BlockManager;
 import org.apache.spark.unsafe.*;
 import org.apache.spark.unsafe.array.ByteArrayMethods;
 import org.apache.spark.unsafe.array.LongArray;
-import org.apache.spark.unsafe.bitset.BitSet;
 import org.apache.spark.unsafe.hash.Murmur3_x86_32;
 import org.apache.spark.unsafe.memory.*;
+import org.apache.spark.util.Utils;
+import org.apache.spark.util.collection.unsafe.sort.*;
 
 /**
  * An append-only hash map where keys and values are contiguous regions of bytes.
  *
- * This is backed by a power-of-2-sized hash table, using quadratic probing with triangular numbers,
- * which is guaranteed to exhaust the space.
+ * This is backed by a power-of-2-sized hash table whose slots are grouped into buckets of
+ * {@link #SLOTS_PER_BUCKET} slots, which share a cache line. A lookup probes linearly within a
+ * bucket and then moves to other buckets by quadratic probing with triangular numbers, which is
+ * guaranteed to exhaust the space.
  *
  * The map can support up to 2^29 keys. If the key cardinality is higher than this, you should
  * probably be using sorting instead of hashing for better cache locality.
@@ -55,6 +64,12 @@ import org.apache.spark.unsafe.memory.*;
  * This means that the first four bytes store the entire record (key + value) length. This format
  * is consistent with {@link org.apache.spark.util.collection.unsafe.sort.UnsafeExternalSorter},
  * so we can pass records from this map directly into the sorter to sort records in place.
+ *
+ * When the map cannot acquire memory for a new record, the caller may {@link #spill()} it: the
+ * entries are sorted by key hashcode and written to disk in the format of
+ * {@link UnsafeSorterSpillWriter}, after which the map is empty and accepts inserts again. The
+ * entries of all spills and those still in memory are then read back, with equal keys adjacent,
+ * through {@link #hashOrderedIterator()}.
  */
 public final class BytesToBytesMap {
 
@@ -107,24 +122,27 @@ public final class BytesToBytesMap {
    * A single array to store the key and value.
    *
    * Position {@code 2 * i} in the array is used to track a pointer to the key at index {@code i},
-   * while position {@code 2 * i + 1} in the array holds key's full 32-bit hashcode.
+   * while position {@code 2 * i + 1} holds the slot's tag: {@link #OCCUPIED}, the key length in
+   * the next 31 bits and the key's full 32-bit hashcode in the low bits, or {@link #EMPTY_SLOT}.
+   * A probe compares a whole tag, so it only reads the data page of keys that are very likely
+   * equal, and each probe reads both words of a slot from the same cache line.
    */
   private LongArray longArray;
-  // TODO: we're wasting 32 bits of space here; we can probably store fewer bits of the hashcode
-  // and exploit word-alignment to use fewer bits to hold the address.  This might let us store
-  // only one long per map entry, increasing the chance that this array will fit in cache at the
-  // expense of maybe performing more lookups if we have hash collisions.  Say that we stored only
-  // 27 bits of the hashcode and 37 bits of the address.  37 bits is enough to address 1 terabyte
-  // of RAM given word-alignment.  If we use 13 bits of this for our page table, that gives us a
-  // maximum page size of 2^24 * 8 = ~134 megabytes per page. This change will require us to store
-  // full base addresses in the page table for off-heap mode so that we can reconstruct the full
-  // absolute memory addresses.
+
+  /** Tag of a slot that holds no key. */
+  private static final long EMPTY_SLOT = 0L;
+
+  /** Set in the tag of every slot that holds a key, so that no such tag is {@link #EMPTY_SLOT}. */
+  private static final long OCCUPIED = 1L << 63;
 
   /**
-   * A {@link BitSet} used to track location of the map where the key is set.
-   * Size of the bitset should be half of the size of the long array.
+   * Number of consecutive slots probed before moving on to another bucket; 4 slots of 16 bytes
+   * fill a cache line.
    */
-  private BitSet bitset;
+  @VisibleForTesting
+  static final int SLOTS_PER_BUCKET = 4;
+
+  private static final int BUCKET_MASK = SLOTS_PER_BUCKET - 1;
 
   private final double loadFactor;
 
@@ -166,15 +184,45 @@ public final class BytesToBytesMap {
 
   private long numHashCollisions = 0;
 
+  private long numKeyComparisons = 0;
+
+  /** Scratch space of {@link #prefetch} and {@link #lookupBatch}, grown to the batch size. */
+  private int[] matchingSlots = new int[0];
+
+  private int[] batchHashcodes = new int[0];
+
+  /** Sink for the values read by {@link #prefetch}. */
+  private long prefetchSink = 0;
+
+  /** The buffer size to use when writing spills using DiskBlockObjectWriter */
+  private static final int SPILL_FILE_BUFFER_SIZE = 32 * 1024;
+
+  /**
+   * Used to create spill files; null if there is no BlockManager, in which case the map cannot be
+   * spilled.
+   */
+  @Nullable private final BlockManager blockManager;
+
+  /**
+   * Runs of entries written by {@link #spill()}, each sorted by key hashcode. The files are
+   * deleted once fully read by {@link #hashOrderedIterator()}, or else by {@link #free()}.
+   */
+  private final LinkedList<UnsafeSorterSpillWriter> spillWriters =
+    new LinkedList<UnsafeSorterSpillWriter>();
+
+  private final ShuffleWriteMetrics writeMetrics = new ShuffleWriteMetrics();
+
   public BytesToBytesMap(
       TaskMemoryManager taskMemoryManager,
       ShuffleMemoryManager shuffleMemoryManager,
+      @Nullable BlockManager blockManager,
       int initialCapacity,
       double loadFactor,
       long pageSizeBytes,
       boolean enablePerfMetrics) {
     this.taskMemoryManager = taskMemoryManager;
     this.shuffleMemoryManager = shuffleMemoryManager;
+    this.blockManager = blockManager;
     this.loadFactor = loadFactor;
     this.loc = new Location();
     this.pageSizeBytes = pageSizeBytes;
@@ -193,6 +241,23 @@ public final class BytesToBytesMap {
     allocate(initialCapacity);
   }
 
+  public BytesToBytesMap(
+      TaskMemoryManager taskMemoryManager,
+      ShuffleMemoryManager shuffleMemoryManager,
+      int initialCapacity,
+      double loadFactor,
+      long pageSizeBytes,
+      boolean enablePerfMetrics) {
+    this(
+      taskMemoryManager,
+      shuffleMemoryManager,
+      SparkEnv.get() != null ? SparkEnv.get().blockManager() : null,
+      initialCapacity,
+      loadFactor,
+      pageSizeBytes,
+      enablePerfMetrics);
+  }
+
   public BytesToBytesMap(
       TaskMemoryManager taskMemoryManager,
       ShuffleMemoryManager shuffleMemoryManager,
@@ -279,11 +344,123 @@ public final class BytesToBytesMap {
    *
    * If any other lookups or operations are performed on this map while iterating over it, including
    * `lookup()`, the behavior of the returned iterator is undefined.
+   *
+   * This only covers the entries that are in memory; once the map has spilled, use
+   * {@link #hashOrderedIterator()} to read all of them.
    */
   public BytesToBytesMapIterator iterator() {
     return new BytesToBytesMapIterator(numElements, dataPages.iterator(), loc);
   }
 
+  /**
+   * Iterator over the entries of the map and of all its spills, ordered by key hashcode, such that
+   * entries with equal keys are adjacent. See {@link BytesToBytesMap#hashOrderedIterator()}.
+   */
+  public final class HashOrderedIterator {
+
+    private final UnsafeSorterIterator records;
+
+    private HashOrderedIterator(UnsafeSorterIterator records) {
+      this.records = records;
+    }
+
+    public boolean hasNext() {
+      return records.hasNext();
+    }
+
+    /**
+     * Returns the next entry. For efficiency, all calls return the same {@link Location} object,
+     * whose addresses are only valid until the following call.
+     */
+    public Location next() throws IOException {
+      records.loadNext();
+      return loc.with(records.getBaseObject(), records.getBaseOffset(), records.getRecordLength());
+    }
+  }
+
+  /**
+   * Returns an iterator over all entries inserted into this map, both those in memory and those
+   * spilled by {@link #spill()}, merged in order of key hashcode. Since each key is defined at most
+   * once per spill, a key can be returned several times, but always in adjacent entries; callers
+   * such as aggregations combine the values of such runs.
+   *
+   * This sorts the in-memory entries in place, which destroys the hash table; after calling this
+   * method, the map can only be iterated and freed.
+   */
+  public HashOrderedIterator hashOrderedIterator() throws IOException {
+    final int numInMemory = numElements;
+    final UnsafeSorterIterator inMemoryIterator =
+      new SortedEntriesIterator(sortEntriesByHash(), numInMemory);
+    if (spillWriters.isEmpty()) {
+      return new HashOrderedIterator(inMemoryIterator);
+    }
+    final UnsafeSorterSpillMerger spillMerger = new UnsafeSorterSpillMerger(
+      KEY_COMPARATOR, PrefixComparators.LONG, spillWriters.size() + 1);
+    // Open all the readers first, so that the first blocks of the spills are read ahead in
+    // parallel.
+    final UnsafeSorterSpillReader[] spillReaders = new UnsafeSorterSpillReader[spillWriters.size()];
+    int numReaders = 0;
+    for (UnsafeSorterSpillWriter spillWriter : spillWriters) {
+      spillReaders[numReaders++] = spillWriter.getReader(spillReaders.length);
+    }
+    for (UnsafeSorterSpillReader spillReader : spillReaders) {
+      spillMerger.addSpill(spillReader);
+    }
+    if (inMemoryIterator.hasNext()) {
+      spillMerger.addSpill(inMemoryIterator);
+    }
+    return new HashOrderedIterator(spillMerger.getSortedIterator());
+  }
+
+  /**
+   * Iterates over the entries sorted by {@link #sortEntriesByHash()}, presenting them in the same
+   * way as {@link UnsafeSorterSpillReader} does spilled ones.
+   */
+  private final class SortedEntriesIterator extends UnsafeSorterIterator {
+
+    private final long[] sortedEntries;
+    private final int numRecords;
+    private int position = 0;
+
+    private Object baseObject;
+    private long baseOffset;
+    private int recordLength;
+    private long keyPrefix;
+
+    private SortedEntriesIterator(long[] sortedEntries, int numRecords) {
+      this.sortedEntries = sortedEntries;
+      this.numRecords = numRecords;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return position < numRecords;
+    }
+
+    @Override
+    public void loadNext() {
+      final long recordAddress = sortedEntries[position * 2];
+      baseObject = taskMemoryManager.getPage(recordAddress);
+      final long recordOffset = taskMemoryManager.getOffsetInPage(recordAddress);
+      recordLength = PlatformDependent.UNSAFE.getInt(baseObject, recordOffset);
+      baseOffset = recordOffset + 4;
+      keyPrefix = sortedEntries[position * 2 + 1];
+      position++;
+    }
+
+    @Override
+    public Object getBaseObject() { return baseObject; }
+
+    @Override
+    public long getBaseOffset() { return baseOffset; }
+
+    @Override
+    public int getRecordLength() { return recordLength; }
+
+    @Override
+    public long getKeyPrefix() { return keyPrefix; }
+  }
+
   /**
    * Looks up a key, and return a {@link Location} handle that can be used to test existence
    * and read/write values.
@@ -294,46 +471,174 @@ public final class BytesToBytesMap {
       Object keyBaseObject,
       long keyBaseOffset,
       int keyRowLengthBytes) {
+    return lookup(keyBaseObject, keyBaseOffset, keyRowLengthBytes,
+      HASHER.hashUnsafeWords(keyBaseObject, keyBaseOffset, keyRowLengthBytes));
+  }
+
+  /**
+   * Looks up a key whose hashcode was already computed by {@link #prefetch}, and return a
+   * {@link Location} handle that can be used to test existence and read/write values.
+   *
+   * This function always return the same {@link Location} instance to avoid object allocation.
+   */
+  public Location lookup(
+      Object keyBaseObject,
+      long keyBaseOffset,
+      int keyRowLengthBytes,
+      int hashcode) {
     if (enablePerfMetrics) {
       numKeyLookups++;
     }
-    final int hashcode = HASHER.hashUnsafeWords(keyBaseObject, keyBaseOffset, keyRowLengthBytes);
+    final long tag = tag(hashcode, keyRowLengthBytes);
     int pos = hashcode & mask;
     int step = 1;
     while (true) {
-      if (enablePerfMetrics) {
-        numProbes++;
-      }
-      if (!bitset.isSet(pos)) {
-        // This is a new key.
-        return loc.with(pos, hashcode, false);
-      } else {
-        long stored = longArray.get(pos * 2 + 1);
-        if ((int) (stored) == hashcode) {
-          // Full hash code matches.  Let's compare the keys for equality.
-          loc.with(pos, hashcode, true);
-          if (loc.getKeyLength() == keyRowLengthBytes) {
-            final MemoryLocation keyAddress = loc.getKeyAddress();
-            final Object storedKeyBaseObject = keyAddress.getBaseObject();
-            final long storedKeyBaseOffset = keyAddress.getBaseOffset();
-            final boolean areEqual = ByteArrayMethods.arrayEquals(
-              keyBaseObject,
-              keyBaseOffset,
-              storedKeyBaseObject,
-              storedKeyBaseOffset,
-              keyRowLengthBytes
-            );
-            if (areEqual) {
-              return loc;
-            } else {
-              if (enablePerfMetrics) {
-                numHashCollisions++;
-              }
+      final int bucketStart = pos & ~BUCKET_MASK;
+      for (int i = 0; i < SLOTS_PER_BUCKET; i++) {
+        final int slot = bucketStart | ((pos + i) & BUCKET_MASK);
+        if (enablePerfMetrics) {
+          numProbes++;
+        }
+        final long stored = longArray.get(slot * 2 + 1);
+        if (stored == EMPTY_SLOT) {
+          // This is a new key.
+          return loc.with(slot, hashcode, false);
+        } else if (stored == tag) {
+          // Full hash code and key length match.  Let's compare the keys for equality.
+          if (enablePerfMetrics) {
+            numKeyComparisons++;
+          }
+          loc.with(slot, hashcode, true);
+          final MemoryLocation keyAddress = loc.getKeyAddress();
+          final boolean areEqual = ByteArrayMethods.arrayEquals(
+            keyBaseObject,
+            keyBaseOffset,
+            keyAddress.getBaseObject(),
+            keyAddress.getBaseOffset(),
+            keyRowLengthBytes
+          );
+          if (areEqual) {
+            return loc;
+          } else {
+            if (enablePerfMetrics) {
+              numHashCollisions++;
             }
           }
         }
       }
-      pos = (pos + step) & mask;
+      pos = (bucketStart + step * SLOTS_PER_BUCKET) & mask;
+      step++;
+    }
+  }
+
+  /**
+   * Hashes a batch of keys and brings into the cache the parts of the map that looking them up
+   * will touch first: the home bucket of every key and the stored key of the first slot in that
+   * bucket whose tag matches. This is done in passes over the whole batch, so that the cache
+   * misses of different keys are independent of each other and overlap, instead of being paid one
+   * after another as they are by a sequence of {@link #lookup(Object, long, int)} calls.
+   *
+   * The keys are then looked up in order with {@link #lookup(Object, long, int, int)}, passing
+   * the hashcodes written to {@code hashcodes}. Inserting keys between those lookups is allowed;
+   * it only makes the prefetching less effective.
+   */
+  public void prefetch(
+      Object[] keyBaseObjects,
+      long[] keyBaseOffsets,
+      int[] keyLengths,
+      int numKeys,
+      int[] hashcodes) {
+    if (matchingSlots.length < numKeys) {
+      matchingSlots = new int[numKeys];
+    }
+    for (int i = 0; i < numKeys; i++) {
+      hashcodes[i] = HASHER.hashUnsafeWords(keyBaseObjects[i], keyBaseOffsets[i], keyLengths[i]);
+    }
+    // The loads of both passes below do not depend on each other, so the CPU can have many of
+    // them outstanding at once. Their results are folded into a field so that they are not
+    // eliminated as dead code.
+    long touched = 0;
+    for (int i = 0; i < numKeys; i++) {
+      final long tag = tag(hashcodes[i], keyLengths[i]);
+      final int bucketStart = hashcodes[i] & mask & ~BUCKET_MASK;
+      int matchingSlot = -1;
+      for (int j = 0; j < SLOTS_PER_BUCKET; j++) {
+        final long stored = longArray.get((bucketStart | j) * 2 + 1);
+        touched += stored;
+        if (stored == tag) {
+          matchingSlot = bucketStart | j;
+          break;
+        }
+      }
+      matchingSlots[i] = matchingSlot;
+    }
+    for (int i = 0; i < numKeys; i++) {
+      if (matchingSlots[i] >= 0) {
+        final long address = longArray.get(matchingSlots[i] * 2);
+        touched += PlatformDependent.UNSAFE.getInt(
+          taskMemoryManager.getPage(address), taskMemoryManager.getOffsetInPage(address) + 4);
+      }
+    }
+    prefetchSink = touched;
+  }
+
+  /**
+   * Looks up a batch of keys without inserting any, overlapping their cache misses as described
+   * in {@link #prefetch}. The slot of each key is written to {@code slots}, or -1 if the key is not
+   * in the map; a slot can be turned into a {@link Location} with {@link #getLocation(int)} until
+   * the next key is inserted.
+   */
+  public void lookupBatch(
+      Object[] keyBaseObjects,
+      long[] keyBaseOffsets,
+      int[] keyLengths,
+      int numKeys,
+      int[] slots) {
+    if (batchHashcodes.length < numKeys) {
+      batchHashcodes = new int[numKeys];
+    }
+    prefetch(keyBaseObjects, keyBaseOffsets, keyLengths, numKeys, batchHashcodes);
+    for (int i = 0; i < numKeys; i++) {
+      final Location l =
+        lookup(keyBaseObjects[i], keyBaseOffsets[i], keyLengths[i], batchHashcodes[i]);
+      slots[i] = l.isDefined ? l.pos : -1;
+    }
+  }
+
+  /**
+   * Returns a {@link Location} handle for a slot returned by {@link #lookupBatch}.
+   *
+   * This function always return the same {@link Location} instance to avoid object allocation.
+   */
+  public Location getLocation(int slot) {
+    final long tag = longArray.get(slot * 2 + 1);
+    assert (tag != EMPTY_SLOT);
+    return loc.with(slot, (int) tag, true);
+  }
+
+  /**
+   * Returns the tag of a slot holding a key with the given hashcode and length.
+   */
+  private static long tag(int hashcode, int keyLength) {
+    return OCCUPIED | ((long) keyLength << 32) | (hashcode & 0xFFFFFFFFL);
+  }
+
+  /**
+   * Returns the first empty slot in the probe sequence of the given hashcode, the slot where
+   * {@link #lookup(Object, long, int)} would insert a new key with that hashcode.
+   */
+  private int findEmptySlot(int hashcode) {
+    int pos = hashcode & mask;
+    int step = 1;
+    while (true) {
+      final int bucketStart = pos & ~BUCKET_MASK;
+      for (int i = 0; i < SLOTS_PER_BUCKET; i++) {
+        final int slot = bucketStart | ((pos + i) & BUCKET_MASK);
+        if (longArray.get(slot * 2 + 1) == EMPTY_SLOT) {
+          return slot;
+        }
+      }
+      pos = (bucketStart + step * SLOTS_PER_BUCKET) & mask;
       step++;
     }
   }
@@ -369,17 +674,27 @@ public final class BytesToBytesMap {
     }
 
     private void updateAddressesAndSizes(final Object page, final long offsetInPage) {
-      long position = offsetInPage;
-      final int totalLength = PlatformDependent.UNSAFE.getInt(page, position);
-      position += 4;
-      keyLength = PlatformDependent.UNSAFE.getInt(page, position);
+      updateAddressesAndSizes(
+        page, offsetInPage + 4, PlatformDependent.UNSAFE.getInt(page, offsetInPage));
+    }
+
+    /**
+     * @param keyLengthOffset the offset of the key length, which directly follows the record length
+     * @param totalLength the record length, which need not be stored before the record
+     */
+    private void updateAddressesAndSizes(
+        final Object base,
+        final long keyLengthOffset,
+        final int totalLength) {
+      long position = keyLengthOffset;
+      keyLength = PlatformDependent.UNSAFE.getInt(base, position);
       position += 4;
       valueLength = totalLength - keyLength - 4;
 
-      keyMemoryLocation.setObjAndOffset(page, position);
+      keyMemoryLocation.setObjAndOffset(base, position);
 
       position += keyLength;
-      valueMemoryLocation.setObjAndOffset(page, position);
+      valueMemoryLocation.setObjAndOffset(base, position);
     }
 
     private Location with(int pos, int keyHashcode, boolean isDefined) {
@@ -400,6 +715,13 @@ public final class BytesToBytesMap {
       return this;
     }
 
+    private Location with(Object base, long keyLengthOffset, int totalLength) {
+      this.isDefined = true;
+      this.memoryPage = null;
+      updateAddressesAndSizes(base, keyLengthOffset, totalLength);
+      return this;
+    }
+
     /**
      * Returns the memory page that contains the current record.
      * This is only valid if this is returned by {@link BytesToBytesMap#iterator()}.
@@ -592,11 +914,10 @@ public final class BytesToBytesMap {
       }
 
       numElements++;
-      bitset.set(pos);
       final long storedKeyAddress = taskMemoryManager.encodePageNumberAndOffset(
         dataPage, recordOffset);
       longArray.set(pos * 2, storedKeyAddress);
-      longArray.set(pos * 2 + 1, keyHashcode);
+      longArray.set(pos * 2 + 1, tag(keyHashcode, keyLengthBytes));
       updateAddressesAndSizes(storedKeyAddress);
       isDefined = true;
       if (numElements > growthThreshold && longArray.size() < MAX_CAPACITY) {
@@ -614,11 +935,10 @@ public final class BytesToBytesMap {
    */
   private void allocate(int capacity) {
     assert (capacity >= 0);
-    // The capacity needs to be divisible by 64 so that our bit set can be sized properly
+    // The capacity needs to hold a few buckets for probing to spread keys out
     capacity = Math.max((int) Math.min(MAX_CAPACITY, nextPowerOf2(capacity)), 64);
     assert (capacity <= MAX_CAPACITY);
     longArray = new LongArray(MemoryBlock.fromLongArray(new long[capacity * 2]));
-    bitset = new BitSet(MemoryBlock.fromLongArray(new long[capacity / 64]));
 
     this.growthThreshold = (int) (capacity * loadFactor);
     this.mask = capacity - 1;
@@ -632,17 +952,185 @@ public final class BytesToBytesMap {
    */
   public void free() {
     longArray = null;
-    bitset = null;
+    freeDataPages();
+    deleteSpillFiles();
+  }
+
+  /**
+   * Frees the pages holding keys and values and returns the number of bytes released.
+   */
+  private long freeDataPages() {
+    long memoryFreed = 0;
     Iterator<MemoryBlock> dataPagesIterator = dataPages.iterator();
     while (dataPagesIterator.hasNext()) {
       MemoryBlock dataPage = dataPagesIterator.next();
       dataPagesIterator.remove();
       taskMemoryManager.freePage(dataPage);
       shuffleMemoryManager.release(dataPage.size());
+      memoryFreed += dataPage.size();
     }
     assert(dataPages.isEmpty());
+    currentDataPage = null;
+    pageCursor = 0;
+    return memoryFreed;
+  }
+
+  /**
+   * Deletes any spill files created by this map that have not been read yet.
+   */
+  private void deleteSpillFiles() {
+    for (UnsafeSorterSpillWriter spill : spillWriters) {
+      File file = spill.getFile();
+      if (file != null && file.exists()) {
+        if (!file.delete()) {
+          logger.error("Was unable to delete spill file {}", file.getAbsolutePath());
+        }
+      }
+    }
+    spillWriters.clear();
   }
 
+  /**
+   * Sorts the map's entries by key hashcode, writes them to a spill file and frees the pages that
+   * held them, so that the map is empty and new keys can be inserted again. Call this when
+   * {@link Location#putNewKey} fails for lack of memory, then look the key up again; entries of the
+   * spills are returned by {@link #hashOrderedIterator()}.
+   *
+   * @return the number of bytes of memory released
+   */
+  public long spill() throws IOException {
+    if (numElements == 0) {
+      return 0L;
+    }
+    if (blockManager == null) {
+      throw new IllegalStateException("Cannot spill a BytesToBytesMap without a BlockManager");
+    }
+    logger.info("Thread {} spilling hash map of {} to disk ({} {} so far)",
+      Thread.currentThread().getId(),
+      Utils.bytesToString(getTotalMemoryConsumption()),
+      spillWriters.size(),
+      spillWriters.size() > 1 ? " times" : " time");
+
+    final int numRecords = numElements;
+    final int capacity = (int) (longArray.size() / 2);
+    final long[] sortedEntries = sortEntriesByHash();
+    final UnsafeSorterSpillWriter spillWriter = new UnsafeSorterSpillWriter(
+      blockManager, SPILL_FILE_BUFFER_SIZE, writeMetrics, numRecords);
+    spillWriters.add(spillWriter);
+    for (int i = 0; i < numRecords; i++) {
+      final long recordAddress = sortedEntries[i * 2];
+      final Object baseObject = taskMemoryManager.getPage(recordAddress);
+      final long recordOffset = taskMemoryManager.getOffsetInPage(recordAddress);
+      final int recordLength = PlatformDependent.UNSAFE.getInt(baseObject, recordOffset);
+      spillWriter.write(baseObject, recordOffset + 4, recordLength, sortedEntries[i * 2 + 1]);
+    }
+    spillWriter.close();
+
+    final long spillSize = freeDataPages();
+    // The hash table was destroyed by sorting; start over at the capacity we had grown to.
+    allocate(capacity);
+    numElements = 0;
+    final TaskContext taskContext = TaskContext.get();
+    if (taskContext != null) {
+      taskContext.taskMetrics().incMemoryBytesSpilled(spillSize);
+    }
+    return spillSize;
+  }
+
+  /**
+   * Returns true if {@link #spill()} has written any entries to disk.
+   */
+  public boolean hasSpilled() {
+    return !spillWriters.isEmpty();
+  }
+
+  @VisibleForTesting
+  int getNumSpills() {
+    return spillWriters.size();
+  }
+
+  /**
+   * Moves the (address, hashcode) pairs of all entries to the front of the hash table's array and
+   * sorts them by hashcode as a signed int, breaking ties with {@link #KEY_COMPARATOR}; this is the
+   * order of spills and of {@link #hashOrderedIterator()}. The hash table is unusable afterwards.
+   *
+   * @return the array holding the sorted pairs in its first {@code 2 * numElements} longs
+   */
+  private long[] sortEntriesByHash() {
+    final long[] entries = (long[]) longArray.memoryBlock().getBaseObject();
+    final int capacity = (int) (longArray.size() / 2);
+    int numRecords = 0;
+    for (int pos = 0; pos < capacity; pos++) {
+      final long tag = entries[pos * 2 + 1];
+      if (tag != EMPTY_SLOT) {
+        // pos >= numRecords, so this never overwrites a pair that has not been moved yet.
+        entries[numRecords * 2] = entries[pos * 2];
+        // Keep only the hashcode, sign-extended, so that a signed key mask gives signed int order.
+        entries[numRecords * 2 + 1] = (int) tag;
+        numRecords++;
+      }
+    }
+    assert (numRecords == numElements);
+    final int usedLength = numRecords * 2;
+    if (entries.length - usedLength >= usedLength) {
+      RadixSort.sort(entries, numRecords, 2, 1, Long.MIN_VALUE, 0, 8, entries, usedLength);
+    } else {
+      RadixSort.sort(entries, numRecords, 2, 1, Long.MIN_VALUE, 0, 8, new long[usedLength], 0);
+    }
+    // Order the keys within each run of equal hashcodes; such runs are almost always tiny.
+    for (int i = 1; i < numRecords; i++) {
+      final long hashcode = entries[i * 2 + 1];
+      final long address = entries[i * 2];
+      final Object page = taskMemoryManager.getPage(address);
+      final long keyLengthOffset = taskMemoryManager.getOffsetInPage(address) + 4;
+      int j = i - 1;
+      while (j >= 0 && entries[j * 2 + 1] == hashcode) {
+        final long otherAddress = entries[j * 2];
+        final int cmp = KEY_COMPARATOR.compare(
+          taskMemoryManager.getPage(otherAddress),
+          taskMemoryManager.getOffsetInPage(otherAddress) + 4,
+          page,
+          keyLengthOffset);
+        if (cmp <= 0) {
+          break;
+        }
+        entries[(j + 1) * 2] = otherAddress;
+        j--;
+      }
+      entries[(j + 1) * 2] = address;
+    }
+    return entries;
+  }
+
+  /**
+   * Orders records by key length and then by key bytes, given the offset of their key length. It
+   * only needs to be consistent, so that equal keys end up adjacent when merging spills.
+   */
+  private static final RecordComparator KEY_COMPARATOR = new RecordComparator() {
+    @Override
+    public int compare(
+        Object leftBaseObject,
+        long leftBaseOffset,
+        Object rightBaseObject,
+        long rightBaseOffset) {
+      final int leftLength = PlatformDependent.UNSAFE.getInt(leftBaseObject, leftBaseOffset);
+      final int rightLength = PlatformDependent.UNSAFE.getInt(rightBaseObject, rightBaseOffset);
+      if (leftLength != rightLength) {
+        return leftLength < rightLength ? -1 : 1;
+      }
+      // Keys are word-aligned, so compare them a word at a time.
+      for (int i = 0; i < leftLength; i += 8) {
+        final long left = PlatformDependent.UNSAFE.getLong(leftBaseObject, leftBaseOffset + 4 + i);
+        final long right =
+          PlatformDependent.UNSAFE.getLong(rightBaseObject, rightBaseOffset + 4 + i);
+        if (left != right) {
+          return left < right ? -1 : 1;
+        }
+      }
+      return 0;
+    }
+  };
+
   public TaskMemoryManager getTaskMemoryManager() {
     return taskMemoryManager;
   }
@@ -664,7 +1152,7 @@ public final class BytesToBytesMap {
     for (MemoryBlock dataPage : dataPages) {
       totalDataPagesSize += dataPage.size();
     }
-    return totalDataPagesSize + bitset.memoryBlock().size() + longArray.memoryBlock().size();
+    return totalDataPagesSize + longArray.memoryBlock().size();
   }
 
   /**
@@ -694,6 +1182,17 @@ public final class BytesToBytesMap {
     return numHashCollisions;
   }
 
+  /**
+   * Returns the average number of stored keys read from a data page per key lookup, which is
+   * about one when the key is present and about zero when it is not.
+   */
+  public double getAverageKeyComparisonsPerLookup() {
+    if (!enablePerfMetrics) {
+      throw new IllegalStateException();
+    }
+    return (1.0 * numKeyComparisons) / numKeyLookups;
+  }
+
   @VisibleForTesting
   int getNumDataPages() {
     return dataPages.size();
@@ -710,32 +1209,19 @@ public final class BytesToBytesMap {
     }
     // Store references to the old data structures to be used when we re-hash
     final LongArray oldLongArray = longArray;
-    final BitSet oldBitSet = bitset;
-    final int oldCapacity = (int) oldBitSet.capacity();
+    final int oldCapacity = (int) (oldLongArray.size() / 2);
 
     // Allocate the new data structures
     allocate(Math.min(growthStrategy.nextCapacity(oldCapacity), MAX_CAPACITY));
 
-    // Re-mask (we don't recompute the hashcode because we stored all 32 bits of it)
-    for (int pos = oldBitSet.nextSetBit(0); pos >= 0; pos = oldBitSet.nextSetBit(pos + 1)) {
-      final long keyPointer = oldLongArray.get(pos * 2);
-      final int hashcode = (int) oldLongArray.get(pos * 2 + 1);
-      int newPos = hashcode & mask;
-      int step = 1;
-      boolean keepGoing = true;
-
-      // No need to check for equality here when we insert so this has one less if branch than
-      // the similar code path in addWithoutResize.
-      while (keepGoing) {
-        if (!bitset.isSet(newPos)) {
-          bitset.set(newPos);
-          longArray.set(newPos * 2, keyPointer);
-          longArray.set(newPos * 2 + 1, hashcode);
-          keepGoing = false;
-        } else {
-          newPos = (newPos + step) & mask;
-          step++;
-        }
+    // Re-mask (we don't recompute the hashcode because we stored all 32 bits of it). No need to
+    // check for equality here since all keys are distinct, so we only look for an empty slot.
+    for (int pos = 0; pos < oldCapacity; pos++) {
+      final long tag = oldLongArray.get(pos * 2 + 1);
+      if (tag != EMPTY_SLOT) {
+        final int newPos = findEmptySlot((int) tag);
+        longArray.set(newPos * 2, oldLongArray.get(pos * 2));
+        longArray.set(newPos * 2 + 1, tag);
       }
     }
 
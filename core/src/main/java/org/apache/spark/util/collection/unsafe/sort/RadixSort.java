@@ -0,0 +1,170 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.util.collection.unsafe.sort;
+
+/**
+ * Least-significant-digit radix sort over arrays of records made of one or more longs, keyed by
+ * the unsigned value of one of those longs. The sort makes one counting pass over the keys, then
+ * one scatter pass per key byte, skipping bytes that are the same in every key; it is stable.
+ *
+ * Signed or descending orders are sorted by XORing each key with a mask before it is bucketed,
+ * which maps the desired order onto ascending unsigned order without modifying the records.
+ */
+public final class RadixSort {
+  private RadixSort() {}
+
+  /**
+   * Returns the key mask that makes ascending unsigned order of {@code prefix ^ mask} match the
+   * order of {@code comparator}, or null if the comparator's order cannot be expressed that way.
+   */
+  public static Long keyMaskFor(PrefixComparator comparator) {
+    if (comparator == PrefixComparators.LONG) {
+      return Long.MIN_VALUE;
+    } else if (comparator == PrefixComparators.LONG_DESC) {
+      return Long.MAX_VALUE;
+    } else if (comparator == PrefixComparators.STRING || comparator == PrefixComparators.BINARY) {
+      return 0L;
+    } else if (comparator == PrefixComparators.STRING_DESC ||
+        comparator == PrefixComparators.BINARY_DESC) {
+      return -1L;
+    } else {
+      return null;
+    }
+  }
+
+  /**
+   * Sorts the first {@code numRecords} records of {@code array}, each {@code stride} longs long,
+   * by the unsigned value of {@code (record[keyOffset] ^ keyMask)}, looking only at key bytes
+   * {@code startByte} (inclusive, counting from the least significant) to {@code endByte}
+   * (exclusive). Keys must be equal outside that range.
+   *
+   * @param scratch buffer of at least {@code numRecords * stride} longs starting at
+   *                {@code scratchOffset}; it may be the unused tail of {@code array} itself
+   */
+  public static void sort(
+      long[] array,
+      int numRecords,
+      int stride,
+      int keyOffset,
+      long keyMask,
+      int startByte,
+      int endByte,
+      long[] scratch,
+      int scratchOffset) {
+    assert scratch != array || scratchOffset >= numRecords * stride;
+    if (numRecords < 2) {
+      return;
+    }
+    final long[][] counts = countBytes(array, numRecords, stride, keyOffset, keyMask,
+      startByte, endByte);
+    long[] src = array;
+    int srcOffset = 0;
+    long[] dst = scratch;
+    int dstOffset = scratchOffset;
+    for (int b = startByte; b < endByte; b++) {
+      if (counts[b] == null) {
+        continue;
+      }
+      scatter(src, srcOffset, dst, dstOffset, numRecords, stride, keyOffset, keyMask, b,
+        counts[b]);
+      final long[] tmp = src;
+      src = dst;
+      dst = tmp;
+      final int tmpOffset = srcOffset;
+      srcOffset = dstOffset;
+      dstOffset = tmpOffset;
+    }
+    if (src != array || srcOffset != 0) {
+      System.arraycopy(src, srcOffset, array, 0, numRecords * stride);
+    }
+  }
+
+  /**
+   * Counts the occurrences of each value of each key byte in one pass. The counts of a byte are
+   * null if every key has the same value there, since sorting on that byte would be a no-op.
+   */
+  private static long[][] countBytes(
+      long[] array,
+      int numRecords,
+      int stride,
+      int keyOffset,
+      long keyMask,
+      int startByte,
+      int endByte) {
+    final long[][] counts = new long[8][];
+    // Bits that differ between keys; bytes where no bit differs are skipped.
+    long bitsChanged = 0;
+    final long firstKey = array[keyOffset] ^ keyMask;
+    final int end = numRecords * stride;
+    for (int i = keyOffset; i < end; i += stride) {
+      bitsChanged |= (array[i] ^ keyMask) ^ firstKey;
+    }
+    for (int b = startByte; b < endByte; b++) {
+      if (((bitsChanged >>> (b * 8)) & 0xff) != 0) {
+        counts[b] = new long[256];
+      }
+    }
+    for (int i = keyOffset; i < end; i += stride) {
+      final long key = array[i] ^ keyMask;
+      for (int b = startByte; b < endByte; b++) {
+        if (counts[b] != null) {
+          counts[b][(int) ((key >>> (b * 8)) & 0xff)]++;
+        }
+      }
+    }
+    return counts;
+  }
+
+  /** Moves each record from src to its place in dst by the value of key byte {@code b}. */
+  private static void scatter(
+      long[] src,
+      int srcOffset,
+      long[] dst,
+      int dstOffset,
+      int numRecords,
+      int stride,
+      int keyOffset,
+      long keyMask,
+      int b,
+      long[] counts) {
+    final long[] positions = new long[256];
+    long position = dstOffset;
+    for (int i = 0; i < 256; i++) {
+      positions[i] = position;
+      position += counts[i] * stride;
+    }
+    final int shift = b * 8;
+    final int end = srcOffset + numRecords * stride;
+    if (stride == 1) {
+      for (int i = srcOffset; i < end; i++) {
+        final long value = src[i];
+        final int bucket = (int) (((value ^ keyMask) >>> shift) & 0xff);
+        dst[(int) positions[bucket]++] = value;
+      }
+    } else {
+      for (int i = srcOffset; i < end; i += stride) {
+        final int bucket = (int) (((src[i + keyOffset] ^ keyMask) >>> shift) & 0xff);
+        final int dstPosition = (int) positions[bucket];
+        for (int k = 0; k < stride; k++) {
+          dst[dstPosition + k] = src[i + k];
+        }
+        positions[bucket] = dstPosition + stride;
+      }
+    }
+  }
+}
@@ -504,8 +504,16 @@ public final class UnsafeExternalSorter {
     } else {
       final UnsafeSorterSpillMerger spillMerger =
         new UnsafeSorterSpillMerger(recordComparator, prefixComparator, numIteratorsToMerge);
+      // Open all the readers before the merger loads the first record of each, so that the
+      // first blocks of the spills are read ahead in parallel.
+      final UnsafeSorterSpillReader[] spillReaders =
+        new UnsafeSorterSpillReader[spillWriters.size()];
+      int numReaders = 0;
       for (UnsafeSorterSpillWriter spillWriter : spillWriters) {
-        spillMerger.addSpill(spillWriter.getReader(blockManager));
+        spillReaders[numReaders++] = spillWriter.getReader(spillReaders.length);
+      }
+      for (UnsafeSorterSpillReader spillReader : spillReaders) {
+        spillMerger.addSpill(spillReader);
       }
       spillWriters.clear();
       if (inMemoryIterator.hasNext()) {
@@ -66,6 +66,12 @@ public final class UnsafeInMemorySorter {
   private final Sorter<RecordPointerAndKeyPrefix, long[]> sorter;
   private final Comparator<RecordPointerAndKeyPrefix> sortComparator;
 
+  /**
+   * If the prefix comparator's order can be computed by radix sorting the prefixes, the key mask
+   * that does so (see {@link RadixSort#keyMaskFor}); otherwise null.
+   */
+  private final Long radixSortKeyMask;
+
   /**
    * Within this buffer, position {@code 2 * i} holds a pointer pointer to the record at
    * index {@code i}, while position {@code 2 * i + 1} in the array holds an 8-byte key prefix.
@@ -87,6 +93,7 @@ public final class UnsafeInMemorySorter {
     this.memoryManager = memoryManager;
     this.sorter = new Sorter<>(UnsafeSortDataFormat.INSTANCE);
     this.sortComparator = new SortComparator(recordComparator, prefixComparator, memoryManager);
+    this.radixSortKeyMask = RadixSort.keyMaskFor(prefixComparator);
   }
 
   /**
@@ -187,7 +194,44 @@ public final class UnsafeInMemorySorter {
    * {@code next()} will return the same mutable object.
    */
   public SortedIterator getSortedIterator() {
-    sorter.sort(pointerArray, 0, pointerArrayInsertPosition / 2, sortComparator);
+    final int numRecords = pointerArrayInsertPosition / 2;
+    if (radixSortKeyMask != null) {
+      radixSort(numRecords);
+    } else {
+      sorter.sort(pointerArray, 0, numRecords, sortComparator);
+    }
     return new SortedIterator(memoryManager, pointerArrayInsertPosition, pointerArray);
   }
+
+  /**
+   * Sorts the records by key prefix with a radix sort, then sorts each run of records with equal
+   * prefixes with the full comparator, since equal prefixes do not imply equal keys.
+   */
+  private void radixSort(int numRecords) {
+    // Use the unused end of the pointer array as the sort's scratch space if it is large enough,
+    // as it is after most expansions, to avoid allocating another array as large as the input.
+    final long[] scratch;
+    final int scratchOffset;
+    if (pointerArray.length - pointerArrayInsertPosition >= pointerArrayInsertPosition) {
+      scratch = pointerArray;
+      scratchOffset = pointerArrayInsertPosition;
+    } else {
+      scratch = new long[pointerArrayInsertPosition];
+      scratchOffset = 0;
+    }
+    RadixSort.sort(pointerArray, numRecords, 2, 1, radixSortKeyMask, 0, 8, scratch, scratchOffset);
+
+    int runStart = 0;
+    while (runStart < numRecords) {
+      final long prefix = pointerArray[2 * runStart + 1];
+      int runEnd = runStart + 1;
+      while (runEnd < numRecords && pointerArray[2 * runEnd + 1] == prefix) {
+        runEnd++;
+      }
+      if (runEnd - runStart > 1) {
+        sorter.sort(pointerArray, runStart, runEnd, sortComparator);
+      }
+      runStart = runEnd;
+    }
+  }
 }
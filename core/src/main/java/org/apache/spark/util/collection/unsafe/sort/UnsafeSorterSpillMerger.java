@@ -21,7 +21,7 @@ import java.io.IOException;
 import java.util.Comparator;
 import java.util.PriorityQueue;
 
-final class UnsafeSorterSpillMerger {
+public final class UnsafeSorterSpillMerger {
 
   private final PriorityQueue<UnsafeSorterIterator> priorityQueue;
 
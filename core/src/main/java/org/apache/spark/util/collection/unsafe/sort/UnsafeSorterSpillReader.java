@@ -14,25 +14,48 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-
 package org.apache.spark.util.collection.unsafe.sort;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import com.google.common.io.ByteStreams;
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4SafeDecompressor;
+import net.jpountz.xxhash.XXHash32;
+import net.jpountz.xxhash.XXHashFactory;
 
-import org.apache.spark.storage.BlockId;
-import org.apache.spark.storage.BlockManager;
 import org.apache.spark.unsafe.PlatformDependent;
+import org.apache.spark.util.ThreadUtils;
 import org.apache.spark.util.instrumentation.*;
 
+import static org.apache.spark.util.collection.unsafe.sort.UnsafeSorterSpillWriter.*;
+
 /**
  * Reads spill files written by {@link UnsafeSorterSpillWriter} (see that class for a description
  * of the file format).
+ *
+ * A reader can read ahead: while the records of a few blocks are consumed, the next few blocks
+ * are read and decompressed by a thread of a small shared pool, so that a merge of many spills
+ * does not wait on one small read after another. Reading several blocks at once keeps the cost
+ * of handing them over between threads small next to that of the read. The reads still record
+ * into the file statistics of the task that opened the file.
+ *
+ * As a merge opens all of its readers at once, the memory they hold matters: the stored bytes of
+ * blocks are read into a buffer of the reading thread rather than of each reader, the record
+ * buffer only grows as large as the largest record, and readers of merges of many spills read
+ * fewer blocks ahead at a time, see {@link #readAheadBlocks(int)}.
  */
-final class UnsafeSorterSpillReader extends UnsafeSorterIterator {
+public final class UnsafeSorterSpillReader extends UnsafeSorterIterator {
 
   private final File file;
+  private final BlockInputStream blockIn;
   private InputStream in;
   private DataInputStream din;
 
@@ -41,22 +64,59 @@ final class UnsafeSorterSpillReader extends UnsafeSorterIterator {
   private long keyPrefix;
   private int numRecordsRemaining;
 
-  private byte[] arr = new byte[1024 * 1024];
+  private byte[] arr = new byte[0];
   private Object baseObject = arr;
   private final long baseOffset = PlatformDependent.BYTE_ARRAY_OFFSET;
 
-  public UnsafeSorterSpillReader(
-      BlockManager blockManager,
-      File file,
-      BlockId blockId) throws IOException {
+  /** The threads that read ahead for all readers of an executor. */
+  private static final int READ_AHEAD_THREADS = 4;
+
+  /** The number of blocks read at once when reading ahead. */
+  static final int READ_AHEAD_BLOCKS = 4;
+
+  /**
+   * The most memory that the readers of one merge may read ahead into. Each reader that reads
+   * ahead holds two chunks of blocks.
+   */
+  static final long READ_AHEAD_BUFFER_BYTES = 16L * 1024 * 1024;
+
+  /**
+   * The buffer each thread reads the stored bytes of blocks into. A chunk's stored bytes are
+   * decompressed right after they are read, so they need not be kept per reader.
+   */
+  private static final ThreadLocal<ByteBuffer> storedBuffers = new ThreadLocal<ByteBuffer>();
+
+  private static final ExecutorService readAheadPool =
+    ThreadUtils.newDaemonFixedThreadPool(READ_AHEAD_THREADS, "unsafe-spill-read-ahead");
+
+  public UnsafeSorterSpillReader(File file) throws IOException {
+    this(file, 0);
+  }
+
+  /**
+   * @param readAheadBlocks the number of blocks to read at once ahead of the records being
+   *                        consumed, or 0 to read each block only when it is needed.
+   */
+  public UnsafeSorterSpillReader(File file, int readAheadBlocks) throws IOException {
     assert (file.length() > 0);
     this.file = file;
-    final BufferedInputStream bs = new BufferedInputStream(new InstrumentedFileInputStream(file));
-    this.in = blockManager.wrapForCompression(blockId, bs);
+    this.blockIn = new BlockInputStream(file, readAheadBlocks);
+    this.in = blockIn;
     this.din = new DataInputStream(this.in);
     numRecordsRemaining = din.readInt();
   }
 
+  /**
+   * Returns how many blocks each of <code>numReaders</code> readers open at once should read
+   * ahead at a time, so that together they hold at most {@link #READ_AHEAD_BUFFER_BYTES}, or 0
+   * if there are too many readers to read ahead at all.
+   */
+  public static int readAheadBlocks(int numReaders) {
+    final long blocksPerReader =
+      READ_AHEAD_BUFFER_BYTES / Math.max(numReaders, 1) / (2L * BLOCK_SIZE);
+    return (int) Math.min(READ_AHEAD_BLOCKS, blocksPerReader);
+  }
+
   @Override
   public boolean hasNext() {
     return (numRecordsRemaining > 0);
@@ -67,7 +127,7 @@ final class UnsafeSorterSpillReader extends UnsafeSorterIterator {
     recordLength = din.readInt();
     keyPrefix = din.readLong();
     if (recordLength > arr.length) {
-      arr = new byte[recordLength];
+      arr = new byte[Math.max(recordLength, 2 * arr.length)];
       baseObject = arr;
     }
     ByteStreams.readFully(in, arr, 0, recordLength);
@@ -99,4 +159,266 @@ final class UnsafeSorterSpillReader extends UnsafeSorterIterator {
   public long getKeyPrefix() {
     return keyPrefix;
   }
+
+  /**
+   * Returns the time, in nanoseconds, that this reader has spent waiting for blocks: the time
+   * taken to read them, or when reading ahead, only the part of it not overlapped with consuming
+   * the previous blocks.
+   */
+  public long getBlockedTimeNs() {
+    return blockIn.blockedTimeNs;
+  }
+
+  /**
+   * Consecutive blocks read from a spill file with a single read, decompressed one after the
+   * other into {@link #data}.
+   */
+  private static final class Chunk {
+    final byte[] data;
+    int length = 0;
+    int numBlocks = 0;
+
+    Chunk(int maxBlocks) {
+      data = new byte[maxBlocks * BLOCK_SIZE];
+    }
+  }
+
+  /** Returns the calling thread's buffer for stored bytes, cleared and limited to size bytes. */
+  private static ByteBuffer storedBuffer(int size) {
+    ByteBuffer buffer = storedBuffers.get();
+    if (buffer == null || buffer.capacity() < size) {
+      buffer = ByteBuffer.allocate(size);
+      storedBuffers.set(buffer);
+    }
+    buffer.clear();
+    buffer.limit(size);
+    return buffer;
+  }
+
+  /**
+   * Reads the bytes stored in the blocks of a spill file, checking every block against its
+   * checksum and the block index, so that a corrupt or truncated file fails with an IOException
+   * rather than producing wrong records. Since the index gives the extent of every block, each
+   * chunk of blocks is read with a single positional read.
+   */
+  private static final class BlockInputStream extends InputStream {
+
+    private final File file;
+    private final InstrumentedFileInputStream fileIn;
+    private final FileChannel channel;
+    private final long[] blockOffsets;
+    private final int numBlocks;
+    private final boolean readAhead;
+    // The safe decompressor never reads or writes past the bounds it is given, so a corrupt
+    // block fails with an LZ4Exception rather than crashing before its checksum is checked.
+    private final LZ4SafeDecompressor decompressor =
+      LZ4Factory.fastestInstance().safeDecompressor();
+    private final XXHash32 checksum = XXHashFactory.fastestInstance().hash32();
+
+    // The chunk being consumed and, when reading ahead, the one being read in the background
+    private Chunk current;
+    private Chunk next;
+    private Future<Void> pendingRead;
+    private int position = 0;
+    private int nextBlock = 0;
+
+    long blockedTimeNs = 0;
+
+    BlockInputStream(File file, int readAheadBlocks) throws IOException {
+      this.file = file;
+      fileIn = new InstrumentedFileInputStream(file);
+      channel = fileIn.getChannel();
+      try {
+        blockOffsets = readBlockIndex();
+      } catch (IOException e) {
+        fileIn.close();
+        throw e;
+      }
+      numBlocks = blockOffsets.length - 1;
+      this.readAhead = readAheadBlocks > 0;
+      if (readAhead) {
+        current = new Chunk(readAheadBlocks);
+        next = new Chunk(readAheadBlocks);
+        if (numBlocks > 0) {
+          readAhead(0);
+        }
+      } else {
+        current = new Chunk(1);
+      }
+    }
+
+    private IOException corrupt(String reason) {
+      return new IOException("Spill file " + file + " is corrupt: " + reason);
+    }
+
+    private long[] readBlockIndex() throws IOException {
+      final long fileLength = channel.size();
+      if (fileLength < TRAILER_SIZE) {
+        throw corrupt("it is too short");
+      }
+      final ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+      readFully(trailer, fileLength - TRAILER_SIZE);
+      final int numBlocks = trailer.getInt(0);
+      final long indexOffset = trailer.getLong(4);
+      if (numBlocks < 0 || indexOffset < 0 ||
+          indexOffset + 8L * numBlocks + TRAILER_SIZE != fileLength) {
+        throw corrupt("its block index does not match its length");
+      }
+      final ByteBuffer index = ByteBuffer.allocate(8 * numBlocks);
+      readFully(index, indexOffset);
+      final long[] offsets = new long[numBlocks + 1];
+      for (int i = 0; i < numBlocks; i++) {
+        offsets[i] = index.getLong(8 * i);
+      }
+      // The end of the last block, for checking its length
+      offsets[numBlocks] = indexOffset;
+      return offsets;
+    }
+
+    private void readFully(ByteBuffer dst, long position) throws IOException {
+      while (dst.hasRemaining()) {
+        final int n = channel.read(dst, position + dst.position());
+        if (n < 0) {
+          throw new EOFException();
+        }
+      }
+    }
+
+    /**
+     * Reads, checks and decompresses the blocks from <code>firstBlock</code> that fit into
+     * <code>target</code>. This is called from a read-ahead thread while the consuming thread
+     * works on the previous chunk, so it may only touch the target chunk and state that does not
+     * change after construction.
+     */
+    private void readChunk(int firstBlock, Chunk target) throws IOException {
+      final int maxBlocks = target.data.length / BLOCK_SIZE;
+      final int endBlock = Math.min(firstBlock + maxBlocks, numBlocks);
+      for (int i = firstBlock; i < endBlock; i++) {
+        final long storedSize = blockOffsets[i + 1] - blockOffsets[i];
+        if (storedSize <= BLOCK_HEADER_SIZE || storedSize > BLOCK_HEADER_SIZE + BLOCK_SIZE) {
+          throw corrupt("block " + i + " has an invalid extent");
+        }
+      }
+      final ByteBuffer stored =
+        storedBuffer((int) (blockOffsets[endBlock] - blockOffsets[firstBlock]));
+      readFully(stored, blockOffsets[firstBlock]);
+      int dataPosition = 0;
+      for (int i = firstBlock; i < endBlock; i++) {
+        final int storedPosition = (int) (blockOffsets[i] - blockOffsets[firstBlock]);
+        final int length = stored.getInt(storedPosition);
+        final int storedLength = stored.getInt(storedPosition + 4);
+        final int expectedChecksum = stored.getInt(storedPosition + 8);
+        if (length <= 0 || length > BLOCK_SIZE || storedLength > length ||
+            BLOCK_HEADER_SIZE + storedLength != blockOffsets[i + 1] - blockOffsets[i]) {
+          throw corrupt("block " + i + " has an invalid header");
+        }
+        final int storedBytesPosition = storedPosition + BLOCK_HEADER_SIZE;
+        if (storedLength == length) {
+          System.arraycopy(stored.array(), storedBytesPosition, target.data, dataPosition, length);
+        } else {
+          try {
+            if (decompressor.decompress(stored.array(), storedBytesPosition, storedLength,
+                target.data, dataPosition, length) != length) {
+              throw corrupt("block " + i + " does not decompress to its length");
+            }
+          } catch (LZ4Exception e) {
+            throw corrupt("block " + i + " cannot be decompressed (" + e.getMessage() + ")");
+          }
+        }
+        if (checksum.hash(target.data, dataPosition, length, CHECKSUM_SEED) != expectedChecksum) {
+          throw corrupt("block " + i + " does not match its checksum");
+        }
+        dataPosition += length;
+      }
+      target.length = dataPosition;
+      target.numBlocks = endBlock - firstBlock;
+    }
+
+    /** Starts reading the chunk from the given block into {@link #next} on a read-ahead thread. */
+    private void readAhead(final int firstBlock) {
+      final Chunk target = next;
+      pendingRead = readAheadPool.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws IOException {
+          readChunk(firstBlock, target);
+          return null;
+        }
+      });
+    }
+
+    /** Waits for the chunk being read ahead, rethrowing the error that reading it failed with. */
+    private void awaitReadAhead() throws IOException {
+      try {
+        pendingRead.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while reading spill file " + file);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        }
+        throw new IOException("Failed to read spill file " + file, e.getCause());
+      } finally {
+        pendingRead = null;
+      }
+    }
+
+    /**
+     * Makes the next chunk current, returning false at the end of the file.
+     */
+    private boolean nextChunk() throws IOException {
+      if (nextBlock == numBlocks) {
+        return false;
+      }
+      final long start = System.nanoTime();
+      if (readAhead) {
+        awaitReadAhead();
+        final Chunk consumed = current;
+        current = next;
+        next = consumed;
+        nextBlock += current.numBlocks;
+        if (nextBlock < numBlocks) {
+          readAhead(nextBlock);
+        }
+      } else {
+        readChunk(nextBlock, current);
+        nextBlock += current.numBlocks;
+      }
+      blockedTimeNs += System.nanoTime() - start;
+      position = 0;
+      return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (position == current.length && !nextChunk()) {
+        return -1;
+      }
+      return current.data[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (position == current.length && !nextChunk()) {
+        return -1;
+      }
+      final int n = Math.min(len, current.length - position);
+      System.arraycopy(current.data, position, b, off, n);
+      position += n;
+      return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (pendingRead != null) {
+        // Let a read in progress fail on the closed channel; nothing waits for its result.
+        pendingRead.cancel(false);
+        pendingRead = null;
+      }
+      fileIn.close();
+    }
+  }
 }
@@ -14,40 +14,78 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-
 package org.apache.spark.util.collection.unsafe.sort;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.xxhash.XXHash32;
+import net.jpountz.xxhash.XXHashFactory;
 import scala.Tuple2;
 
 import org.apache.spark.executor.ShuffleWriteMetrics;
-import org.apache.spark.serializer.DummySerializerInstance;
-import org.apache.spark.storage.BlockId;
 import org.apache.spark.storage.BlockManager;
-import org.apache.spark.storage.DiskBlockObjectWriter;
 import org.apache.spark.storage.TempLocalBlockId;
+import org.apache.spark.storage.TimeTrackingOutputStream;
 import org.apache.spark.unsafe.PlatformDependent;
+import org.apache.spark.util.instrumentation.InstrumentedFileOutputStream;
 
 /**
- * Spills a list of sorted records to disk. Spill files have the following format:
+ * Spills a list of sorted records to disk. The records are written as the following stream of
+ * bytes:
  *
  *   [# of records (int)] [[len (int)][prefix (long)][data (bytes)]...]
+ *
+ * which is cut into blocks of {@link #BLOCK_SIZE} bytes. Spill files have the following format:
+ *
+ *   [block]... [block index] [# of blocks (int)] [offset of the block index (long)]
+ *
+ * where each block is
+ *
+ *   [uncompressed length (int)] [stored length (int)] [checksum (int)] [stored bytes]
+ *
+ * The stored bytes are the block compressed with LZ4 if spark.shuffle.spill.compress is set and
+ * that makes it smaller, or else the block itself, in which case the stored length equals the
+ * uncompressed length. The checksum is the xxHash32 of the uncompressed block, so that corruption
+ * on disk is detected when the block is read back. The block index holds the offset of every
+ * block in the file as a long.
  */
-final class UnsafeSorterSpillWriter {
+public final class UnsafeSorterSpillWriter {
+
+  static final int BLOCK_SIZE = 64 * 1024;
+
+  static final int BLOCK_HEADER_SIZE = 4 + 4 + 4;
 
-  static final int DISK_WRITE_BUFFER_SIZE = 1024 * 1024;
+  static final int CHECKSUM_SEED = 0x5bd1e995;
 
-  // Small writes to DiskBlockObjectWriter will be fairly inefficient. Since there doesn't seem to
-  // be an API to directly transfer bytes from managed memory to the disk writer, we buffer
-  // data through a byte array.
-  private byte[] writeBuffer = new byte[DISK_WRITE_BUFFER_SIZE];
+  /** The size of the number of blocks and the offset of the block index at the end of a file. */
+  static final int TRAILER_SIZE = 4 + 8;
+
+  // There is no API to transfer bytes from managed memory pages, which are long arrays or raw
+  // addresses, to the file, so records are copied into this buffer. It is compressed and written
+  // as a block when full, so each byte of a record is copied once on its way to disk.
+  private byte[] writeBuffer = new byte[BLOCK_SIZE];
+
+  // The number of bytes in writeBuffer that have not been written as a block yet.
+  private int writeBufferPosition = 0;
+
+  // Holds the header and compressed bytes of a block, which are written with a single call.
+  private byte[] blockBuffer;
 
   private final File file;
-  private final BlockId blockId;
   private final int numRecordsToWrite;
-  private DiskBlockObjectWriter writer;
+  private final ShuffleWriteMetrics writeMetrics;
+  private final LZ4Compressor compressor;
+  private final boolean readAhead;
+  private final XXHash32 checksum = XXHashFactory.fastestInstance().hash32();
+  private OutputStream out;
+  private long bytesWritten = 0;
+  private long[] blockOffsets = new long[16];
+  private int numBlocks = 0;
   private int numRecordsSpilled = 0;
 
   public UnsafeSorterSpillWriter(
@@ -58,37 +96,42 @@ final class UnsafeSorterSpillWriter {
     final Tuple2<TempLocalBlockId, File> spilledFileInfo =
       blockManager.diskBlockManager().createTempLocalBlock();
     this.file = spilledFileInfo._2();
-    this.blockId = spilledFileInfo._1();
     this.numRecordsToWrite = numRecordsToWrite;
-    // Unfortunately, we need a serializer instance in order to construct a DiskBlockObjectWriter.
-    // Our write path doesn't actually use this serializer (since we end up calling the `write()`
-    // OutputStream methods), but DiskBlockObjectWriter still calls some methods on it. To work
-    // around this, we pass a dummy no-op serializer.
-    writer = blockManager.getDiskWriter(
-      blockId, file, DummySerializerInstance.INSTANCE, fileBufferSize, writeMetrics);
+    this.writeMetrics = writeMetrics;
+    if (blockManager.conf().getBoolean("spark.shuffle.spill.compress", true)) {
+      compressor = LZ4Factory.fastestInstance().fastCompressor();
+      blockBuffer = new byte[BLOCK_HEADER_SIZE + compressor.maxCompressedLength(BLOCK_SIZE)];
+    } else {
+      compressor = null;
+      blockBuffer = new byte[BLOCK_HEADER_SIZE];
+    }
+    this.readAhead = blockManager.conf().getBoolean("spark.shuffle.spill.readAhead", true);
+    out = new BufferedOutputStream(
+      new TimeTrackingOutputStream(writeMetrics, new InstrumentedFileOutputStream(file)),
+      fileBufferSize);
     // Write the number of records
-    writeIntToBuffer(numRecordsToWrite, 0);
-    writer.write(writeBuffer, 0, 4);
+    writeIntToBuffer(writeBuffer, numRecordsToWrite, 0);
+    writeBufferPosition = 4;
   }
 
   // Based on DataOutputStream.writeLong.
-  private void writeLongToBuffer(long v, int offset) throws IOException {
-    writeBuffer[offset + 0] = (byte)(v >>> 56);
-    writeBuffer[offset + 1] = (byte)(v >>> 48);
-    writeBuffer[offset + 2] = (byte)(v >>> 40);
-    writeBuffer[offset + 3] = (byte)(v >>> 32);
-    writeBuffer[offset + 4] = (byte)(v >>> 24);
-    writeBuffer[offset + 5] = (byte)(v >>> 16);
-    writeBuffer[offset + 6] = (byte)(v >>>  8);
-    writeBuffer[offset + 7] = (byte)(v >>>  0);
+  private static void writeLongToBuffer(byte[] buffer, long v, int offset) {
+    buffer[offset + 0] = (byte)(v >>> 56);
+    buffer[offset + 1] = (byte)(v >>> 48);
+    buffer[offset + 2] = (byte)(v >>> 40);
+    buffer[offset + 3] = (byte)(v >>> 32);
+    buffer[offset + 4] = (byte)(v >>> 24);
+    buffer[offset + 5] = (byte)(v >>> 16);
+    buffer[offset + 6] = (byte)(v >>>  8);
+    buffer[offset + 7] = (byte)(v >>>  0);
   }
 
   // Based on DataOutputStream.writeInt.
-  private void writeIntToBuffer(int v, int offset) throws IOException {
-    writeBuffer[offset + 0] = (byte)(v >>> 24);
-    writeBuffer[offset + 1] = (byte)(v >>> 16);
-    writeBuffer[offset + 2] = (byte)(v >>>  8);
-    writeBuffer[offset + 3] = (byte)(v >>>  0);
+  private static void writeIntToBuffer(byte[] buffer, int v, int offset) {
+    buffer[offset + 0] = (byte)(v >>> 24);
+    buffer[offset + 1] = (byte)(v >>> 16);
+    buffer[offset + 2] = (byte)(v >>>  8);
+    buffer[offset + 3] = (byte)(v >>>  0);
   }
 
   /**
@@ -110,41 +153,105 @@ final class UnsafeSorterSpillWriter {
     } else {
       numRecordsSpilled++;
     }
-    writeIntToBuffer(recordLength, 0);
-    writeLongToBuffer(keyPrefix, 4);
+    if (BLOCK_SIZE - writeBufferPosition < 4 + 8) {
+      writeBlock();
+    }
+    writeIntToBuffer(writeBuffer, recordLength, writeBufferPosition);
+    writeLongToBuffer(writeBuffer, keyPrefix, writeBufferPosition + 4);
+    writeBufferPosition += 4 + 8;
     int dataRemaining = recordLength;
-    int freeSpaceInWriteBuffer = DISK_WRITE_BUFFER_SIZE - 4 - 8; // space used by prefix + len
     long recordReadPosition = baseOffset;
     while (dataRemaining > 0) {
-      final int toTransfer = Math.min(freeSpaceInWriteBuffer, dataRemaining);
+      final int toTransfer = Math.min(BLOCK_SIZE - writeBufferPosition, dataRemaining);
       PlatformDependent.copyMemory(
         baseObject,
         recordReadPosition,
         writeBuffer,
-        PlatformDependent.BYTE_ARRAY_OFFSET + (DISK_WRITE_BUFFER_SIZE - freeSpaceInWriteBuffer),
+        PlatformDependent.BYTE_ARRAY_OFFSET + writeBufferPosition,
         toTransfer);
-      writer.write(writeBuffer, 0, (DISK_WRITE_BUFFER_SIZE - freeSpaceInWriteBuffer) + toTransfer);
+      writeBufferPosition += toTransfer;
       recordReadPosition += toTransfer;
       dataRemaining -= toTransfer;
-      freeSpaceInWriteBuffer = DISK_WRITE_BUFFER_SIZE;
+      if (writeBufferPosition == BLOCK_SIZE) {
+        writeBlock();
+      }
+    }
+    writeMetrics.incShuffleRecordsWritten(1);
+  }
+
+  /**
+   * Writes the contents of the write buffer as a block.
+   */
+  private void writeBlock() throws IOException {
+    if (writeBufferPosition == 0) {
+      return;
     }
-    if (freeSpaceInWriteBuffer < DISK_WRITE_BUFFER_SIZE) {
-      writer.write(writeBuffer, 0, (DISK_WRITE_BUFFER_SIZE - freeSpaceInWriteBuffer));
+    if (numBlocks == blockOffsets.length) {
+      final long[] newBlockOffsets = new long[blockOffsets.length * 2];
+      System.arraycopy(blockOffsets, 0, newBlockOffsets, 0, numBlocks);
+      blockOffsets = newBlockOffsets;
+    }
+    blockOffsets[numBlocks++] = bytesWritten;
+
+    final int length = writeBufferPosition;
+    int storedLength = length;
+    if (compressor != null) {
+      final int compressedLength = compressor.compress(writeBuffer, 0, length,
+        blockBuffer, BLOCK_HEADER_SIZE, blockBuffer.length - BLOCK_HEADER_SIZE);
+      if (compressedLength < length) {
+        storedLength = compressedLength;
+      }
+    }
+    writeIntToBuffer(blockBuffer, length, 0);
+    writeIntToBuffer(blockBuffer, storedLength, 4);
+    writeIntToBuffer(blockBuffer, checksum.hash(writeBuffer, 0, length, CHECKSUM_SEED), 8);
+    if (storedLength < length) {
+      out.write(blockBuffer, 0, BLOCK_HEADER_SIZE + storedLength);
+    } else {
+      out.write(blockBuffer, 0, BLOCK_HEADER_SIZE);
+      out.write(writeBuffer, 0, length);
     }
-    writer.recordWritten();
+    bytesWritten += BLOCK_HEADER_SIZE + storedLength;
+    writeMetrics.incShuffleBytesWritten(BLOCK_HEADER_SIZE + storedLength);
+    writeBufferPosition = 0;
   }
 
   public void close() throws IOException {
-    writer.commitAndClose();
-    writer = null;
+    writeBlock();
+    // Write the block index and the trailer
+    final long indexOffset = bytesWritten;
+    final byte[] trailer = new byte[8 * numBlocks + TRAILER_SIZE];
+    for (int i = 0; i < numBlocks; i++) {
+      writeLongToBuffer(trailer, blockOffsets[i], 8 * i);
+    }
+    writeIntToBuffer(trailer, numBlocks, 8 * numBlocks);
+    writeLongToBuffer(trailer, indexOffset, 8 * numBlocks + 4);
+    out.write(trailer);
+    out.close();
+    writeMetrics.incShuffleBytesWritten(trailer.length);
+    out = null;
     writeBuffer = null;
+    blockBuffer = null;
   }
 
   public File getFile() {
     return file;
   }
 
-  public UnsafeSorterSpillReader getReader(BlockManager blockManager) throws IOException {
-    return new UnsafeSorterSpillReader(blockManager, file, blockId);
+  /**
+   * Opens a reader over the spill file, which reads ahead unless spark.shuffle.spill.readAhead is
+   * turned off.
+   */
+  public UnsafeSorterSpillReader getReader() throws IOException {
+    return getReader(1);
+  }
+
+  /**
+   * Opens a reader over the spill file that is one of <code>numReaders</code> readers open at
+   * once, which read fewer blocks ahead the more of them there are.
+   */
+  public UnsafeSorterSpillReader getReader(int numReaders) throws IOException {
+    return new UnsafeSorterSpillReader(
+      file, readAhead ? UnsafeSorterSpillReader.readAheadBlocks(numReaders) : 0);
   }
 }
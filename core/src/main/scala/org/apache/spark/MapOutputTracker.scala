@@ -24,7 +24,9 @@ import java.util.zip.{GZIPInputStream, GZIPOutputStream}
 import scala.collection.mutable.{ArrayBuffer, HashMap, HashSet, Map}
 import scala.collection.JavaConversions._
 import scala.reflect.ClassTag
+import scala.util.control.NonFatal
 
+import org.apache.spark.broadcast.{Broadcast, BroadcastManager}
 import org.apache.spark.rpc.{RpcEndpointRef, RpcEnv, RpcCallContext, RpcEndpoint}
 import org.apache.spark.scheduler.MapStatus
 import org.apache.spark.shuffle.MetadataFetchFailedException
@@ -32,7 +34,12 @@ import org.apache.spark.storage.{BlockId, BlockManagerId, ShuffleBlockId}
 import org.apache.spark.util._
 
 private[spark] sealed trait MapOutputTrackerMessage
-private[spark] case class GetMapOutputStatuses(shuffleId: Int)
+
+/**
+ * Asks for the map output statuses of a shuffle. An executor that holds the statuses of an
+ * earlier version passes that version, so that only the statuses changed since are sent.
+ */
+private[spark] case class GetMapOutputStatuses(shuffleId: Int, knownVersion: Long = -1)
   extends MapOutputTrackerMessage
 private[spark] case object StopMapOutputTracker extends MapOutputTrackerMessage
 
@@ -43,10 +50,10 @@ private[spark] class MapOutputTrackerMasterEndpoint(
   val maxAkkaFrameSize = AkkaUtils.maxFrameSizeBytes(conf)
 
   override def receiveAndReply(context: RpcCallContext): PartialFunction[Any, Unit] = {
-    case GetMapOutputStatuses(shuffleId: Int) =>
+    case GetMapOutputStatuses(shuffleId: Int, knownVersion: Long) =>
       val hostPort = context.sender.address.hostPort
       logInfo("Asked to send map output locations for shuffle " + shuffleId + " to " + hostPort)
-      val mapOutputStatuses = tracker.getSerializedMapOutputStatuses(shuffleId)
+      val mapOutputStatuses = tracker.getSerializedMapOutputStatuses(shuffleId, knownVersion)
       val serializedSize = mapOutputStatuses.size
       if (serializedSize > maxAkkaFrameSize) {
         val msg = s"Map output statuses were $serializedSize bytes which " +
@@ -100,6 +107,15 @@ private[spark] abstract class MapOutputTracker(conf: SparkConf) extends Logging
   /** Remembers which map output locations are currently being fetched on an executor. */
   private val fetching = new HashSet[Int]
 
+  /** The versions of the statuses in mapStatuses that were fetched from the driver. */
+  private val fetchedVersions = new ConcurrentHashMap[Int, Long]
+
+  /**
+   * Statuses dropped from mapStatuses by an epoch change, with their versions. The next fetch of
+   * such a shuffle only asks the driver for the statuses that changed since.
+   */
+  private val staleStatuses = new ConcurrentHashMap[Int, (Long, Array[MapStatus])]
+
   /**
    * Send a message to the trackerEndpoint and get its result within a default timeout, or
    * throw a SparkException if this fails.
@@ -133,7 +149,22 @@ private[spark] abstract class MapOutputTracker(conf: SparkConf) extends Logging
    */
   def getMapSizesByExecutorId(shuffleId: Int, reduceId: Int)
   : Seq[(BlockManagerId, Seq[(BlockId, Long)])] = {
-    logDebug(s"Fetching outputs for shuffle $shuffleId, reduce $reduceId")
+    getMapSizesByExecutorId(shuffleId, reduceId, reduceId + 1)
+  }
+
+  /**
+   * Called from executors to get the server URIs and output sizes for each shuffle block that
+   * needs to be read from a range of reduce partitions (startPartition to endPartition-1,
+   * inclusive). The blocks of each map output are listed in order of reduce partition, so that
+   * contiguous ones can be fetched together.
+   *
+   * @return A sequence of 2-item tuples, where the first item in the tuple is a BlockManagerId,
+   *         and the second item is a sequence of (shuffle block id, shuffle block size) tuples
+   *         describing the shuffle blocks that are stored at that block manager.
+   */
+  def getMapSizesByExecutorId(shuffleId: Int, startPartition: Int, endPartition: Int)
+  : Seq[(BlockManagerId, Seq[(BlockId, Long)])] = {
+    logDebug(s"Fetching outputs for shuffle $shuffleId, reduces [$startPartition, $endPartition)")
     val startTime = System.currentTimeMillis
 
     val statuses = mapStatuses.get(shuffleId).orNull
@@ -164,10 +195,11 @@ private[spark] abstract class MapOutputTracker(conf: SparkConf) extends Logging
         logInfo("Doing the fetch; tracker endpoint = " + trackerEndpoint)
         // This try-finally prevents hangs due to timeouts:
         try {
-          val fetchedBytes = askTracker[Array[Byte]](GetMapOutputStatuses(shuffleId))
-          fetchedStatuses = MapOutputTracker.deserializeMapStatuses(fetchedBytes)
-          logInfo("Got the output locations")
+          val (version, statuses) = fetchMapStatuses(shuffleId, startPartition)
+          fetchedStatuses = statuses
           mapStatuses.put(shuffleId, fetchedStatuses)
+          fetchedVersions.put(shuffleId, version)
+          staleStatuses.remove(shuffleId)
         } finally {
           fetching.synchronized {
             fetching -= shuffleId
@@ -175,23 +207,59 @@ private[spark] abstract class MapOutputTracker(conf: SparkConf) extends Logging
           }
         }
       }
-      logDebug(s"Fetching map output location for shuffle $shuffleId, reduce $reduceId took " +
+      logDebug(s"Fetching map output location for shuffle $shuffleId took " +
         s"${System.currentTimeMillis - startTime} ms")
 
       if (fetchedStatuses != null) {
         fetchedStatuses.synchronized {
-          return MapOutputTracker.convertMapStatuses(shuffleId, reduceId, fetchedStatuses)
+          return MapOutputTracker.convertMapStatuses(
+            shuffleId, startPartition, endPartition, fetchedStatuses)
         }
       } else {
         logError("Missing all output locations for shuffle " + shuffleId)
         throw new MetadataFetchFailedException(
-          shuffleId, reduceId, "Missing all output locations for shuffle " + shuffleId)
+          shuffleId, startPartition, "Missing all output locations for shuffle " + shuffleId)
       }
     } else {
       statuses.synchronized {
-        return MapOutputTracker.convertMapStatuses(shuffleId, reduceId, statuses)
+        return MapOutputTracker.convertMapStatuses(
+          shuffleId, startPartition, endPartition, statuses)
+      }
+    }
+  }
+
+  /**
+   * Fetches the statuses of a shuffle from the driver, and returns their version and them.
+   *
+   * The driver destroys the broadcast variable it sent statuses through once newer statuses
+   * replace them, so reading one can fail. The statuses are then asked for again, and if that
+   * keeps failing, a MetadataFetchFailedException is thrown so that the stage is retried rather
+   * than the task failing.
+   */
+  private def fetchMapStatuses(shuffleId: Int, reduceId: Int): (Long, Array[MapStatus]) = {
+    val stale = Option(staleStatuses.get(shuffleId))
+    val knownVersion = stale.map(_._1).getOrElse(-1L)
+    var attempt = 1
+    while (true) {
+      val fetchedBytes = askTracker[Array[Byte]](GetMapOutputStatuses(shuffleId, knownVersion))
+      try {
+        val (version, statuses) =
+          MapOutputTracker.deserializeMapStatuses(fetchedBytes, stale.map(_._2).orNull)
+        logInfo(s"Got the output locations (version $version, " +
+          s"${fetchedBytes.length} bytes, knew version $knownVersion)")
+        return (version, statuses)
+      } catch {
+        case NonFatal(e) if fetchedBytes(0) == MapOutputTracker.BROADCAST =>
+          if (attempt >= MapOutputTracker.MAX_BROADCAST_FETCH_ATTEMPTS) {
+            throw new MetadataFetchFailedException(shuffleId, reduceId,
+              s"Unable to read the output locations of shuffle $shuffleId from a broadcast: $e")
+          }
+          logWarning(s"Unable to read the output locations of shuffle $shuffleId from a " +
+            s"broadcast (attempt $attempt), fetching them again", e)
+          attempt += 1
       }
     }
+    null  // Never reached
   }
 
   /** Called to get current epoch number. */
@@ -211,7 +279,11 @@ private[spark] abstract class MapOutputTracker(conf: SparkConf) extends Logging
       if (newEpoch > epoch) {
         logInfo("Updating epoch to " + newEpoch + " and clearing cache")
         epoch = newEpoch
+        for ((shuffleId, statuses) <- mapStatuses if fetchedVersions.containsKey(shuffleId)) {
+          staleStatuses.put(shuffleId, (fetchedVersions.get(shuffleId), statuses))
+        }
         mapStatuses.clear()
+        fetchedVersions.clear()
       }
     }
   }
@@ -219,6 +291,8 @@ private[spark] abstract class MapOutputTracker(conf: SparkConf) extends Logging
   /** Unregister shuffle data. */
   def unregisterShuffle(shuffleId: Int) {
     mapStatuses.remove(shuffleId)
+    fetchedVersions.remove(shuffleId)
+    staleStatuses.remove(shuffleId)
   }
 
   /** Stop the tracker. */
@@ -228,12 +302,23 @@ private[spark] abstract class MapOutputTracker(conf: SparkConf) extends Logging
 /**
  * MapOutputTracker for the driver. This uses TimeStampedHashMap to keep track of map
  * output information, which allows old output information based on a TTL.
+ *
+ * Every change to the statuses of a shuffle increments the version of that shuffle, and records
+ * it as the version of the map outputs that changed. An executor that held the statuses of an
+ * earlier version, before a fetch failure changed the epoch, is then sent just the statuses that
+ * changed since, and the encoded statuses of a shuffle are cached until the shuffle changes
+ * rather than until the epoch does. Statuses that are large once encoded are broadcast, and the
+ * executors are sent the broadcast variable instead.
  */
-private[spark] class MapOutputTrackerMaster(conf: SparkConf)
+private[spark] class MapOutputTrackerMaster(
+    conf: SparkConf,
+    broadcastManager: Option[BroadcastManager] = None,
+    isLocal: Boolean = false)
   extends MapOutputTracker(conf) {
 
-  /** Cache a serialized version of the output statuses for each shuffle to send them out faster */
-  private var cacheEpoch = epoch
+  /** Encoded statuses at least this large are sent through a broadcast variable. */
+  private val minSizeForBroadcast =
+    conf.getSizeAsBytes("spark.shuffle.mapOutput.minSizeForBroadcast", "512k")
 
   /**
    * Timestamp based HashMap for storing mapStatuses and cached serialized statuses in the driver,
@@ -241,28 +326,71 @@ private[spark] class MapOutputTrackerMaster(conf: SparkConf)
    * Other than these two scenarios, nothing should be dropped from this HashMap.
    */
   protected val mapStatuses = new TimeStampedHashMap[Int, Array[MapStatus]]()
-  private val cachedSerializedStatuses = new TimeStampedHashMap[Int, Array[Byte]]()
+  private val shuffleVersions = new TimeStampedHashMap[Int, ShuffleVersions]()
+
+  /** Cache a serialized version of the output statuses for each shuffle to send them out faster */
+  private val cachedSerializedStatuses = new TimeStampedHashMap[Int, SerializedStatuses]()
 
   // For cleaning up TimeStampedHashMaps
   private val metadataCleaner =
     new MetadataCleaner(MetadataCleanerType.MAP_OUTPUT_TRACKER, this.cleanup, conf)
 
+  /**
+   * The version of the statuses of a shuffle, and the version at which each of its map outputs
+   * last changed. Changes to the statuses of a shuffle are made while holding this object's lock.
+   */
+  private class ShuffleVersions(numMaps: Int) {
+    var version = 0L
+    var mapVersions = new Array[Long](numMaps)
+
+    def changed(mapId: Int): Unit = {
+      version += 1
+      mapVersions(mapId) = version
+    }
+
+    def allChanged(numMaps: Int): Unit = {
+      version += 1
+      mapVersions = Array.fill(numMaps)(version)
+    }
+
+    def changedSince(knownVersion: Long): Array[Int] = {
+      mapVersions.indices.filter(mapVersions(_) > knownVersion).toArray
+    }
+  }
+
+  /** The encoded statuses of a shuffle at a version, and the broadcast variable holding them. */
+  private case class SerializedStatuses(
+      version: Long,
+      bytes: Array[Byte],
+      broadcast: Option[Broadcast[Array[Byte]]])
+
   def registerShuffle(shuffleId: Int, numMaps: Int) {
     if (mapStatuses.put(shuffleId, new Array[MapStatus](numMaps)).isDefined) {
       throw new IllegalArgumentException("Shuffle ID " + shuffleId + " registered twice")
     }
+    shuffleVersions.put(shuffleId, new ShuffleVersions(numMaps))
   }
 
   def registerMapOutput(shuffleId: Int, mapId: Int, status: MapStatus) {
-    val array = mapStatuses(shuffleId)
-    array.synchronized {
-      array(mapId) = status
+    val versions = shuffleVersions(shuffleId)
+    versions.synchronized {
+      val array = mapStatuses(shuffleId)
+      array.synchronized {
+        array(mapId) = status
+      }
+      versions.changed(mapId)
     }
   }
 
   /** Register multiple map output information for the given shuffle */
   def registerMapOutputs(shuffleId: Int, statuses: Array[MapStatus], changeEpoch: Boolean = false) {
-    mapStatuses.put(shuffleId, Array[MapStatus]() ++ statuses)
+    val versions = shuffleVersions.synchronized {
+      shuffleVersions.getOrElseUpdate(shuffleId, new ShuffleVersions(statuses.length))
+    }
+    versions.synchronized {
+      mapStatuses.put(shuffleId, Array[MapStatus]() ++ statuses)
+      versions.allChanged(statuses.length)
+    }
     if (changeEpoch) {
       incrementEpoch()
     }
@@ -272,10 +400,14 @@ private[spark] class MapOutputTrackerMaster(conf: SparkConf)
   def unregisterMapOutput(shuffleId: Int, mapId: Int, bmAddress: BlockManagerId) {
     val arrayOpt = mapStatuses.get(shuffleId)
     if (arrayOpt.isDefined && arrayOpt.get != null) {
-      val array = arrayOpt.get
-      array.synchronized {
-        if (array(mapId) != null && array(mapId).location == bmAddress) {
-          array(mapId) = null
+      val versions = shuffleVersions(shuffleId)
+      versions.synchronized {
+        val array = mapStatuses(shuffleId)
+        array.synchronized {
+          if (array(mapId) != null && array(mapId).location == bmAddress) {
+            array(mapId) = null
+            versions.changed(mapId)
+          }
         }
       }
       incrementEpoch()
@@ -287,7 +419,8 @@ private[spark] class MapOutputTrackerMaster(conf: SparkConf)
   /** Unregister shuffle data */
   override def unregisterShuffle(shuffleId: Int) {
     mapStatuses.remove(shuffleId)
-    cachedSerializedStatuses.remove(shuffleId)
+    shuffleVersions.remove(shuffleId)
+    cachedSerializedStatuses.remove(shuffleId).foreach(destroy)
   }
 
   /** Check if the given shuffle is being tracked */
@@ -295,6 +428,17 @@ private[spark] class MapOutputTrackerMaster(conf: SparkConf)
     cachedSerializedStatuses.contains(shuffleId) || mapStatuses.contains(shuffleId)
   }
 
+  /**
+   * Returns a copy of the map output statuses of the given shuffle, with null for the map outputs
+   * that are missing.
+   */
+  def getMapOutputStatuses(shuffleId: Int): Array[MapStatus] = {
+    val array = mapStatuses.getOrElse(shuffleId, Array[MapStatus]())
+    array.synchronized {
+      array.clone()
+    }
+  }
+
   /**
    * Return a list of locations that each have fraction of map output greater than the specified
    * threshold.
@@ -349,46 +493,105 @@ private[spark] class MapOutputTrackerMaster(conf: SparkConf)
     }
   }
 
-  def getSerializedMapOutputStatuses(shuffleId: Int): Array[Byte] = {
+  /**
+   * Returns the encoded map output statuses of a shuffle, to send to an executor that holds those
+   * of the given version (or -1 if it holds none): just the statuses changed since that version
+   * if there are few of them, or else all of them.
+   */
+  def getSerializedMapOutputStatuses(shuffleId: Int, knownVersion: Long = -1): Array[Byte] = {
+    val versions = shuffleVersions.get(shuffleId).orNull
+    if (versions == null) {
+      return MapOutputTracker.serializeMapStatuses(0L, Array[MapStatus]())
+    }
+    var version = 0L
     var statuses: Array[MapStatus] = null
-    var epochGotten: Long = -1
-    epochLock.synchronized {
-      if (epoch > cacheEpoch) {
-        cachedSerializedStatuses.clear()
-        cacheEpoch = epoch
+    var changedMapIds: Array[Int] = null
+    var numMaps = 0
+    versions.synchronized {
+      version = versions.version
+      val array = mapStatuses.getOrElse(shuffleId, Array[MapStatus]())
+      numMaps = array.length
+      if (knownVersion >= 0 && knownVersion <= version) {
+        val changed = versions.changedSince(knownVersion)
+        if (changed.length * 2 <= array.length) {
+          changedMapIds = changed
+          statuses = array.synchronized { changed.map(array(_)) }
+        }
       }
-      cachedSerializedStatuses.get(shuffleId) match {
-        case Some(bytes) =>
-          return bytes
-        case None =>
-          statuses = mapStatuses.getOrElse(shuffleId, Array[MapStatus]())
-          epochGotten = epoch
+      if (changedMapIds == null) {
+        cachedSerializedStatuses.get(shuffleId) match {
+          case Some(cached) if cached.version == version =>
+            return cached.bytes
+          case _ =>
+            statuses = array.synchronized { array.clone() }
+        }
       }
     }
+    if (changedMapIds != null) {
+      return MapOutputTracker.serializeChangedMapStatuses(
+        version, numMaps, changedMapIds, statuses)
+    }
+
     // If we got here, we failed to find the serialized locations in the cache, so we pulled
     // out a snapshot of the locations as "statuses"; let's serialize and return that
-    val bytes = MapOutputTracker.serializeMapStatuses(statuses)
-    logInfo("Size of output statuses for shuffle %d is %d bytes".format(shuffleId, bytes.length))
-    // Add them into the table only if the epoch hasn't changed while we were working
-    epochLock.synchronized {
-      if (epoch == epochGotten) {
-        cachedSerializedStatuses(shuffleId) = bytes
+    var serialized = MapOutputTracker.serializeMapStatuses(version, statuses)
+    logInfo(s"Size of output statuses for shuffle $shuffleId is ${serialized.length} bytes")
+    if (serialized.length >= minSizeForBroadcast && broadcastManager.isDefined) {
+      val broadcast = broadcastManager.get.newBroadcast(serialized, isLocal)
+      serialized = MapOutputTracker.serializeBroadcast(broadcast)
+      logInfo(s"Broadcast output statuses for shuffle $shuffleId as broadcast ${broadcast.id}, " +
+        s"sending ${serialized.length} bytes")
+      cacheSerializedStatuses(shuffleId, SerializedStatuses(version, serialized, Some(broadcast)))
+    } else {
+      cacheSerializedStatuses(shuffleId, SerializedStatuses(version, serialized, None))
+    }
+  }
+
+  /**
+   * Caches the given statuses unless newer ones are cached already, and returns those that are
+   * cached. No executor can have been sent the statuses that are not cached, so they are
+   * dropped, and their broadcast destroyed.
+   */
+  private def cacheSerializedStatuses(
+      shuffleId: Int,
+      statuses: SerializedStatuses): Array[Byte] = {
+    val versions = shuffleVersions.get(shuffleId).orNull
+    if (versions == null) {
+      // The shuffle was unregistered while we were working
+      destroy(statuses)
+      return statuses.bytes
+    }
+    versions.synchronized {
+      cachedSerializedStatuses.get(shuffleId) match {
+        case Some(cached) if cached.version >= statuses.version =>
+          destroy(statuses)
+          cached.bytes
+        case cached =>
+          cachedSerializedStatuses(shuffleId) = statuses
+          cached.foreach(destroy)
+          statuses.bytes
       }
     }
-    bytes
+  }
+
+  private def destroy(statuses: SerializedStatuses): Unit = {
+    statuses.broadcast.foreach(_.destroy(blocking = false))
   }
 
   override def stop() {
     sendTracker(StopMapOutputTracker)
     mapStatuses.clear()
+    shuffleVersions.clear()
     trackerEndpoint = null
     metadataCleaner.cancel()
+    cachedSerializedStatuses.values.foreach(destroy)
     cachedSerializedStatuses.clear()
   }
 
   private def cleanup(cleanupTime: Long) {
     mapStatuses.clearOldValues(cleanupTime)
-    cachedSerializedStatuses.clearOldValues(cleanupTime)
+    shuffleVersions.clearOldValues(cleanupTime)
+    cachedSerializedStatuses.clearOldValues(cleanupTime, (_, statuses) => destroy(statuses))
   }
 }
 
@@ -405,35 +608,170 @@ private[spark] object MapOutputTracker extends Logging {
 
   val ENDPOINT_NAME = "MapOutputTracker"
 
-  // Serialize an array of map output locations into an efficient byte format so that we can send
-  // it to reduce tasks. We do this by compressing the serialized bytes using GZIP. They will
-  // generally be pretty compressible because many map outputs will be on the same hostname.
-  def serializeMapStatuses(statuses: Array[MapStatus]): Array[Byte] = {
-    val out = new ByteArrayOutputStream
-    val objOut = new ObjectOutputStream(new GZIPOutputStream(out))
+  // Kinds of serialized statuses
+  private[spark] val DIRECT: Byte = 0
+  private[spark] val BROADCAST: Byte = 1
+
+  /**
+   * How many times an executor asks for the statuses of a shuffle when it cannot read the
+   * broadcast they were sent through.
+   */
+  private val MAX_BROADCAST_FETCH_ATTEMPTS = 3
+
+  /**
+   * Serialize the map output statuses of a shuffle into an efficient byte format so that we can
+   * send them to reduce tasks.
+   *
+   * The statuses are written column by column: the distinct locations, then the index of the
+   * location of each status (or -1 for a missing one), then the kind of each status and finally
+   * their sizes. The columns are compressed using GZIP; they compress well because the location
+   * indices are small, and statuses of the same stage have similar sizes.
+   */
+  def serializeMapStatuses(version: Long, statuses: Array[MapStatus]): Array[Byte] = {
+    serializeMapStatuses(version, statuses.length, null, statuses)
+  }
+
+  /**
+   * Serialize the statuses of the given map outputs of a shuffle of numMaps map outputs, to be
+   * applied to the statuses of an earlier version.
+   */
+  def serializeChangedMapStatuses(
+      version: Long,
+      numMaps: Int,
+      mapIds: Array[Int],
+      statuses: Array[MapStatus]): Array[Byte] = {
+    serializeMapStatuses(version, numMaps, mapIds, statuses)
+  }
+
+  private def serializeMapStatuses(
+      version: Long,
+      numMaps: Int,
+      mapIds: Array[Int],
+      statuses: Array[MapStatus]): Array[Byte] = {
+    val bytes = new ByteArrayOutputStream
+    bytes.write(DIRECT)
+    val out = new DataOutputStream(new GZIPOutputStream(bytes))
     Utils.tryWithSafeFinally {
-      // Since statuses can be modified in parallel, sync on it
-      statuses.synchronized {
-        objOut.writeObject(statuses)
+      out.writeLong(version)
+      out.writeInt(numMaps)
+      out.writeBoolean(mapIds != null)
+      out.writeInt(statuses.length)
+      if (mapIds != null) {
+        mapIds.foreach(out.writeInt)
+      }
+      val locationIndices = new HashMap[BlockManagerId, Int]
+      val locations = new ArrayBuffer[BlockManagerId]
+      val statusLocations = statuses.map { status =>
+        if (status == null) {
+          -1
+        } else {
+          locationIndices.getOrElseUpdate(status.location, {
+            locations += status.location
+            locations.length - 1
+          })
+        }
+      }
+      out.writeInt(locations.length)
+      for (location <- locations) {
+        out.writeUTF(location.executorId)
+        out.writeUTF(location.host)
+        out.writeInt(location.port)
+      }
+      statusLocations.foreach(out.writeInt)
+      for (status <- statuses if status != null) {
+        out.writeByte(MapStatus.kind(status))
+      }
+      for (status <- statuses if status != null) {
+        MapStatus.writeSizes(status, out)
       }
     } {
-      objOut.close()
+      out.close()
     }
-    out.toByteArray
+    bytes.toByteArray
   }
 
-  // Opposite of serializeMapStatuses.
-  def deserializeMapStatuses(bytes: Array[Byte]): Array[MapStatus] = {
-    val objIn = new ObjectInputStream(new GZIPInputStream(new ByteArrayInputStream(bytes)))
+  /** Serializes a broadcast variable holding the result of serializeMapStatuses. */
+  def serializeBroadcast(broadcast: Broadcast[Array[Byte]]): Array[Byte] = {
+    val bytes = new ByteArrayOutputStream
+    bytes.write(BROADCAST)
+    val objOut = new ObjectOutputStream(bytes)
     Utils.tryWithSafeFinally {
-      objIn.readObject().asInstanceOf[Array[MapStatus]]
+      objOut.writeObject(broadcast)
     } {
-      objIn.close()
+      objOut.close()
+    }
+    bytes.toByteArray
+  }
+
+  /**
+   * Opposite of serializeMapStatuses and serializeBroadcast, returning the version and the map
+   * output statuses of the shuffle. Statuses of only some map outputs are applied to a copy of
+   * the given statuses of an earlier version.
+   */
+  def deserializeMapStatuses(
+      bytes: Array[Byte],
+      earlierStatuses: Array[MapStatus] = null): (Long, Array[MapStatus]) = {
+    bytes(0) match {
+      case DIRECT =>
+        val in = new DataInputStream(
+          new GZIPInputStream(new ByteArrayInputStream(bytes, 1, bytes.length - 1)))
+        Utils.tryWithSafeFinally {
+          readMapStatuses(in, earlierStatuses)
+        } {
+          in.close()
+        }
+      case BROADCAST =>
+        val objIn = new ObjectInputStream(new ByteArrayInputStream(bytes, 1, bytes.length - 1))
+        val broadcast = Utils.tryWithSafeFinally {
+          objIn.readObject().asInstanceOf[Broadcast[Array[Byte]]]
+        } {
+          objIn.close()
+        }
+        logInfo(s"Reading map output statuses from broadcast ${broadcast.id}")
+        deserializeMapStatuses(broadcast.value, earlierStatuses)
+    }
+  }
+
+  private def readMapStatuses(
+      in: DataInputStream,
+      earlierStatuses: Array[MapStatus]): (Long, Array[MapStatus]) = {
+    val version = in.readLong()
+    val numMaps = in.readInt()
+    val isDelta = in.readBoolean()
+    val numStatuses = in.readInt()
+    val mapIds = if (isDelta) Array.fill(numStatuses)(in.readInt()) else null
+    if (isDelta && earlierStatuses == null) {
+      throw new SparkException("Received changed map output statuses without earlier ones")
+    }
+    val locations = Array.fill(in.readInt()) {
+      BlockManagerId(in.readUTF(), in.readUTF(), in.readInt())
+    }
+    val statusLocations = Array.fill(numStatuses)(in.readInt())
+    val kinds = new Array[Byte](statusLocations.count(_ >= 0))
+    in.readFully(kinds)
+    var kindIndex = 0
+    val statuses = statusLocations.map { locationIndex =>
+      if (locationIndex < 0) {
+        null
+      } else {
+        val status = MapStatus.readSizes(kinds(kindIndex), locations(locationIndex), in)
+        kindIndex += 1
+        status
+      }
+    }
+    if (isDelta) {
+      val updated = java.util.Arrays.copyOf(earlierStatuses, numMaps)
+      for (i <- 0 until numStatuses) {
+        updated(mapIds(i)) = statuses(i)
+      }
+      (version, updated)
+    } else {
+      (version, statuses)
     }
   }
 
   /**
-   * Converts an array of MapStatuses for a given reduce ID to a sequence that, for each block
+   * Converts an array of MapStatuses for a range of reduce IDs to a sequence that, for each block
    * manager ID, lists the shuffle block ids and corresponding shuffle block sizes stored at that
    * block manager.
    *
@@ -441,7 +779,8 @@ private[spark] object MapOutputTracker extends Logging {
    * throws a FetchFailedException.
    *
    * @param shuffleId Identifier for the shuffle
-   * @param reduceId Identifier for the reduce task
+   * @param startPartition First reduce partition to read
+   * @param endPartition Reduce partition after the last one to read
    * @param statuses List of map statuses, indexed by map ID.
    * @return A sequence of 2-item tuples, where the first item in the tuple is a BlockManagerId,
    *         and the second item is a sequence of (shuffle block id, shuffle block size) tuples
@@ -449,7 +788,8 @@ private[spark] object MapOutputTracker extends Logging {
    */
   private def convertMapStatuses(
       shuffleId: Int,
-      reduceId: Int,
+      startPartition: Int,
+      endPartition: Int,
       statuses: Array[MapStatus]): Seq[(BlockManagerId, Seq[(BlockId, Long)])] = {
     assert (statuses != null)
     val splitsByAddress = new HashMap[BlockManagerId, ArrayBuffer[(BlockId, Long)]]
@@ -457,10 +797,12 @@ private[spark] object MapOutputTracker extends Logging {
       if (status == null) {
         val errorMessage = s"Missing an output location for shuffle $shuffleId"
         logError(errorMessage)
-        throw new MetadataFetchFailedException(shuffleId, reduceId, errorMessage)
+        throw new MetadataFetchFailedException(shuffleId, startPartition, errorMessage)
       } else {
-        splitsByAddress.getOrElseUpdate(status.location, ArrayBuffer()) +=
-          ((ShuffleBlockId(shuffleId, mapId, reduceId), status.getSizeForBlock(reduceId)))
+        val splits = splitsByAddress.getOrElseUpdate(status.location, ArrayBuffer())
+        for (reduceId <- startPartition until endPartition) {
+          splits += ((ShuffleBlockId(shuffleId, mapId, reduceId), status.getSizeForBlock(reduceId)))
+        }
       }
     }
 
@@ -153,7 +153,9 @@ import org.apache.spark.util.Utils
  *  When authentication is being used, encryption can also be enabled by setting the option
  *  spark.authenticate.enableSaslEncryption to true. This is only supported by communication
  *  channels that use the network-common library, and can be used as an alternative to SSL in those
- *  cases.
+ *  cases. Setting spark.network.aes.enabled to true as well (on both ends, including the external
+ *  shuffle service) encrypts those channels with AES-GCM, using keys exchanged over SASL, instead
+ *  of the much slower SASL DIGEST-MD5 encryption.
  *
  *  SSL can be used for encryption for certain communication channels. The user can configure the
  *  default SSL settings which will be used for all the supported communication protocols unless
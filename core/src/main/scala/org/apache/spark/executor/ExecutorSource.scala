@@ -26,6 +26,7 @@ import org.apache.hadoop.fs.FileSystem
 
 import org.apache.spark.SparkEnv
 import org.apache.spark.metrics.source.Source
+import org.apache.spark.util.instrumentation.{FileOperation, FileRole, FileStreamStatistics}
 
 private[spark]
 class ExecutorSource(threadPool: ThreadPoolExecutor, executorId: String) extends Source {
@@ -78,6 +79,63 @@ class ExecutorSource(threadPool: ThreadPoolExecutor, executorId: String) extends
     registerFileSystemStat(scheme, "metadata_time", _.getMetadataTime(), 0L)
   }
 
+  // Gauges for file stream latency percentiles recorded by the instrumented file streams
+  for (op <- FileOperation.values()) {
+    val histogram = FileStreamStatistics.latency(op)
+    val opName = op.toString.toLowerCase
+    for ((name, fraction) <- Seq(("p50", 0.5), ("p99", 0.99), ("p999", 0.999))) {
+      metricRegistry.register(MetricRegistry.name("fileIO", opName, name + "_ns"), new Gauge[Long] {
+        override def getValue: Long = histogram.percentile(fraction)
+      })
+    }
+    metricRegistry.register(MetricRegistry.name("fileIO", opName, "max_ns"), new Gauge[Long] {
+      override def getValue: Long = histogram.max()
+    })
+  }
+
+  // Gauges for bytes moved and average I/O size per file role, for throughput and buffer tuning
+  for (role <- FileRole.values()) {
+    val totals = FileStreamStatistics.totalsFor(role)
+    val roleName = role.toString.toLowerCase
+    metricRegistry.register(MetricRegistry.name("fileIO", roleName, "bytesRead"), new Gauge[Long] {
+      override def getValue: Long = totals.bytesRead.sum()
+    })
+    metricRegistry.register(MetricRegistry.name("fileIO", roleName, "bytesWritten"),
+      new Gauge[Long] {
+        override def getValue: Long = totals.bytesWritten.sum()
+      })
+    metricRegistry.register(MetricRegistry.name("fileIO", roleName, "readSize_p50"),
+      new Gauge[Long] {
+        override def getValue: Long = FileStreamStatistics.readSizes(role).percentile(0.5)
+      })
+    metricRegistry.register(MetricRegistry.name("fileIO", roleName, "writeSize_p50"),
+      new Gauge[Long] {
+        override def getValue: Long = FileStreamStatistics.writeSizes(role).percentile(0.5)
+      })
+  }
+
+  // Gauges for reuse of freed execution memory pages
+  metricRegistry.register(MetricRegistry.name("pagePool", "hits"), new Gauge[Long] {
+    override def getValue: Long = SparkEnv.get.executorMemoryManager.pagePoolHits()
+  })
+
+  metricRegistry.register(MetricRegistry.name("pagePool", "misses"), new Gauge[Long] {
+    override def getValue: Long = SparkEnv.get.executorMemoryManager.pagePoolMisses()
+  })
+
+  metricRegistry.register(MetricRegistry.name("pagePool", "hitRate"), new Gauge[Double] {
+    override def getValue: Double = {
+      val memoryManager = SparkEnv.get.executorMemoryManager
+      val hits = memoryManager.pagePoolHits()
+      val total = hits + memoryManager.pagePoolMisses()
+      if (total == 0) 0.0 else hits.toDouble / total
+    }
+  })
+
+  metricRegistry.register(MetricRegistry.name("pagePool", "retainedBytes"), new Gauge[Long] {
+    override def getValue: Long = SparkEnv.get.executorMemoryManager.pagePoolRetainedBytes()
+  })
+
   metricRegistry.register(MetricRegistry.name("memoryStore", "usedMemory"), new Gauge[Long] {
     override def getValue: Long = {
       SparkEnv.get.blockManager.memoryStore.usedMemory
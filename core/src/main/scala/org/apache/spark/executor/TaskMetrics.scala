@@ -20,12 +20,13 @@ package org.apache.spark.executor
 import java.io.{IOException, ObjectInputStream}
 import java.util.concurrent.ConcurrentHashMap
 
-import scala.collection.mutable.ArrayBuffer
+import scala.collection.mutable.{ArrayBuffer, HashMap}
 
 import org.apache.spark.annotation.DeveloperApi
 import org.apache.spark.executor.DataReadMethod.DataReadMethod
-import org.apache.spark.storage.{BlockId, BlockStatus}
+import org.apache.spark.storage.{BlockId, BlockManagerId, BlockStatus}
 import org.apache.spark.util.Utils
+import org.apache.spark.util.instrumentation.FileStatisticsContext
 
 import org.apache.spark.SparkEnv
 
@@ -153,6 +154,15 @@ class TaskMetrics extends Serializable {
    */
   var shuffleWriteMetrics: Option[ShuffleWriteMetrics] = None
 
+  /**
+   * File stream I/O performed by this task through the instrumented streams, one entry per file
+   * role (shuffle data, shuffle index, spill, block store) that the task touched. Filled in when
+   * the task ends.
+   */
+  private var _fileIOMetrics: Seq[FileIOMetrics] = Nil
+  def fileIOMetrics: Seq[FileIOMetrics] = _fileIOMetrics
+  private[spark] def setFileIOMetrics(value: Seq[FileIOMetrics]): Unit = _fileIOMetrics = value
+
   /**
    * Storage statuses of any blocks that have been updated as a result of this task.
    */
@@ -208,6 +218,7 @@ class TaskMetrics extends Serializable {
         merged.incRemoteBytesRead(depMetrics.remoteBytesRead)
         merged.incLocalBytesRead(depMetrics.localBytesRead)
         merged.incRecordsRead(depMetrics.recordsRead)
+        merged.incPeerFetchMetrics(depMetrics.peerFetchMetrics.values)
       }
       _shuffleReadMetrics = Some(merged)
     }
@@ -340,6 +351,81 @@ case class OutputMetrics(writeMethod: DataWriteMethod.Value) {
   private[spark] def setRecordsWritten(value: Long): Unit = _recordsWritten = value
 }
 
+/**
+ * :: DeveloperApi ::
+ * Metrics about file stream I/O for one file role, as recorded by the instrumented file streams.
+ * Times are in nanoseconds.
+ */
+@DeveloperApi
+case class FileIOMetrics(role: String) {
+  private var _inputOpens: Long = _
+  def inputOpens: Long = _inputOpens
+
+  private var _inputOpenTime: Long = _
+  def inputOpenTime: Long = _inputOpenTime
+
+  private var _outputOpens: Long = _
+  def outputOpens: Long = _outputOpens
+
+  private var _outputOpenTime: Long = _
+  def outputOpenTime: Long = _outputOpenTime
+
+  private var _reads: Long = _
+  def reads: Long = _reads
+
+  private var _readTime: Long = _
+  def readTime: Long = _readTime
+
+  private var _writes: Long = _
+  def writes: Long = _writes
+
+  private var _writeTime: Long = _
+  def writeTime: Long = _writeTime
+
+  private var _bytesRead: Long = _
+  def bytesRead: Long = _bytesRead
+
+  private var _bytesWritten: Long = _
+  def bytesWritten: Long = _bytesWritten
+
+  private var _transfers: Long = _
+  def transfers: Long = _transfers
+
+  private var _transferTime: Long = _
+  def transferTime: Long = _transferTime
+
+  private var _bytesTransferred: Long = _
+  def bytesTransferred: Long = _bytesTransferred
+
+  private var _bytesMapped: Long = _
+  def bytesMapped: Long = _bytesMapped
+}
+
+private[spark] object FileIOMetrics {
+
+  /** Converts the non-empty roles of a finished task's statistics context. */
+  def fromContext(ctx: FileStatisticsContext): Seq[FileIOMetrics] = {
+    ctx.allRoles().filter(!_.isEmpty).map { stats =>
+      val m = new FileIOMetrics(stats.role.toString)
+      m._inputOpens = stats.inputOpens.sum()
+      m._inputOpenTime = stats.cumulativeInputOpenTime.sum()
+      m._outputOpens = stats.outputOpens.sum()
+      m._outputOpenTime = stats.cumulativeOutputOpenTime.sum()
+      m._reads = stats.reads.sum()
+      m._readTime = stats.cumulativeReadTime.sum()
+      m._writes = stats.writes.sum()
+      m._writeTime = stats.cumulativeWriteTime.sum()
+      m._bytesRead = stats.bytesRead.sum()
+      m._bytesWritten = stats.bytesWritten.sum()
+      m._transfers = stats.transfers.sum()
+      m._transferTime = stats.cumulativeTransferTime.sum()
+      m._bytesTransferred = stats.bytesTransferred.sum()
+      m._bytesMapped = stats.bytesMapped.sum()
+      m
+    }.toSeq
+  }
+}
+
 /**
  * :: DeveloperApi ::
  * Metrics pertaining to shuffle data read in a given task.
@@ -404,6 +490,71 @@ class ShuffleReadMetrics extends Serializable {
   def recordsRead: Long = _recordsRead
   private[spark] def incRecordsRead(value: Long) = _recordsRead += value
   private[spark] def decRecordsRead(value: Long) = _recordsRead -= value
+
+  /**
+   * Fetch statistics for each remote executor this task fetched shuffle blocks from, which can be
+   * compared to find the executors that slow the task down.
+   */
+  private val _peerFetchMetrics = new HashMap[BlockManagerId, ShufflePeerFetchMetrics]
+  def peerFetchMetrics: Map[BlockManagerId, ShufflePeerFetchMetrics] = synchronized {
+    _peerFetchMetrics.toMap
+  }
+
+  /** Records a completed fetch request of the given number of blocks and bytes. */
+  private[spark] def incPeerFetch(
+      address: BlockManagerId,
+      blocks: Int,
+      bytes: Long,
+      fetchTime: Long): Unit = synchronized {
+    _peerFetchMetrics.getOrElseUpdate(address, new ShufflePeerFetchMetrics(address))
+      .incFetch(1, blocks, bytes, fetchTime, fetchTime)
+  }
+
+  private[spark] def incPeerFetchMetrics(
+      metrics: Iterable[ShufflePeerFetchMetrics]): Unit = synchronized {
+    metrics.foreach { m =>
+      _peerFetchMetrics.getOrElseUpdate(m.address, new ShufflePeerFetchMetrics(m.address))
+        .incFetch(m.requestsFetched, m.blocksFetched, m.bytesFetched, m.fetchTime, m.maxFetchTime)
+    }
+  }
+}
+
+/**
+ * :: DeveloperApi ::
+ * Metrics about the shuffle fetch requests a task made to one remote executor. Times are in
+ * milliseconds, from sending a request until all of its blocks are received.
+ */
+@DeveloperApi
+class ShufflePeerFetchMetrics(val address: BlockManagerId) extends Serializable {
+  private var _requestsFetched: Int = _
+  def requestsFetched: Int = _requestsFetched
+
+  private var _blocksFetched: Int = _
+  def blocksFetched: Int = _blocksFetched
+
+  private var _bytesFetched: Long = _
+  def bytesFetched: Long = _bytesFetched
+
+  /** Total time of all requests. */
+  private var _fetchTime: Long = _
+  def fetchTime: Long = _fetchTime
+
+  /** Time of the slowest request. */
+  private var _maxFetchTime: Long = _
+  def maxFetchTime: Long = _maxFetchTime
+
+  private[spark] def incFetch(
+      requests: Int,
+      blocks: Int,
+      bytes: Long,
+      time: Long,
+      maxTime: Long): Unit = {
+    _requestsFetched += requests
+    _blocksFetched += blocks
+    _bytesFetched += bytes
+    _fetchTime += time
+    _maxFetchTime = math.max(_maxFetchTime, maxTime)
+  }
 }
 
 /**
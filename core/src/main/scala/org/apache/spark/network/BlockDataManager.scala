@@ -29,6 +29,17 @@ trait BlockDataManager {
    */
   def getBlockData(blockId: BlockId): ManagedBuffer
 
+  /**
+   * Interface to get the local data of the contiguous shuffle blocks [startReduceId, endReduceId)
+   * of one map output as a single buffer. The length of each block is stored into blockLengths.
+   */
+  def getShuffleBlockRangeData(
+      shuffleId: Int,
+      mapId: Int,
+      startReduceId: Int,
+      endReduceId: Int,
+      blockLengths: Array[Long]): ManagedBuffer
+
   /**
    * Put the block locally, using the given storage level.
    */
@@ -26,7 +26,8 @@ import org.apache.spark.network.BlockDataManager
 import org.apache.spark.network.buffer.{ManagedBuffer, NioManagedBuffer}
 import org.apache.spark.network.client.{RpcResponseCallback, TransportClient}
 import org.apache.spark.network.server.{OneForOneStreamManager, RpcHandler, StreamManager}
-import org.apache.spark.network.shuffle.protocol.{BlockTransferMessage, OpenBlocks, StreamHandle, UploadBlock}
+import org.apache.spark.network.shuffle.protocol.{BlockTransferMessage, OpenBlockRanges, OpenBlocks,
+  RangeStreamHandle, StreamHandle, UploadBlock}
 import org.apache.spark.serializer.Serializer
 import org.apache.spark.storage.{BlockId, StorageLevel}
 
@@ -35,7 +36,8 @@ import org.apache.spark.storage.{BlockId, StorageLevel}
  * Handles opening and uploading arbitrary BlockManager blocks.
  *
  * Opened blocks are registered with the "one-for-one" strategy, meaning each Transport-layer Chunk
- * is equivalent to one Spark-level shuffle block.
+ * is equivalent to one Spark-level shuffle block, except for opened ranges of shuffle blocks, where
+ * each chunk covers a whole range.
  */
 class NettyBlockRpcServer(
     serializer: Serializer,
@@ -59,6 +61,27 @@ class NettyBlockRpcServer(
         logTrace(s"Registered streamId $streamId with ${blocks.size} buffers")
         responseContext.onSuccess(new StreamHandle(streamId, blocks.size).toByteArray)
 
+      case openRanges: OpenBlockRanges =>
+        val blockLengths = new Array[Long](openRanges.numBlocks)
+        var blockIndex = 0
+        val ranges: Seq[ManagedBuffer] = openRanges.mapIds.indices.map { i =>
+          val width = openRanges.endReduceIds(i) - openRanges.startReduceIds(i)
+          val rangeLengths = new Array[Long](width)
+          val range = blockManager.getShuffleBlockRangeData(openRanges.shuffleId,
+            openRanges.mapIds(i), openRanges.startReduceIds(i), openRanges.endReduceIds(i),
+            rangeLengths)
+          System.arraycopy(rangeLengths, 0, blockLengths, blockIndex, width)
+          blockIndex += width
+          range
+        }
+        val streamId = streamManager.registerStream(ranges.iterator)
+        logTrace(s"Registered streamId $streamId with ${ranges.size} ranges")
+        val chunkBlockCounts = openRanges.mapIds.indices.map { i =>
+          openRanges.endReduceIds(i) - openRanges.startReduceIds(i)
+        }
+        responseContext.onSuccess(
+          new RangeStreamHandle(streamId, chunkBlockCounts.toArray, blockLengths).toByteArray)
+
       case uploadBlock: UploadBlock =>
         // StorageLevel is serialized as bytes using our JavaSerializer.
         val level: StorageLevel =
@@ -56,11 +56,27 @@ object SparkTransportConf {
     conf.set("spark.shuffle.io.clientThreads",
       conf.get("spark.shuffle.io.clientThreads", numThreads.toString))
 
+    // Ranges of shuffle blocks can only be served from the single indexed file per map output
+    // written by the sort-based shuffles.
+    conf.set("spark.shuffle.io.fetchBlockRanges",
+      conf.get("spark.shuffle.io.fetchBlockRanges", sortBasedShuffle(conf).toString))
+
     new TransportConf(new ConfigProvider {
       override def get(name: String): String = conf.get(name)
     })
   }
 
+  /** Returns whether the configured shuffle manager is one of the sort-based ones. */
+  private def sortBasedShuffle(conf: SparkConf): Boolean = {
+    val shuffleMgrName = conf.get("spark.shuffle.manager", "sort")
+    shuffleMgrName.toLowerCase match {
+      case "sort" | "tungsten-sort" => true
+      case _ =>
+        shuffleMgrName == "org.apache.spark.shuffle.sort.SortShuffleManager" ||
+          shuffleMgrName == "org.apache.spark.shuffle.unsafe.UnsafeShuffleManager"
+    }
+  }
+
   /**
    * Returns the default number of threads for both the Netty client and server thread pools.
    * If numUsableCores is 0, we will use Runtime get an approximate number of available cores.
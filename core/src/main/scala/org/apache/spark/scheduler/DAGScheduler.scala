@@ -305,8 +305,7 @@ class DAGScheduler(
     val numTasks = rdd.partitions.size
     val stage = newShuffleMapStage(rdd, numTasks, shuffleDep, firstJobId, rdd.creationSite)
     if (mapOutputTracker.containsShuffle(shuffleDep.shuffleId)) {
-      val serLocs = mapOutputTracker.getSerializedMapOutputStatuses(shuffleDep.shuffleId)
-      val locs = MapOutputTracker.deserializeMapStatuses(serLocs)
+      val locs = mapOutputTracker.getMapOutputStatuses(shuffleDep.shuffleId)
       for (i <- 0 until locs.size) {
         stage.outputLocs(i) = Option(locs(i)).toList // locs(i) will be null if missing
       }
@@ -17,7 +17,7 @@
 
 package org.apache.spark.scheduler
 
-import java.io.{Externalizable, ObjectInput, ObjectOutput}
+import java.io.{DataInput, DataOutput, Externalizable, ObjectInput, ObjectOutput}
 
 import org.roaringbitmap.RoaringBitmap
 
@@ -79,6 +79,33 @@ private[spark] object MapStatus {
       math.pow(LOG_BASE, compressedSize & 0xFF).toLong
     }
   }
+
+  // Kinds of statuses, as written by writeSizes
+  private val COMPRESSED: Byte = 0
+  private val HIGHLY_COMPRESSED: Byte = 1
+
+  /**
+   * Returns the kind of a status, which [[readSizes]] needs to read back what [[writeSizes]]
+   * wrote. The location, kind and sizes of a status are written separately so that
+   * MapOutputTracker can write each of them as a column for all the statuses of a shuffle.
+   */
+  def kind(status: MapStatus): Byte = status match {
+    case _: CompressedMapStatus => COMPRESSED
+    case _: HighlyCompressedMapStatus => HIGHLY_COMPRESSED
+  }
+
+  /** Writes the block sizes of a status, without its location. */
+  def writeSizes(status: MapStatus, out: DataOutput): Unit = status match {
+    case s: CompressedMapStatus => s.writeSizes(out)
+    case s: HighlyCompressedMapStatus => s.writeSizes(out)
+  }
+
+  /** Reads a status of the given kind and location written by [[writeSizes]]. */
+  def readSizes(kind: Byte, loc: BlockManagerId, in: DataInput): MapStatus = kind match {
+    case COMPRESSED => CompressedMapStatus.readSizes(loc, in)
+    case HIGHLY_COMPRESSED => HighlyCompressedMapStatus.readSizes(loc, in)
+    case _ => throw new IllegalArgumentException(s"Unknown kind of map status: $kind")
+  }
 }
 
 
@@ -118,6 +145,19 @@ private[spark] class CompressedMapStatus(
     compressedSizes = new Array[Byte](len)
     in.readFully(compressedSizes)
   }
+
+  private[scheduler] def writeSizes(out: DataOutput): Unit = {
+    out.writeInt(compressedSizes.length)
+    out.write(compressedSizes)
+  }
+}
+
+private[spark] object CompressedMapStatus {
+  private[scheduler] def readSizes(loc: BlockManagerId, in: DataInput): CompressedMapStatus = {
+    val compressedSizes = new Array[Byte](in.readInt())
+    in.readFully(compressedSizes)
+    new CompressedMapStatus(loc, compressedSizes)
+  }
 }
 
 /**
@@ -165,9 +205,25 @@ private[spark] class HighlyCompressedMapStatus private (
     emptyBlocks.readExternal(in)
     avgSize = in.readLong()
   }
+
+  private[scheduler] def writeSizes(out: DataOutput): Unit = {
+    emptyBlocks.serialize(out)
+    out.writeLong(avgSize)
+  }
 }
 
 private[spark] object HighlyCompressedMapStatus {
+  private[scheduler] def readSizes(
+      loc: BlockManagerId,
+      in: DataInput): HighlyCompressedMapStatus = {
+    val emptyBlocks = new RoaringBitmap()
+    emptyBlocks.deserialize(in)
+    val avgSize = in.readLong()
+    // Like readExternal, this does not know the number of non-empty blocks, which is only used
+    // to check the average size; it can only be zero if there are none.
+    new HighlyCompressedMapStatus(loc, if (avgSize > 0) -1 else 0, emptyBlocks, avgSize)
+  }
+
   def apply(loc: BlockManagerId, uncompressedSizes: Array[Long]): HighlyCompressedMapStatus = {
     // We must keep track of which blocks are empty so that we don't report a zero-sized
     // block as being non-empty (or vice-versa) when using the average block size.
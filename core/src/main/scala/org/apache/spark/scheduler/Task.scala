@@ -24,11 +24,12 @@ import scala.collection.mutable.HashMap
 
 import org.apache.spark.metrics.MetricsSystem
 import org.apache.spark.{Accumulator, SparkEnv, TaskContextImpl, TaskContext}
-import org.apache.spark.executor.TaskMetrics
+import org.apache.spark.executor.{FileIOMetrics, TaskMetrics}
 import org.apache.spark.serializer.SerializerInstance
 import org.apache.spark.unsafe.memory.TaskMemoryManager
 import org.apache.spark.util.ByteBufferInputStream
 import org.apache.spark.util.Utils
+import org.apache.spark.util.instrumentation.FileStatisticsContext
 
 
 /**
@@ -80,6 +81,7 @@ private[spark] abstract class Task[T](
     TaskContext.setTaskContext(context)
     context.taskMetrics.setHostname(Utils.localHostName())
     context.taskMetrics.setAccumulatorsUpdater(context.collectInternalAccumulators)
+    FileStatisticsContext.bind()
     taskThread = Thread.currentThread()
     if (_killed) {
       kill(interruptThread = false)
@@ -98,6 +100,10 @@ private[spark] abstract class Task[T](
           SparkEnv.get.blockManager.memoryStore.releaseUnrollMemoryForThisTask()
         }
       } finally {
+        val fileStats = FileStatisticsContext.unbind()
+        if (fileStats != null) {
+          context.taskMetrics.setFileIOMetrics(FileIOMetrics.fromContext(fileStats))
+        }
         TaskContext.unset()
       }
     }
@@ -18,11 +18,13 @@
 package org.apache.spark.shuffle
 
 import java.io._
+import java.nio.file.{Files, StandardCopyOption}
+import java.util.UUID
 
 import com.google.common.io.ByteStreams
 
-import org.apache.spark.{SparkConf, SparkEnv}
-import org.apache.spark.network.buffer.{FileSegmentManagedBuffer, ManagedBuffer}
+import org.apache.spark.{Logging, SparkConf, SparkEnv}
+import org.apache.spark.network.buffer.{FileChannelPool, FileSegmentManagedBuffer, ManagedBuffer}
 import org.apache.spark.network.netty.SparkTransportConf
 import org.apache.spark.storage._
 import org.apache.spark.util.Utils
@@ -41,7 +43,8 @@ import IndexShuffleBlockResolver.NOOP_REDUCE_ID
  */
 // Note: Changes to the format in this file should be kept in sync with
 // org.apache.spark.network.shuffle.ExternalShuffleBlockResolver#getSortBasedShuffleBlockData().
-private[spark] class IndexShuffleBlockResolver(conf: SparkConf) extends ShuffleBlockResolver {
+private[spark] class IndexShuffleBlockResolver(conf: SparkConf)
+  extends ShuffleBlockResolver with Logging {
 
   private lazy val blockManager = SparkEnv.get.blockManager
 
@@ -61,6 +64,7 @@ private[spark] class IndexShuffleBlockResolver(conf: SparkConf) extends ShuffleB
   def removeDataByMap(shuffleId: Int, mapId: Int): Unit = {
     var file = getDataFile(shuffleId, mapId)
     if (file.exists()) {
+      FileChannelPool.evictShared(file)
       file.delete()
     }
 
@@ -74,20 +78,33 @@ private[spark] class IndexShuffleBlockResolver(conf: SparkConf) extends ShuffleB
    * Write an index file with the offsets of each block, plus a final offset at the end for the
    * end of the output file. This will be used by getBlockLocation to figure out where each block
    * begins and ends.
+   *
+   * The index is written to a temporary file that is then renamed over the index file, so that
+   * readers never see a partly written index, and a rewritten index is a different file that
+   * the external shuffle service's index cache can tell apart from the one it cached.
    * */
   def writeIndexFile(shuffleId: Int, mapId: Int, lengths: Array[Long]): Unit = {
     val indexFile = getIndexFile(shuffleId, mapId)
-    val out = new DataOutputStream(new BufferedOutputStream(new InstrumentedFileOutputStream(indexFile)))
-    Utils.tryWithSafeFinally {
-      // We take in lengths of each block, need to convert it to offsets.
-      var offset = 0L
-      out.writeLong(offset)
-      for (length <- lengths) {
-        offset += length
+    val tmpFile = new File(indexFile.getPath + "." + UUID.randomUUID())
+    val out = new DataOutputStream(new BufferedOutputStream(new InstrumentedFileOutputStream(tmpFile)))
+    try {
+      Utils.tryWithSafeFinally {
+        // We take in lengths of each block, need to convert it to offsets.
+        var offset = 0L
         out.writeLong(offset)
+        for (length <- lengths) {
+          offset += length
+          out.writeLong(offset)
+        }
+      } {
+        out.close()
+      }
+      Files.move(tmpFile.toPath, indexFile.toPath,
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+    } finally {
+      if (tmpFile.exists() && !tmpFile.delete()) {
+        logWarning(s"Error deleting temporary index file ${tmpFile.getPath}")
       }
-    } {
-      out.close()
     }
   }
 
@@ -111,6 +128,37 @@ private[spark] class IndexShuffleBlockResolver(conf: SparkConf) extends ShuffleB
     }
   }
 
+  override def getBlockRangeData(
+      shuffleId: Int,
+      mapId: Int,
+      startReduceId: Int,
+      endReduceId: Int,
+      blockLengths: Array[Long]): ManagedBuffer = {
+    require(startReduceId >= 0 && endReduceId > startReduceId,
+      s"Invalid reduce range [$startReduceId, $endReduceId)")
+    // The offsets of all blocks in the range are adjacent in the index, so read them at once
+    val indexFile = getIndexFile(shuffleId, mapId)
+    val in = new DataInputStream(new BufferedInputStream(new InstrumentedFileInputStream(indexFile),
+      (endReduceId - startReduceId + 1) * 8))
+    try {
+      ByteStreams.skipFully(in, startReduceId * 8L)
+      val offset = in.readLong()
+      var nextOffset = offset
+      for (i <- 0 until endReduceId - startReduceId) {
+        val blockOffset = nextOffset
+        nextOffset = in.readLong()
+        blockLengths(i) = nextOffset - blockOffset
+      }
+      new FileSegmentManagedBuffer(
+        transportConf,
+        getDataFile(shuffleId, mapId),
+        offset,
+        nextOffset - offset)
+    } finally {
+      in.close()
+    }
+  }
+
   override def stop(): Unit = {}
 }
 
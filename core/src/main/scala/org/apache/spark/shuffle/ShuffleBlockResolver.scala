@@ -37,5 +37,20 @@ trait ShuffleBlockResolver {
    */
   def getBlockData(blockId: ShuffleBlockId): ManagedBuffer
 
+  /**
+   * Retrieve the data for the contiguous reduce partitions [startReduceId, endReduceId) of one
+   * map output as a single buffer, storing the length of each block in the range into
+   * blockLengths. Only supported by resolvers that store the output of a map in a single file.
+   */
+  def getBlockRangeData(
+      shuffleId: Int,
+      mapId: Int,
+      startReduceId: Int,
+      endReduceId: Int,
+      blockLengths: Array[Long]): ManagedBuffer = {
+    throw new UnsupportedOperationException(
+      s"${getClass.getSimpleName} does not support fetching ranges of blocks")
+  }
+
   def stop(): Unit
 }
@@ -20,6 +20,7 @@ package org.apache.spark.shuffle
 import scala.collection.mutable
 
 import org.apache.spark.{Logging, SparkException, SparkConf, TaskContext}
+import org.apache.spark.unsafe.memory.ExecutorMemoryManager
 
 /**
  * Allocates a pool of memory to tasks for use in shuffle operations. Each disk-spilling
@@ -34,11 +35,30 @@ import org.apache.spark.{Logging, SparkException, SparkConf, TaskContext}
  * set of active tasks and redo the calculations of 1 / 2N and 1 / N in waiting tasks whenever
  * this set changes. This is all done by synchronizing access on "this" to mutate state and using
  * wait() and notifyAll() to signal changes.
+ *
+ * The freed pages that the [[ExecutorMemoryManager]] keeps for reuse still take up memory, so
+ * they count against the pool too: the memory not granted to tasks is the most they may hold.
+ * A task can be granted the memory they hold, as its next page may well reuse one of them; if
+ * it does not, the page pool releases them when that page is allocated.
  */
-private[spark] class ShuffleMemoryManager(maxMemory: Long) extends Logging {
+private[spark] class ShuffleMemoryManager(
+    maxMemory: Long,
+    executorMemoryManager: ExecutorMemoryManager)
+  extends Logging {
+
   private val taskMemory = new mutable.HashMap[Long, Long]()  // taskAttemptId -> memory bytes
 
-  def this(conf: SparkConf) = this(ShuffleMemoryManager.getMaxMemory(conf))
+  def this(maxMemory: Long) = this(maxMemory, null)
+
+  def this(conf: SparkConf, executorMemoryManager: ExecutorMemoryManager) =
+    this(ShuffleMemoryManager.getMaxMemory(conf), executorMemoryManager)
+
+  /** Limits the freed pages kept for reuse by the executor to the memory not granted to tasks. */
+  private def updatePooledMemoryLimit(): Unit = {
+    if (executorMemoryManager != null) {
+      executorMemoryManager.setPooledMemoryLimit(maxMemory - taskMemory.values.sum)
+    }
+  }
 
   private def currentTaskAttemptId(): Long = {
     // In case this is called on the driver, return an invalid task attempt id.
@@ -82,6 +102,7 @@ private[spark] class ShuffleMemoryManager(maxMemory: Long) extends Logging {
         if (freeMemory >= math.min(maxToGrant, maxMemory / (2 * numActiveTasks) - curMem)) {
           val toGrant = math.min(maxToGrant, freeMemory)
           taskMemory(taskAttemptId) += toGrant
+          updatePooledMemoryLimit()
           return toGrant
         } else {
           logInfo(
@@ -92,6 +113,7 @@ private[spark] class ShuffleMemoryManager(maxMemory: Long) extends Logging {
         // Only give it as much memory as is free, which might be none if it reached 1 / numThreads
         val toGrant = math.min(maxToGrant, freeMemory)
         taskMemory(taskAttemptId) += toGrant
+        updatePooledMemoryLimit()
         return toGrant
       }
     }
@@ -107,6 +129,7 @@ private[spark] class ShuffleMemoryManager(maxMemory: Long) extends Logging {
         s"Internal error: release called on ${numBytes} bytes but task only has ${curMem}")
     }
     taskMemory(taskAttemptId) -= numBytes
+    updatePooledMemoryLimit()
     notifyAll()  // Notify waiters who locked "this" in tryToAcquire that memory has been freed
   }
 
@@ -114,6 +137,7 @@ private[spark] class ShuffleMemoryManager(maxMemory: Long) extends Logging {
   def releaseMemoryForThisTask(): Unit = synchronized {
     val taskAttemptId = currentTaskAttemptId()
     taskMemory.remove(taskAttemptId)
+    updatePooledMemoryLimit()
     notifyAll()  // Notify waiters who locked "this" in tryToAcquire that memory has been freed
   }
 
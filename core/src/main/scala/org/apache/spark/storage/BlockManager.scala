@@ -188,6 +188,9 @@ private[spark] class BlockManager(
 
   private val rddStats : TrieMap[Int, RDDStats] = new TrieMap()
 
+  // Periodically writes file I/O statistics deltas to a local sink, if a directory is configured
+  private var fileStatisticsReporter: FileStatisticsReporter = null
+
 
   def getBlocksRequested = blocksRequested.get() 
   def getBlocksFoundInMemory = blocksFoundInMemory.get()
@@ -289,6 +292,8 @@ private[spark] class BlockManager(
 
     master.registerBlockManager(blockManagerId, maxMemory, slaveEndpoint)
 
+    startFileStatisticsReporter()
+
     // Register Executors' configuration with the local shuffle service, if one should exist.
     if (externalShuffleServiceEnabled && !blockManagerId.isDriver) {
       registerWithExternalShuffleServer()
@@ -343,6 +348,26 @@ private[spark] class BlockManager(
     }
   }
 
+  /**
+   * Starts writing file I/O statistics deltas to the configured directory, unless it is not set
+   * or a reporter is already running. The reporter lives as long as the block manager and is not
+   * restarted when re-registering, since two reporters would append every interval to the same
+   * file.
+   */
+  private def startFileStatisticsReporter(): Unit = {
+    if (fileStatisticsReporter == null) {
+      conf.getOption("spark.instrumentation.fileStats.dir").foreach { dir =>
+        val sinkClass = conf.get("spark.instrumentation.fileStats.sink",
+          classOf[JsonLinesFileStatisticsSink].getName)
+        val sink = FileStatisticsReporter.createSink(sinkClass, dir, executorId)
+        fileStatisticsReporter = new FileStatisticsReporter(sink, executorId)
+        val intervalMs = conf.getTimeAsMs("spark.instrumentation.fileStats.interval", "10s")
+        fileStatisticsReporter.start(intervalMs)
+        logInfo(s"Writing file I/O statistics to $sink")
+      }
+    }
+  }
+
   /**
    * Re-register with the master and report all blocks to it. This will be called by the heart beat
    * thread if our heartbeat to the block manager indicates that we were not registered.
@@ -405,6 +430,18 @@ private[spark] class BlockManager(
     }
   }
 
+  override def getShuffleBlockRangeData(
+      shuffleId: Int,
+      mapId: Int,
+      startReduceId: Int,
+      endReduceId: Int,
+      blockLengths: Array[Long]): ManagedBuffer = {
+    val mb = shuffleManager.shuffleBlockResolver.getBlockRangeData(
+      shuffleId, mapId, startReduceId, endReduceId, blockLengths)
+    shuffleBlockBytesRetrieved.addAndGet(mb.size)
+    mb
+  }
+
   /**
    * Put the block locally, using the given storage level.
    */
@@ -1357,6 +1394,9 @@ private[spark] class BlockManager(
     logInfo(s"Number of blocks removed : ${getBlocksRemoved}")
     logInfo(s"Number of blocks not attempted : ${getBlocksNotAttempted}")
 
+    if (fileStatisticsReporter != null) {
+      fileStatisticsReporter.stop()
+    }
     logInfo(s"File I/O stats:\n ${FileStreamStatistics.asString}")
 
     logInfo("BlockManager stopped")
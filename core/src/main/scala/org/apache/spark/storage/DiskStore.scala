@@ -17,7 +17,7 @@
 
 package org.apache.spark.storage
 
-import java.io.{IOException, File, FileOutputStream, RandomAccessFile}
+import java.io.{IOException, File, FileOutputStream}
 import java.nio.ByteBuffer
 import java.nio.channels.FileChannel.MapMode
 import java.util.concurrent.atomic.{AtomicInteger, AtomicLong}
@@ -117,7 +117,7 @@ private[spark] class DiskStore(blockManager: BlockManager, diskManager: DiskBloc
   }
 
   private def getBytes(file: File, offset: Long, length: Long): Option[ByteBuffer] = {
-    val channel = new RandomAccessFile(file, "r").getChannel
+    val channel = new InstrumentedFileInputStream(file).getChannel
     Utils.tryWithSafeFinally {
       // For small files, directly read rather than memory map
       if (length < minMemoryMapBytes) {
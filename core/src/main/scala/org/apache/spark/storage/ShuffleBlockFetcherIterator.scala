@@ -18,9 +18,10 @@
 package org.apache.spark.storage
 
 import java.io.{InputStream,StringWriter,PrintWriter}
-import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.{ConcurrentLinkedQueue, LinkedBlockingQueue}
+import java.util.concurrent.atomic.{AtomicInteger, AtomicLong}
 
-import scala.collection.mutable.{ArrayBuffer, HashSet, Queue}
+import scala.collection.mutable.{ArrayBuffer, HashSet, LinkedHashMap, Queue}
 import scala.util.control.NonFatal
 
 import org.apache.spark.{Logging, SparkException, TaskContext}
@@ -37,7 +38,9 @@ import org.apache.spark.util.Utils
  * in a pipelined fashion as they are received.
  *
  * The implementation throttles the remote fetches to they don't exceed maxBytesInFlight to avoid
- * using too much memory.
+ * using too much memory. Within that budget, the number of requests in flight to each remote
+ * executor adapts to how fast it answers them, so that a slow executor cannot hold most of the
+ * budget, and every executor is kept busy while the rest of the budget goes to the fastest ones.
  *
  * @param context [[TaskContext]], used for metrics update
  * @param shuffleClient [[ShuffleClient]] for fetching remote blocks
@@ -46,6 +49,7 @@ import org.apache.spark.util.Utils
  *                        For each block we also require the size (in bytes as a long field) in
  *                        order to throttle the memory usage.
  * @param maxBytesInFlight max size (in bytes) of remote blocks to fetch at any given point.
+ * @param maxRequestsInFlightPerPeer max number of requests in flight to one remote executor.
  */
 private[spark]
 final class ShuffleBlockFetcherIterator(
@@ -53,11 +57,14 @@ final class ShuffleBlockFetcherIterator(
     shuffleClient: ShuffleClient,
     blockManager: BlockManager,
     blocksByAddress: Seq[(BlockManagerId, Seq[(BlockId, Long)])],
-    maxBytesInFlight: Long)
+    maxBytesInFlight: Long,
+    maxRequestsInFlightPerPeer: Int = Int.MaxValue)
   extends Iterator[(BlockId, InputStream)] with Logging {
 
   import ShuffleBlockFetcherIterator._
 
+  require(maxRequestsInFlightPerPeer > 0, "maxRequestsInFlightPerPeer must be positive")
+
   /**
    * Total number of blocks to fetch. This can be smaller than the total number of blocks
    * in [[blocksByAddress]] because we filter out zero-sized blocks in [[initialize]].
@@ -93,10 +100,17 @@ final class ShuffleBlockFetcherIterator(
   @volatile private[this] var currentResult: FetchResult = null
 
   /**
-   * Queue of fetch requests to issue; we'll pull requests off this gradually to make sure that
-   * the number of bytes in flight is limited to maxBytesInFlight.
+   * Fetch state of each remote executor, holding the requests still to be issued to it; we'll
+   * pull requests off these gradually to make sure that the number of bytes in flight is limited
+   * to maxBytesInFlight, and the number of requests in flight to each executor to its window.
+   */
+  private[this] val peers = new LinkedHashMap[BlockManagerId, PeerFetchState]
+
+  /**
+   * Requests whose blocks have all been received. The fetch threads add them before the last
+   * block's result, and the task thread takes them to update the state of their executors.
    */
-  private[this] val fetchRequests = new Queue[FetchRequest]
+  private[this] val completedRequests = new ConcurrentLinkedQueue[CompletedRequest]
 
   /** Current bytes in flight from our requests */
   private[this] var bytesInFlight = 0L
@@ -139,10 +153,15 @@ final class ShuffleBlockFetcherIterator(
     }
   }
 
-  private[this] def sendRequest(req: FetchRequest) {
+  private[this] def sendRequest(peer: PeerFetchState, req: FetchRequest) {
     logDebug("Sending request for %d blocks (%s) from %s".format(
       req.blocks.size, Utils.bytesToString(req.size), req.address.hostPort))
     bytesInFlight += req.size
+    val sequence = peer.onRequestSent()
+    val sentTimeNs = System.nanoTime()
+    val serviceStartNs = new AtomicLong(0L)
+    val blocksRemaining = new AtomicInteger(req.blocks.size)
+    val bytesReceived = new AtomicLong(0L)
 
     // so we can look up the size of each blockID
     val sizeMap = req.blocks.map { case (blockId, size) => (blockId.toString, size) }.toMap
@@ -155,6 +174,18 @@ final class ShuffleBlockFetcherIterator(
           // Only add the buffer to results queue if the iterator is not zombie,
           // i.e. cleanup() has not been called yet.
           if (!isZombie) {
+            val now = System.nanoTime()
+            val previousBlockNs = peer.onBlockReceived(now)
+            if (serviceStartNs.get() == 0L) {
+              // The executor answers a connection's requests in order, so it cannot have started
+              // sending this request's blocks before it finished sending the previous request's.
+              serviceStartNs.set(math.max(sentTimeNs, previousBlockNs))
+            }
+            bytesReceived.addAndGet(buf.size)
+            if (blocksRemaining.decrementAndGet() == 0) {
+              completedRequests.add(CompletedRequest(peer, sequence, req.blocks.size,
+                bytesReceived.get(), now - sentTimeNs, now - serviceStartNs.get()))
+            }
             // Increment the ref count because we need to pass this to a different thread.
             // This needs to be released after use.
             buf.retain()
@@ -173,6 +204,56 @@ final class ShuffleBlockFetcherIterator(
     )
   }
 
+  /**
+   * Sends requests while they fit in maxBytesInFlight. Each is taken from an executor that has
+   * requests left and fewer requests in flight than its window allows. Executors with fewer than
+   * PipelineDepth requests in flight come first, those with the most work left first among them:
+   * the slowest executor decides when the task has all of its blocks, so it must not be left
+   * idle, or to answer all of its requests at the end. Any remaining budget goes to the fastest
+   * executors.
+   */
+  private[this] def fetchUpToMaxBytes(): Unit = {
+    var done = false
+    while (!done) {
+      var best: PeerFetchState = null
+      for (peer <- peers.valuesIterator) {
+        if (peer.canSend && (best == null || isPreferred(peer, best))) {
+          best = peer
+        }
+      }
+      if (best != null && (bytesInFlight == 0 ||
+          bytesInFlight + best.nextRequestSize <= maxBytesInFlight)) {
+        sendRequest(best, best.takeRequest())
+      } else {
+        done = true
+      }
+    }
+  }
+
+  private[this] def isPreferred(peer: PeerFetchState, other: PeerFetchState): Boolean = {
+    val depth = math.min(peer.requestsInFlight, PipelineDepth)
+    val otherDepth = math.min(other.requestsInFlight, PipelineDepth)
+    if (depth != otherDepth) {
+      depth < otherDepth
+    } else if (depth < PipelineDepth) {
+      peer.remainingTimeNs > other.remainingTimeNs
+    } else {
+      peer.expectedRate > other.expectedRate
+    }
+  }
+
+  /** Updates the windows and metrics of the executors whose requests have completed. */
+  private[this] def processCompletedRequests(): Unit = {
+    var completed = completedRequests.poll()
+    while (completed != null) {
+      val peer = completed.peer
+      peer.onRequestCompleted(completed.sequence, completed.bytes, completed.serviceNs)
+      shuffleMetrics.incPeerFetch(peer.address, completed.blocks, completed.bytes,
+        completed.latencyNs / 1000000)
+      completed = completedRequests.poll()
+    }
+  }
+
   private[this] def splitLocalRemoteBlocks(): ArrayBuffer[FetchRequest] = {
     // Make remote requests at most maxBytesInFlight / 5 in length; the reason to keep them
     // smaller than maxBytesInFlight is to allow multiple, parallel fetches from up to 5
@@ -261,16 +342,18 @@ final class ShuffleBlockFetcherIterator(
 
     // Split local and remote blocks.
     val remoteRequests = splitLocalRemoteBlocks()
-    // Add the remote requests into our queue in a random order
-    fetchRequests ++= Utils.randomize(remoteRequests)
+    // Queue the remote requests by executor, visiting the executors in a random order, so that
+    // executors nothing is known about yet are tried in a different order by each task
+    for ((address, requests) <- Utils.randomize(remoteRequests.groupBy(_.address))) {
+      val peer = new PeerFetchState(address, maxRequestsInFlightPerPeer)
+      requests.foreach(peer.addRequest)
+      peers(address) = peer
+    }
 
     // Send out initial requests for blocks, up to our maxBytesInFlight
-    while (fetchRequests.nonEmpty &&
-      (bytesInFlight == 0 || bytesInFlight + fetchRequests.front.size <= maxBytesInFlight)) {
-      sendRequest(fetchRequests.dequeue())
-    }
+    fetchUpToMaxBytes()
 
-    val numFetches = remoteRequests.size - fetchRequests.size
+    val numFetches = remoteRequests.size - peers.valuesIterator.map(_.numPendingRequests).sum
     logInfo("Started " + numFetches + " remote fetches in" + Utils.getUsedTimeMs(startTime))
 
     // Get Local Blocks
@@ -278,6 +361,9 @@ final class ShuffleBlockFetcherIterator(
     logDebug("Got local blocks in " + Utils.getUsedTimeMs(startTime))
   }
 
+  /** For testing. Returns the number of requests that may be in flight to the given executor. */
+  private[storage] def peerWindow(address: BlockManagerId): Int = peers(address).window
+
   override def hasNext: Boolean = numBlocksProcessed < numBlocksToFetch
 
   /**
@@ -300,11 +386,9 @@ final class ShuffleBlockFetcherIterator(
       case SuccessFetchResult(_, _, size, _) => bytesInFlight -= size
       case _ =>
     }
+    processCompletedRequests()
     // Send fetch requests up to maxBytesInFlight
-    while (fetchRequests.nonEmpty &&
-      (bytesInFlight == 0 || bytesInFlight + fetchRequests.front.size <= maxBytesInFlight)) {
-      sendRequest(fetchRequests.dequeue())
-    }
+    fetchUpToMaxBytes()
 
     result match {
       case FailureFetchResult(blockId, address, e) =>
@@ -378,6 +462,155 @@ object ShuffleBlockFetcherIterator {
     val size = blocks.map(_._2).sum
   }
 
+  /**
+   * Number of requests each remote executor may have in flight before its latency is known. As
+   * requests are made about maxBytesInFlight / 5 large, this is as many as maxBytesInFlight
+   * admits, so the window only limits an executor once it is seen to slow down.
+   */
+  val InitialWindow = 5
+
+  /**
+   * How much longer than expected from the fastest requests seen from an executor a request can
+   * take before the executor is considered overloaded and its window is halved.
+   */
+  val LatencyTolerance = 2.0
+
+  /** Weight of the latest request in an executor's moving average of its transfer rate. */
+  val RateSmoothing = 0.25
+
+  /**
+   * Number of requests kept in flight to every executor that has requests left, if the byte
+   * budget allows, before the rest of the budget goes to the fastest executors: one being
+   * answered, and one queued behind it so that the executor does not idle in between.
+   */
+  val PipelineDepth = 2
+
+  /**
+   * The fetch state of one remote executor: the requests still to be issued to it, and an AIMD
+   * window that limits how many may be in flight. The window grows by one per completed request
+   * until the executor first slows down, and then by one per window of requests. When a request
+   * takes more than LatencyTolerance times as long as expected, requests are queueing up at the
+   * executor, and the window is halved, at most once per window of requests, but never below
+   * PipelineDepth.
+   *
+   * Requests are timed by their service time, which leaves out the time spent waiting for the
+   * executor to send the requests ahead of them on the same connection. Otherwise every request
+   * but the first would look slow just because others are in flight. A request is expected to
+   * take as long per byte as the fastest request per byte, but at least as long as the fastest
+   * request, since small requests are dominated by a fixed cost.
+   */
+  class PeerFetchState(val address: BlockManagerId, maxRequestsInFlight: Int) {
+    private[this] val pendingRequests = new Queue[FetchRequest]
+    private[this] var pendingBytes = 0L
+    private[this] var _requestsInFlight = 0
+    private[this] var requestsSent = 0L
+
+    /** When the last block from the executor was received, updated by the fetch threads. */
+    private[this] val lastBlockNs = new AtomicLong(0L)
+
+    /** The window keeps the executor's pipeline full, so that it never idles between requests. */
+    private[this] val minWindow = math.min(PipelineDepth, maxRequestsInFlight).toDouble
+    private[this] var _window = math.min(InitialWindow, maxRequestsInFlight).toDouble
+    private[this] var slowStartThreshold = maxRequestsInFlight.toDouble
+    /** Requests sent before the last decrease do not decrease the window again. */
+    private[this] var lastDecreaseSequence = 0L
+
+    private[this] var minNsPerByte = Double.MaxValue
+    private[this] var minServiceNs = Long.MaxValue
+    private[this] var _expectedRate = Double.PositiveInfinity
+
+    def window: Int = _window.toInt
+
+    /**
+     * Moving average of the executor's transfer rate, in bytes per nanosecond. It is infinite
+     * until a request completes, so that every executor gets tried.
+     */
+    def expectedRate: Double = _expectedRate
+
+    /**
+     * Expected time for the executor to send the blocks of the requests still to be issued to it,
+     * in nanoseconds. It is zero until a request completes.
+     */
+    def remainingTimeNs: Double = {
+      if (_expectedRate.isInfinite) 0.0 else pendingBytes / _expectedRate
+    }
+
+    def requestsInFlight: Int = _requestsInFlight
+
+    def canSend: Boolean = pendingRequests.nonEmpty && _requestsInFlight < window
+
+    def addRequest(req: FetchRequest): Unit = {
+      pendingRequests += req
+      pendingBytes += req.size
+    }
+
+    def numPendingRequests: Int = pendingRequests.size
+
+    def nextRequestSize: Long = pendingRequests.front.size
+
+    def takeRequest(): FetchRequest = {
+      val req = pendingRequests.dequeue()
+      pendingBytes -= req.size
+      req
+    }
+
+    /** Returns the sequence number of the request. */
+    def onRequestSent(): Long = {
+      _requestsInFlight += 1
+      requestsSent += 1
+      requestsSent
+    }
+
+    /**
+     * Records that a block was received at the given time. Returns when the previous block was
+     * received, or 0 if this is the first.
+     */
+    def onBlockReceived(timeNs: Long): Long = lastBlockNs.getAndSet(timeNs)
+
+    def onRequestCompleted(sequence: Long, bytes: Long, serviceNs: Long): Unit = {
+      _requestsInFlight -= 1
+      val time = math.max(serviceNs, 1L)
+      val size = math.max(bytes, 1L)
+      val nsPerByte = time.toDouble / size
+      minNsPerByte = math.min(minNsPerByte, nsPerByte)
+      minServiceNs = math.min(minServiceNs, time)
+      _expectedRate = if (_expectedRate.isInfinite) {
+        1 / nsPerByte
+      } else {
+        (1 - RateSmoothing) * _expectedRate + RateSmoothing / nsPerByte
+      }
+
+      val expectedNs = math.max(size * minNsPerByte, minServiceNs.toDouble)
+      if (time > LatencyTolerance * expectedNs) {
+        if (sequence > lastDecreaseSequence) {
+          _window = math.max(_window / 2, minWindow)
+          slowStartThreshold = _window
+          lastDecreaseSequence = requestsSent
+        }
+      } else if (_window < slowStartThreshold) {
+        _window = math.min(_window + 1, maxRequestsInFlight)
+      } else {
+        _window = math.min(_window + 1 / _window, maxRequestsInFlight)
+      }
+    }
+  }
+
+  /**
+   * A request whose blocks have all been received.
+   * @param sequence sequence number of the request among those sent to the executor.
+   * @param bytes actual size of the received blocks.
+   * @param latencyNs time from sending the request until its last block was received.
+   * @param serviceNs time from when the executor could start sending the request's blocks,
+   *                  after those of the requests ahead of it, until its last block was received.
+   */
+  case class CompletedRequest(
+      peer: PeerFetchState,
+      sequence: Long,
+      blocks: Int,
+      bytes: Long,
+      latencyNs: Long,
+      serviceNs: Long)
+
   /**
    * Result of a fetch from a remote block.
    */
@@ -17,22 +17,40 @@
 
 package org.apache.spark.unsafe.map;
 
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.Exception;
 import java.nio.ByteBuffer;
 import java.util.*;
 
+import scala.Tuple2;
+import scala.Tuple2$;
+import scala.runtime.AbstractFunction1;
+
 import org.junit.*;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 import static org.hamcrest.Matchers.greaterThan;
 import static org.junit.Assert.*;
+import static org.mockito.AdditionalAnswers.returnsSecondArg;
 import static org.mockito.AdditionalMatchers.geq;
+import static org.mockito.Answers.RETURNS_SMART_NULLS;
 import static org.mockito.Mockito.*;
 
+import org.apache.spark.SparkConf;
+import org.apache.spark.SparkEnv;
+import org.apache.spark.executor.ShuffleWriteMetrics;
+import org.apache.spark.serializer.SerializerInstance;
 import org.apache.spark.shuffle.ShuffleMemoryManager;
+import org.apache.spark.storage.*;
 import org.apache.spark.unsafe.array.ByteArrayMethods;
+import org.apache.spark.unsafe.hash.Murmur3_x86_32;
 import org.apache.spark.unsafe.memory.*;
 import org.apache.spark.unsafe.PlatformDependent;
+import org.apache.spark.util.Utils;
 import static org.apache.spark.unsafe.PlatformDependent.BYTE_ARRAY_OFFSET;
 import static org.apache.spark.unsafe.PlatformDependent.LONG_ARRAY_OFFSET;
 
@@ -46,8 +64,63 @@ public abstract class AbstractBytesToBytesMapSuite {
   private TaskMemoryManager sizeLimitedTaskMemoryManager;
   private final long PAGE_SIZE_BYTES = 1L << 26; // 64 megabytes
 
+  private final LinkedList<File> spillFilesCreated = new LinkedList<File>();
+  private File tempDir;
+  @Mock(answer = RETURNS_SMART_NULLS) BlockManager blockManager;
+  @Mock(answer = RETURNS_SMART_NULLS) DiskBlockManager diskBlockManager;
+  @Mock(answer = RETURNS_SMART_NULLS) SparkEnv sparkEnv;
+
+  private static final class CompressStream extends AbstractFunction1<OutputStream, OutputStream> {
+    @Override
+    public OutputStream apply(OutputStream stream) {
+      return stream;
+    }
+  }
+
   @Before
   public void setup() {
+    MockitoAnnotations.initMocks(this);
+    tempDir = Utils.createTempDir(System.getProperty("java.io.tmpdir"), "unsafe-test");
+    spillFilesCreated.clear();
+    when(blockManager.diskBlockManager()).thenReturn(diskBlockManager);
+    when(blockManager.conf()).thenReturn(new SparkConf());
+    when(diskBlockManager.createTempLocalBlock()).thenAnswer(
+      new Answer<Tuple2<TempLocalBlockId, File>>() {
+        @Override
+        public Tuple2<TempLocalBlockId, File> answer(InvocationOnMock invocationOnMock)
+            throws Throwable {
+          TempLocalBlockId blockId = new TempLocalBlockId(UUID.randomUUID());
+          File file = File.createTempFile("spillFile", ".spill", tempDir);
+          spillFilesCreated.add(file);
+          return Tuple2$.MODULE$.apply(blockId, file);
+        }
+      });
+    when(blockManager.getDiskWriter(
+      any(BlockId.class),
+      any(File.class),
+      any(SerializerInstance.class),
+      anyInt(),
+      any(ShuffleWriteMetrics.class))).thenAnswer(new Answer<DiskBlockObjectWriter>() {
+        @Override
+        public DiskBlockObjectWriter answer(InvocationOnMock invocationOnMock) throws Throwable {
+          Object[] args = invocationOnMock.getArguments();
+          return new DiskBlockObjectWriter(
+            (BlockId) args[0],
+            (File) args[1],
+            (SerializerInstance) args[2],
+            (Integer) args[3],
+            new CompressStream(),
+            false,
+            (ShuffleWriteMetrics) args[4]
+          );
+        }
+      });
+    when(blockManager.wrapForCompression(any(BlockId.class), any(InputStream.class)))
+      .then(returnsSecondArg());
+    // DiskBlockObjectWriter reports to the BlockManager of the SparkEnv.
+    when(sparkEnv.blockManager()).thenReturn(blockManager);
+    SparkEnv.set(sparkEnv);
+
     shuffleMemoryManager = new ShuffleMemoryManager(Long.MAX_VALUE);
     taskMemoryManager = new TaskMemoryManager(new ExecutorMemoryManager(getMemoryAllocator()));
     // Mocked memory manager for tests that check the maximum array size, since actually allocating
@@ -68,6 +141,9 @@ public abstract class AbstractBytesToBytesMapSuite {
 
   @After
   public void tearDown() {
+    SparkEnv.set(null);
+    Utils.deleteRecursively(tempDir);
+    tempDir = null;
     Assert.assertEquals(0L, taskMemoryManager.cleanUpAllAllocatedMemory());
     if (shuffleMemoryManager != null) {
       long leakedShuffleMemory = shuffleMemoryManager.getMemoryConsumptionForThisTask();
@@ -362,6 +438,96 @@ public abstract class AbstractBytesToBytesMapSuite {
     }
   }
 
+  @Test
+  public void batchLookup() {
+    final int batchSize = 64;
+    final BytesToBytesMap map = new BytesToBytesMap(
+      taskMemoryManager, shuffleMemoryManager, 64, PAGE_SIZE_BYTES);
+    final Object[] keys = new Object[batchSize];
+    final long[] offsets = new long[batchSize];
+    final int[] lengths = new int[batchSize];
+    final int[] slots = new int[batchSize];
+    try {
+      for (int i = 0; i < batchSize; i++) {
+        final byte[] key = getRandomByteArray(rand.nextInt(8) + 1);
+        keys[i] = key;
+        offsets[i] = BYTE_ARRAY_OFFSET;
+        lengths[i] = key.length;
+        // Store only the keys at even positions, with the key itself as the value
+        if (i % 2 == 0) {
+          Assert.assertTrue(map.lookup(key, BYTE_ARRAY_OFFSET, key.length).putNewKey(
+            key, BYTE_ARRAY_OFFSET, key.length, key, BYTE_ARRAY_OFFSET, key.length));
+        }
+      }
+      map.lookupBatch(keys, offsets, lengths, batchSize, slots);
+      for (int i = 0; i < batchSize; i++) {
+        if (i % 2 == 0) {
+          Assert.assertTrue(slots[i] >= 0);
+          final BytesToBytesMap.Location loc = map.getLocation(slots[i]);
+          Assert.assertTrue(loc.isDefined());
+          Assert.assertTrue(arrayEquals((byte[]) keys[i], loc.getKeyAddress(), loc.getKeyLength()));
+          Assert.assertTrue(
+            arrayEquals((byte[]) keys[i], loc.getValueAddress(), loc.getValueLength()));
+        } else {
+          Assert.assertEquals(-1, slots[i]);
+        }
+      }
+    } finally {
+      map.free();
+    }
+  }
+
+  @Test
+  public void prefetchedLookupsWithInsertsAndGrowth() {
+    final int batchSize = 256;
+    final BytesToBytesMap map = new BytesToBytesMap(
+      taskMemoryManager, shuffleMemoryManager, 1, PAGE_SIZE_BYTES);
+    final Object[] keys = new Object[batchSize];
+    final long[] offsets = new long[batchSize];
+    final int[] lengths = new int[batchSize];
+    final int[] hashcodes = new int[batchSize];
+    final Map<ByteBuffer, Long> expectedCounts = new HashMap<ByteBuffer, Long>();
+    try {
+      for (int batch = 0; batch < 16; batch++) {
+        for (int i = 0; i < batchSize; i++) {
+          // Draw keys from a small domain so that a batch repeats keys it inserts itself
+          final byte[] key = new byte[8];
+          PlatformDependent.UNSAFE.putLong(key, BYTE_ARRAY_OFFSET, rand.nextInt(1000));
+          keys[i] = key;
+          offsets[i] = BYTE_ARRAY_OFFSET;
+          lengths[i] = key.length;
+        }
+        map.prefetch(keys, offsets, lengths, batchSize, hashcodes);
+        for (int i = 0; i < batchSize; i++) {
+          final byte[] key = (byte[]) keys[i];
+          final BytesToBytesMap.Location loc =
+            map.lookup(key, BYTE_ARRAY_OFFSET, key.length, hashcodes[i]);
+          if (!loc.isDefined()) {
+            final byte[] zero = new byte[8];
+            Assert.assertTrue(loc.putNewKey(
+              key, BYTE_ARRAY_OFFSET, key.length, zero, BYTE_ARRAY_OFFSET, zero.length));
+          }
+          final MemoryLocation value = loc.getValueAddress();
+          PlatformDependent.UNSAFE.putLong(value.getBaseObject(), value.getBaseOffset(),
+            PlatformDependent.UNSAFE.getLong(value.getBaseObject(), value.getBaseOffset()) + 1);
+          final Long count = expectedCounts.get(ByteBuffer.wrap(key));
+          expectedCounts.put(ByteBuffer.wrap(key), count == null ? 1L : count + 1);
+        }
+      }
+      Assert.assertEquals(expectedCounts.size(), map.numElements());
+      for (Map.Entry<ByteBuffer, Long> entry : expectedCounts.entrySet()) {
+        final byte[] key = entry.getKey().array();
+        final BytesToBytesMap.Location loc = map.lookup(key, BYTE_ARRAY_OFFSET, key.length);
+        Assert.assertTrue(loc.isDefined());
+        final MemoryLocation value = loc.getValueAddress();
+        Assert.assertEquals(entry.getValue().longValue(),
+          PlatformDependent.UNSAFE.getLong(value.getBaseObject(), value.getBaseOffset()));
+      }
+    } finally {
+      map.free();
+    }
+  }
+
   @Test
   public void randomizedTestWithRecordsLargerThanPageSize() {
     final long pageSizeBytes = 128;
@@ -454,6 +620,91 @@ public abstract class AbstractBytesToBytesMapSuite {
     }
   }
 
+  @Test
+  public void spillOnFailureToGrow() throws Exception {
+    shuffleMemoryManager = new ShuffleMemoryManager(1024 * 10);
+    BytesToBytesMap map = new BytesToBytesMap(
+      taskMemoryManager, shuffleMemoryManager, blockManager, 1, 0.70, 1024, false);
+    final int numKeys = 1024;
+    try {
+      // Insert every key in two passes, so that keys spilled in between are inserted again.
+      for (int pass = 0; pass < 2; pass++) {
+        for (long i = 0; i < numKeys; i++) {
+          final long[] arr = new long[]{i};
+          BytesToBytesMap.Location loc = map.lookup(arr, LONG_ARRAY_OFFSET, 8);
+          if (!loc.isDefined() &&
+              !loc.putNewKey(arr, LONG_ARRAY_OFFSET, 8, arr, LONG_ARRAY_OFFSET, 8)) {
+            Assert.assertThat(map.spill(), greaterThan(0L));
+            Assert.assertEquals(0, map.numElements());
+            Assert.assertEquals(0L, shuffleMemoryManager.getMemoryConsumptionForThisTask());
+            loc = map.lookup(arr, LONG_ARRAY_OFFSET, 8);
+            Assert.assertFalse(loc.isDefined());
+            Assert.assertTrue(loc.putNewKey(arr, LONG_ARRAY_OFFSET, 8, arr, LONG_ARRAY_OFFSET, 8));
+          }
+        }
+      }
+      Assert.assertTrue(map.hasSpilled());
+      Assert.assertThat(map.getNumSpills(), greaterThan(1));
+
+      final Murmur3_x86_32 hasher = new Murmur3_x86_32(0);
+      final Map<Long, Integer> occurrences = new HashMap<Long, Integer>();
+      int previousHashcode = Integer.MIN_VALUE;
+      long previousKey = -1;
+      int numEntries = 0;
+      final BytesToBytesMap.HashOrderedIterator iter = map.hashOrderedIterator();
+      while (iter.hasNext()) {
+        final BytesToBytesMap.Location loc = iter.next();
+        Assert.assertEquals(8, loc.getKeyLength());
+        final long key = PlatformDependent.UNSAFE.getLong(
+          loc.getKeyAddress().getBaseObject(), loc.getKeyAddress().getBaseOffset());
+        final long value = PlatformDependent.UNSAFE.getLong(
+          loc.getValueAddress().getBaseObject(), loc.getValueAddress().getBaseOffset());
+        Assert.assertEquals(key, value);
+        final int hashcode = hasher.hashUnsafeWords(new long[]{key}, LONG_ARRAY_OFFSET, 8);
+        Assert.assertTrue("entries are not in hash order", hashcode >= previousHashcode);
+        if (key != previousKey) {
+          Assert.assertFalse("entries of key " + key + " are not adjacent",
+            occurrences.containsKey(key));
+          occurrences.put(key, 0);
+        }
+        occurrences.put(key, occurrences.get(key) + 1);
+        previousHashcode = hashcode;
+        previousKey = key;
+        numEntries++;
+      }
+      Assert.assertEquals(numKeys, occurrences.size());
+      Assert.assertThat(numEntries, greaterThan(numKeys));
+      for (int count : occurrences.values()) {
+        Assert.assertTrue(count <= 2);
+      }
+    } finally {
+      map.free();
+    }
+    for (File spillFile : spillFilesCreated) {
+      Assert.assertFalse(spillFile.exists());
+    }
+  }
+
+  @Test
+  public void spillFilesAreDeletedOnFree() throws Exception {
+    BytesToBytesMap map = new BytesToBytesMap(
+      taskMemoryManager, shuffleMemoryManager, blockManager, 64, 0.70, PAGE_SIZE_BYTES, false);
+    try {
+      for (long i = 0; i < 10; i++) {
+        final long[] arr = new long[]{i};
+        Assert.assertTrue(map.lookup(arr, LONG_ARRAY_OFFSET, 8).putNewKey(
+          arr, LONG_ARRAY_OFFSET, 8, arr, LONG_ARRAY_OFFSET, 8));
+      }
+      Assert.assertEquals(PAGE_SIZE_BYTES, map.spill());
+      Assert.assertEquals(0L, map.spill());
+      Assert.assertEquals(1, spillFilesCreated.size());
+      Assert.assertTrue(spillFilesCreated.getFirst().exists());
+    } finally {
+      map.free();
+    }
+    Assert.assertFalse(spillFilesCreated.getFirst().exists());
+  }
+
   @Test
   public void initialCapacityBoundsChecking() {
     try {
@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.unsafe.map;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.spark.shuffle.ShuffleMemoryManager;
+import org.apache.spark.unsafe.PlatformDependent;
+import org.apache.spark.unsafe.memory.ExecutorMemoryManager;
+import org.apache.spark.unsafe.memory.MemoryAllocator;
+import org.apache.spark.unsafe.memory.MemoryLocation;
+import org.apache.spark.unsafe.memory.TaskMemoryManager;
+
+/**
+ * Measures the lookup throughput of {@link BytesToBytesMap} under an aggregation-like workload:
+ * a stream of random keys drawn from a fixed set, each of which is looked up and inserted if
+ * absent, as {@code UnsafeFixedWidthAggregationMap.getAggregationBuffer} does, and whose value is
+ * then incremented. It reports the time per lookup as well as the map's probe and key comparison
+ * counters, for keys looked up one at a time and for keys looked up in batches through
+ * {@link BytesToBytesMap#prefetch}. The batches only pay off once the map is much larger than the
+ * last level cache, e.g. with 2^24 distinct keys.
+ *
+ * Usage: BytesToBytesMapBenchmark [distinctKeys] [lookups] [keyLengthInWords] [batchSize]
+ */
+public class BytesToBytesMapBenchmark {
+
+  public static void main(String[] args) {
+    final int distinctKeys = args.length > 0 ? Integer.parseInt(args[0]) : 1 << 20;
+    final int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 1 << 24;
+    final int keyWords = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+    final int batchSize = args.length > 3 ? Integer.parseInt(args[3]) : 32;
+
+    System.out.println(String.format("%d distinct keys of %d bytes, %d lookups, batches of %d",
+      distinctKeys, keyWords * 8, lookups, batchSize));
+    final long[] keys = new long[distinctKeys * keyWords];
+    final Random rand = new Random(42);
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = rand.nextLong();
+    }
+    final int[] stream = new int[lookups];
+    for (int i = 0; i < lookups; i++) {
+      stream[i] = rand.nextInt(distinctKeys);
+    }
+    for (int run = 0; run < 3; run++) {
+      // The first runs warm up the JIT; report all of them.
+      System.out.print("one at a time: ");
+      run(keys, keyWords, stream, 1, false);
+      System.out.print("batched:       ");
+      run(keys, keyWords, stream, batchSize, false);
+    }
+    run(keys, keyWords, stream, 1, true);
+  }
+
+  private static void run(
+      long[] keys,
+      int keyWords,
+      int[] stream,
+      int batchSize,
+      boolean enablePerfMetrics) {
+    final TaskMemoryManager taskMemoryManager =
+      new TaskMemoryManager(new ExecutorMemoryManager(MemoryAllocator.HEAP));
+    final BytesToBytesMap map = new BytesToBytesMap(
+      taskMemoryManager, new ShuffleMemoryManager(Long.MAX_VALUE), null, 1024, 0.70,
+      1L << 26, enablePerfMetrics);
+    final int keyLength = keyWords * 8;
+    final long[] value = new long[1];
+    final Object[] bases = new Object[batchSize];
+    final long[] offsets = new long[batchSize];
+    final int[] lengths = new int[batchSize];
+    final int[] hashcodes = new int[batchSize];
+    Arrays.fill(bases, keys);
+    Arrays.fill(lengths, keyLength);
+    long checksum = 0;
+    final long start = System.nanoTime();
+    for (int batchStart = 0; batchStart < stream.length; batchStart += batchSize) {
+      final int n = Math.min(batchSize, stream.length - batchStart);
+      for (int i = 0; i < n; i++) {
+        offsets[i] =
+          PlatformDependent.LONG_ARRAY_OFFSET + (long) stream[batchStart + i] * keyLength;
+      }
+      if (batchSize > 1) {
+        map.prefetch(bases, offsets, lengths, n, hashcodes);
+      }
+      for (int i = 0; i < n; i++) {
+        final BytesToBytesMap.Location loc = batchSize > 1 ?
+          map.lookup(keys, offsets[i], keyLength, hashcodes[i]) :
+          map.lookup(keys, offsets[i], keyLength);
+        if (!loc.isDefined()) {
+          loc.putNewKey(keys, offsets[i], keyLength, value, PlatformDependent.LONG_ARRAY_OFFSET, 8);
+        }
+        final MemoryLocation valueAddress = loc.getValueAddress();
+        final long count = PlatformDependent.UNSAFE.getLong(
+          valueAddress.getBaseObject(), valueAddress.getBaseOffset()) + 1;
+        PlatformDependent.UNSAFE.putLong(
+          valueAddress.getBaseObject(), valueAddress.getBaseOffset(), count);
+        checksum += count;
+      }
+    }
+    final long elapsedNs = System.nanoTime() - start;
+    if (enablePerfMetrics) {
+      System.out.println(String.format(
+        "%5.2f probes, %4.2f key comparisons per lookup, %d hash collisions, %d ms resizing",
+        map.getAverageProbesPerLookup(), map.getAverageKeyComparisonsPerLookup(),
+        map.getNumHashCollisions(), map.getTimeSpentResizingNs() / 1000000));
+    } else {
+      System.out.println(String.format("%6.1f ns per lookup (checksum %d)",
+        1.0 * elapsedNs / stream.length, checksum));
+    }
+    map.free();
+    taskMemoryManager.cleanUpAllAllocatedMemory();
+  }
+}
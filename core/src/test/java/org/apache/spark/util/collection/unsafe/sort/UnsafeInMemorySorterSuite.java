@@ -31,6 +31,7 @@ import org.apache.spark.unsafe.memory.ExecutorMemoryManager;
 import org.apache.spark.unsafe.memory.MemoryAllocator;
 import org.apache.spark.unsafe.memory.MemoryBlock;
 import org.apache.spark.unsafe.memory.TaskMemoryManager;
+import org.apache.spark.unsafe.types.UTF8String;
 
 public class UnsafeInMemorySorterSuite {
 
@@ -136,4 +137,59 @@ public class UnsafeInMemorySorterSuite {
     }
     assertEquals(dataToSort.length, iterLength);
   }
+
+  @Test
+  public void testRadixSortingBreaksPrefixTiesWithRecordComparator() throws Exception {
+    final String[] dataToSort = new String[] {
+      "sorted by prefix 3",
+      "sorted by prefix 1",
+      "tie",
+      "sorted by prefix 2",
+      "another",
+      "sorted by prefix 0"
+    };
+    final TaskMemoryManager memoryManager =
+      new TaskMemoryManager(new ExecutorMemoryManager(MemoryAllocator.HEAP));
+    final MemoryBlock dataPage = memoryManager.allocatePage(2048);
+    final Object baseObject = dataPage.getBaseObject();
+    final RecordComparator recordComparator = new RecordComparator() {
+      @Override
+      public int compare(
+        Object leftBaseObject,
+        long leftBaseOffset,
+        Object rightBaseObject,
+        long rightBaseOffset) {
+        final String left = getStringFromDataPage(leftBaseObject, leftBaseOffset,
+          PlatformDependent.UNSAFE.getInt(leftBaseObject, leftBaseOffset - 4));
+        final String right = getStringFromDataPage(rightBaseObject, rightBaseOffset,
+          PlatformDependent.UNSAFE.getInt(rightBaseObject, rightBaseOffset - 4));
+        return left.compareTo(right);
+      }
+    };
+    // STRING is a known prefix comparator, so this sorter radix sorts on the prefixes; the first
+    // eight bytes of the "sorted by prefix" records are equal, so only the record comparator can
+    // order them.
+    UnsafeInMemorySorter sorter = new UnsafeInMemorySorter(memoryManager, recordComparator,
+      PrefixComparators.STRING, dataToSort.length);
+    long position = dataPage.getBaseOffset();
+    for (String str : dataToSort) {
+      final byte[] strBytes = str.getBytes("utf-8");
+      final long address = memoryManager.encodePageNumberAndOffset(dataPage, position);
+      PlatformDependent.UNSAFE.putInt(baseObject, position, strBytes.length);
+      PlatformDependent.copyMemory(strBytes, PlatformDependent.BYTE_ARRAY_OFFSET,
+        baseObject, position + 4, strBytes.length);
+      position += 4 + strBytes.length;
+      sorter.insertRecord(address, PrefixComparators.StringPrefixComparator.computePrefix(
+        UTF8String.fromString(str)));
+    }
+    final UnsafeSorterIterator iter = sorter.getSortedIterator();
+    Arrays.sort(dataToSort);
+    for (String expected : dataToSort) {
+      assertTrue(iter.hasNext());
+      iter.loadNext();
+      assertEquals(expected,
+        getStringFromDataPage(iter.getBaseObject(), iter.getBaseOffset(), iter.getRecordLength()));
+    }
+    assertFalse(iter.hasNext());
+  }
 }
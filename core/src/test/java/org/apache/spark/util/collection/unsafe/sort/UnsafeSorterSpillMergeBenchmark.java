@@ -0,0 +1,159 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.util.collection.unsafe.sort;
+
+import java.io.File;
+import java.util.Random;
+import java.util.UUID;
+
+import scala.Tuple2;
+import scala.Tuple2$;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import static org.mockito.Mockito.*;
+
+import org.apache.spark.SparkConf;
+import org.apache.spark.SparkEnv;
+import org.apache.spark.executor.ShuffleWriteMetrics;
+import org.apache.spark.storage.BlockManager;
+import org.apache.spark.storage.DiskBlockManager;
+import org.apache.spark.storage.TempLocalBlockId;
+import org.apache.spark.unsafe.PlatformDependent;
+import org.apache.spark.util.Utils;
+import org.apache.spark.util.instrumentation.FileRole;
+import org.apache.spark.util.instrumentation.FileRoleStatistics;
+import org.apache.spark.util.instrumentation.FileStreamStatistics;
+
+/**
+ * Measures how long a merge of many spill files waits for reads, with and without the read-ahead
+ * of {@link UnsafeSorterSpillReader}. For each merge it reports the elapsed time, the time the
+ * merging thread was blocked on blocks, and the number and total time of the spill file reads
+ * from {@link FileStreamStatistics}. The files are freshly written and likely in the page cache,
+ * so the read-ahead shows best on a slow disk with the cache dropped between the write and the
+ * merge (the benchmark pauses for that when given a fourth argument).
+ *
+ * Usage: UnsafeSorterSpillMergeBenchmark [numSpills] [recordsPerSpill] [recordLength] [pause]
+ */
+public class UnsafeSorterSpillMergeBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    final int numSpills = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+    final int recordsPerSpill = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+    final int recordLength = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+    final boolean pause = args.length > 3;
+
+    System.out.println(String.format("%d spills of %d records of %d bytes",
+      numSpills, recordsPerSpill, recordLength));
+    final File tempDir = Utils.createTempDir(System.getProperty("java.io.tmpdir"), "unsafe-test");
+    final SparkConf conf = new SparkConf();
+    final BlockManager blockManager = mock(BlockManager.class);
+    final DiskBlockManager diskBlockManager = mock(DiskBlockManager.class);
+    final SparkEnv sparkEnv = mock(SparkEnv.class);
+    when(blockManager.conf()).thenReturn(conf);
+    when(blockManager.diskBlockManager()).thenReturn(diskBlockManager);
+    when(diskBlockManager.createTempLocalBlock()).thenAnswer(
+      new Answer<Tuple2<TempLocalBlockId, File>>() {
+        @Override
+        public Tuple2<TempLocalBlockId, File> answer(InvocationOnMock invocationOnMock) {
+          final TempLocalBlockId blockId = new TempLocalBlockId(UUID.randomUUID());
+          return Tuple2$.MODULE$.apply(blockId, new File(tempDir, blockId.name()));
+        }
+      });
+    when(sparkEnv.blockManager()).thenReturn(blockManager);
+    SparkEnv.set(sparkEnv);
+    try {
+      for (int run = 0; run < 3; run++) {
+        // The first runs warm up the JIT; report all of them.
+        for (boolean readAhead : new boolean[] { false, true }) {
+          conf.set("spark.shuffle.spill.readAhead", String.valueOf(readAhead));
+          System.out.print(readAhead ? "read-ahead:    " : "no read-ahead: ");
+          run(blockManager, numSpills, recordsPerSpill, recordLength, pause);
+        }
+      }
+    } finally {
+      SparkEnv.set(null);
+      Utils.deleteRecursively(tempDir);
+    }
+  }
+
+  private static void run(
+      BlockManager blockManager,
+      int numSpills,
+      int recordsPerSpill,
+      int recordLength,
+      boolean pause) throws Exception {
+    final Random rand = new Random(42);
+    final byte[] record = new byte[recordLength];
+    final UnsafeSorterSpillWriter[] writers = new UnsafeSorterSpillWriter[numSpills];
+    for (int i = 0; i < numSpills; i++) {
+      writers[i] = new UnsafeSorterSpillWriter(
+        blockManager, 32 * 1024, new ShuffleWriteMetrics(), recordsPerSpill);
+      long prefix = 0;
+      for (int j = 0; j < recordsPerSpill; j++) {
+        // Half random bytes, so that the blocks compress about as well as typical rows
+        for (int k = 0; k < recordLength / 2; k++) {
+          record[k] = (byte) rand.nextInt();
+        }
+        prefix += rand.nextInt(1000);
+        writers[i].write(record, PlatformDependent.BYTE_ARRAY_OFFSET, recordLength, prefix);
+      }
+      writers[i].close();
+    }
+    if (pause) {
+      System.out.print("(drop the page cache and press enter) ");
+      System.in.read();
+    }
+
+    final FileRoleStatistics stats = FileStreamStatistics.totalsFor(FileRole.SPILL);
+    final long readsBefore = stats.reads.sum();
+    final long readTimeBefore = stats.cumulativeReadTime.sum();
+    final long start = System.nanoTime();
+    final UnsafeSorterSpillMerger merger = new UnsafeSorterSpillMerger(
+      new RecordComparator() {
+        @Override
+        public int compare(Object leftBase, long leftOffset, Object rightBase, long rightOffset) {
+          return 0;
+        }
+      },
+      PrefixComparators.LONG,
+      numSpills);
+    final UnsafeSorterSpillReader[] readers = new UnsafeSorterSpillReader[numSpills];
+    for (int i = 0; i < numSpills; i++) {
+      readers[i] = writers[i].getReader(numSpills);
+    }
+    for (UnsafeSorterSpillReader reader : readers) {
+      merger.addSpill(reader);
+    }
+    final UnsafeSorterIterator iter = merger.getSortedIterator();
+    long checksum = 0;
+    while (iter.hasNext()) {
+      iter.loadNext();
+      checksum += PlatformDependent.UNSAFE.getByte(iter.getBaseObject(), iter.getBaseOffset());
+    }
+    final long elapsedNs = System.nanoTime() - start;
+    long blockedNs = 0;
+    for (UnsafeSorterSpillReader reader : readers) {
+      blockedNs += reader.getBlockedTimeNs();
+    }
+    System.out.println(String.format(
+      "%5d ms merging, %5d ms blocked, %6d reads taking %5d ms (checksum %d)",
+      elapsedNs / 1000000, blockedNs / 1000000, stats.reads.sum() - readsBefore,
+      (stats.cumulativeReadTime.sum() - readTimeBefore) / 1000000, checksum));
+  }
+}
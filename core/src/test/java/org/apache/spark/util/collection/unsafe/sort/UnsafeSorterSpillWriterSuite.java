@@ -0,0 +1,307 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.spark.util.collection.unsafe.sort;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.UUID;
+
+import scala.Tuple2;
+import scala.Tuple2$;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import static org.junit.Assert.*;
+import static org.mockito.Answers.RETURNS_SMART_NULLS;
+import static org.mockito.Mockito.*;
+
+import org.apache.spark.SparkConf;
+import org.apache.spark.SparkEnv;
+import org.apache.spark.executor.ShuffleWriteMetrics;
+import org.apache.spark.storage.*;
+import org.apache.spark.unsafe.PlatformDependent;
+import org.apache.spark.util.Utils;
+import org.apache.spark.util.instrumentation.FileRoleStatistics;
+import org.apache.spark.util.instrumentation.FileStreamStatistics;
+
+public class UnsafeSorterSpillWriterSuite {
+
+  private final LinkedList<File> spillFilesCreated = new LinkedList<File>();
+  private final Random rand = new Random(42);
+  private File tempDir;
+  private SparkConf conf;
+  @Mock(answer = RETURNS_SMART_NULLS) BlockManager blockManager;
+  @Mock(answer = RETURNS_SMART_NULLS) DiskBlockManager diskBlockManager;
+  @Mock(answer = RETURNS_SMART_NULLS) SparkEnv sparkEnv;
+
+  @Before
+  public void setUp() {
+    MockitoAnnotations.initMocks(this);
+    tempDir = Utils.createTempDir(System.getProperty("java.io.tmpdir"), "unsafe-test");
+    spillFilesCreated.clear();
+    conf = new SparkConf();
+    when(blockManager.conf()).thenReturn(conf);
+    when(blockManager.diskBlockManager()).thenReturn(diskBlockManager);
+    when(diskBlockManager.createTempLocalBlock()).thenAnswer(
+      new Answer<Tuple2<TempLocalBlockId, File>>() {
+        @Override
+        public Tuple2<TempLocalBlockId, File> answer(InvocationOnMock invocationOnMock)
+            throws Throwable {
+          TempLocalBlockId blockId = new TempLocalBlockId(UUID.randomUUID());
+          File file = File.createTempFile("spillFile", ".spill", tempDir);
+          spillFilesCreated.add(file);
+          return Tuple2$.MODULE$.apply(blockId, file);
+        }
+      });
+    // The write metrics report to the BlockManager of the SparkEnv.
+    when(sparkEnv.blockManager()).thenReturn(blockManager);
+    SparkEnv.set(sparkEnv);
+  }
+
+  @After
+  public void tearDown() {
+    SparkEnv.set(null);
+    Utils.deleteRecursively(tempDir);
+  }
+
+  private byte[][] randomRecords(int numRecords) {
+    // Mostly small records, so that many share a block, and a few that are larger than a block,
+    // so that they span several blocks. Half of each record is zeroes, so that it compresses.
+    final byte[][] records = new byte[numRecords][];
+    for (int i = 0; i < numRecords; i++) {
+      final int length = i % 500 == 7 ?
+        UnsafeSorterSpillWriter.BLOCK_SIZE * 3 + rand.nextInt(100) :
+        rand.nextInt(3000);
+      records[i] = new byte[length];
+      final byte[] randomHalf = new byte[length / 2];
+      rand.nextBytes(randomHalf);
+      System.arraycopy(randomHalf, 0, records[i], 0, randomHalf.length);
+    }
+    return records;
+  }
+
+  private UnsafeSorterSpillWriter writeSpill(byte[][] records) throws IOException {
+    final UnsafeSorterSpillWriter writer = new UnsafeSorterSpillWriter(
+      blockManager, 32 * 1024, new ShuffleWriteMetrics(), records.length);
+    for (int i = 0; i < records.length; i++) {
+      writer.write(records[i], PlatformDependent.BYTE_ARRAY_OFFSET, records[i].length, i * 3L);
+    }
+    writer.close();
+    return writer;
+  }
+
+  private static void readAndCheckSpill(UnsafeSorterSpillWriter writer, byte[][] records)
+      throws IOException {
+    readAndCheckSpill(writer.getReader(), records);
+  }
+
+  private static void readAndCheckSpill(UnsafeSorterSpillReader reader, byte[][] records)
+      throws IOException {
+    for (int i = 0; i < records.length; i++) {
+      assertTrue(reader.hasNext());
+      reader.loadNext();
+      assertEquals(i * 3L, reader.getKeyPrefix());
+      assertEquals(records[i].length, reader.getRecordLength());
+      final byte[] read = new byte[reader.getRecordLength()];
+      PlatformDependent.copyMemory(reader.getBaseObject(), reader.getBaseOffset(),
+        read, PlatformDependent.BYTE_ARRAY_OFFSET, read.length);
+      assertArrayEquals(records[i], read);
+    }
+    assertFalse(reader.hasNext());
+  }
+
+  private static long totalLength(byte[][] records) {
+    long total = 0;
+    for (byte[] record : records) {
+      total += 4 + 8 + record.length;
+    }
+    return total;
+  }
+
+  @Test
+  public void recordsOfAllSizesRoundTrip() throws Exception {
+    final byte[][] records = randomRecords(2000);
+    final UnsafeSorterSpillWriter writer = writeSpill(records);
+    // Compression roughly halves the half-zero records
+    assertTrue(writer.getFile().length() < totalLength(records) * 0.7);
+    readAndCheckSpill(writer, records);
+    for (File spillFile : spillFilesCreated) {
+      assertFalse(spillFile.exists());
+    }
+  }
+
+  @Test
+  public void uncompressedRoundTrip() throws Exception {
+    conf.set("spark.shuffle.spill.compress", "false");
+    final byte[][] records = randomRecords(2000);
+    final UnsafeSorterSpillWriter writer = writeSpill(records);
+    assertTrue(writer.getFile().length() > totalLength(records));
+    readAndCheckSpill(writer, records);
+  }
+
+  @Test
+  public void readsWithoutReadAhead() throws Exception {
+    conf.set("spark.shuffle.spill.readAhead", "false");
+    final byte[][] records = randomRecords(2000);
+    readAndCheckSpill(writeSpill(records), records);
+  }
+
+  @Test
+  public void readsBlocksWithFewReads() throws Exception {
+    readsBlocksWithFewReads(true, 1);
+    readsBlocksWithFewReads(false, 1);
+    // Many readers open at once read fewer blocks ahead each.
+    readsBlocksWithFewReads(true, 64);
+  }
+
+  @Test
+  public void readAheadIsBoundedForManySpills() {
+    assertEquals(UnsafeSorterSpillReader.READ_AHEAD_BLOCKS,
+      UnsafeSorterSpillReader.readAheadBlocks(1));
+    final int maxReaders = (int) (UnsafeSorterSpillReader.READ_AHEAD_BUFFER_BYTES /
+      (2L * UnsafeSorterSpillWriter.BLOCK_SIZE));
+    assertEquals(1, UnsafeSorterSpillReader.readAheadBlocks(maxReaders));
+    assertEquals(0, UnsafeSorterSpillReader.readAheadBlocks(maxReaders + 1));
+  }
+
+  private void readsBlocksWithFewReads(boolean readAhead, int numReaders) throws Exception {
+    conf.set("spark.shuffle.spill.readAhead", String.valueOf(readAhead));
+    final byte[][] records = randomRecords(2000);
+    final UnsafeSorterSpillWriter writer = writeSpill(records);
+    final File file = writer.getFile();
+    final RandomAccessFile raf = new RandomAccessFile(file, "r");
+    final int numBlocks;
+    try {
+      raf.seek(raf.length() - UnsafeSorterSpillWriter.TRAILER_SIZE);
+      numBlocks = raf.readInt();
+    } finally {
+      raf.close();
+    }
+    final FileRoleStatistics stats = FileStreamStatistics.statisticsFor(file.getPath());
+    final long readsBefore = stats.reads.sum();
+    final long bytesReadBefore = stats.bytesRead.sum();
+    final long fileLength = file.length();
+    readAndCheckSpill(writer.getReader(numReaders), records);
+    // One read for the trailer, one for the block index, and one per block, or when reading
+    // ahead, one per chunk of blocks read ahead
+    final int blocksPerRead =
+      readAhead ? UnsafeSorterSpillReader.readAheadBlocks(numReaders) : 1;
+    assertEquals(2 + (numBlocks + blocksPerRead - 1) / blocksPerRead,
+      stats.reads.sum() - readsBefore);
+    assertEquals(fileLength, stats.bytesRead.sum() - bytesReadBefore);
+  }
+
+  @Test
+  public void corruptBlockIsDetected() throws Exception {
+    corruptBlockIsDetected(true);
+    corruptBlockIsDetected(false);
+  }
+
+  private void corruptBlockIsDetected(boolean readAhead) throws Exception {
+    conf.set("spark.shuffle.spill.readAhead", String.valueOf(readAhead));
+    final byte[][] records = randomRecords(2000);
+    final UnsafeSorterSpillWriter writer = writeSpill(records);
+    final RandomAccessFile raf = new RandomAccessFile(writer.getFile(), "rw");
+    try {
+      final long position = raf.length() / 2;
+      raf.seek(position);
+      final int b = raf.read();
+      raf.seek(position);
+      raf.write(b ^ 0x10);
+    } finally {
+      raf.close();
+    }
+    try {
+      readAndCheckSpill(writer, records);
+      fail("Expected the corruption to be detected");
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("is corrupt"));
+    }
+  }
+
+  @Test
+  public void corruptCompressedBytesAreDetected() throws Exception {
+    corruptCompressedBytesAreDetected(true);
+    corruptCompressedBytesAreDetected(false);
+  }
+
+  private void corruptCompressedBytesAreDetected(boolean readAhead) throws Exception {
+    conf.set("spark.shuffle.spill.readAhead", String.valueOf(readAhead));
+    final byte[][] records = randomRecords(2000);
+    final UnsafeSorterSpillWriter writer = writeSpill(records);
+    final RandomAccessFile raf = new RandomAccessFile(writer.getFile(), "rw");
+    try {
+      // Overwrite the compressed bytes of the first block, leaving its header intact.
+      final int length = raf.readInt();
+      final int storedLength = raf.readInt();
+      assertTrue(storedLength < length);
+      final byte[] garbage = new byte[storedLength];
+      rand.nextBytes(garbage);
+      raf.seek(UnsafeSorterSpillWriter.BLOCK_HEADER_SIZE);
+      raf.write(garbage);
+    } finally {
+      raf.close();
+    }
+    try {
+      readAndCheckSpill(writer, records);
+      fail("Expected the corruption to be detected");
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("is corrupt"));
+    }
+  }
+
+  @Test
+  public void truncatedFileIsDetected() throws Exception {
+    final byte[][] records = randomRecords(100);
+    final UnsafeSorterSpillWriter writer = writeSpill(records);
+    final RandomAccessFile raf = new RandomAccessFile(writer.getFile(), "rw");
+    try {
+      raf.setLength(raf.length() - 100);
+    } finally {
+      raf.close();
+    }
+    try {
+      writer.getReader();
+      fail("Expected the truncation to be detected");
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("is corrupt"));
+    }
+  }
+
+  @Test
+  public void writingMoreRecordsThanDeclaredFails() throws Exception {
+    final UnsafeSorterSpillWriter writer =
+      new UnsafeSorterSpillWriter(blockManager, 32 * 1024, new ShuffleWriteMetrics(), 1);
+    final byte[] record = new byte[16];
+    writer.write(record, PlatformDependent.BYTE_ARRAY_OFFSET, record.length, 0);
+    try {
+      writer.write(record, PlatformDependent.BYTE_ARRAY_OFFSET, record.length, 0);
+      fail("Expected an IllegalStateException");
+    } catch (IllegalStateException e) {
+      // Expected
+    }
+    writer.close();
+  }
+}
@@ -17,17 +17,25 @@
 
 package org.apache.spark
 
+import java.io.{ByteArrayInputStream, ObjectInputStream}
+
 import scala.collection.mutable.ArrayBuffer
+import scala.concurrent.duration._
+import scala.language.postfixOps
+import scala.reflect.ClassTag
+import scala.util.Random
 
 import org.mockito.Mockito._
 import org.mockito.Matchers.{any, isA}
+import org.scalatest.concurrent.Eventually.{eventually, interval, timeout => eventuallyTimeout}
 
+import org.apache.spark.broadcast.Broadcast
 import org.apache.spark.rpc.{RpcAddress, RpcEndpointRef, RpcCallContext, RpcEnv}
 import org.apache.spark.scheduler.{CompressedMapStatus, MapStatus}
-import org.apache.spark.shuffle.FetchFailedException
-import org.apache.spark.storage.{BlockManagerId, ShuffleBlockId}
+import org.apache.spark.shuffle.{FetchFailedException, MetadataFetchFailedException}
+import org.apache.spark.storage.{BlockManagerId, BroadcastBlockId, ShuffleBlockId}
 
-class MapOutputTrackerSuite extends SparkFunSuite {
+class MapOutputTrackerSuite extends SparkFunSuite with LocalSparkContext {
   private val conf = new SparkConf
 
   def createRpcEnv(name: String, host: String = "localhost", port: Int = 0,
@@ -190,13 +198,14 @@ class MapOutputTrackerSuite extends SparkFunSuite {
     val masterEndpoint = new MapOutputTrackerMasterEndpoint(rpcEnv, masterTracker, newConf)
     rpcEnv.setupEndpoint(MapOutputTracker.ENDPOINT_NAME, masterEndpoint)
 
-    // Frame size should be ~1.1MB, and MapOutputTrackerMasterEndpoint should throw exception.
-    // Note that the size is hand-selected here because map output statuses are compressed before
+    // Frame size should be ~2MB, and MapOutputTrackerMasterEndpoint should throw exception.
+    // Note that the sizes are random here because map output statuses are compressed before
     // being sent.
+    val rand = new Random(42)
     masterTracker.registerShuffle(20, 100)
     (0 until 100).foreach { i =>
       masterTracker.registerMapOutput(20, i, new CompressedMapStatus(
-        BlockManagerId("999", "mps", 1000), Array.fill[Long](4000000)(0)))
+        BlockManagerId("999", "mps", 1000), Array.fill[Long](20000)(rand.nextInt(1000000))))
     }
     val sender = mock(classOf[RpcEndpointRef])
     when(sender.address).thenReturn(RpcAddress("localhost", 12345))
@@ -244,4 +253,169 @@ class MapOutputTrackerSuite extends SparkFunSuite {
     tracker.stop()
     rpcEnv.shutdown()
   }
+
+  private def assertSameStatuses(
+      expected: Array[MapStatus],
+      actual: Array[MapStatus],
+      numReducers: Int): Unit = {
+    assert(actual.length === expected.length)
+    for ((e, a) <- expected.zip(actual)) {
+      if (e == null) {
+        assert(a === null)
+      } else {
+        assert(a.getClass === e.getClass)
+        assert(a.location === e.location)
+        for (reduceId <- 0 until numReducers) {
+          assert(a.getSizeForBlock(reduceId) === e.getSizeForBlock(reduceId))
+        }
+      }
+    }
+  }
+
+  private def randomStatuses(numMaps: Int, numReducers: Int, rand: Random): Array[MapStatus] = {
+    Array.tabulate(numMaps) { i =>
+      if (i % 7 == 3) {
+        null
+      } else {
+        val sizes = Array.fill[Long](numReducers) {
+          if (rand.nextInt(4) == 0) 0L else rand.nextInt(100000)
+        }
+        MapStatus(BlockManagerId(s"${i % 5}", s"host${i % 5}", 1000), sizes)
+      }
+    }
+  }
+
+  test("serialized statuses round trip") {
+    // Few reducers for CompressedMapStatus, many for HighlyCompressedMapStatus
+    for (numReducers <- Seq(1000, 3000)) {
+      val statuses = randomStatuses(50, numReducers, new Random(42))
+      val (version, deserialized) = MapOutputTracker.deserializeMapStatuses(
+        MapOutputTracker.serializeMapStatuses(7L, statuses))
+      assert(version === 7L)
+      assertSameStatuses(statuses, deserialized, numReducers)
+
+      // Changed statuses are applied to the earlier ones
+      val changed = randomStatuses(50, numReducers, new Random(43))
+      val mapIds = Array(0, 3, 10, 49)
+      val (changedVersion, updated) = MapOutputTracker.deserializeMapStatuses(
+        MapOutputTracker.serializeChangedMapStatuses(8L, 50, mapIds, mapIds.map(changed(_))),
+        deserialized)
+      assert(changedVersion === 8L)
+      val expected = statuses.clone()
+      mapIds.foreach { i => expected(i) = changed(i) }
+      assertSameStatuses(expected, updated, numReducers)
+      // The earlier statuses are left alone
+      assertSameStatuses(statuses, deserialized, numReducers)
+    }
+  }
+
+  test("master sends executors only the statuses changed since the version they hold") {
+    val rpcEnv = createRpcEnv("spark")
+    val masterTracker = new MapOutputTrackerMaster(conf)
+    masterTracker.trackerEndpoint = rpcEnv.setupEndpoint(MapOutputTracker.ENDPOINT_NAME,
+      new MapOutputTrackerMasterEndpoint(rpcEnv, masterTracker, conf))
+    val slaveRpcEnv = createRpcEnv("spark-slave")
+    val slaveTracker = new MapOutputTrackerWorker(conf)
+    slaveTracker.trackerEndpoint =
+      slaveRpcEnv.setupEndpointRef("spark", rpcEnv.address, MapOutputTracker.ENDPOINT_NAME)
+
+    val rand = new Random(42)
+    masterTracker.registerShuffle(10, 100)
+    (0 until 100).foreach { i =>
+      val location = BlockManagerId(s"${i % 10}", s"host${i % 10}", 1000)
+      masterTracker.registerMapOutput(
+        10, i, MapStatus(location, Array.fill[Long](100)(rand.nextInt(100000) + 1)))
+    }
+    assert(slaveTracker.getMapSizesByExecutorId(10, 0).map(_._2.size).sum === 100)
+    val full = masterTracker.getSerializedMapOutputStatuses(10)
+    // Unchanged statuses are sent from the cache, even across epochs
+    masterTracker.incrementEpoch()
+    assert(masterTracker.getSerializedMapOutputStatuses(10) eq full)
+
+    masterTracker.unregisterMapOutput(10, 42, BlockManagerId("2", "host2", 1000))
+    slaveTracker.updateEpoch(masterTracker.getEpoch)
+    val changed = masterTracker.getSerializedMapOutputStatuses(10, 100L)
+    assert(changed.length < full.length / 10)
+    val (version, statuses) = MapOutputTracker.deserializeMapStatuses(
+      changed, MapOutputTracker.deserializeMapStatuses(full)._2)
+    assert(version === 101L)
+    assert(statuses(42) === null)
+    assert(statuses.count(_ != null) === 99)
+    intercept[FetchFailedException] { slaveTracker.getMapSizesByExecutorId(10, 0) }
+
+    masterTracker.registerMapOutput(10, 42, MapStatus(
+      BlockManagerId("x", "hostX", 1000), Array.fill[Long](100)(1000L)))
+    masterTracker.incrementEpoch()
+    slaveTracker.updateEpoch(masterTracker.getEpoch)
+    val sizes = slaveTracker.getMapSizesByExecutorId(10, 0).toMap
+    assert(sizes.values.map(_.size).sum === 100)
+    assert(sizes(BlockManagerId("x", "hostX", 1000)) ===
+      Seq((ShuffleBlockId(10, 42, 0), MapStatus.decompressSize(MapStatus.compressSize(1000L)))))
+
+    masterTracker.stop()
+    slaveTracker.stop()
+    rpcEnv.shutdown()
+    slaveRpcEnv.shutdown()
+  }
+
+  test("large statuses are sent through a broadcast variable") {
+    val newConf = conf.clone.set("spark.shuffle.mapOutput.minSizeForBroadcast", "10k")
+    sc = new SparkContext("local", "MapOutputTrackerSuite", newConf)
+    val masterTracker = sc.env.mapOutputTracker.asInstanceOf[MapOutputTrackerMaster]
+    val rand = new Random(42)
+
+    masterTracker.registerShuffle(20, 1)
+    masterTracker.registerMapOutput(20, 0, MapStatus(
+      BlockManagerId("a", "hostA", 1000), Array.fill[Long](10)(1000L)))
+    val small = masterTracker.getSerializedMapOutputStatuses(20)
+    assert(small(0) === MapOutputTracker.DIRECT)
+
+    val statuses = randomStatuses(20, 1000, rand)
+    masterTracker.registerMapOutputs(20, statuses)
+    val large = masterTracker.getSerializedMapOutputStatuses(20)
+    assert(large(0) === MapOutputTracker.BROADCAST)
+    assert(large.length < 10 * 1024)
+    val (_, deserialized) = MapOutputTracker.deserializeMapStatuses(large)
+    assertSameStatuses(statuses, deserialized, 1000)
+  }
+
+  test("statuses are fetched again when the broadcast they were sent through is destroyed") {
+    val newConf = conf.clone.set("spark.shuffle.mapOutput.minSizeForBroadcast", "10k")
+    sc = new SparkContext("local", "MapOutputTrackerSuite", newConf)
+    val masterTracker = sc.env.mapOutputTracker.asInstanceOf[MapOutputTrackerMaster]
+    val rand = new Random(42)
+    def statuses(): Array[MapStatus] = Array.fill(1000) {
+      MapStatus(BlockManagerId("a", "hostA", 1000), Array.fill[Long](20)(rand.nextInt(100000)))
+    }
+
+    masterTracker.registerShuffle(20, 1000)
+    masterTracker.registerMapOutputs(20, statuses())
+    val old = masterTracker.getSerializedMapOutputStatuses(20)
+    assert(old(0) === MapOutputTracker.BROADCAST)
+    val oldBroadcastId = new ObjectInputStream(new ByteArrayInputStream(old, 1, old.length - 1))
+      .readObject().asInstanceOf[Broadcast[Array[Byte]]].id
+    // Newer statuses replace the old ones, whose broadcast is destroyed.
+    masterTracker.registerMapOutputs(20, statuses())
+    assert(masterTracker.getSerializedMapOutputStatuses(20)(0) === MapOutputTracker.BROADCAST)
+    eventually(eventuallyTimeout(10 seconds), interval(10 milliseconds)) {
+      assert(sc.env.blockManager.getLocal(BroadcastBlockId(oldBroadcastId)).isEmpty)
+    }
+
+    // A worker whose first replies from the driver are the old statuses.
+    def worker(replies: Iterator[Array[Byte]]): MapOutputTrackerWorker = {
+      val tracker = new MapOutputTrackerWorker(conf) {
+        override protected def askTracker[T: ClassTag](message: Any): T = {
+          if (replies.hasNext) replies.next().asInstanceOf[T] else super.askTracker[T](message)
+        }
+      }
+      tracker.trackerEndpoint = masterTracker.trackerEndpoint
+      tracker
+    }
+    assert(worker(Iterator(old)).getMapSizesByExecutorId(20, 0).map(_._2.size).sum === 1000)
+    // If the statuses cannot be read however often they are asked for, the fetch fails as one of
+    // missing statuses does, so that the stage is retried.
+    intercept[MetadataFetchFailedException] {
+      worker(Iterator.continually(old)).getMapSizesByExecutorId(20, 0)
+    }
+  }
 }
@@ -17,9 +17,18 @@
 
 package org.apache.spark.network.netty
 
+import java.nio.ByteBuffer
+import java.util.concurrent.{ConcurrentHashMap, CountDownLatch, TimeUnit}
+
 import org.apache.spark.network.BlockDataManager
+import org.apache.spark.network.buffer.{ManagedBuffer, NioManagedBuffer}
+import org.apache.spark.network.shuffle.BlockFetchingListener
+import org.apache.spark.storage.BlockId
 import org.apache.spark.{SecurityManager, SparkConf, SparkFunSuite}
-import org.mockito.Mockito.mock
+import org.mockito.Matchers.{any, eq => meq}
+import org.mockito.Mockito.{mock, never, times, verify, when}
+import org.mockito.invocation.InvocationOnMock
+import org.mockito.stubbing.Answer
 import org.scalatest._
 
 class NettyBlockTransferServiceSuite
@@ -69,12 +78,54 @@ class NettyBlockTransferServiceSuite
     service1.port should be (service0.port + 1)
   }
 
-  private def createService(port: Int): NettyBlockTransferService = {
+  test("fetches contiguous shuffle blocks of a map output as one range") {
+    val blockDataManager = mock(classOf[BlockDataManager])
+    when(blockDataManager.getShuffleBlockRangeData(meq(0), meq(1), meq(0), meq(3), any()))
+      .thenAnswer(new Answer[ManagedBuffer] {
+        override def answer(invocation: InvocationOnMock): ManagedBuffer = {
+          val blockLengths = invocation.getArguments()(4).asInstanceOf[Array[Long]]
+          Array(2L, 0L, 3L).copyToArray(blockLengths)
+          new NioManagedBuffer(ByteBuffer.wrap(Array[Byte](1, 2, 3, 4, 5)))
+        }
+      })
+    service0 = createService(port = 0, blockDataManager)
+    service1 = createService(port = 0)
+
+    val blockIds = Array("shuffle_0_1_0", "shuffle_0_1_1", "shuffle_0_1_2")
+    val fetched = new ConcurrentHashMap[String, Array[Byte]]()
+    val remaining = new CountDownLatch(blockIds.length)
+    service1.fetchBlocks("localhost", service0.port, "exec-0", blockIds,
+      new BlockFetchingListener {
+        override def onBlockFetchSuccess(blockId: String, data: ManagedBuffer): Unit = {
+          val buffer = data.nioByteBuffer()
+          val bytes = new Array[Byte](buffer.remaining())
+          buffer.get(bytes)
+          fetched.put(blockId, bytes)
+          remaining.countDown()
+        }
+
+        override def onBlockFetchFailure(blockId: String, e: Throwable): Unit = {
+          remaining.countDown()
+        }
+      })
+    assert(remaining.await(10, TimeUnit.SECONDS))
+
+    fetched.get("shuffle_0_1_0") should be (Array[Byte](1, 2))
+    fetched.get("shuffle_0_1_1") should be (Array[Byte]())
+    fetched.get("shuffle_0_1_2") should be (Array[Byte](3, 4, 5))
+    verify(blockDataManager, times(1))
+      .getShuffleBlockRangeData(meq(0), meq(1), meq(0), meq(3), any())
+    verify(blockDataManager, never()).getBlockData(any[BlockId]())
+  }
+
+  private def createService(
+      port: Int,
+      blockDataManager: BlockDataManager = mock(classOf[BlockDataManager]))
+    : NettyBlockTransferService = {
     val conf = new SparkConf()
       .set("spark.app.id", s"test-${getClass.getName}")
       .set("spark.blockManager.port", port.toString)
     val securityManager = new SecurityManager(conf)
-    val blockDataManager = mock(classOf[BlockDataManager])
     val service = new NettyBlockTransferService(conf, securityManager, numCores = 1)
     service.init(blockDataManager)
     service
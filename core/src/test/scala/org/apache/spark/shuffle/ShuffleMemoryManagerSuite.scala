@@ -25,6 +25,8 @@ import org.scalatest.concurrent.Timeouts
 import org.scalatest.time.SpanSugar._
 
 import org.apache.spark.{SparkFunSuite, TaskContext}
+import org.apache.spark.unsafe.memory.{ExecutorMemoryManager, MemoryAllocator, MemoryBlock,
+  TaskMemoryManager}
 
 class ShuffleMemoryManagerSuite extends SparkFunSuite with Timeouts {
 
@@ -306,6 +308,40 @@ class ShuffleMemoryManagerSuite extends SparkFunSuite with Timeouts {
     }
   }
 
+  test("pages kept for reuse are reused near the limit and released when they are not") {
+    val executorMemoryManager = new ExecutorMemoryManager(MemoryAllocator.HEAP, 16L << 20, 60000)
+    val taskMemoryManager = new TaskMemoryManager(executorMemoryManager)
+    val manager = new ShuffleMemoryManager(8L << 20, executorMemoryManager)
+    def acquireAndAllocate(size: Long) = {
+      assert(manager.tryToAcquire(size) === size)
+      taskMemoryManager.allocatePage(size)
+    }
+    def freeAndRelease(page: MemoryBlock): Unit = {
+      taskMemoryManager.freePage(page)
+      manager.release(page.size())
+    }
+    val first = acquireAndAllocate(4L << 20)
+    freeAndRelease(acquireAndAllocate(4L << 20))
+    assert(executorMemoryManager.pagePoolRetainedBytes() === (4L << 20))
+
+    // All the memory not held by the first page is granted, and the page the pool holds in it is
+    // reused rather than released.
+    val hitsBefore = executorMemoryManager.pagePoolHits()
+    val second = acquireAndAllocate(4L << 20)
+    assert(executorMemoryManager.pagePoolHits() === hitsBefore + 1)
+    assert(executorMemoryManager.pagePoolRetainedBytes() === 0L)
+
+    // A page of another size cannot reuse the pooled page, which is released to make room.
+    freeAndRelease(second)
+    assert(executorMemoryManager.pagePoolRetainedBytes() === (4L << 20))
+    val missesBefore = executorMemoryManager.pagePoolMisses()
+    val third = acquireAndAllocate(2L << 20)
+    assert(executorMemoryManager.pagePoolMisses() === missesBefore + 1)
+    assert(executorMemoryManager.pagePoolRetainedBytes() === 0L)
+    freeAndRelease(third)
+    freeAndRelease(first)
+  }
+
   test("tasks should not be granted a negative size") {
     val manager = new ShuffleMemoryManager(1000L)
     manager.tryToAcquire(700L)
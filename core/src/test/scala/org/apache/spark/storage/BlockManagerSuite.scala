@@ -416,6 +416,37 @@ class BlockManagerSuite extends SparkFunSuite with Matchers with BeforeAndAfterE
     }
   }
 
+  test("reregistration keeps a single file statistics reporter") {
+    def reporterThreads(): Int = {
+      Thread.getAllStackTraces.keySet.toArray(new Array[Thread](0)).count { t =>
+        t.isAlive && t.getName.startsWith("file-statistics-reporter")
+      }
+    }
+
+    val dir = Utils.createTempDir()
+    val before = reporterThreads()
+    conf.set("spark.instrumentation.fileStats.dir", dir.getAbsolutePath)
+    try {
+      store = makeBlockManager(2000)
+      assert(reporterThreads() === before + 1)
+
+      for (i <- 1 to 3) {
+        master.removeExecutor(store.blockManagerId.executorId)
+        store.reregister()
+      }
+      assert(reporterThreads() === before + 1)
+
+      store.stop()
+      store = null
+      eventually(timeout(10 seconds), interval(10 milliseconds)) {
+        assert(reporterThreads() === before)
+      }
+    } finally {
+      conf.remove("spark.instrumentation.fileStats.dir")
+      Utils.deleteRecursively(dir)
+    }
+  }
+
   test("correct BlockResult returned from get() calls") {
     store = makeBlockManager(12000)
     val list1 = List(new Array[Byte](2000), new Array[Byte](2000))
@@ -0,0 +1,144 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.storage
+
+import java.nio.ByteBuffer
+import java.util.concurrent.{ExecutorService, Executors, TimeUnit}
+import java.util.concurrent.locks.LockSupport
+
+import org.mockito.Mockito.{doReturn, mock}
+
+import org.apache.spark.TaskContext
+import org.apache.spark.network.buffer.NioManagedBuffer
+import org.apache.spark.network.shuffle.{BlockFetchingListener, ShuffleClient}
+
+/**
+ * Measures how fast a [[ShuffleBlockFetcherIterator]] fetches the blocks of a reduce task from
+ * simulated executors. Each executor answers the requests it gets one at a time, as over a single
+ * connection, taking a fixed time per request plus a time per byte. The scenarios are executors
+ * that are all equally fast, and one or more executors that are several times slower than the
+ * others.
+ *
+ * Usage: ShuffleBlockFetcherIteratorBenchmark [numPeers] [blocksPerPeer] [blockSize]
+ *          [maxBytesInFlight] [peerMBPerSec] [slowdown] [requestOverheadMs] [rounds] [slowPeers]
+ */
+private object ShuffleBlockFetcherIteratorBenchmark {
+
+  def main(args: Array[String]): Unit = {
+    def arg(i: Int, default: String): String = if (args.length > i) args(i) else default
+    val numPeers = arg(0, "8").toInt
+    val blocksPerPeer = arg(1, "64").toInt
+    val blockSize = arg(2, "262144").toInt
+    val maxBytesInFlight = arg(3, "4194304").toLong
+    val peerMBPerSec = arg(4, "200").toDouble
+    val slowdown = arg(5, "8").toDouble
+    val requestOverheadNs = (arg(6, "1").toDouble * 1000000).toLong
+    val rounds = arg(7, "5").toInt
+    val maxSlowPeers = arg(8, "2").toInt
+
+    val nsPerByte = 1000.0 / peerMBPerSec / (1 << 20) * 1000000
+    // scalastyle:off println
+    println(s"$numPeers executors, $blocksPerPeer blocks of $blockSize bytes each, " +
+      s"maxBytesInFlight $maxBytesInFlight, $peerMBPerSec MB/s per executor, " +
+      s"${requestOverheadNs / 1000000.0} ms per request, median of $rounds rounds")
+    for (slowPeers <- 0 to maxSlowPeers) {
+      val name = if (slowPeers == 0) "uniform" else s"$slowPeers executor(s) ${slowdown}x slower"
+      val peerNsPerByte = (0 until numPeers).map { i =>
+        if (i < slowPeers) nsPerByte * slowdown else nsPerByte
+      }
+      val times = (0 to rounds).map { round =>
+        fetchAll(peerNsPerByte, blocksPerPeer, blockSize, maxBytesInFlight, requestOverheadNs)
+      }
+      // The first round warms up the JIT and is not counted.
+      val medianNs = times.tail.sorted.apply(rounds / 2)
+      val totalBytes = numPeers.toLong * blocksPerPeer * blockSize
+      println("%-28s %10.1f ms %10.1f MB/s".format(
+        name, medianNs / 1e6, totalBytes * 1e9 / medianNs / (1 << 20)))
+    }
+    // scalastyle:on println
+  }
+
+  /** Fetches all blocks of the simulated executors and returns the time taken, in ns. */
+  private def fetchAll(
+      peerNsPerByte: Seq[Double],
+      blocksPerPeer: Int,
+      blockSize: Int,
+      maxBytesInFlight: Long,
+      requestOverheadNs: Long): Long = {
+    val peers = peerNsPerByte.indices.map { i => BlockManagerId(s"exec-$i", s"host-$i", 7337) }
+    val connections: Map[String, ExecutorService] =
+      peers.map(_.executorId -> Executors.newSingleThreadExecutor()).toMap
+    val blockNs = peers.zip(peerNsPerByte).map { case (peer, nsPerByte) =>
+      peer.executorId -> (nsPerByte * blockSize).toLong
+    }.toMap
+    val buf = new NioManagedBuffer(ByteBuffer.allocate(blockSize))
+
+    val shuffleClient = new ShuffleClient {
+      override def fetchBlocks(
+          host: String,
+          port: Int,
+          execId: String,
+          blockIds: Array[String],
+          listener: BlockFetchingListener): Unit = {
+        connections(execId).submit(new Runnable {
+          override def run(): Unit = {
+            sleepNanos(requestOverheadNs)
+            for (blockId <- blockIds) {
+              sleepNanos(blockNs(execId))
+              listener.onBlockFetchSuccess(blockId, buf)
+            }
+          }
+        })
+      }
+
+      override def close(): Unit = {}
+    }
+
+    val blockManager = mock(classOf[BlockManager])
+    doReturn(BlockManagerId("reducer", "reducer-host", 7337)).when(blockManager).blockManagerId
+    val blocksByAddress = peers.zipWithIndex.map { case (peer, i) =>
+      (peer, (0 until blocksPerPeer).map { m =>
+        (ShuffleBlockId(0, i * blocksPerPeer + m, 0): BlockId, blockSize.toLong)
+      })
+    }
+
+    try {
+      val start = System.nanoTime()
+      val iterator = new ShuffleBlockFetcherIterator(
+        TaskContext.empty(), shuffleClient, blockManager, blocksByAddress, maxBytesInFlight)
+      while (iterator.hasNext) {
+        iterator.next()._2.close()
+      }
+      System.nanoTime() - start
+    } finally {
+      connections.values.foreach { connection =>
+        connection.shutdown()
+        connection.awaitTermination(10, TimeUnit.SECONDS)
+      }
+    }
+  }
+
+  private def sleepNanos(ns: Long): Unit = {
+    val deadline = System.nanoTime() + ns
+    var remaining = ns
+    while (remaining > 0) {
+      LockSupport.parkNanos(remaining)
+      remaining = deadline - System.nanoTime()
+    }
+  }
+}
@@ -244,4 +244,127 @@ class ShuffleBlockFetcherIteratorSuite extends SparkFunSuite with PrivateMethodT
     intercept[FetchFailedException] { iterator.next() }
     intercept[FetchFailedException] { iterator.next() }
   }
+
+  test("limit requests in flight per peer and record per-peer fetch metrics") {
+    val blockManager = mock(classOf[BlockManager])
+    val localBmId = BlockManagerId("test-client", "test-client", 1)
+    doReturn(localBmId).when(blockManager).blockManagerId
+
+    val remoteBmId = BlockManagerId("test-client-1", "test-client-1", 2)
+    val blocks = (0 until 4).map { i =>
+      ShuffleBlockId(0, i, 0).asInstanceOf[BlockId] -> createMockManagedBuffer()
+    }.toMap
+    val transfer = createMockTransfer(blocks)
+
+    // Each block is large enough to make up a request on its own.
+    val blocksByAddress = Seq[(BlockManagerId, Seq[(BlockId, Long)])](
+      (remoteBmId, blocks.keys.map(blockId => (blockId, 1000L)).toSeq))
+
+    val taskContext = TaskContext.empty()
+    val iterator = new ShuffleBlockFetcherIterator(
+      taskContext,
+      transfer,
+      blockManager,
+      blocksByAddress,
+      5000,
+      1)
+
+    // Only one request at a time may be in flight, although the bytes of more would fit.
+    verify(transfer, times(1)).fetchBlocks(any(), any(), any(), any(), any())
+    for (i <- 0 until 4) {
+      iterator.next()._2.close()
+      verify(transfer, times(math.min(i + 2, 4))).fetchBlocks(any(), any(), any(), any(), any())
+    }
+    assert(!iterator.hasNext)
+
+    taskContext.taskMetrics.updateShuffleReadMetrics()
+    val peerMetrics = taskContext.taskMetrics.shuffleReadMetrics.get.peerFetchMetrics
+    assert(peerMetrics.keySet === Set(remoteBmId))
+    assert(peerMetrics(remoteBmId).requestsFetched === 4)
+    assert(peerMetrics(remoteBmId).blocksFetched === 4)
+  }
+
+  test("per-peer window grows while latency is steady and halves when it rises") {
+    import ShuffleBlockFetcherIterator._
+
+    val peer = new PeerFetchState(BlockManagerId("test-client-1", "test-client-1", 2), 16)
+    assert(peer.window === InitialWindow)
+
+    // At first, the window grows by one per request.
+    peer.onRequestCompleted(peer.onRequestSent(), 1000, 1000)
+    assert(peer.window === InitialWindow + 1)
+    peer.onRequestCompleted(peer.onRequestSent(), 1000, 1000)
+    assert(peer.window === InitialWindow + 2)
+
+    // Small requests take longer per byte, but not longer than the fastest request.
+    peer.onRequestCompleted(peer.onRequestSent(), 10, 1000)
+    assert(peer.window === InitialWindow + 3)
+
+    // Requests that queue up at the peer halve the window, but the requests that were already in
+    // flight do not halve it again.
+    val first = peer.onRequestSent()
+    val second = peer.onRequestSent()
+    peer.onRequestCompleted(first, 1000, 3000)
+    assert(peer.window === (InitialWindow + 3) / 2)
+    peer.onRequestCompleted(second, 1000, 3000)
+    assert(peer.window === (InitialWindow + 3) / 2)
+
+    // Then it grows by about one per window of requests, up to the maximum.
+    for (i <- 0 until 4) {
+      peer.onRequestCompleted(peer.onRequestSent(), 1000, 1000)
+    }
+    assert(peer.window === (InitialWindow + 3) / 2)
+    peer.onRequestCompleted(peer.onRequestSent(), 1000, 1000)
+    assert(peer.window === (InitialWindow + 3) / 2 + 1)
+    for (i <- 0 until 200) {
+      peer.onRequestCompleted(peer.onRequestSent(), 1000, 1000)
+    }
+    assert(peer.window === 16)
+
+    // Executors that have not answered a request yet are tried first.
+    val newPeer = new PeerFetchState(BlockManagerId("test-client-2", "test-client-2", 3), 16)
+    assert(newPeer.expectedRate > peer.expectedRate)
+  }
+
+  test("per-peer request time leaves out waiting for earlier requests to the peer") {
+    val blockManager = mock(classOf[BlockManager])
+    doReturn(BlockManagerId("test-client", "test-client", 1)).when(blockManager).blockManagerId
+
+    // The peer answers requests one at a time, each taking about 50 ms.
+    val remoteBmId = BlockManagerId("test-client-1", "test-client-1", 2)
+    val blocks = (0 until 3).map { i =>
+      ShuffleBlockId(0, i, 0).asInstanceOf[BlockId] -> createMockManagedBuffer()
+    }.toMap
+    val listeners = new java.util.concurrent.LinkedBlockingQueue[(String, BlockFetchingListener)]
+    val transfer = mock(classOf[BlockTransferService])
+    when(transfer.fetchBlocks(any(), any(), any(), any(), any())).thenAnswer(new Answer[Unit] {
+      override def answer(invocation: InvocationOnMock): Unit = {
+        val blockIds = invocation.getArguments()(3).asInstanceOf[Array[String]]
+        val listener = invocation.getArguments()(4).asInstanceOf[BlockFetchingListener]
+        blockIds.foreach(blockId => listeners.put((blockId, listener)))
+      }
+    })
+    val server = future {
+      for (i <- 0 until 3) {
+        val (blockId, listener) = listeners.take()
+        Thread.sleep(50)
+        listener.onBlockFetchSuccess(blockId, blocks(BlockId(blockId)))
+      }
+    }
+
+    val iterator = new ShuffleBlockFetcherIterator(
+      TaskContext.empty(),
+      transfer,
+      blockManager,
+      Seq((remoteBmId, blocks.keys.map(blockId => (blockId, 1000L)).toSeq)),
+      5000)
+    // All three requests are sent at once; the last waits for the other two.
+    verify(transfer, times(3)).fetchBlocks(any(), any(), any(), any(), any())
+    for (i <- 0 until 3) {
+      iterator.next()._2.close()
+    }
+    // Had the requests been timed from when they were sent, the third would have taken about
+    // three times as long as the first, and halved the window.
+    assert(iterator.peerWindow(remoteBmId) === ShuffleBlockFetcherIterator.InitialWindow + 3)
+  }
 }
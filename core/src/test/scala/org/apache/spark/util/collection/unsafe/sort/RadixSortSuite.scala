@@ -0,0 +1,134 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.util.collection.unsafe.sort
+
+import java.lang.{Integer => JInteger, Long => JLong}
+import java.util.{Arrays, Comparator}
+
+import org.apache.spark.{Logging, SparkFunSuite}
+import org.apache.spark.util.Utils
+import org.apache.spark.util.collection.Sorter
+import org.apache.spark.util.random.XORShiftRandom
+
+class RadixSortSuite extends SparkFunSuite with Logging {
+
+  private val comparators = Seq(
+    "LONG" -> PrefixComparators.LONG,
+    "LONG_DESC" -> PrefixComparators.LONG_DESC,
+    "STRING" -> PrefixComparators.STRING,
+    "STRING_DESC" -> PrefixComparators.STRING_DESC,
+    "BINARY" -> PrefixComparators.BINARY,
+    "BINARY_DESC" -> PrefixComparators.BINARY_DESC)
+
+  private val distributions: Seq[(String, (XORShiftRandom, Int) => Long)] = Seq(
+    "random" -> ((rand, i) => rand.nextLong()),
+    "skewed" -> ((rand, i) => if (rand.nextInt(10) < 9) 42L else rand.nextInt(1000) - 500L),
+    "presorted" -> ((rand, i) => i.toLong - 1000),
+    "narrow" -> ((rand, i) => rand.nextInt(1 << 16).toLong))
+
+  private def generate(n: Int, distribution: (XORShiftRandom, Int) => Long): Array[Long] = {
+    val rand = new XORShiftRandom(123)
+    Array.tabulate(n)(i => distribution(rand, i))
+  }
+
+  for ((comparatorName, comparator) <- comparators; (distName, distribution) <- distributions) {
+    test(s"radix sort matches $comparatorName on $distName prefixes") {
+      val keys = generate(10000, distribution)
+      // Records are (index, prefix) pairs, like those of UnsafeInMemorySorter.
+      val records = new Array[Long](keys.length * 2)
+      keys.indices.foreach { i =>
+        records(2 * i) = i
+        records(2 * i + 1) = keys(i)
+      }
+      val mask = RadixSort.keyMaskFor(comparator)
+      assert(mask != null)
+      RadixSort.sort(records, keys.length, 2, 1, mask, 0, 8, new Array[Long](records.length), 0)
+
+      // Arrays.sort on objects is stable, as the radix sort is.
+      val expected = Array.tabulate[JInteger](keys.length)(i => i)
+      Arrays.sort(expected, new Comparator[JInteger] {
+        override def compare(a: JInteger, b: JInteger): Int = comparator.compare(keys(a), keys(b))
+      })
+      keys.indices.foreach { i =>
+        assert(records(2 * i) === expected(i).longValue())
+        assert(records(2 * i + 1) === keys(expected(i)))
+      }
+    }
+  }
+
+  test("radix sort on partition id bytes using the end of the input array as scratch space") {
+    val rand = new XORShiftRandom(456)
+    val n = 10000
+    val array = new Array[Long](2 * n)
+    (0 until n).foreach { i =>
+      array(i) = (rand.nextInt(1 << 24).toLong << 40) | i
+    }
+    RadixSort.sort(array, n, 1, 0, 0L, 5, 8, array, n)
+    val partitionIds = array.take(n).map(_ >>> 40)
+    assert(partitionIds.toSeq === partitionIds.sorted.toSeq)
+    assert(array.take(n).map(_ & ((1L << 40) - 1)).sorted.toSeq === (0L until n))
+  }
+
+  test("unknown prefix comparators are not radix sorted") {
+    assert(RadixSort.keyMaskFor(PrefixComparators.DOUBLE) === null)
+    assert(RadixSort.keyMaskFor(new PrefixComparator {
+      override def compare(prefix1: Long, prefix2: Long): Int = 0
+    }) === null)
+  }
+
+  /** Runs an experiment several times. */
+  private def runExperiment(name: String)(f: => Unit, prepare: () => Unit): Unit = {
+    val firstTry = Utils.timeIt(1)(f, Some(prepare))
+    System.gc()
+    var next10: Long = 0
+    (0 until 10).foreach { _ => next10 += Utils.timeIt(1)(f, Some(prepare)) }
+    logInfo(s"$name: ($firstTry ms first try, ${next10 / 10} ms average)")
+  }
+
+  /**
+   * Compares the radix sort against the TimSort that UnsafeInMemorySorter otherwise uses, on
+   * (pointer, prefix) arrays with LONG prefixes. As with the benchmarks in SorterSuite, each
+   * experiment is best run on its own in a fresh JVM.
+   */
+  ignore("Radix sort benchmark") {
+    val numElements = 10000000 // 10 mil
+    val timSortComparator = new Comparator[RecordPointerAndKeyPrefix] {
+      override def compare(r1: RecordPointerAndKeyPrefix, r2: RecordPointerAndKeyPrefix): Int =
+        PrefixComparators.LONG.compare(r1.keyPrefix, r2.keyPrefix)
+    }
+    val mask: JLong = RadixSort.keyMaskFor(PrefixComparators.LONG)
+
+    for ((distName, distribution) <- distributions) {
+      val keys = generate(numElements, distribution)
+      val records = new Array[Long](numElements * 2)
+      val scratch = new Array[Long](numElements * 2)
+      val prepare = () => {
+        keys.indices.foreach { i =>
+          records(2 * i) = i
+          records(2 * i + 1) = keys(i)
+        }
+      }
+      runExperiment(s"TimSort on $distName prefixes")({
+        new Sorter(UnsafeSortDataFormat.INSTANCE).sort(records, 0, numElements, timSortComparator)
+      }, prepare)
+      runExperiment(s"Radix sort on $distName prefixes")({
+        RadixSort.sort(records, numElements, 2, 1, mask, 0, 8, scratch, 0)
+      }, prepare)
+    }
+  }
+}
@@ -0,0 +1,283 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.network.buffer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.spark.network.util.TransportConf;
+import org.apache.spark.util.instrumentation.FileRole;
+import org.apache.spark.util.instrumentation.FileStreamStatistics;
+import org.apache.spark.util.instrumentation.InstrumentedFileInputStream;
+
+/**
+ * A bounded pool of open, read-only {@link FileChannel}s keyed by file, so that reading many
+ * segments of one file (e.g. every reduce partition of a shuffle data file) costs one open
+ * rather than one per segment.
+ *
+ * Channels are handed out as reference-counted {@link Lease}s. Since a channel is shared, users
+ * must only read it positionally, with {@link FileChannel#read(java.nio.ByteBuffer, long)},
+ * {@link FileChannel#map} or {@link FileChannel#transferTo}, and must never close it; closing
+ * the lease releases it. At most {@code maxOpenFiles} channels are retained, and the least
+ * recently used ones are closed once no lease refers to them. A leased channel is never closed
+ * underneath its users, so the pool may exceed its bound while many files are being read.
+ *
+ * A channel is reopened if the file's identity (inode where supported), length or modification
+ * time has changed since it was opened, so that a file deleted and rewritten, or replaced by
+ * renaming another over it, under the same name is never read stale, even within the
+ * modification time's granularity.
+ */
+public final class FileChannelPool {
+  private static final Logger logger = LoggerFactory.getLogger(FileChannelPool.class);
+
+  private static FileChannelPool shared;
+
+  private final int maxOpenFiles;
+  /** Open channels in access order, eldest first. */
+  private final LinkedHashMap<File, Entry> entries =
+    new LinkedHashMap<File, Entry>(16, 0.75f, true);
+
+  private long hits = 0;
+  private long misses = 0;
+
+  public FileChannelPool(int maxOpenFiles) {
+    this.maxOpenFiles = maxOpenFiles;
+  }
+
+  /**
+   * Returns the pool shared by all users in this JVM, creating it with the size configured in
+   * the first caller's conf. The pool is shared so that {@link #evictShared(File)} reaches every
+   * channel open on a file about to be deleted; as a result, a different
+   * spark.shuffle.io.maxPooledFiles in the conf of a later caller, e.g. of another transport
+   * context in the same JVM, has no effect.
+   */
+  public static synchronized FileChannelPool shared(TransportConf conf) {
+    if (shared == null) {
+      shared = new FileChannelPool(conf.maxPooledFiles());
+    }
+    return shared;
+  }
+
+  /**
+   * Closes the shared pool's idle channels for files under {@code path} (or for {@code path}
+   * itself), and marks leased ones to be closed on release. Called before deleting files so
+   * that pooled descriptors do not keep their disk space in use.
+   */
+  public static void evictShared(File path) {
+    FileChannelPool pool;
+    synchronized (FileChannelPool.class) {
+      pool = shared;
+    }
+    if (pool != null) {
+      pool.evict(path);
+    }
+  }
+
+  /** Leases an open channel for {@code file}, opening it if no valid one is pooled. */
+  public Lease acquire(File file) throws IOException {
+    BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+    List<Entry> toClose = new ArrayList<Entry>();
+    try {
+      synchronized (this) {
+        Entry entry = entries.get(file);
+        if (entry != null) {
+          if (entry.matches(attributes)) {
+            hits++;
+            entry.refCount++;
+            return new Lease(entry);
+          }
+          entries.remove(file);
+          retire(entry, toClose);
+        }
+        misses++;
+      }
+
+      // Open outside the lock so that a slow open does not stall reads of other files.
+      Entry created = new Entry(file, open(file), attributes);
+      synchronized (this) {
+        Entry existing = entries.get(file);
+        if (existing != null && existing.matches(attributes)) {
+          // Another thread opened the same file concurrently; use its channel.
+          toClose.add(created);
+          existing.refCount++;
+          return new Lease(existing);
+        }
+        if (existing != null) {
+          entries.remove(file);
+          retire(existing, toClose);
+        }
+        created.refCount = 1;
+        if (maxOpenFiles > 0) {
+          entries.put(file, created);
+          trim(toClose);
+        } else {
+          created.evicted = true;
+        }
+        return new Lease(created);
+      }
+    } finally {
+      closeAll(toClose);
+    }
+  }
+
+  /** Evicts the channels for {@code path} and for any file under it. */
+  public void evict(File path) {
+    String prefix = path.getPath() + File.separator;
+    List<Entry> toClose = new ArrayList<Entry>();
+    synchronized (this) {
+      Iterator<Entry> it = entries.values().iterator();
+      while (it.hasNext()) {
+        Entry entry = it.next();
+        if (entry.file.equals(path) || entry.file.getPath().startsWith(prefix)) {
+          it.remove();
+          retire(entry, toClose);
+        }
+      }
+    }
+    closeAll(toClose);
+  }
+
+  /** Number of channels currently held open by the pool, leased or not. */
+  public synchronized int numOpenFiles() {
+    return entries.size();
+  }
+
+  public synchronized long getHitCount() {
+    return hits;
+  }
+
+  public synchronized long getMissCount() {
+    return misses;
+  }
+
+  private void release(Entry entry) {
+    List<Entry> toClose = new ArrayList<Entry>();
+    synchronized (this) {
+      entry.refCount--;
+      if (entry.refCount == 0) {
+        if (entry.evicted) {
+          toClose.add(entry);
+        } else {
+          trim(toClose);
+        }
+      }
+    }
+    closeAll(toClose);
+  }
+
+  /** Marks an entry no longer in the map as evicted; it is closed once its last lease ends. */
+  private void retire(Entry entry, List<Entry> toClose) {
+    entry.evicted = true;
+    if (entry.refCount == 0) {
+      toClose.add(entry);
+    }
+  }
+
+  /** Removes idle entries, least recently used first, until the pool is within its bound. */
+  private void trim(List<Entry> toClose) {
+    Iterator<Entry> it = entries.values().iterator();
+    while (entries.size() > maxOpenFiles && it.hasNext()) {
+      Entry entry = it.next();
+      if (entry.refCount == 0) {
+        it.remove();
+        retire(entry, toClose);
+      }
+    }
+  }
+
+  private static FileChannel open(File file) throws IOException {
+    // Pooled channels outlive the task that opened them, so they record into the executor-wide
+    // counters rather than into the current task's.
+    return new InstrumentedFileInputStream(
+      file, FileStreamStatistics.totalsFor(FileRole.fromPath(file.getPath()))).getChannel();
+  }
+
+  private static void closeAll(List<Entry> entries) {
+    for (Entry entry : entries) {
+      try {
+        entry.channel.close();
+      } catch (IOException e) {
+        logger.error("Error closing pooled channel for " + entry.file, e);
+      }
+    }
+  }
+
+  private static final class Entry {
+    final File file;
+    final FileChannel channel;
+    final Object fileKey;
+    final FileTime lastModified;
+    final long length;
+    /** Guarded by the pool. */
+    int refCount = 0;
+    /** Whether this entry has left the pool; guarded by the pool. */
+    boolean evicted = false;
+
+    Entry(File file, FileChannel channel, BasicFileAttributes attributes) {
+      this.file = file;
+      this.channel = channel;
+      this.fileKey = attributes.fileKey();
+      this.lastModified = attributes.lastModifiedTime();
+      this.length = attributes.size();
+    }
+
+    boolean matches(BasicFileAttributes attributes) {
+      return (fileKey == null || fileKey.equals(attributes.fileKey()))
+        && lastModified.equals(attributes.lastModifiedTime())
+        && length == attributes.size();
+    }
+  }
+
+  /** A reference to a pooled channel, which is released by closing the lease. */
+  public final class Lease implements Closeable {
+    private final Entry entry;
+    private boolean released = false;
+
+    private Lease(Entry entry) {
+      this.entry = entry;
+    }
+
+    /** The shared channel; read it positionally only, and do not close it. */
+    public FileChannel channel() {
+      return entry.channel;
+    }
+
+    @Override
+    public void close() {
+      synchronized (this) {
+        if (released) {
+          return;
+        }
+        released = true;
+      }
+      release(entry);
+    }
+  }
+}
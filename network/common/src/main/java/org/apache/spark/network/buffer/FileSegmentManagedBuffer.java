@@ -17,11 +17,10 @@
 
 package org.apache.spark.network.buffer;
 
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 
@@ -29,13 +28,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Objects;
-import com.google.common.io.ByteStreams;
 import io.netty.channel.DefaultFileRegion;
 
 import org.apache.spark.network.util.JavaUtils;
-import org.apache.spark.network.util.LimitedInputStream;
 import org.apache.spark.network.util.TransportConf;
-import org.apache.spark.util.instrumentation.InstrumentedFileInputStream;
+import org.apache.spark.util.instrumentation.InstrumentedFileChannel;
 import org.apache.spark.util.instrumentation.InstrumentedFileOutputStream;
 
 /**
@@ -65,15 +62,15 @@ public final class FileSegmentManagedBuffer extends ManagedBuffer {
   @Override
   public ByteBuffer nioByteBuffer() throws IOException {
     //logger.info("***** >>>> FileSegmentManagedBuffer nioByeBuffer: {}", this.toString());
-    FileChannel channel = null;
+    FileChannelPool.Lease lease = null;
     try {
-      channel = new RandomAccessFile(file, "r").getChannel();
+      lease = FileChannelPool.shared(conf).acquire(file);
+      FileChannel channel = lease.channel();
       // Just copy the buffer if it's sufficiently small, as memory mapping has a high overhead.
       if (length < conf.memoryMapBytes()) {
         ByteBuffer buf = ByteBuffer.allocate((int) length);
-        channel.position(offset);
         while (buf.remaining() != 0) {
-          if (channel.read(buf) == -1) {
+          if (channel.read(buf, offset + buf.position()) == -1) {
             throw new IOException(String.format("Reached EOF before filling buffer\n" +
               "offset=%s\nfile=%s\nbuf.remaining=%s",
               offset, file.getAbsoluteFile(), buf.remaining()));
@@ -85,47 +82,22 @@ public final class FileSegmentManagedBuffer extends ManagedBuffer {
         return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
       }
     } catch (IOException e) {
-      try {
-        if (channel != null) {
-          long size = channel.size();
-          throw new IOException("Error in reading " + this + " (actual file length " + size + ")",
-            e);
-        }
-      } catch (IOException ignored) {
-        // ignore
+      if (lease != null) {
+        throw new IOException("Error in reading " + this + " (actual file length " +
+          file.length() + ")", e);
       }
       throw new IOException("Error in opening " + this, e);
     } finally {
-      JavaUtils.closeQuietly(channel);
+      JavaUtils.closeQuietly(lease);
     }
   }
 
   @Override
   public InputStream createInputStream() throws IOException {
-    //long start = System.nanoTime();
-    InstrumentedFileInputStream is = null;
     try {
-      is = new InstrumentedFileInputStream(file);
-      ByteStreams.skipFully(is, offset);
-      //long elapsed = System.nanoTime() - start;
-      //logger.info("FileSegmentManagedBuffer createInputStream: {} in {}", this.toString(), elapsed);
-      return new LimitedInputStream(is, length);
+      return new SegmentInputStream(FileChannelPool.shared(conf).acquire(file), offset, length);
     } catch (IOException e) {
-      try {
-        if (is != null) {
-          long size = file.length();
-          throw new IOException("Error in reading " + this + " (actual file length " + size + ")",
-              e);
-        }
-      } catch (IOException ignored) {
-        // ignore
-      } finally {
-        JavaUtils.closeQuietly(is);
-      }
       throw new IOException("Error in opening " + this, e);
-    } catch (RuntimeException e) {
-      JavaUtils.closeQuietly(is);
-      throw e;
     }
   }
 
@@ -147,8 +119,28 @@ public final class FileSegmentManagedBuffer extends ManagedBuffer {
     if (conf.lazyFileDescriptor()) {
       return new LazyFileRegion(file, offset, length);
     } else {
-      FileChannel fileChannel = new FileInputStream(file).getChannel();
-      return new DefaultFileRegion(fileChannel, offset, length);
+      FileChannelPool.Lease lease = FileChannelPool.shared(conf).acquire(file);
+      return new PooledFileRegion(lease, lease.channel(), offset, length);
+    }
+  }
+
+  /**
+   * Converts the segment into a {@link DefaultFileRegion}, the only kind of file region the
+   * native epoll transport can send. It opens the file when it is first sent if
+   * spark.shuffle.io.lazyFD is set, and otherwise leases the file's channel from the shared
+   * {@link FileChannelPool}. The transport sends the file with sendfile on the descriptor of the
+   * underlying channel, so the transfer is not recorded in the file statistics.
+   */
+  public DefaultFileRegion convertToFileRegion() throws IOException {
+    if (conf.lazyFileDescriptor()) {
+      return new DefaultFileRegion(file, offset, length);
+    } else {
+      FileChannelPool.Lease lease = FileChannelPool.shared(conf).acquire(file);
+      FileChannel channel = lease.channel();
+      if (channel instanceof InstrumentedFileChannel) {
+        channel = ((InstrumentedFileChannel) channel).getWrappedChannel();
+      }
+      return new PooledFileRegion(lease, channel, offset, length);
     }
   }
 
@@ -166,4 +158,82 @@ public final class FileSegmentManagedBuffer extends ManagedBuffer {
       .add("length", length)
       .toString();
   }
+
+  /** A file region over a pooled channel, which releases the channel instead of closing it. */
+  private static final class PooledFileRegion extends DefaultFileRegion {
+    private final FileChannelPool.Lease lease;
+
+    PooledFileRegion(FileChannelPool.Lease lease, FileChannel channel, long position, long count) {
+      super(channel, position, count);
+      this.lease = lease;
+    }
+
+    @Override
+    protected void deallocate() {
+      lease.close();
+    }
+  }
+
+  /**
+   * Reads a segment of a pooled channel with positional reads, so that concurrent streams over
+   * the same file do not interfere; releases the channel when closed.
+   */
+  private static final class SegmentInputStream extends InputStream {
+    private final FileChannelPool.Lease lease;
+    private final long end;
+    private final byte[] singleByte = new byte[1];
+    private long position;
+    private boolean closed = false;
+
+    SegmentInputStream(FileChannelPool.Lease lease, long offset, long length) {
+      this.lease = lease;
+      this.position = offset;
+      this.end = offset + length;
+    }
+
+    @Override
+    public int read() throws IOException {
+      return read(singleByte, 0, 1) == -1 ? -1 : singleByte[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (closed) {
+        throw new IOException("Stream closed");
+      }
+      if (len == 0) {
+        return 0;
+      }
+      if (position >= end) {
+        return -1;
+      }
+      ByteBuffer buf = ByteBuffer.wrap(b, off, (int) Math.min(len, end - position));
+      int n = lease.channel().read(buf, position);
+      if (n == -1) {
+        throw new EOFException("Reached EOF " + (end - position) + " bytes before segment end");
+      }
+      position += n;
+      return n;
+    }
+
+    @Override
+    public long skip(long n) {
+      long skipped = Math.max(0, Math.min(n, end - position));
+      position += skipped;
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return (int) Math.min(Integer.MAX_VALUE, end - position);
+    }
+
+    @Override
+    public void close() {
+      if (!closed) {
+        closed = true;
+        lease.close();
+      }
+    }
+  }
 }
@@ -0,0 +1,116 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.spark.network.buffer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.Lists;
+
+import org.apache.spark.network.util.JavaUtils;
+import org.apache.spark.network.util.TransportConf;
+
+/**
+ * A {@link ManagedBuffer} backed by several file segments, possibly of different files, whose
+ * contents are concatenated. On the wire it is sent as a single {@link FileSegmentsRegion}.
+ */
+public final class FileSegmentsManagedBuffer extends ManagedBuffer {
+  private final TransportConf conf;
+  private final List<FileSegmentManagedBuffer> segments;
+  private final long size;
+
+  public FileSegmentsManagedBuffer(TransportConf conf, List<FileSegmentManagedBuffer> segments) {
+    this.conf = conf;
+    this.segments = segments;
+    long size = 0L;
+    for (FileSegmentManagedBuffer segment : segments) {
+      size += segment.size();
+    }
+    this.size = size;
+  }
+
+  @Override
+  public long size() {
+    return size;
+  }
+
+  @Override
+  public ByteBuffer nioByteBuffer() throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate((int) size);
+    for (FileSegmentManagedBuffer segment : segments) {
+      buf.put(segment.nioByteBuffer());
+    }
+    buf.flip();
+    return buf;
+  }
+
+  @Override
+  public InputStream createInputStream() throws IOException {
+    List<InputStream> streams = Lists.newArrayListWithCapacity(segments.size());
+    try {
+      for (FileSegmentManagedBuffer segment : segments) {
+        streams.add(segment.createInputStream());
+      }
+    } catch (IOException e) {
+      for (InputStream stream : streams) {
+        JavaUtils.closeQuietly(stream);
+      }
+      throw e;
+    }
+    return new SequenceInputStream(Collections.enumeration(streams));
+  }
+
+  @Override
+  public ManagedBuffer retain() {
+    return this;
+  }
+
+  @Override
+  public ManagedBuffer release() {
+    return this;
+  }
+
+  @Override
+  public Object convertToNetty() throws IOException {
+    File[] files = new File[segments.size()];
+    long[] offsets = new long[segments.size()];
+    long[] lengths = new long[segments.size()];
+    for (int i = 0; i < files.length; i++) {
+      FileSegmentManagedBuffer segment = segments.get(i);
+      files[i] = segment.getFile();
+      offsets[i] = segment.getOffset();
+      lengths[i] = segment.getLength();
+    }
+    return new FileSegmentsRegion(FileChannelPool.shared(conf), files, offsets, lengths);
+  }
+
+  public List<FileSegmentManagedBuffer> getSegments() { return segments; }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+      .add("segments", segments.size())
+      .add("size", size)
+      .toString();
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.spark.network.buffer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.Maps;
+import io.netty.channel.FileRegion;
+import io.netty.util.AbstractReferenceCounted;
+
+import org.apache.spark.network.util.JavaUtils;
+
+/**
+ * A FileRegion that transfers several file segments back to back, so that many small blocks can
+ * be sent as a single message. Each distinct file is opened only once, lazily, through a
+ * {@link FileChannelPool}, and its lease is held until the region is deallocated.
+ */
+public final class FileSegmentsRegion extends AbstractReferenceCounted implements FileRegion {
+
+  private final FileChannelPool pool;
+  private final File[] files;
+  private final long[] offsets;
+  private final long[] lengths;
+  private final long count;
+
+  private final Map<File, FileChannelPool.Lease> leases = Maps.newHashMap();
+
+  /** The segment that the next transfer starts in, and the region position of its first byte. */
+  private int segment = 0;
+  private long segmentStart = 0L;
+
+  private long numBytesTransferred = 0L;
+
+  /**
+   * @param pool pool to lease the files' channels from.
+   * @param files file of each segment.
+   * @param offsets start position of each segment in its file.
+   * @param lengths number of bytes of each segment.
+   */
+  public FileSegmentsRegion(FileChannelPool pool, File[] files, long[] offsets, long[] lengths) {
+    this.pool = pool;
+    this.files = files;
+    this.offsets = offsets;
+    this.lengths = lengths;
+    long count = 0L;
+    for (long length : lengths) {
+      count += length;
+    }
+    this.count = count;
+  }
+
+  @Override
+  protected void deallocate() {
+    for (FileChannelPool.Lease lease : leases.values()) {
+      JavaUtils.closeQuietly(lease);
+    }
+    leases.clear();
+  }
+
+  @Override
+  public long position() {
+    return 0;
+  }
+
+  @Override
+  public long transfered() {
+    return numBytesTransferred;
+  }
+
+  @Override
+  public long count() {
+    return count;
+  }
+
+  /**
+   * Transfers as many segments as the target accepts, starting at the given position of the
+   * region, and stops at the first partial write.
+   */
+  @Override
+  public long transferTo(WritableByteChannel target, long position) throws IOException {
+    if (position < 0 || position > count) {
+      throw new IllegalArgumentException(
+        "position out of range: " + position + " (expected: 0 - " + count + ')');
+    }
+    if (position < segmentStart) {
+      segment = 0;
+      segmentStart = 0L;
+    }
+
+    long written = 0L;
+    while (position < count) {
+      while (position >= segmentStart + lengths[segment]) {
+        segmentStart += lengths[segment];
+        segment++;
+      }
+      long segmentPosition = position - segmentStart;
+      long remaining = lengths[segment] - segmentPosition;
+      long n = channel(files[segment]).channel()
+        .transferTo(offsets[segment] + segmentPosition, remaining, target);
+      if (n <= 0) {
+        break;
+      }
+      written += n;
+      position += n;
+      if (n < remaining) {
+        break;
+      }
+    }
+    numBytesTransferred += written;
+    return written;
+  }
+
+  private FileChannelPool.Lease channel(File file) throws IOException {
+    FileChannelPool.Lease lease = leases.get(file);
+    if (lease == null) {
+      lease = pool.acquire(file);
+      leases.put(file, lease);
+    }
+    return lease;
+  }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+      .add("segments", files.length)
+      .add("files", leases.size())
+      .add("count", count)
+      .toString();
+  }
+}
@@ -17,15 +17,25 @@
 
 package org.apache.spark.network.protocol;
 
+import java.io.IOException;
 import java.util.List;
 
+import com.google.common.collect.Lists;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.channel.epoll.EpollSocketChannel;
 import io.netty.handler.codec.MessageToMessageEncoder;
+import io.netty.util.ReferenceCountUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.apache.spark.network.buffer.FileSegmentManagedBuffer;
+import org.apache.spark.network.buffer.FileSegmentsManagedBuffer;
+import org.apache.spark.network.buffer.ManagedBuffer;
+
 /**
  * Encoder used by the server side to encode server-to-client responses.
  * This encoder is stateless so it is safe to be shared by multiple threads.
@@ -40,10 +50,14 @@ public final class MessageEncoder extends MessageToMessageEncoder<Message> {
    * ByteBuf to 'out' containing the total frame length, the message type, and the message itself.
    * In the case of a ChunkFetchSuccess, we will also add the ManagedBuffer corresponding to the
    * data to 'out', in order to enable zero-copy transfer.
+   *
+   * The native epoll transport can only write ByteBufs and DefaultFileRegions, so on an epoll
+   * channel the header and the parts of the body are instead added to 'out' one by one.
    */
   @Override
   public void encode(ChannelHandlerContext ctx, Message in, List<Object> out) {
     Object body = null;
+    List<Object> epollBodies = null;
     long bodyLength = 0;
 
     // Only ChunkFetchSuccesses have data besides the header.
@@ -52,7 +66,15 @@ public final class MessageEncoder extends MessageToMessageEncoder<Message> {
       ChunkFetchSuccess resp = (ChunkFetchSuccess) in;
       try {
         bodyLength = resp.buffer.size();
-        body = resp.buffer.convertToNetty();
+        // An empty chunk is sent as just its header. Its buffer is not converted, as that may
+        // take resources, such as a pooled file channel, that only sending the body releases.
+        if (bodyLength > 0) {
+          if (ctx.channel() instanceof EpollSocketChannel) {
+            epollBodies = convertForEpoll(resp.buffer);
+          } else {
+            body = resp.buffer.convertToNetty();
+          }
+        }
       } catch (Exception e) {
         // Re-encode this message as BlockFetchFailure.
         logger.error(String.format("Error opening block %s for client %s",
@@ -66,17 +88,57 @@ public final class MessageEncoder extends MessageToMessageEncoder<Message> {
     // All messages have the frame length, message type, and message itself.
     int headerLength = 8 + msgType.encodedLength() + in.encodedLength();
     long frameLength = headerLength + bodyLength;
-    ByteBuf header = ctx.alloc().heapBuffer(headerLength);
+    // Allocate the header the way the channel's allocator prefers (direct unless
+    // spark.shuffle.io.preferDirectBufs is off), so the socket write need not copy it first.
+    ByteBuf header = ctx.alloc().buffer(headerLength);
     header.writeLong(frameLength);
     msgType.encode(header);
     in.encode(header);
     assert header.writableBytes() == 0;
 
-    if (body != null && bodyLength > 0) {
+    if (epollBodies != null) {
+      out.add(header);
+      out.addAll(epollBodies);
+    } else if (body != null) {
       out.add(new MessageWithHeader(header, body, bodyLength));
     } else {
       out.add(header);
     }
   }
 
+  /**
+   * Converts a buffer into the bodies the native epoll transport can write: a DefaultFileRegion
+   * for each file segment, so they are still sent with sendfile, or else a ByteBuf.
+   */
+  private static List<Object> convertForEpoll(ManagedBuffer buffer) throws IOException {
+    List<Object> bodies = Lists.newArrayList();
+    boolean success = false;
+    try {
+      if (buffer instanceof FileSegmentsManagedBuffer) {
+        for (FileSegmentManagedBuffer segment :
+            ((FileSegmentsManagedBuffer) buffer).getSegments()) {
+          bodies.add(segment.convertToFileRegion());
+        }
+      } else if (buffer instanceof FileSegmentManagedBuffer) {
+        bodies.add(((FileSegmentManagedBuffer) buffer).convertToFileRegion());
+      } else {
+        Object body = buffer.convertToNetty();
+        if (body instanceof ByteBuf || body instanceof DefaultFileRegion) {
+          bodies.add(body);
+        } else {
+          ReferenceCountUtil.release(body);
+          bodies.add(Unpooled.wrappedBuffer(buffer.nioByteBuffer()));
+        }
+      }
+      success = true;
+    } finally {
+      if (!success) {
+        for (Object body : bodies) {
+          ReferenceCountUtil.release(body);
+        }
+      }
+    }
+    return bodies;
+  }
+
 }
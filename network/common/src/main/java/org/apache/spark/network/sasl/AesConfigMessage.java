@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.network.sasl;
+
+import java.security.SecureRandom;
+
+import com.google.common.base.Preconditions;
+import io.netty.buffer.ByteBuf;
+
+import org.apache.spark.network.protocol.Encodable;
+import org.apache.spark.network.protocol.Encoders;
+
+/**
+ * The AES keys a client generates for an encrypted connection, sent to the server wrapped by the
+ * SASL session once authentication completes. Each direction of the connection has its own key
+ * and nonce salt, so that the two ends never encrypt with the same key and nonce.
+ */
+class AesConfigMessage implements Encodable {
+
+  /** Serialization tag used to catch incorrect payloads. */
+  private static final byte TAG_BYTE = (byte) 0xEB;
+
+  /** Length in bytes of the fixed part of each GCM nonce; the rest is a frame counter. */
+  static final int SALT_LENGTH = 4;
+
+  /** Key and nonce salt used for data sent from the client to the server. */
+  public final byte[] clientKey;
+  public final byte[] clientSalt;
+
+  /** Key and nonce salt used for data sent from the server to the client. */
+  public final byte[] serverKey;
+  public final byte[] serverSalt;
+
+  public AesConfigMessage(
+      byte[] clientKey,
+      byte[] clientSalt,
+      byte[] serverKey,
+      byte[] serverSalt) {
+    Preconditions.checkArgument(clientKey.length == serverKey.length, "Mismatched key sizes.");
+    Preconditions.checkArgument(
+      clientSalt.length == SALT_LENGTH && serverSalt.length == SALT_LENGTH, "Invalid salt.");
+    this.clientKey = clientKey;
+    this.clientSalt = clientSalt;
+    this.serverKey = serverKey;
+    this.serverSalt = serverSalt;
+  }
+
+  /** Generates random keys of the given size in bytes (16, 24 or 32) for a new connection. */
+  public static AesConfigMessage generate(int keySize) {
+    Preconditions.checkArgument(keySize == 16 || keySize == 24 || keySize == 32,
+      "Invalid AES key size: %s", keySize);
+    SecureRandom random = new SecureRandom();
+    byte[] clientKey = new byte[keySize];
+    byte[] clientSalt = new byte[SALT_LENGTH];
+    byte[] serverKey = new byte[keySize];
+    byte[] serverSalt = new byte[SALT_LENGTH];
+    random.nextBytes(clientKey);
+    random.nextBytes(clientSalt);
+    random.nextBytes(serverKey);
+    random.nextBytes(serverSalt);
+    return new AesConfigMessage(clientKey, clientSalt, serverKey, serverSalt);
+  }
+
+  @Override
+  public int encodedLength() {
+    return 1 + Encoders.ByteArrays.encodedLength(clientKey)
+      + Encoders.ByteArrays.encodedLength(clientSalt)
+      + Encoders.ByteArrays.encodedLength(serverKey)
+      + Encoders.ByteArrays.encodedLength(serverSalt);
+  }
+
+  @Override
+  public void encode(ByteBuf buf) {
+    buf.writeByte(TAG_BYTE);
+    Encoders.ByteArrays.encode(buf, clientKey);
+    Encoders.ByteArrays.encode(buf, clientSalt);
+    Encoders.ByteArrays.encode(buf, serverKey);
+    Encoders.ByteArrays.encode(buf, serverSalt);
+  }
+
+  public static AesConfigMessage decode(ByteBuf buf) {
+    if (buf.readByte() != TAG_BYTE) {
+      throw new IllegalStateException("Expected AesConfigMessage, received something else"
+        + " (maybe your client does not have AES encryption enabled?)");
+    }
+
+    byte[] clientKey = Encoders.ByteArrays.decode(buf);
+    byte[] clientSalt = Encoders.ByteArrays.decode(buf);
+    byte[] serverKey = Encoders.ByteArrays.decode(buf);
+    byte[] serverSalt = Encoders.ByteArrays.decode(buf);
+    return new AesConfigMessage(clientKey, clientSalt, serverKey, serverSalt);
+  }
+}
@@ -0,0 +1,380 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.network.sasl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.List;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.FileRegion;
+import io.netty.handler.codec.MessageToMessageDecoder;
+import io.netty.util.ReferenceCountUtil;
+
+import org.apache.spark.network.util.NettyUtils;
+
+/**
+ * Provides AES-GCM encryption for transport channels, using keys exchanged over an encrypted SASL
+ * session. This is an alternative to {@link SaslEncryption}, which copies every block into a new
+ * byte array to wrap it: here, each block is encrypted with javax.crypto directly between pooled
+ * buffers of the channel's allocator.
+ *
+ * Each block is sent as a frame made of its 8-byte length, the ciphertext and the GCM tag. The
+ * nonce of a frame is the salt of its direction followed by the number of frames sent before it,
+ * so it is never sent, and a frame that is dropped, replayed or reordered fails authentication.
+ */
+class AesEncryption {
+
+  @VisibleForTesting
+  static final String ENCRYPTION_HANDLER_NAME = "aesEncryption";
+
+  private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+
+  /** Length of the frame header, which holds the length of the whole frame. */
+  private static final int HEADER_LENGTH = 8;
+
+  /** Length of the authentication tag at the end of each frame. */
+  @VisibleForTesting
+  static final int TAG_LENGTH = 16;
+
+  /**
+   * Adds channel handlers that perform encryption / decryption of data using AES-GCM.
+   *
+   * @param channel The channel.
+   * @param config The keys generated by the client for the connection.
+   * @param isClient Whether this is the client end of the connection.
+   * @param maxOutboundBlockSize Max size in bytes of the data encrypted into each outgoing frame,
+   *                             to control memory usage.
+   */
+  static void addToChannel(
+      Channel channel,
+      AesConfigMessage config,
+      boolean isClient,
+      int maxOutboundBlockSize) throws GeneralSecurityException {
+    FrameCipher encrypter = isClient
+      ? new FrameCipher(Cipher.ENCRYPT_MODE, config.clientKey, config.clientSalt)
+      : new FrameCipher(Cipher.ENCRYPT_MODE, config.serverKey, config.serverSalt);
+    FrameCipher decrypter = isClient
+      ? new FrameCipher(Cipher.DECRYPT_MODE, config.serverKey, config.serverSalt)
+      : new FrameCipher(Cipher.DECRYPT_MODE, config.clientKey, config.clientSalt);
+    channel.pipeline()
+      .addFirst(ENCRYPTION_HANDLER_NAME, new EncryptionHandler(encrypter, maxOutboundBlockSize))
+      .addFirst("aesDecryption", new DecryptionHandler(decrypter))
+      .addFirst("aesFrameDecoder", NettyUtils.createFrameDecoder());
+  }
+
+  /** Encrypts or decrypts the frames sent in one direction of a connection, in order. */
+  private static class FrameCipher {
+
+    private final int mode;
+    private final Cipher cipher;
+    private final SecretKeySpec key;
+    private final byte[] nonce = new byte[AesConfigMessage.SALT_LENGTH + 8];
+    private long frameCount;
+
+    FrameCipher(int mode, byte[] key, byte[] salt) throws GeneralSecurityException {
+      this.mode = mode;
+      this.cipher = Cipher.getInstance(TRANSFORMATION);
+      this.key = new SecretKeySpec(key, "AES");
+      System.arraycopy(salt, 0, nonce, 0, salt.length);
+    }
+
+    /** Encrypts or decrypts the next frame from the input into the output. */
+    void doFinal(ByteBuffer input, ByteBuffer output) throws GeneralSecurityException {
+      long count = frameCount++;
+      for (int i = nonce.length - 1; i >= AesConfigMessage.SALT_LENGTH; i--) {
+        nonce[i] = (byte) count;
+        count >>>= 8;
+      }
+      cipher.init(mode, key, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+      cipher.doFinal(input, output);
+    }
+
+  }
+
+  private static class EncryptionHandler extends ChannelDuplexHandler {
+
+    private final FrameCipher cipher;
+    private final int maxOutboundBlockSize;
+
+    /**
+     * Messages that have been written but not encrypted yet, in order. Frames must be written in
+     * the order of their nonces, so once a message is queued, later messages are queued too.
+     */
+    private final ArrayDeque<PendingWrite> pending = new ArrayDeque<PendingWrite>();
+
+    EncryptionHandler(FrameCipher cipher, int maxOutboundBlockSize) {
+      this.cipher = cipher;
+      this.maxOutboundBlockSize = maxOutboundBlockSize;
+    }
+
+    /**
+     * Encrypts buffers right away, since their data is already in memory. File regions are queued
+     * and encrypted a frame at a time as the channel can take them, so that only a few frames of
+     * a large file are in memory at once.
+     */
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise)
+      throws Exception {
+      Preconditions.checkArgument(msg instanceof ByteBuf || msg instanceof FileRegion,
+        "Unrecognized message type: %s", msg.getClass().getName());
+      if (!pending.isEmpty() || msg instanceof FileRegion) {
+        pending.add(new PendingWrite(msg, promise));
+        return;
+      }
+
+      ByteBuf buf = (ByteBuf) msg;
+      try {
+        writeFrames(ctx, buf, promise);
+      } catch (Exception e) {
+        fail(ctx, promise, e);
+      } finally {
+        buf.release();
+      }
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) throws Exception {
+      encryptPending(ctx);
+      ctx.flush();
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+      if (ctx.channel().isWritable() && !pending.isEmpty()) {
+        encryptPending(ctx);
+        ctx.flush();
+      }
+      ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+      discardPending(new ClosedChannelException());
+      ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+      try {
+        discardPending(new ClosedChannelException());
+      } finally {
+        super.handlerRemoved(ctx);
+      }
+    }
+
+    /** Encrypts queued messages until none is left or the channel's outbound buffer is full. */
+    private void encryptPending(ChannelHandlerContext ctx) {
+      while (!pending.isEmpty() && ctx.channel().isWritable()) {
+        PendingWrite write = pending.peek();
+        try {
+          boolean done;
+          if (write.msg instanceof ByteBuf) {
+            writeFrames(ctx, (ByteBuf) write.msg, write.promise);
+            done = true;
+          } else {
+            done = writeNextFrame(ctx, (FileRegion) write.msg, write.promise);
+          }
+          if (done) {
+            pending.poll();
+            ReferenceCountUtil.release(write.msg);
+          }
+        } catch (Exception e) {
+          pending.poll();
+          ReferenceCountUtil.release(write.msg);
+          fail(ctx, write.promise, e);
+          return;
+        }
+      }
+    }
+
+    /** Writes all the readable data of a buffer as frames, completing the promise with the last. */
+    private void writeFrames(ChannelHandlerContext ctx, ByteBuf buf, ChannelPromise promise)
+      throws GeneralSecurityException {
+      if (!buf.isReadable()) {
+        ctx.write(Unpooled.EMPTY_BUFFER, promise);
+        return;
+      }
+      while (buf.isReadable()) {
+        int length = Math.min(buf.readableBytes(), maxOutboundBlockSize);
+        ByteBuf frame = newFrame(ctx, length);
+        try {
+          seal(frame, buf.nioBuffer(buf.readerIndex(), length));
+        } catch (GeneralSecurityException e) {
+          frame.release();
+          throw e;
+        }
+        buf.skipBytes(length);
+        ctx.write(frame, buf.isReadable() ? ctx.voidPromise() : promise);
+      }
+    }
+
+    /**
+     * Reads the next block of a file region into a frame and encrypts it in place. Returns
+     * whether that was the last block, in which case the frame completes the promise.
+     */
+    private boolean writeNextFrame(ChannelHandlerContext ctx, FileRegion region,
+        ChannelPromise promise) throws GeneralSecurityException, IOException {
+      int length = (int) Math.min(region.count() - region.transfered(), maxOutboundBlockSize);
+      ByteBuf frame = newFrame(ctx, length);
+      try {
+        FrameWritableChannel target = new FrameWritableChannel(frame, length);
+        while (target.remaining() > 0) {
+          if (region.transferTo(target, region.transfered()) <= 0) {
+            throw new IOException(String.format("Failed to read %d more bytes of %s.",
+              target.remaining(), region));
+          }
+        }
+        seal(frame, frame.nioBuffer(HEADER_LENGTH, length));
+      } catch (GeneralSecurityException | IOException e) {
+        frame.release();
+        throw e;
+      }
+      boolean done = region.transfered() >= region.count();
+      ctx.write(frame, done ? promise : ctx.voidPromise());
+      return done;
+    }
+
+    private ByteBuf newFrame(ChannelHandlerContext ctx, int length) {
+      return ctx.alloc().buffer(HEADER_LENGTH + length + TAG_LENGTH);
+    }
+
+    /** Encrypts the plaintext into the frame, after its header, and fills in the header. */
+    private void seal(ByteBuf frame, ByteBuffer plaintext) throws GeneralSecurityException {
+      int frameLength = HEADER_LENGTH + plaintext.remaining() + TAG_LENGTH;
+      cipher.doFinal(plaintext, frame.nioBuffer(HEADER_LENGTH, frameLength - HEADER_LENGTH));
+      frame.setLong(0, frameLength);
+      frame.writerIndex(frameLength);
+    }
+
+    /**
+     * Once a frame is missing, the peer cannot decrypt any of the frames after it, so on failure
+     * the connection is closed.
+     */
+    private void fail(ChannelHandlerContext ctx, ChannelPromise promise, Throwable cause) {
+      promise.tryFailure(cause);
+      discardPending(cause);
+      ctx.close();
+    }
+
+    private void discardPending(Throwable cause) {
+      PendingWrite write;
+      while ((write = pending.poll()) != null) {
+        ReferenceCountUtil.release(write.msg);
+        write.promise.tryFailure(cause);
+      }
+    }
+
+  }
+
+  private static class PendingWrite {
+    final Object msg;
+    final ChannelPromise promise;
+
+    PendingWrite(Object msg, ChannelPromise promise) {
+      this.msg = msg;
+      this.promise = promise;
+    }
+  }
+
+  /** A channel that copies the data written to it into a frame, after the frame's header. */
+  private static class FrameWritableChannel implements WritableByteChannel {
+
+    private final ByteBuf frame;
+    private final int end;
+    private int position;
+
+    FrameWritableChannel(ByteBuf frame, int length) {
+      this.frame = frame;
+      this.position = HEADER_LENGTH;
+      this.end = HEADER_LENGTH + length;
+    }
+
+    int remaining() {
+      return end - position;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+      int toTransfer = Math.min(src.remaining(), remaining());
+      ByteBuffer data = src.duplicate();
+      data.limit(data.position() + toTransfer);
+      frame.setBytes(position, data);
+      src.position(src.position() + toTransfer);
+      position += toTransfer;
+      return toTransfer;
+    }
+
+    @Override
+    public void close() {
+
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+
+  }
+
+  private static class DecryptionHandler extends MessageToMessageDecoder<ByteBuf> {
+
+    private final FrameCipher cipher;
+
+    DecryptionHandler(FrameCipher cipher) {
+      this.cipher = cipher;
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf msg, List<Object> out)
+      throws Exception {
+      int length = msg.readableBytes() - TAG_LENGTH;
+      if (length < 0) {
+        throw new AEADBadTagException("Truncated frame of " + msg.readableBytes() + " bytes.");
+      }
+
+      ByteBuf decrypted = ctx.alloc().buffer(length);
+      try {
+        cipher.doFinal(msg.nioBuffer(), decrypted.nioBuffer(0, length));
+        decrypted.writerIndex(length);
+      } catch (GeneralSecurityException e) {
+        decrypted.release();
+        throw e;
+      }
+      msg.skipBytes(msg.readableBytes());
+      out.add(decrypted);
+    }
+
+  }
+
+}
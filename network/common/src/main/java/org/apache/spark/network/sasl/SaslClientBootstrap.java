@@ -17,9 +17,11 @@
 
 package org.apache.spark.network.sasl;
 
+import java.security.GeneralSecurityException;
 import javax.security.sasl.Sasl;
 import javax.security.sasl.SaslException;
 
+import com.google.common.base.Throwables;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
@@ -82,9 +84,13 @@ public class SaslClientBootstrap implements TransportClientBootstrap {
           throw new RuntimeException(
             new SaslException("Encryption requests by negotiated non-encrypted connection."));
         }
-        SaslEncryption.addToChannel(channel, saslClient, conf.maxSaslEncryptedBlockSize());
-        saslClient = null;
-        logger.debug("Channel {} configured for SASL encryption.", client);
+        if (conf.aesEncryptionEnabled()) {
+          setupAesEncryption(client, channel, saslClient);
+        } else {
+          SaslEncryption.addToChannel(channel, saslClient, conf.maxSaslEncryptedBlockSize());
+          saslClient = null;
+          logger.debug("Channel {} configured for SASL encryption.", client);
+        }
       }
     } finally {
       if (saslClient != null) {
@@ -98,4 +104,27 @@ public class SaslClientBootstrap implements TransportClientBootstrap {
     }
   }
 
+  /**
+   * Generates the AES keys for the connection and sends them to the server, wrapped by the SASL
+   * session so that only the authenticated server can read them. The server enables encryption
+   * after it replies, so the client does the same once it has the reply.
+   */
+  private void setupAesEncryption(
+      TransportClient client,
+      Channel channel,
+      SparkSaslClient saslClient) {
+    AesConfigMessage config = AesConfigMessage.generate(conf.aesKeySize());
+    ByteBuf buf = Unpooled.buffer(config.encodedLength());
+    config.encode(buf);
+
+    try {
+      byte[] wrapped = saslClient.wrap(buf.array(), 0, buf.writerIndex());
+      client.sendRpcSync(wrapped, conf.saslRTTimeoutMs());
+      AesEncryption.addToChannel(channel, config, true, conf.maxSaslEncryptedBlockSize());
+    } catch (GeneralSecurityException | SaslException e) {
+      throw Throwables.propagate(e);
+    }
+    logger.debug("Channel {} configured for AES encryption.", client);
+  }
+
 }
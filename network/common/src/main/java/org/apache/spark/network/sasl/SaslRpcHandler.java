@@ -17,8 +17,11 @@
 
 package org.apache.spark.network.sasl;
 
+import java.security.GeneralSecurityException;
 import javax.security.sasl.Sasl;
+import javax.security.sasl.SaslException;
 
+import com.google.common.base.Throwables;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import org.slf4j.Logger;
@@ -77,6 +80,12 @@ class SaslRpcHandler extends RpcHandler {
       return;
     }
 
+    if (saslServer != null && saslServer.isComplete()) {
+      // Authentication is complete, but encryption is not set up yet, so this carries AES keys.
+      setupAesEncryption(client, message, callback);
+      return;
+    }
+
     SaslMessage saslMessage = SaslMessage.decode(Unpooled.wrappedBuffer(message));
 
     if (saslServer == null) {
@@ -95,6 +104,11 @@ class SaslRpcHandler extends RpcHandler {
     // messages are being written to the channel while negotiation is still going on.
     if (saslServer.isComplete()) {
       logger.debug("SASL authentication successful for channel {}", client);
+      if (SparkSaslServer.QOP_AUTH_CONF.equals(saslServer.getNegotiatedProperty(Sasl.QOP)) &&
+          conf.aesEncryptionEnabled()) {
+        // The client sends the AES keys next, wrapped by the SASL session.
+        return;
+      }
       isComplete = true;
       if (SparkSaslServer.QOP_AUTH_CONF.equals(saslServer.getNegotiatedProperty(Sasl.QOP))) {
         logger.debug("Enabling encryption for channel {}", client);
@@ -107,6 +121,29 @@ class SaslRpcHandler extends RpcHandler {
     }
   }
 
+  /**
+   * Unwraps the AES keys sent by the client and enables AES encryption. As with SASL encryption,
+   * the handlers are added only after the reply is sent, so the client can read the reply.
+   */
+  private void setupAesEncryption(
+      TransportClient client,
+      byte[] message,
+      RpcResponseCallback callback) {
+    try {
+      byte[] unwrapped = saslServer.unwrap(message, 0, message.length);
+      AesConfigMessage config = AesConfigMessage.decode(Unpooled.wrappedBuffer(unwrapped));
+      callback.onSuccess(new byte[0]);
+      logger.debug("Enabling AES encryption for channel {}", client);
+      AesEncryption.addToChannel(channel, config, false, conf.maxSaslEncryptedBlockSize());
+    } catch (GeneralSecurityException | SaslException e) {
+      throw Throwables.propagate(e);
+    } finally {
+      saslServer.dispose();
+      saslServer = null;
+    }
+    isComplete = true;
+  }
+
   @Override
   public StreamManager getStreamManager() {
     return delegate.getStreamManager();
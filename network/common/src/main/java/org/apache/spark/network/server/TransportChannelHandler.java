@@ -104,6 +104,12 @@ public class TransportChannelHandler extends SimpleChannelInboundHandler<Message
     }
   }
 
+  @Override
+  public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+    requestHandler.channelReadComplete();
+    super.channelReadComplete(ctx);
+  }
+
   /** Triggered based on events from an {@link io.netty.handler.timeout.IdleStateHandler}. */
   @Override
   public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
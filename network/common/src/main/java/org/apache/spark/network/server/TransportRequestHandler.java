@@ -59,14 +59,35 @@ public class TransportRequestHandler extends MessageHandler<RequestMessage> {
   /** Returns each chunk part of a stream. */
   private final StreamManager streamManager;
 
+  /** Whether responses sent while handling a socket read are flushed together at its end. */
+  private final boolean consolidateFlushes;
+
+  /**
+   * Whether the event loop is handling the requests decoded from a socket read, so responses
+   * may be left for {@link #channelReadComplete()} to flush. Only accessed from the event loop.
+   */
+  private boolean inRead;
+
+  /** Whether responses have been written but not flushed since the read began. */
+  private boolean flushPending;
+
   public TransportRequestHandler(
       Channel channel,
       TransportClient reverseClient,
       RpcHandler rpcHandler) {
+    this(channel, reverseClient, rpcHandler, false);
+  }
+
+  public TransportRequestHandler(
+      Channel channel,
+      TransportClient reverseClient,
+      RpcHandler rpcHandler,
+      boolean consolidateFlushes) {
     this.channel = channel;
     this.reverseClient = reverseClient;
     this.rpcHandler = rpcHandler;
     this.streamManager = rpcHandler.getStreamManager();
+    this.consolidateFlushes = consolidateFlushes;
   }
 
   @Override
@@ -81,6 +102,7 @@ public class TransportRequestHandler extends MessageHandler<RequestMessage> {
 
   @Override
   public void handle(RequestMessage request) {
+    inRead = consolidateFlushes;
     if (request instanceof ChunkFetchRequest) {
       processFetchRequest((ChunkFetchRequest) request);
     } else if (request instanceof RpcRequest) {
@@ -90,6 +112,18 @@ public class TransportRequestHandler extends MessageHandler<RequestMessage> {
     }
   }
 
+  /**
+   * Invoked once the requests decoded from a socket read have all been handled, to flush the
+   * responses they produced with a single write to the socket.
+   */
+  public void channelReadComplete() {
+    inRead = false;
+    if (flushPending) {
+      flushPending = false;
+      channel.flush();
+    }
+  }
+
   private void processFetchRequest(final ChunkFetchRequest req) {
     final String client = NettyUtils.getRemoteAddress(channel);
 
@@ -130,11 +164,20 @@ public class TransportRequestHandler extends MessageHandler<RequestMessage> {
 
   /**
    * Responds to a single message with some Encodable object. If a failure occurs while sending,
-   * it will be logged and the channel closed.
+   * it will be logged and the channel closed. Responses sent from the event loop while it handles
+   * a read are only flushed once the read is complete, so that the responses to pipelined
+   * requests leave in as few socket writes as possible.
    */
   private void respond(final Encodable result) {
     final String remoteAddress = channel.remoteAddress().toString();
-    channel.writeAndFlush(result).addListener(
+    ChannelFuture future;
+    if (channel.eventLoop().inEventLoop() && inRead) {
+      future = channel.write(result);
+      flushPending = true;
+    } else {
+      future = channel.writeAndFlush(result);
+    }
+    future.addListener(
       new ChannelFutureListener() {
         @Override
         public void operationComplete(ChannelFuture future) throws Exception {
@@ -108,6 +108,15 @@ public class TransportConf {
     return conf.getBoolean("spark.shuffle.io.lazyFD", true);
   }
 
+  /**
+   * Maximum number of idle file channels kept open for reading file segments, so that segments
+   * of the same file do not each reopen it. Zero disables pooling. The pool is shared by the JVM,
+   * and sized by the conf that first uses it.
+   */
+  public int maxPooledFiles() {
+    return conf.getInt("spark.shuffle.io.maxPooledFiles", 256);
+  }
+
   /**
    * Maximum number of retries when binding to a port before giving up.
    */
@@ -116,13 +125,29 @@ public class TransportConf {
   }
 
   /**
-   * Maximum number of bytes to be encrypted at a time when SASL encryption is enabled.
+   * Maximum number of bytes to be encrypted at a time when SASL (or AES) encryption is enabled.
    */
   public int maxSaslEncryptedBlockSize() {
     return Ints.checkedCast(JavaUtils.byteStringAsBytes(
       conf.get("spark.network.sasl.maxEncryptedBlockSize", "64k")));
   }
 
+  /**
+   * Whether connections that negotiate SASL encryption should instead be encrypted with AES-GCM,
+   * using keys the client sends over the SASL session. This must be set the same way on both ends
+   * of a connection.
+   */
+  public boolean aesEncryptionEnabled() {
+    return conf.getBoolean("spark.network.aes.enabled", false);
+  }
+
+  /**
+   * Size in bytes of the AES keys used when AES encryption is enabled: 16, 24 or 32.
+   */
+  public int aesKeySize() {
+    return conf.getInt("spark.network.aes.keySize", 16);
+  }
+
   /**
    * Whether the server should enforce encryption on SASL-authenticated connections.
    */
@@ -130,4 +155,40 @@ public class TransportConf {
     return conf.getBoolean("spark.network.sasl.serverAlwaysEncrypt", false);
   }
 
+  /**
+   * Maximum memory, in bytes, used by the external shuffle service to cache parsed shuffle index
+   * files, so that serving a block does not require opening and reading its index file.
+   */
+  public long shuffleIndexCacheSize() {
+    return JavaUtils.byteStringAsBytes(conf.get("spark.shuffle.service.index.cache.size", "100m"));
+  }
+
+  /**
+   * Maximum size, in bytes, of the chunks into which the external shuffle service gathers
+   * consecutive requested ranges of shuffle blocks, so that many small blocks are sent as a single
+   * transfer. Zero disables gathering.
+   */
+  public long coalescedChunkSize() {
+    return JavaUtils.byteStringAsBytes(
+      conf.get("spark.shuffle.service.coalescedChunkSize", "1m"));
+  }
+
+  /**
+   * Whether the server writes the responses to requests that arrive in the same socket read
+   * without flushing, and flushes them together once the read is processed, instead of flushing
+   * each response on its own.
+   */
+  public boolean consolidateFlushes() {
+    return conf.getBoolean("spark.shuffle.io.consolidateFlushes", true);
+  }
+
+  /**
+   * Whether to fetch contiguous shuffle blocks of the same map output as a single range, which
+   * the server resolves with one index lookup and sends as one chunk. Only valid when the shuffle
+   * stores each map output in a single indexed file, so it is disabled unless Spark enables it.
+   */
+  public boolean fetchBlockRanges() {
+    return conf.getBoolean("spark.shuffle.io.fetchBlockRanges", false);
+  }
+
 }
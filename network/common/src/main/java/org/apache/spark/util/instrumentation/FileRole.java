@@ -0,0 +1,52 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.util.instrumentation;
+
+/**
+ * The role a file plays for Spark, derived from its block file name. File I/O statistics are
+ * aggregated per role rather than per path, so that the number of counters stays constant no
+ * matter how many short-lived shuffle and spill files an executor creates.
+ */
+public enum FileRole {
+    SHUFFLE_DATA,
+    SHUFFLE_INDEX,
+    SPILL,
+    BLOCK_STORE,
+    OTHER;
+
+    /**
+     * Classifies a file by the naming scheme of the block it backs (see BlockId). This is only
+     * called when a stream is opened, never on the read/write path.
+     */
+    public static FileRole fromPath(String path) {
+        if (path == null) {
+            return OTHER;
+        }
+        int sep = Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\'));
+        String name = path.substring(sep + 1);
+        if (name.startsWith("shuffle_")) {
+            return name.contains(".index") ? SHUFFLE_INDEX : SHUFFLE_DATA;
+        } else if (name.startsWith("temp_shuffle_") || name.startsWith("temp_local_")) {
+            return SPILL;
+        } else if (name.startsWith("rdd_") || name.startsWith("broadcast_")
+                || name.startsWith("taskresult_") || name.startsWith("input-")) {
+            return BLOCK_STORE;
+        }
+        return OTHER;
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.util.instrumentation;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.common.base.Joiner;
+import com.google.common.primitives.Longs;
+
+/**
+ * File stream counters for one {@link FileRole}. Instances are resolved once when a stream is
+ * opened and then updated directly, so recording an event costs a few uncontended adds and
+ * never a map lookup or an allocation.
+ */
+public class FileRoleStatistics {
+    public final FileRole role;
+
+    public final LongAdder inputOpens = new LongAdder();
+    public final LongAdder inputCloses = new LongAdder();
+    public final LongAdder outputOpens = new LongAdder();
+    public final LongAdder outputCloses = new LongAdder();
+    public final LongAdder reads = new LongAdder();
+    public final LongAdder writes = new LongAdder();
+    public final LongAdder cumulativeInputOpenTime = new LongAdder();
+    public final LongAdder cumulativeOutputOpenTime = new LongAdder();
+    public final LongAdder cumulativeReadTime = new LongAdder();
+    public final LongAdder cumulativeWriteTime = new LongAdder();
+    public final LongAdder bytesRead = new LongAdder();
+    public final LongAdder bytesWritten = new LongAdder();
+    public final LongAdder positionCalls = new LongAdder();
+    public final LongAdder sizeCalls = new LongAdder();
+    public final LongAdder transfers = new LongAdder();
+    public final LongAdder cumulativeTransferTime = new LongAdder();
+    public final LongAdder bytesTransferred = new LongAdder();
+    public final LongAdder maps = new LongAdder();
+    public final LongAdder cumulativeMapTime = new LongAdder();
+    public final LongAdder bytesMapped = new LongAdder();
+
+    public FileRoleStatistics(FileRole role) {
+        this.role = role;
+    }
+
+    public void recordInputOpen(long time_ns) {
+        inputOpens.increment();
+        cumulativeInputOpenTime.add(time_ns);
+        FileStreamStatistics.latency(FileOperation.OPEN).record(time_ns);
+    }
+
+    public void recordInputClose() {
+        inputCloses.increment();
+    }
+
+    public void recordInputClose(long time_ns) {
+        inputCloses.increment();
+        FileStreamStatistics.latency(FileOperation.CLOSE).record(time_ns);
+    }
+
+    public void recordOutputOpen(long time_ns) {
+        outputOpens.increment();
+        cumulativeOutputOpenTime.add(time_ns);
+        FileStreamStatistics.latency(FileOperation.OPEN).record(time_ns);
+    }
+
+    public void recordOutputClose() {
+        outputCloses.increment();
+    }
+
+    public void recordOutputClose(long time_ns) {
+        outputCloses.increment();
+        FileStreamStatistics.latency(FileOperation.CLOSE).record(time_ns);
+    }
+
+    /**
+     * Records a read, through a stream or a channel, of <code>bytes</code> bytes; a negative or
+     * zero count (e.g. end of file) counts the call but not its size.
+     */
+    public void recordRead(long time_ns, long bytes) {
+        reads.increment();
+        cumulativeReadTime.add(time_ns);
+        FileStreamStatistics.latency(FileOperation.READ).record(time_ns);
+        if (bytes > 0) {
+            bytesRead.add(bytes);
+            FileStreamStatistics.readSizes(role).record(bytes);
+        }
+    }
+
+    /** Records a write, through a stream or a channel, of <code>bytes</code> bytes. */
+    public void recordWrite(long time_ns, long bytes) {
+        writes.increment();
+        cumulativeWriteTime.add(time_ns);
+        FileStreamStatistics.latency(FileOperation.WRITE).record(time_ns);
+        if (bytes > 0) {
+            bytesWritten.add(bytes);
+            FileStreamStatistics.writeSizes(role).record(bytes);
+        }
+    }
+
+    public void recordPosition(long time_ns) {
+        positionCalls.increment();
+        FileStreamStatistics.latency(FileOperation.POSITION).record(time_ns);
+    }
+
+    public void recordSize(long time_ns) {
+        sizeCalls.increment();
+        FileStreamStatistics.latency(FileOperation.SIZE).record(time_ns);
+    }
+
+    /** Records a FileChannel transferTo/transferFrom that moved <code>bytes</code> bytes. */
+    public void recordTransfer(long time_ns, long bytes) {
+        transfers.increment();
+        cumulativeTransferTime.add(time_ns);
+        bytesTransferred.add(bytes);
+        FileStreamStatistics.latency(FileOperation.TRANSFER).record(time_ns);
+    }
+
+    public void recordMap(long time_ns, long bytes) {
+        maps.increment();
+        cumulativeMapTime.add(time_ns);
+        bytesMapped.add(bytes);
+        FileStreamStatistics.latency(FileOperation.MAP).record(time_ns);
+    }
+
+    /** Names of the counters, in the order used by {@link #snapshot()} and {@link #toString()}. */
+    public static final String[] FIELD_NAMES = {
+        "inputOpens", "inputCloses", "outputOpens", "outputCloses", "inputOpenTime",
+        "outputOpenTime", "reads", "readTime", "writes", "writeTime", "bytesRead", "bytesWritten",
+        "positionCalls", "sizeCalls", "transfers", "transferTime", "bytesTransferred", "maps",
+        "mapTime", "bytesMapped"
+    };
+
+    private LongAdder[] counters() {
+        return new LongAdder[] {
+            inputOpens, inputCloses, outputOpens, outputCloses, cumulativeInputOpenTime,
+            cumulativeOutputOpenTime, reads, cumulativeReadTime, writes, cumulativeWriteTime,
+            bytesRead, bytesWritten, positionCalls, sizeCalls, transfers, cumulativeTransferTime,
+            bytesTransferred, maps, cumulativeMapTime, bytesMapped
+        };
+    }
+
+    /** Returns the current counter values, in the order of {@link #FIELD_NAMES}. */
+    public long[] snapshot() {
+        LongAdder[] counters = counters();
+        long[] values = new long[counters.length];
+        for (int i = 0; i < counters.length; i++) {
+            values[i] = counters[i].sum();
+        }
+        return values;
+    }
+
+    /** Adds the current values of these counters to <code>other</code>. */
+    public void addTo(FileRoleStatistics other) {
+        LongAdder[] mine = counters();
+        LongAdder[] theirs = other.counters();
+        for (int i = 0; i < mine.length; i++) {
+            theirs[i].add(mine[i].sum());
+        }
+    }
+
+    public boolean isEmpty() {
+        return inputOpens.sum() == 0 && outputOpens.sum() == 0 && reads.sum() == 0
+                && writes.sum() == 0 && transfers.sum() == 0 && maps.sum() == 0;
+    }
+
+    public static String getHeader() {
+        return Joiner.on(',').join(FIELD_NAMES);
+    }
+
+    public String toString() {
+        return Longs.join(",", snapshot());
+    }
+}
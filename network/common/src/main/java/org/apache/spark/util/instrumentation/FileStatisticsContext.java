@@ -0,0 +1,72 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.util.instrumentation;
+
+/**
+ * Per-task file I/O counters. A context is bound to the thread running a task for the lifetime
+ * of that task; streams opened while it is bound record into it instead of into the
+ * executor-wide totals in {@link FileStreamStatistics}. When the task ends the context is
+ * unbound, folded into the task's metrics and merged into the executor-wide totals.
+ */
+public class FileStatisticsContext {
+    private static final ThreadLocal<FileStatisticsContext> current =
+            new ThreadLocal<FileStatisticsContext>();
+
+    private final FileRoleStatistics[] byRole;
+
+    public FileStatisticsContext() {
+        FileRole[] roles = FileRole.values();
+        byRole = new FileRoleStatistics[roles.length];
+        for (FileRole role : roles) {
+            byRole[role.ordinal()] = new FileRoleStatistics(role);
+        }
+    }
+
+    public FileRoleStatistics forRole(FileRole role) {
+        return byRole[role.ordinal()];
+    }
+
+    public FileRoleStatistics[] allRoles() {
+        return byRole;
+    }
+
+    /** Returns the context bound to the calling thread, or null if there is none. */
+    public static FileStatisticsContext get() {
+        return current.get();
+    }
+
+    /** Binds a fresh context to the calling thread and returns it. */
+    public static FileStatisticsContext bind() {
+        FileStatisticsContext ctx = new FileStatisticsContext();
+        current.set(ctx);
+        return ctx;
+    }
+
+    /**
+     * Unbinds the calling thread's context, merges its counters into the executor-wide totals
+     * and returns it so the caller can report it. Returns null if no context was bound.
+     */
+    public static FileStatisticsContext unbind() {
+        FileStatisticsContext ctx = current.get();
+        current.remove();
+        if (ctx != null) {
+            FileStreamStatistics.merge(ctx);
+        }
+        return ctx;
+    }
+}
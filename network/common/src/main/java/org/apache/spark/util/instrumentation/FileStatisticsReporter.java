@@ -0,0 +1,124 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.util.instrumentation;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.spark.network.util.NettyUtils;
+
+/**
+ * Periodically writes the change in the executor-wide {@link FileStreamStatistics} totals to a
+ * {@link FileStatisticsSink}, so I/O behaviour can be followed while a job runs instead of being
+ * dumped once at shutdown. Intervals without any I/O are skipped.
+ */
+public class FileStatisticsReporter {
+    private final Logger logger = LoggerFactory.getLogger(FileStatisticsReporter.class);
+
+    private final FileStatisticsSink sink;
+    private final String source;
+    private final ScheduledExecutorService executor;
+
+    private long[][] previous;
+    private long previousTimeMs;
+
+    public FileStatisticsReporter(FileStatisticsSink sink, String source) {
+        this.sink = sink;
+        this.source = source;
+        this.executor = Executors.newSingleThreadScheduledExecutor(
+                NettyUtils.createThreadFactory("file-statistics-reporter"));
+        this.previous = currentTotals();
+        this.previousTimeMs = System.currentTimeMillis();
+    }
+
+    /**
+     * Creates the sink named by <code>sinkClass</code> through its (String, String) constructor.
+     */
+    public static FileStatisticsSink createSink(String sinkClass, String directory, String source)
+            throws Exception {
+        Class<?> cls = Class.forName(sinkClass, true, Thread.currentThread().getContextClassLoader());
+        return (FileStatisticsSink) cls.getConstructor(String.class, String.class)
+                .newInstance(directory, source);
+    }
+
+    private static long[][] currentTotals() {
+        FileRole[] roles = FileRole.values();
+        long[][] totals = new long[roles.length][];
+        for (FileRole role : roles) {
+            totals[role.ordinal()] = FileStreamStatistics.totalsFor(role).snapshot();
+        }
+        return totals;
+    }
+
+    public void start(long intervalMs) {
+        executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flush();
+                } catch (Throwable t) {
+                    logger.error("Error writing file I/O statistics to " + sink, t);
+                }
+            }
+        }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /** Writes the change since the previous flush, if there was any. */
+    public synchronized void flush() throws IOException {
+        long now = System.currentTimeMillis();
+        long[][] current = currentTotals();
+        long[][] deltas = new long[current.length][];
+        for (int r = 0; r < current.length; r++) {
+            deltas[r] = new long[current[r].length];
+            for (int i = 0; i < current[r].length; i++) {
+                deltas[r][i] = current[r][i] - previous[r][i];
+            }
+        }
+        FileStatisticsSnapshot snapshot =
+                new FileStatisticsSnapshot(source, previousTimeMs, now, deltas);
+        previous = current;
+        previousTimeMs = now;
+        if (!snapshot.isEmpty()) {
+            sink.write(snapshot);
+        }
+    }
+
+    /** Stops the periodic flush, writes a final snapshot and closes the sink. */
+    public void stop() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+            flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            logger.error("Error writing final file I/O statistics to " + sink, e);
+        } finally {
+            try {
+                sink.close();
+            } catch (IOException e) {
+                logger.error("Error closing " + sink, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.util.instrumentation;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Destination for the periodic snapshots taken by {@link FileStatisticsReporter}.
+ * Implementations are only ever called from the reporter's thread, and must have a public
+ * constructor taking the output directory (a String) and the name of the reporting process
+ * (e.g. the executor ID) so they can be selected by class name.
+ */
+public interface FileStatisticsSink extends Closeable {
+
+    void write(FileStatisticsSnapshot snapshot) throws IOException;
+}
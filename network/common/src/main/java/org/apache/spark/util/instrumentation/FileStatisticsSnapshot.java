@@ -0,0 +1,55 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.util.instrumentation;
+
+/**
+ * The change in the executor-wide file I/O counters over one reporting interval, per
+ * {@link FileRole}. Values are indexed by role ordinal and then by
+ * {@link FileRoleStatistics#FIELD_NAMES}. Since task counters are merged into the executor-wide
+ * totals when a task ends, a task's I/O shows up in the interval in which it finished.
+ */
+public class FileStatisticsSnapshot {
+    public final String source;
+    public final long startTimeMs;
+    public final long endTimeMs;
+    public final long[][] deltas;
+
+    public FileStatisticsSnapshot(String source, long startTimeMs, long endTimeMs,
+                                  long[][] deltas) {
+        this.source = source;
+        this.startTimeMs = startTimeMs;
+        this.endTimeMs = endTimeMs;
+        this.deltas = deltas;
+    }
+
+    public long[] forRole(FileRole role) {
+        return deltas[role.ordinal()];
+    }
+
+    /** Whether nothing happened during the interval. */
+    public boolean isEmpty() {
+        for (long[] values : deltas) {
+            for (long v : values) {
+                if (v != 0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+}
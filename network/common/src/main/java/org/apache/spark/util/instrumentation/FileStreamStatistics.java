@@ -1,71 +1,71 @@
 package org.apache.spark.util.instrumentation;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.atomic.LongAdder;
-
 /**
  * Created by nchaimov on 8/12/15.
+ *
+ * Executor-wide file stream statistics, aggregated per {@link FileRole}. Streams opened by a
+ * task record into that task's {@link FileStatisticsContext}, which is merged in here when the
+ * task ends; streams opened outside of a task (e.g. by the shuffle service) record here directly.
  */
 public class FileStreamStatistics {
-    private static LongAdder fileInputStreamOpenCalls = new LongAdder();
-    private static LongAdder fileOutputStreamOpenCalls = new LongAdder();
-    private static LongAdder fileInputStreamCloseCalls = new LongAdder();
-    private static LongAdder fileOutputStreamCloseCalls = new LongAdder();
-    private static LongAdder fileInputStreamOpenTime = new LongAdder();
-    private static LongAdder fileOutputStreamOpenTime = new LongAdder();
-    private static LongAdder fileInputStreamReadCalls = new LongAdder();
-    private static LongAdder fileInputStreamReadTime = new LongAdder();
-    private static LongAdder fileOutputStreamWriteCalls = new LongAdder();
-    private static LongAdder fileOutputStreamWriteTime = new LongAdder();
-
-    public static class PerFileStatistics {
-        public LongAdder inputOpens = new LongAdder();
-        public LongAdder inputCloses = new LongAdder();
-        public LongAdder outputOpens = new LongAdder();
-        public LongAdder outputCloses = new LongAdder();
-        public LongAdder reads = new LongAdder();
-        public LongAdder writes = new LongAdder();
-        public LongAdder cumulativeInputOpenTime = new LongAdder();
-        public LongAdder cumulativeOutputOpenTime = new LongAdder();
-        public LongAdder cumulativeReadTime = new LongAdder();
-        public LongAdder cumulativeWriteTime = new LongAdder();
-
-        public static String getHeader() {
-            return "inputOpens,inputCloses,outputOpens,outputCloses,inputOpenTime,outputOpenTime,reads,readTime,writes,writeTime";
-        }
+    private static final FileStatisticsContext totals = new FileStatisticsContext();
+
+    // Latencies are executor-wide only; per-task histograms would cost more than they tell.
+    private static final LogHistogram[] latencies =
+            new LogHistogram[FileOperation.values().length];
+
+    // I/O size distributions, per file role, used to tune buffer and batch sizes.
+    private static final LogHistogram[] readSizes = new LogHistogram[FileRole.values().length];
+    private static final LogHistogram[] writeSizes = new LogHistogram[FileRole.values().length];
 
-        public String toString() {
-            return String.format("%d,%d,%d,%d,%d,%d,%d,%d,%d,%d", inputOpens.sum(), inputCloses.sum(),
-                    outputOpens.sum(), outputCloses.sum(), cumulativeInputOpenTime.sum(),
-                    cumulativeOutputOpenTime.sum(), reads.sum(), cumulativeReadTime.sum(),
-                    writes.sum(), cumulativeWriteTime.sum());
+    static {
+        for (FileOperation op : FileOperation.values()) {
+            latencies[op.ordinal()] = new LogHistogram();
+        }
+        for (FileRole role : FileRole.values()) {
+            readSizes[role.ordinal()] = new LogHistogram();
+            writeSizes[role.ordinal()] = new LogHistogram();
         }
     }
 
-    private static ConcurrentMap<String, PerFileStatistics> perFileStatistics =
-            new ConcurrentHashMap<String, PerFileStatistics>();
+    /**
+     * Returns the counters a stream for <code>path</code> should record into: those of the task
+     * bound to the calling thread if there is one, otherwise the executor-wide ones.
+     */
+    public static FileRoleStatistics statisticsFor(String path) {
+        FileRole role = FileRole.fromPath(path);
+        FileStatisticsContext ctx = FileStatisticsContext.get();
+        return ctx != null ? ctx.forRole(role) : totals.forRole(role);
+    }
 
-    private static String ensureStatsExist(String path) {
-        if (path == null) {
-            path = "<NO FILENAME>";
+    /** Adds the counters of a finished task to the executor-wide totals. */
+    public static void merge(FileStatisticsContext ctx) {
+        for (FileRoleStatistics stats : ctx.allRoles()) {
+            stats.addTo(totals.forRole(stats.role));
         }
-        perFileStatistics.putIfAbsent(path, new PerFileStatistics());
-        return path;
+    }
+
+    public static FileRoleStatistics totalsFor(FileRole role) {
+        return totals.forRole(role);
+    }
+
+    public static LogHistogram latency(FileOperation op) {
+        return latencies[op.ordinal()];
+    }
+
+    public static LogHistogram readSizes(FileRole role) {
+        return readSizes[role.ordinal()];
+    }
+
+    public static LogHistogram writeSizes(FileRole role) {
+        return writeSizes[role.ordinal()];
     }
 
     // Unused warning is suppressed on these methods because they are only used in injected code.
 
     @SuppressWarnings( "unused" )
     public static void openedInputFile(String path, long time_ns) {
-        fileInputStreamOpenCalls.increment();
-        fileInputStreamOpenTime.add(time_ns);
-        path = ensureStatsExist(path);
-        PerFileStatistics pf = perFileStatistics.get(path);
-        pf.inputOpens.increment();
-        pf.cumulativeInputOpenTime.add(time_ns);
+        statisticsFor(path).recordInputOpen(time_ns);
     }
 
     @SuppressWarnings( "unused" )
@@ -73,9 +73,7 @@ public class FileStreamStatistics {
         if(closed) {
             return;
         }
-        fileInputStreamCloseCalls.increment();
-        path = ensureStatsExist(path);
-        perFileStatistics.get(path).inputCloses.increment();
+        statisticsFor(path).recordInputClose();
     }
 
     @SuppressWarnings( "unused" )
@@ -85,12 +83,7 @@ public class FileStreamStatistics {
 
     @SuppressWarnings( "unused" )
     public static void openedOutputFile(String path, long time_ns) {
-        fileOutputStreamOpenCalls.increment();
-        fileOutputStreamOpenTime.add(time_ns);
-        path = ensureStatsExist(path);
-        PerFileStatistics pf = perFileStatistics.get(path);
-        pf.outputOpens.increment();
-        pf.cumulativeOutputOpenTime.add(time_ns);
+        statisticsFor(path).recordOutputOpen(time_ns);
     }
 
     @SuppressWarnings( "unused" )
@@ -98,9 +91,7 @@ public class FileStreamStatistics {
         if(closed) {
             return;
         }
-        fileOutputStreamCloseCalls.increment();
-        path = ensureStatsExist(path);
-        perFileStatistics.get(path).outputCloses.increment();
+        statisticsFor(path).recordOutputClose();
     }
 
     @SuppressWarnings( "unused" )
@@ -110,42 +101,32 @@ public class FileStreamStatistics {
 
     @SuppressWarnings( "unused" )
     public static void readInputFile(String path, long time_ns) {
-        fileInputStreamReadCalls.increment();
-        fileInputStreamReadTime.add(time_ns);
-        path = ensureStatsExist(path);
-        PerFileStatistics pf = perFileStatistics.get(path);
-        pf.reads.increment();
-        pf.cumulativeReadTime.add(time_ns);
+        statisticsFor(path).recordRead(time_ns, 0);
     }
 
     @SuppressWarnings( "unused" )
     public static void writeOutputFile(String path, long time_ns) {
-        fileOutputStreamWriteCalls.increment();
-        fileOutputStreamWriteTime.add(time_ns);
-        path = ensureStatsExist(path);
-        PerFileStatistics pf = perFileStatistics.get(path);
-        pf.writes.increment();
-        pf.cumulativeWriteTime.add(time_ns);
+        statisticsFor(path).recordWrite(time_ns, 0);
     }
 
     public static String asString() {
+        FileRoleStatistics total = new FileRoleStatistics(FileRole.OTHER);
         StringBuilder sb = new StringBuilder();
-        sb.append(String.format("path,%s\n", PerFileStatistics.getHeader()));
-        for (Map.Entry<String, PerFileStatistics> entry : perFileStatistics.entrySet()) {
-            sb.append(String.format("\"%s\",%s\n", entry.getKey(), entry.getValue().toString()));
+        sb.append(String.format("role,%s\n", FileRoleStatistics.getHeader()));
+        for (FileRoleStatistics stats : totals.allRoles()) {
+            sb.append(String.format("\"%s\",%s\n", stats.role, stats.toString()));
+            stats.addTo(total);
+        }
+        sb.append(String.format("\"%s\",%s\n", "<TOTAL>", total.toString()));
+        sb.append(String.format("operation,%s\n", LogHistogram.getHeader()));
+        for (FileOperation op : FileOperation.values()) {
+            sb.append(String.format("\"%s\",%s\n", op, latency(op).toString()));
+        }
+        sb.append(String.format("ioSizes,%s\n", LogHistogram.getHeader()));
+        for (FileRole role : FileRole.values()) {
+            sb.append(String.format("\"%s/read\",%s\n", role, readSizes(role).toString()));
+            sb.append(String.format("\"%s/write\",%s\n", role, writeSizes(role).toString()));
         }
-        sb.append(String.format("\"%s\",%d,%d,%d,%d,%d,%d,%d,%d,%d,%d\n",
-                "<TOTAL>",
-                fileInputStreamOpenCalls.sum(),
-                fileInputStreamCloseCalls.sum(),
-                fileOutputStreamOpenCalls.sum(),
-                fileOutputStreamCloseCalls.sum(),
-                fileInputStreamOpenTime.sum(),
-                fileOutputStreamOpenTime.sum(),
-                fileInputStreamReadCalls.sum(),
-                fileInputStreamReadTime.sum(),
-                fileOutputStreamWriteCalls.sum(),
-                fileOutputStreamWriteTime.sum()));
         return sb.toString();
     }
 }
@@ -0,0 +1,207 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.util.instrumentation;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A FileChannel that records its reads, writes, transfers, memory maps and position/size queries
+ * into the same {@link FileRoleStatistics} as the instrumented stream it was obtained from.
+ *
+ * transferTo/transferFrom unwrap an instrumented channel on the other end before delegating, so
+ * that the JDK still takes its zero-copy path (which requires the peer to be a real FileChannel).
+ * Closing the channel closes the owning stream, so the close is only counted once.
+ */
+public class InstrumentedFileChannel extends FileChannel {
+
+    protected final FileChannel wrappedChannel;
+    protected final FileRoleStatistics stats;
+    private final Closeable owner;
+
+    public InstrumentedFileChannel(FileChannel channel, FileRoleStatistics stats, Closeable owner) {
+        this.wrappedChannel = channel;
+        this.stats = stats;
+        this.owner = owner;
+    }
+
+    private static FileChannel unwrap(Object channel) {
+        return ((InstrumentedFileChannel) channel).wrappedChannel;
+    }
+
+    /**
+     * Returns the channel this one records for, for native code that needs the file descriptor
+     * of a real FileChannel, such as sendfile in Netty's epoll transport. What is done through
+     * it is not recorded.
+     */
+    public FileChannel getWrappedChannel() {
+        return wrappedChannel;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        long start = System.nanoTime();
+        int result = wrappedChannel.read(dst);
+        long end = System.nanoTime();
+        stats.recordRead(end - start, result);
+        return result;
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        long start = System.nanoTime();
+        long result = wrappedChannel.read(dsts, offset, length);
+        long end = System.nanoTime();
+        stats.recordRead(end - start, result);
+        return result;
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long position) throws IOException {
+        long start = System.nanoTime();
+        int result = wrappedChannel.read(dst, position);
+        long end = System.nanoTime();
+        stats.recordRead(end - start, result);
+        return result;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        long start = System.nanoTime();
+        int result = wrappedChannel.write(src);
+        long end = System.nanoTime();
+        stats.recordWrite(end - start, result);
+        return result;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        long start = System.nanoTime();
+        long result = wrappedChannel.write(srcs, offset, length);
+        long end = System.nanoTime();
+        stats.recordWrite(end - start, result);
+        return result;
+    }
+
+    @Override
+    public int write(ByteBuffer src, long position) throws IOException {
+        long start = System.nanoTime();
+        int result = wrappedChannel.write(src, position);
+        long end = System.nanoTime();
+        stats.recordWrite(end - start, result);
+        return result;
+    }
+
+    @Override
+    public long position() throws IOException {
+        long start = System.nanoTime();
+        long result = wrappedChannel.position();
+        long end = System.nanoTime();
+        stats.recordPosition(end - start);
+        return result;
+    }
+
+    @Override
+    public FileChannel position(long newPosition) throws IOException {
+        long start = System.nanoTime();
+        wrappedChannel.position(newPosition);
+        long end = System.nanoTime();
+        stats.recordPosition(end - start);
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        long start = System.nanoTime();
+        long result = wrappedChannel.size();
+        long end = System.nanoTime();
+        stats.recordSize(end - start);
+        return result;
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target)
+            throws IOException {
+        boolean instrumentedTarget = target instanceof InstrumentedFileChannel;
+        long start = System.nanoTime();
+        long result = wrappedChannel.transferTo(position, count,
+                instrumentedTarget ? unwrap(target) : target);
+        long end = System.nanoTime();
+        stats.recordTransfer(end - start, result);
+        if (instrumentedTarget) {
+            ((InstrumentedFileChannel) target).stats.recordTransfer(end - start, result);
+        }
+        return result;
+    }
+
+    @Override
+    public long transferFrom(ReadableByteChannel src, long position, long count)
+            throws IOException {
+        boolean instrumentedSource = src instanceof InstrumentedFileChannel;
+        long start = System.nanoTime();
+        long result = wrappedChannel.transferFrom(instrumentedSource ? unwrap(src) : src,
+                position, count);
+        long end = System.nanoTime();
+        stats.recordTransfer(end - start, result);
+        if (instrumentedSource) {
+            ((InstrumentedFileChannel) src).stats.recordTransfer(end - start, result);
+        }
+        return result;
+    }
+
+    @Override
+    public MappedByteBuffer map(FileChannel.MapMode mode, long position, long size) throws IOException {
+        long start = System.nanoTime();
+        MappedByteBuffer result = wrappedChannel.map(mode, position, size);
+        long end = System.nanoTime();
+        stats.recordMap(end - start, size);
+        return result;
+    }
+
+    @Override
+    public FileChannel truncate(long size) throws IOException {
+        wrappedChannel.truncate(size);
+        return this;
+    }
+
+    @Override
+    public void force(boolean metaData) throws IOException {
+        wrappedChannel.force(metaData);
+    }
+
+    @Override
+    public FileLock lock(long position, long size, boolean shared) throws IOException {
+        return wrappedChannel.lock(position, size, shared);
+    }
+
+    @Override
+    public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+        return wrappedChannel.tryLock(position, size, shared);
+    }
+
+    @Override
+    protected void implCloseChannel() throws IOException {
+        owner.close();
+    }
+}
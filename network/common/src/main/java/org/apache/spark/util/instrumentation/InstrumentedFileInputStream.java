@@ -10,30 +10,49 @@ public class InstrumentedFileInputStream extends InputStream {
 
     protected final FileInputStream wrappedStream;
     protected final String path;
+    protected final FileRoleStatistics stats;
     protected boolean closed = false;
+    private InstrumentedFileChannel channel;
 
     public InstrumentedFileInputStream(String name) throws FileNotFoundException {
         path = name;
+        stats = FileStreamStatistics.statisticsFor(path);
         long start = System.nanoTime();
         wrappedStream = new FileInputStream(name);
         long end = System.nanoTime();
-        FileStreamStatistics.openedInputFile(path, end-start);
+        stats.recordInputOpen(end - start);
     }
 
     public InstrumentedFileInputStream(File file) throws FileNotFoundException {
         path = (file != null ? file.getPath() : null);
+        stats = FileStreamStatistics.statisticsFor(path);
         long start = System.nanoTime();
         wrappedStream = new FileInputStream(file);
         long end = System.nanoTime();
-        FileStreamStatistics.openedInputFile(path, end-start);
+        stats.recordInputOpen(end - start);
+    }
+
+    /**
+     * Opens <code>file</code> recording into the given counters rather than those of the calling
+     * thread's task; used for streams that outlive the task that opened them.
+     */
+    public InstrumentedFileInputStream(File file, FileRoleStatistics stats)
+            throws FileNotFoundException {
+        path = file.getPath();
+        this.stats = stats;
+        long start = System.nanoTime();
+        wrappedStream = new FileInputStream(file);
+        long end = System.nanoTime();
+        stats.recordInputOpen(end - start);
     }
 
     public InstrumentedFileInputStream(FileDescriptor fdObj) {
         path = null;
+        stats = FileStreamStatistics.statisticsFor(path);
         long start = System.nanoTime();
         wrappedStream = new FileInputStream(fdObj);
         long end = System.nanoTime();
-        FileStreamStatistics.openedInputFile(path, end-start);
+        stats.recordInputOpen(end - start);
     }
 
     @Override
@@ -41,7 +60,7 @@ public class InstrumentedFileInputStream extends InputStream {
         long start = System.nanoTime();
         int result =  wrappedStream.read();
         long end = System.nanoTime();
-        FileStreamStatistics.readInputFile(path, end - start);
+        stats.recordRead(end - start, result < 0 ? 0 : 1);
         return result;
     }
 
@@ -50,7 +69,7 @@ public class InstrumentedFileInputStream extends InputStream {
         long start = System.nanoTime();
         int result = wrappedStream.read(b);
         long end = System.nanoTime();
-        FileStreamStatistics.readInputFile(path, end - start);
+        stats.recordRead(end - start, result);
         return result;
     }
 
@@ -59,7 +78,7 @@ public class InstrumentedFileInputStream extends InputStream {
         long start = System.nanoTime();
         int result =  wrappedStream.read(b, off, len);
         long end = System.nanoTime();
-        FileStreamStatistics.readInputFile(path, end - start);
+        stats.recordRead(end - start, result);
         return result;
     }
 
@@ -77,8 +96,13 @@ public class InstrumentedFileInputStream extends InputStream {
     public void close() throws IOException {
         if(!closed) {
             closed = true;
+            long start = System.nanoTime();
             wrappedStream.close();
-            FileStreamStatistics.closedInputFile(path);
+            long end = System.nanoTime();
+            stats.recordInputClose(end - start);
+            if (channel != null) {
+                channel.close();
+            }
         }
     }
 
@@ -97,8 +121,21 @@ public class InstrumentedFileInputStream extends InputStream {
         return wrappedStream.markSupported();
     }
 
-    public FileChannel getChannel() {
-        return wrappedStream.getChannel();
+    /**
+     * Returns an {@link InstrumentedFileChannel} over this stream's file that records into the
+     * same counters as the stream. Like FileInputStream.getChannel(), every call returns the same
+     * channel, and closing it closes this stream.
+     */
+    public synchronized FileChannel getChannel() {
+        if (channel == null) {
+            channel = new InstrumentedFileChannel(wrappedStream.getChannel(), stats, this);
+        }
+        return channel;
+    }
+
+    /** The counters this stream and its channel record into. */
+    public FileRoleStatistics getStatistics() {
+        return stats;
     }
 
     @Override
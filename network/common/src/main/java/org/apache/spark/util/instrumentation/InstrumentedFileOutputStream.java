@@ -10,46 +10,53 @@ public class InstrumentedFileOutputStream extends OutputStream {
 
     protected final FileOutputStream wrappedStream;
     protected final String path;
+    protected final FileRoleStatistics stats;
     protected boolean closed = false;
+    private InstrumentedFileChannel channel;
 
     public InstrumentedFileOutputStream(String name) throws FileNotFoundException {
         path = name;
+        stats = FileStreamStatistics.statisticsFor(path);
         long start = System.nanoTime();
         wrappedStream = new FileOutputStream(name);
         long end = System.nanoTime();
-        FileStreamStatistics.openedOutputFile(name, end-start);
+        stats.recordOutputOpen(end - start);
     }
 
     public InstrumentedFileOutputStream(String name, boolean append) throws FileNotFoundException {
         path = name;
+        stats = FileStreamStatistics.statisticsFor(path);
         long start = System.nanoTime();
         wrappedStream = new FileOutputStream(name, append);
         long end = System.nanoTime();
-        FileStreamStatistics.openedOutputFile(name, end-start);
+        stats.recordOutputOpen(end - start);
     }
 
     public InstrumentedFileOutputStream(File file) throws FileNotFoundException {
         path = (file != null ? file.getPath() : null);
+        stats = FileStreamStatistics.statisticsFor(path);
         long start = System.nanoTime();
         wrappedStream = new FileOutputStream(file);
         long end = System.nanoTime();
-        FileStreamStatistics.openedOutputFile(path, end-start);
+        stats.recordOutputOpen(end - start);
     }
 
     public InstrumentedFileOutputStream(File file, boolean append) throws FileNotFoundException {
         path = (file != null ? file.getPath() : null);
+        stats = FileStreamStatistics.statisticsFor(path);
         long start = System.nanoTime();
         wrappedStream = new FileOutputStream(file, append);
         long end = System.nanoTime();
-        FileStreamStatistics.openedOutputFile(path, end-start);
+        stats.recordOutputOpen(end - start);
     }
 
     public InstrumentedFileOutputStream(FileDescriptor fdObj) {
         path = null;
+        stats = FileStreamStatistics.statisticsFor(path);
         long start = System.nanoTime();
         wrappedStream = new FileOutputStream(fdObj);
         long end = System.nanoTime();
-        FileStreamStatistics.openedOutputFile(path, end - start);
+        stats.recordOutputOpen(end - start);
     }
 
     @Override
@@ -57,7 +64,7 @@ public class InstrumentedFileOutputStream extends OutputStream {
         long start = System.nanoTime();
         wrappedStream.write(b);
         long end = System.nanoTime();
-        FileStreamStatistics.writeOutputFile(path, end-start);
+        stats.recordWrite(end - start, 1);
     }
 
     @Override
@@ -65,7 +72,7 @@ public class InstrumentedFileOutputStream extends OutputStream {
         long start = System.nanoTime();
         wrappedStream.write(b);
         long end = System.nanoTime();
-        FileStreamStatistics.writeOutputFile(path, end-start);
+        stats.recordWrite(end - start, b.length);
     }
 
     @Override
@@ -73,20 +80,38 @@ public class InstrumentedFileOutputStream extends OutputStream {
         long start = System.nanoTime();
         wrappedStream.write(b, off, len);
         long end = System.nanoTime();
-        FileStreamStatistics.writeOutputFile(path, end-start);
+        stats.recordWrite(end - start, len);
     }
 
     @Override
     public void close() throws IOException {
         if(!closed) {
             closed = true;
+            long start = System.nanoTime();
             wrappedStream.close();
-            FileStreamStatistics.closedOutputFile(path);
+            long end = System.nanoTime();
+            stats.recordOutputClose(end - start);
+            if (channel != null) {
+                channel.close();
+            }
         }
     }
 
-    public FileChannel getChannel() {
-        return wrappedStream.getChannel();
+    /**
+     * Returns an {@link InstrumentedFileChannel} over this stream's file that records into the
+     * same counters as the stream. Like FileOutputStream.getChannel(), every call returns the same
+     * channel, and closing it closes this stream.
+     */
+    public synchronized FileChannel getChannel() {
+        if (channel == null) {
+            channel = new InstrumentedFileChannel(wrappedStream.getChannel(), stats, this);
+        }
+        return channel;
+    }
+
+    /** The counters this stream and its channel record into. */
+    public FileRoleStatistics getStatistics() {
+        return stats;
     }
 
     public FileDescriptor getFD() throws IOException {
@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.util.instrumentation;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Appends each snapshot as one JSON object per line to <code>file-io-&lt;source&gt;.jsonl</code>
+ * in the given directory, e.g.
+ *
+ * <pre>
+ * {"source":"3","start":1439400000000,"end":1439400010000,"roles":{"SPILL":{"reads":12,...}}}
+ * </pre>
+ *
+ * Roles without activity in the interval, and zero-valued counters, are omitted. The file is
+ * flushed after every line so a running job can be followed with the aggregation tool.
+ */
+public class JsonLinesFileStatisticsSink implements FileStatisticsSink {
+
+    private final File file;
+    private final Writer writer;
+
+    public JsonLinesFileStatisticsSink(String directory, String source) throws IOException {
+        File dir = new File(directory);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create directory " + dir);
+        }
+        // Deliberately not instrumented: the sink must not count its own writes.
+        file = new File(dir, "file-io-" + source + ".jsonl");
+        writer = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(file, true), Charsets.UTF_8));
+    }
+
+    @Override
+    public void write(FileStatisticsSnapshot snapshot) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"source\":\"").append(escape(snapshot.source)).append('"');
+        sb.append(",\"start\":").append(snapshot.startTimeMs);
+        sb.append(",\"end\":").append(snapshot.endTimeMs);
+        sb.append(",\"roles\":{");
+        boolean firstRole = true;
+        for (FileRole role : FileRole.values()) {
+            long[] values = snapshot.forRole(role);
+            boolean firstField = true;
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] == 0) {
+                    continue;
+                }
+                if (firstField) {
+                    if (!firstRole) {
+                        sb.append(',');
+                    }
+                    sb.append('"').append(role).append("\":{");
+                    firstRole = false;
+                    firstField = false;
+                } else {
+                    sb.append(',');
+                }
+                sb.append('"').append(FileRoleStatistics.FIELD_NAMES[i]).append("\":")
+                        .append(values[i]);
+            }
+            if (!firstField) {
+                sb.append('}');
+            }
+        }
+        sb.append("}}\n");
+        writer.write(sb.toString());
+        writer.flush();
+    }
+
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+
+    @Override
+    public String toString() {
+        return "JsonLinesFileStatisticsSink(" + file + ")";
+    }
+}
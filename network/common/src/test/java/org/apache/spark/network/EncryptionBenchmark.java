@@ -0,0 +1,150 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.network;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+
+import com.google.common.collect.Maps;
+
+import org.apache.spark.network.client.TransportClient;
+import org.apache.spark.network.client.TransportClientBootstrap;
+import org.apache.spark.network.client.TransportClientFactory;
+import org.apache.spark.network.sasl.SaslClientBootstrap;
+import org.apache.spark.network.sasl.SaslServerBootstrap;
+import org.apache.spark.network.sasl.SecretKeyHolder;
+import org.apache.spark.network.server.TransportServer;
+import org.apache.spark.network.server.TransportServerBootstrap;
+import org.apache.spark.network.util.MapConfigProvider;
+import org.apache.spark.network.util.TransportConf;
+
+/**
+ * Compares the cost of encrypting connections with SASL (DIGEST-MD5 wrapping) and with AES-GCM,
+ * using the workloads of {@link TransportBenchmark}: zero-copy chunk fetches from a temporary
+ * file and small echo RPCs, over a loopback connection authenticated with SASL.
+ *
+ * The configurations are SASL authentication without encryption, SASL encryption, and AES
+ * encryption with 128 and 256-bit keys, each with the given io mode. SASL encryption is skipped
+ * unless the io mode is NIO, since the native epoll transport cannot write its encrypted messages.
+ *
+ * Usage: EncryptionBenchmark [chunkMix] [fetchesPerRound] [inFlight] [rpcSize] [rounds] [ioMode]
+ */
+public class EncryptionBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    String mix = args.length > 0 ? args[0] : "64k*4,1m";
+    int numFetches = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+    int inFlight = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+    int rpcSize = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+    int rounds = args.length > 4 ? Integer.parseInt(args[4]) : 3;
+    String ioMode = args.length > 5 ? args[5] : "NIO";
+
+    long[] sizes = TransportBenchmark.parseChunkMix(mix);
+    File file = File.createTempFile("encryption-benchmark", ".data");
+    file.deleteOnExit();
+    long[] offsets = TransportBenchmark.writeChunks(file, sizes);
+
+    System.out.println(String.format("chunk mix %s, %d fetches and RPCs of %d bytes per round, " +
+      "%d in flight, %s, best of %d rounds", mix, numFetches, rpcSize, inFlight, ioMode, rounds));
+    System.out.println(String.format("%-16s %12s %10s %12s", "encryption", "chunks/s", "MB/s",
+      "RPCs/s"));
+
+    try {
+      run("none", ioMode, false, 0, file, offsets, sizes, numFetches, inFlight, rpcSize, rounds);
+      if (ioMode.equalsIgnoreCase("NIO")) {
+        run("sasl", ioMode, true, 0, file, offsets, sizes, numFetches, inFlight, rpcSize, rounds);
+      }
+      run("aes-128", ioMode, true, 16, file, offsets, sizes, numFetches, inFlight, rpcSize,
+        rounds);
+      run("aes-256", ioMode, true, 32, file, offsets, sizes, numFetches, inFlight, rpcSize,
+        rounds);
+    } finally {
+      file.delete();
+    }
+  }
+
+  /** Runs the workloads with the given encryption; an AES key size of 0 means SASL encryption. */
+  private static void run(
+      String name,
+      String ioMode,
+      boolean encrypt,
+      int aesKeySize,
+      File file,
+      long[] offsets,
+      long[] sizes,
+      int numFetches,
+      int inFlight,
+      int rpcSize,
+      int rounds) throws Exception {
+    Map<String, String> settings = Maps.newHashMap();
+    settings.put("spark.shuffle.io.mode", ioMode);
+    if (aesKeySize > 0) {
+      settings.put("spark.network.aes.enabled", "true");
+      settings.put("spark.network.aes.keySize", String.valueOf(aesKeySize));
+    }
+    TransportConf conf = new TransportConf(new MapConfigProvider(settings));
+    SecretKeyHolder keyHolder = new SecretKeyHolder() {
+      @Override
+      public String getSaslUser(String appId) {
+        return "user";
+      }
+
+      @Override
+      public String getSecretKey(String appId) {
+        return "secret";
+      }
+    };
+
+    TransportContext context = new TransportContext(conf,
+      new TransportBenchmark.BenchmarkRpcHandler(conf, file, offsets, sizes));
+    TransportServer server = context.createServer(
+      Collections.<TransportServerBootstrap>singletonList(
+        new SaslServerBootstrap(conf, keyHolder)));
+    TransportClientFactory clientFactory = context.createClientFactory(
+      Collections.<TransportClientBootstrap>singletonList(
+        new SaslClientBootstrap(conf, "app", keyHolder, encrypt)));
+    try {
+      TransportClient client =
+        clientFactory.createClient(TestUtils.getLocalHost(), server.getPort());
+      long bytesPerRound = 0;
+      for (int i = 0; i < numFetches; i++) {
+        bytesPerRound += sizes[i % sizes.length];
+      }
+      long bestFetchNs = Long.MAX_VALUE;
+      long bestRpcNs = Long.MAX_VALUE;
+      // The first round warms up the JIT and the buffer pools, and is not counted.
+      for (int round = 0; round <= rounds; round++) {
+        long fetchNs = TransportBenchmark.fetchChunks(client, numFetches, inFlight);
+        long rpcNs = TransportBenchmark.sendRpcs(client, numFetches, inFlight, rpcSize);
+        if (round > 0) {
+          bestFetchNs = Math.min(bestFetchNs, fetchNs);
+          bestRpcNs = Math.min(bestRpcNs, rpcNs);
+        }
+      }
+      System.out.println(String.format("%-16s %12.0f %10.1f %12.0f",
+        name,
+        numFetches * 1e9 / bestFetchNs,
+        bytesPerRound * 1e9 / bestFetchNs / (1 << 20),
+        numFetches * 1e9 / bestRpcNs));
+    } finally {
+      clientFactory.close();
+      server.close();
+    }
+  }
+}
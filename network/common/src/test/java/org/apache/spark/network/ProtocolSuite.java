@@ -29,6 +29,7 @@ import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
 
+import org.apache.spark.network.buffer.ManagedBuffer;
 import org.apache.spark.network.protocol.ChunkFetchFailure;
 import org.apache.spark.network.protocol.ChunkFetchRequest;
 import org.apache.spark.network.protocol.ChunkFetchSuccess;
@@ -94,6 +95,19 @@ public class ProtocolSuite {
     testServerToClient(new RpcFailure(0, ""));
   }
 
+  @Test
+  public void emptyChunksAreNotConverted() {
+    // Converting a buffer may take resources, e.g. a pooled file channel, that only sending it
+    // releases, and an empty chunk is sent as just its header.
+    ManagedBuffer empty = new TestManagedBuffer(0) {
+      @Override
+      public Object convertToNetty() {
+        throw new AssertionError("An empty chunk should not be converted");
+      }
+    };
+    testServerToClient(new ChunkFetchSuccess(new StreamChunkId(1, 2), empty));
+  }
+
   /**
    * Handler to transform a FileRegion into a byte buffer. EmbeddedChannel doesn't actually transfer
    * bytes, but messages, so this is needed so that the frame decoder on the receiving side can
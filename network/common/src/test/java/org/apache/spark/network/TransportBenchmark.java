@@ -0,0 +1,280 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.network;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import io.netty.channel.epoll.Epoll;
+
+import org.apache.spark.network.buffer.FileSegmentManagedBuffer;
+import org.apache.spark.network.buffer.ManagedBuffer;
+import org.apache.spark.network.client.ChunkReceivedCallback;
+import org.apache.spark.network.client.RpcResponseCallback;
+import org.apache.spark.network.client.TransportClient;
+import org.apache.spark.network.client.TransportClientFactory;
+import org.apache.spark.network.server.RpcHandler;
+import org.apache.spark.network.server.StreamManager;
+import org.apache.spark.network.server.TransportServer;
+import org.apache.spark.network.util.JavaUtils;
+import org.apache.spark.network.util.MapConfigProvider;
+import org.apache.spark.network.util.TransportConf;
+
+/**
+ * Measures the transport layer on its own, over a loopback connection to a server in the same
+ * process. Each configuration runs two workloads on one client connection, keeping a fixed
+ * number of requests in flight:
+ *
+ *  - chunk fetches, served as zero-copy segments of a temporary file whose sizes cycle through
+ *    the given mix, reported in chunks and MB per second;
+ *  - small echo RPCs, reported in RPCs per second, which are dominated by per-message costs
+ *    such as header allocation and socket writes rather than by copying data.
+ *
+ * The configurations are every combination of io mode (NIO, and EPOLL where the native
+ * transport is available), direct or heap buffers (spark.shuffle.io.preferDirectBufs) and
+ * whether the server consolidates the flushes of pipelined responses
+ * (spark.shuffle.io.consolidateFlushes). Each result is the best of several rounds.
+ *
+ * The chunk mix is a comma-separated list of sizes, each optionally followed by "*" and the
+ * number of times it occurs in the cycle, e.g. "4k*8,64k*2,1m".
+ *
+ * Usage: TransportBenchmark [chunkMix] [fetchesPerRound] [inFlight] [rpcSize] [rounds]
+ */
+public class TransportBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    String mix = args.length > 0 ? args[0] : "4k*8,64k*2,1m";
+    int numFetches = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+    int inFlight = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+    int rpcSize = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+    int rounds = args.length > 4 ? Integer.parseInt(args[4]) : 5;
+
+    long[] sizes = parseChunkMix(mix);
+    File file = File.createTempFile("transport-benchmark", ".data");
+    file.deleteOnExit();
+    long[] offsets = writeChunks(file, sizes);
+
+    System.out.println(String.format("chunk mix %s, %d fetches and RPCs of %d bytes per round, " +
+      "%d in flight, best of %d rounds", mix, numFetches, rpcSize, inFlight, rounds));
+    System.out.println(String.format("%-6s %-7s %-12s %12s %10s %12s",
+      "mode", "buffers", "flushes", "chunks/s", "MB/s", "RPCs/s"));
+
+    List<String> modes = Lists.newArrayList("NIO");
+    if (Epoll.isAvailable()) {
+      modes.add("EPOLL");
+    }
+    try {
+      for (String mode : modes) {
+        for (boolean direct : new boolean[] { true, false }) {
+          for (boolean consolidate : new boolean[] { false, true }) {
+            Map<String, String> settings = Maps.newHashMap();
+            settings.put("spark.shuffle.io.mode", mode);
+            settings.put("spark.shuffle.io.preferDirectBufs", String.valueOf(direct));
+            settings.put("spark.shuffle.io.consolidateFlushes", String.valueOf(consolidate));
+            TransportConf conf = new TransportConf(new MapConfigProvider(settings));
+            run(conf, file, offsets, sizes, numFetches, inFlight, rpcSize, rounds);
+          }
+        }
+      }
+    } finally {
+      file.delete();
+    }
+  }
+
+  private static void run(
+      TransportConf conf,
+      File file,
+      long[] offsets,
+      long[] sizes,
+      int numFetches,
+      int inFlight,
+      int rpcSize,
+      int rounds) throws Exception {
+    TransportContext context =
+      new TransportContext(conf, new BenchmarkRpcHandler(conf, file, offsets, sizes));
+    TransportServer server = context.createServer();
+    TransportClientFactory clientFactory = context.createClientFactory();
+    try {
+      TransportClient client =
+        clientFactory.createClient(TestUtils.getLocalHost(), server.getPort());
+      long bytesPerRound = 0;
+      for (int i = 0; i < numFetches; i++) {
+        bytesPerRound += sizes[i % sizes.length];
+      }
+      long bestFetchNs = Long.MAX_VALUE;
+      long bestRpcNs = Long.MAX_VALUE;
+      // The first round warms up the JIT and the buffer pools, and is not counted.
+      for (int round = 0; round <= rounds; round++) {
+        long fetchNs = fetchChunks(client, numFetches, inFlight);
+        long rpcNs = sendRpcs(client, numFetches, inFlight, rpcSize);
+        if (round > 0) {
+          bestFetchNs = Math.min(bestFetchNs, fetchNs);
+          bestRpcNs = Math.min(bestRpcNs, rpcNs);
+        }
+      }
+      System.out.println(String.format("%-6s %-7s %-12s %12.0f %10.1f %12.0f",
+        conf.ioMode(),
+        conf.preferDirectBufs() ? "direct" : "heap",
+        conf.consolidateFlushes() ? "consolidated" : "per-message",
+        numFetches * 1e9 / bestFetchNs,
+        bytesPerRound * 1e9 / bestFetchNs / (1 << 20),
+        numFetches * 1e9 / bestRpcNs));
+    } finally {
+      clientFactory.close();
+      server.close();
+    }
+  }
+
+  /** Fetches numFetches chunks, keeping inFlight requests outstanding; returns the elapsed ns. */
+  static long fetchChunks(TransportClient client, int numFetches, int inFlight)
+      throws Exception {
+    final Semaphore permits = new Semaphore(inFlight);
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    ChunkReceivedCallback callback = new ChunkReceivedCallback() {
+      @Override
+      public void onSuccess(int chunkIndex, ManagedBuffer buffer) {
+        permits.release();
+      }
+
+      @Override
+      public void onFailure(int chunkIndex, Throwable e) {
+        error.compareAndSet(null, e);
+        permits.release();
+      }
+    };
+    long start = System.nanoTime();
+    for (int i = 0; i < numFetches; i++) {
+      permits.acquire();
+      client.fetchChunk(BenchmarkRpcHandler.STREAM_ID, i, callback);
+    }
+    permits.acquire(inFlight);
+    long elapsed = System.nanoTime() - start;
+    permits.release(inFlight);
+    if (error.get() != null) {
+      throw new RuntimeException("Chunk fetch failed", error.get());
+    }
+    return elapsed;
+  }
+
+  /** Sends numRpcs echo RPCs, keeping inFlight requests outstanding; returns the elapsed ns. */
+  static long sendRpcs(TransportClient client, int numRpcs, int inFlight, int rpcSize)
+      throws Exception {
+    final Semaphore permits = new Semaphore(inFlight);
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    RpcResponseCallback callback = new RpcResponseCallback() {
+      @Override
+      public void onSuccess(byte[] response) {
+        permits.release();
+      }
+
+      @Override
+      public void onFailure(Throwable e) {
+        error.compareAndSet(null, e);
+        permits.release();
+      }
+    };
+    byte[] message = new byte[rpcSize];
+    long start = System.nanoTime();
+    for (int i = 0; i < numRpcs; i++) {
+      permits.acquire();
+      client.sendRpc(message, callback);
+    }
+    permits.acquire(inFlight);
+    long elapsed = System.nanoTime() - start;
+    permits.release(inFlight);
+    if (error.get() != null) {
+      throw new RuntimeException("RPC failed", error.get());
+    }
+    return elapsed;
+  }
+
+  static long[] parseChunkMix(String mix) {
+    List<Long> sizes = Lists.newArrayList();
+    for (String entry : mix.split(",")) {
+      String[] parts = entry.trim().split("\\*");
+      long size = JavaUtils.byteStringAsBytes(parts[0].trim());
+      int count = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 1;
+      for (int i = 0; i < count; i++) {
+        sizes.add(size);
+      }
+    }
+    long[] result = new long[sizes.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = sizes.get(i);
+    }
+    return result;
+  }
+
+  /** Writes one random chunk of each size to the file, returning the offset of each. */
+  static long[] writeChunks(File file, long[] sizes) throws Exception {
+    long[] offsets = new long[sizes.length];
+    Random random = new Random(42);
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      long offset = 0;
+      for (int i = 0; i < sizes.length; i++) {
+        byte[] chunk = new byte[(int) sizes[i]];
+        random.nextBytes(chunk);
+        out.write(chunk);
+        offsets[i] = offset;
+        offset += sizes[i];
+      }
+    } finally {
+      out.close();
+    }
+    return offsets;
+  }
+
+  /** Serves chunk i as the (i mod n)-th segment of the file, and echoes RPCs back. */
+  static class BenchmarkRpcHandler extends RpcHandler {
+    static final long STREAM_ID = 1;
+
+    private final StreamManager streamManager;
+
+    BenchmarkRpcHandler(
+        final TransportConf conf,
+        final File file,
+        final long[] offsets,
+        final long[] sizes) {
+      this.streamManager = new StreamManager() {
+        @Override
+        public ManagedBuffer getChunk(long streamId, int chunkIndex) {
+          int i = chunkIndex % sizes.length;
+          return new FileSegmentManagedBuffer(conf, file, offsets[i], sizes[i]);
+        }
+      };
+    }
+
+    @Override
+    public void receive(TransportClient client, byte[] message, RpcResponseCallback callback) {
+      callback.onSuccess(message);
+    }
+
+    @Override
+    public StreamManager getStreamManager() {
+      return streamManager;
+    }
+  }
+}
@@ -0,0 +1,239 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.network.buffer;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import io.netty.channel.DefaultFileRegion;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import org.apache.spark.network.util.ByteArrayWritableChannel;
+import org.apache.spark.network.util.JavaUtils;
+import org.apache.spark.network.util.MapConfigProvider;
+import org.apache.spark.network.util.SystemPropertyConfigProvider;
+import org.apache.spark.network.util.TransportConf;
+
+public class FileChannelPoolSuite {
+  private File tempDir;
+
+  @Before
+  public void setUp() {
+    tempDir = Files.createTempDir();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    JavaUtils.deleteRecursively(tempDir);
+  }
+
+  private File createFile(String name, int size) throws Exception {
+    byte[] bytes = new byte[size];
+    for (int i = 0; i < size; i++) {
+      bytes[i] = (byte) i;
+    }
+    File file = new File(tempDir, name);
+    Files.write(bytes, file);
+    return file;
+  }
+
+  @Test
+  public void reusesChannelForSameFile() throws Exception {
+    FileChannelPool pool = new FileChannelPool(4);
+    File file = createFile("a", 100);
+
+    FileChannelPool.Lease first = pool.acquire(file);
+    FileChannelPool.Lease second = pool.acquire(file);
+    assertSame(first.channel(), second.channel());
+    first.close();
+    second.close();
+    FileChannelPool.Lease third = pool.acquire(file);
+    assertSame(first.channel(), third.channel());
+    assertTrue(third.channel().isOpen());
+    third.close();
+
+    assertEquals(1, pool.getMissCount());
+    assertEquals(2, pool.getHitCount());
+    assertEquals(1, pool.numOpenFiles());
+  }
+
+  @Test
+  public void closesLeastRecentlyUsedIdleChannels() throws Exception {
+    FileChannelPool pool = new FileChannelPool(2);
+    File a = createFile("a", 10);
+    File b = createFile("b", 10);
+    File c = createFile("c", 10);
+
+    FileChannelPool.Lease leaseA = pool.acquire(a);
+    FileChannel channelA = leaseA.channel();
+    leaseA.close();
+    FileChannelPool.Lease leaseB = pool.acquire(b);
+    FileChannel channelB = leaseB.channel();
+    leaseB.close();
+    pool.acquire(a).close();
+    pool.acquire(c).close();
+
+    assertEquals(2, pool.numOpenFiles());
+    assertTrue(channelA.isOpen());
+    assertFalse(channelB.isOpen());
+  }
+
+  @Test
+  public void neverClosesLeasedChannels() throws Exception {
+    FileChannelPool pool = new FileChannelPool(1);
+    File a = createFile("a", 10);
+    File b = createFile("b", 10);
+
+    FileChannelPool.Lease leaseA = pool.acquire(a);
+    FileChannelPool.Lease leaseB = pool.acquire(b);
+    assertEquals(2, pool.numOpenFiles());
+    assertTrue(leaseA.channel().isOpen());
+
+    leaseA.close();
+    assertFalse(leaseA.channel().isOpen());
+    assertEquals(1, pool.numOpenFiles());
+    leaseB.close();
+    assertTrue(leaseB.channel().isOpen());
+  }
+
+  @Test
+  public void reopensRewrittenFile() throws Exception {
+    FileChannelPool pool = new FileChannelPool(4);
+    File file = createFile("a", 10);
+    FileChannelPool.Lease old = pool.acquire(file);
+    old.close();
+
+    assertTrue(file.delete());
+    createFile("a", 20);
+    FileChannelPool.Lease lease = pool.acquire(file);
+    assertNotSame(old.channel(), lease.channel());
+    assertFalse(old.channel().isOpen());
+    assertEquals(20, lease.channel().size());
+    lease.close();
+  }
+
+  @Test
+  public void reopensFileReplacedWithSameLengthAndModificationTime() throws Exception {
+    FileChannelPool pool = new FileChannelPool(4);
+    File file = createFile("a", 10);
+    long lastModified = file.lastModified() - 60000;
+    assertTrue(file.setLastModified(lastModified));
+    FileChannelPool.Lease old = pool.acquire(file);
+    old.close();
+
+    // Replace the file by renaming another of the same length and modification time over it.
+    File replacement = new File(tempDir, "b");
+    Files.write(new byte[] { 9, 9, 9, 9, 9, 9, 9, 9, 9, 9 }, replacement);
+    assertTrue(replacement.setLastModified(lastModified));
+    assertTrue(replacement.renameTo(file));
+    assertEquals(lastModified, file.lastModified());
+    FileChannelPool.Lease lease = pool.acquire(file);
+    assertNotSame(old.channel(), lease.channel());
+    assertFalse(old.channel().isOpen());
+    ByteBuffer buf = ByteBuffer.allocate(1);
+    lease.channel().read(buf, 0);
+    assertEquals(9, buf.get(0));
+    lease.close();
+  }
+
+  @Test
+  public void evictsFilesUnderDirectory() throws Exception {
+    FileChannelPool pool = new FileChannelPool(4);
+    File file = createFile("a", 10);
+    FileChannelPool.Lease lease = pool.acquire(file);
+    pool.evict(tempDir);
+    assertEquals(0, pool.numOpenFiles());
+    assertTrue(lease.channel().isOpen());
+    lease.close();
+    assertFalse(lease.channel().isOpen());
+  }
+
+  @Test
+  public void readsSegmentsThroughSharedChannel() throws Exception {
+    TransportConf conf = new TransportConf(new SystemPropertyConfigProvider());
+    File file = createFile("a", 1000);
+    FileSegmentManagedBuffer first = new FileSegmentManagedBuffer(conf, file, 10, 100);
+    FileSegmentManagedBuffer second = new FileSegmentManagedBuffer(conf, file, 500, 300);
+
+    InputStream in1 = first.createInputStream();
+    InputStream in2 = second.createInputStream();
+    byte[] bytes1 = ByteStreams.toByteArray(in1);
+    byte[] bytes2 = ByteStreams.toByteArray(in2);
+    in1.close();
+    in2.close();
+    assertEquals(100, bytes1.length);
+    assertEquals(300, bytes2.length);
+    assertEquals((byte) 10, bytes1[0]);
+    assertEquals((byte) 500, bytes2[0]);
+    assertEquals((byte) 799, bytes2[299]);
+
+    ByteBuffer buf = second.nioByteBuffer();
+    assertEquals(300, buf.remaining());
+    assertEquals((byte) 500, buf.get(0));
+  }
+
+  @Test
+  public void fileRegionsLeaseSharedChannel() throws Exception {
+    TransportConf conf = new TransportConf(new MapConfigProvider(
+      ImmutableMap.of("spark.shuffle.io.lazyFD", "false")));
+    File file = createFile("a", 1000);
+    FileChannelPool pool = FileChannelPool.shared(conf);
+    long hits = pool.getHitCount();
+
+    DefaultFileRegion first = new FileSegmentManagedBuffer(conf, file, 10, 100)
+      .convertToFileRegion();
+    DefaultFileRegion second = new FileSegmentManagedBuffer(conf, file, 500, 300)
+      .convertToFileRegion();
+    assertEquals(hits + 1, pool.getHitCount());
+    ByteArrayWritableChannel target = new ByteArrayWritableChannel(300);
+    assertEquals(300, second.transferTo(target, 0));
+    assertEquals((byte) 500, target.getData()[0]);
+
+    // Releasing the regions leaves the channel open in the pool for the next reader.
+    first.release();
+    second.release();
+    FileChannelPool.Lease lease = pool.acquire(file);
+    assertTrue(lease.channel().isOpen());
+    assertEquals(hits + 2, pool.getHitCount());
+    lease.close();
+  }
+
+  @Test
+  public void lazyFileRegionsOpenWhenSent() throws Exception {
+    TransportConf conf = new TransportConf(new MapConfigProvider(
+      ImmutableMap.of("spark.shuffle.io.lazyFD", "true")));
+    File file = createFile("a", 1000);
+
+    DefaultFileRegion region = new FileSegmentManagedBuffer(conf, file, 10, 100)
+      .convertToFileRegion();
+    assertFalse(region.isOpen());
+    ByteArrayWritableChannel target = new ByteArrayWritableChannel(100);
+    assertEquals(100, region.transferTo(target, 0));
+    assertEquals((byte) 10, target.getData()[0]);
+    region.release();
+  }
+}
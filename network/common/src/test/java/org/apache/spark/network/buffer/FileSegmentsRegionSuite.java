@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.spark.network.buffer;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import org.apache.spark.network.util.ByteArrayWritableChannel;
+import org.apache.spark.network.util.JavaUtils;
+
+public class FileSegmentsRegionSuite {
+  private File tempDir;
+
+  @Before
+  public void setUp() {
+    tempDir = Files.createTempDir();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    JavaUtils.deleteRecursively(tempDir);
+  }
+
+  private File createFile(String name, int size, int first) throws Exception {
+    byte[] bytes = new byte[size];
+    for (int i = 0; i < size; i++) {
+      bytes[i] = (byte) (first + i);
+    }
+    File file = new File(tempDir, name);
+    Files.write(bytes, file);
+    return file;
+  }
+
+  @Test
+  public void transfersSegmentsInOrder() throws Exception {
+    FileChannelPool pool = new FileChannelPool(4);
+    File a = createFile("a", 20, 0);
+    File b = createFile("b", 20, 100);
+    FileSegmentsRegion region = new FileSegmentsRegion(pool,
+      new File[] { a, b, a, b },
+      new long[] { 2, 5, 10, 0 },
+      new long[] { 3, 4, 0, 2 });
+    assertEquals(9, region.count());
+
+    ByteArrayWritableChannel target = new ByteArrayWritableChannel(9);
+    assertEquals(9, region.transferTo(target, 0));
+    assertEquals(9, region.transfered());
+    assertArrayEquals(new byte[] { 2, 3, 4, 105, 106, 107, 108, 100, 101 }, target.getData());
+
+    // Each file is opened once, and released with the region.
+    assertEquals(2, pool.getMissCount());
+    assertTrue(region.release());
+    assertEquals(2, pool.numOpenFiles());
+  }
+
+  @Test
+  public void resumesAfterPartialWrites() throws Exception {
+    FileChannelPool pool = new FileChannelPool(4);
+    File a = createFile("a", 50, 0);
+    File b = createFile("b", 50, 100);
+    FileSegmentsRegion region = new FileSegmentsRegion(pool,
+      new File[] { a, b, a },
+      new long[] { 0, 10, 40 },
+      new long[] { 10, 25, 10 });
+
+    final ByteArrayWritableChannel data = new ByteArrayWritableChannel(45);
+    // Accepts at most 7 bytes per write, like a socket with a full send buffer.
+    WritableByteChannel target = new WritableByteChannel() {
+      @Override
+      public int write(ByteBuffer src) {
+        ByteBuffer part = src.duplicate();
+        part.limit(part.position() + Math.min(7, part.remaining()));
+        int written = data.write(part);
+        src.position(src.position() + written);
+        return written;
+      }
+
+      @Override
+      public boolean isOpen() {
+        return true;
+      }
+
+      @Override
+      public void close() { }
+    };
+
+    int calls = 0;
+    while (region.transfered() < region.count()) {
+      assertTrue(region.transferTo(target, region.transfered()) > 0);
+      calls++;
+    }
+    assertTrue(calls > 1);
+
+    byte[] expected = new byte[45];
+    for (int i = 0; i < 10; i++) {
+      expected[i] = (byte) i;
+      expected[35 + i] = (byte) (40 + i);
+    }
+    for (int i = 0; i < 25; i++) {
+      expected[10 + i] = (byte) (110 + i);
+    }
+    assertArrayEquals(expected, data.getData());
+    region.release();
+  }
+}
@@ -20,6 +20,7 @@ package org.apache.spark.network.sasl;
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
@@ -28,6 +29,7 @@ import java.util.Random;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
+import javax.crypto.AEADBadTagException;
 import javax.security.sasl.SaslException;
 
 import com.google.common.collect.Lists;
@@ -37,8 +39,11 @@ import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelOutboundHandlerAdapter;
 import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.DecoderException;
 import org.junit.Test;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
@@ -64,6 +69,8 @@ import org.apache.spark.network.util.TransportConf;
  */
 public class SparkSaslSuite {
 
+  private static final String AES_ENABLED_CONF = "spark.network.aes.enabled";
+
   /** Provides a secret key holder which returns secret key == appId */
   private SecretKeyHolder secretKeyHolder = new SecretKeyHolder() {
     @Override
@@ -156,6 +163,16 @@ public class SparkSaslSuite {
     }
   }
 
+  @Test
+  public void testAesEncryption() throws Exception {
+    System.setProperty(AES_ENABLED_CONF, "true");
+    try {
+      testBasicSasl(true);
+    } finally {
+      System.clearProperty(AES_ENABLED_CONF);
+    }
+  }
+
   @Test
   public void testEncryptedMessage() throws Exception {
     SaslEncryptionBackend backend = mock(SaslEncryptionBackend.class);
@@ -295,6 +312,114 @@ public class SparkSaslSuite {
     }
   }
 
+  @Test
+  public void testAesFileRegionEncryption() throws Exception {
+    System.setProperty(AES_ENABLED_CONF, "true");
+    try {
+      testFileRegionEncryption();
+    } finally {
+      System.clearProperty(AES_ENABLED_CONF);
+    }
+  }
+
+  @Test
+  public void testAesFrames() throws Exception {
+    byte[] data = new byte[8 * 1024];
+    new Random().nextBytes(data);
+    File file = File.createTempFile("sasltest", ".txt");
+    try {
+      Files.write(data, file);
+      AesConfigMessage config = AesConfigMessage.generate(16);
+      List<ByteBuf> frames = encryptAesFrames(config, data, file, 1024);
+
+      // The 3000 bytes of the buffer and the 8k of the file are each split into 1k blocks.
+      assertEquals(3 + 8, frames.size());
+      for (ByteBuf frame : frames) {
+        assertEquals(frame.readableBytes(), frame.getLong(0));
+        assertTrue(frame.readableBytes() <= 8 + 1024 + AesEncryption.TAG_LENGTH);
+      }
+
+      EmbeddedChannel server = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+      AesEncryption.addToChannel(server, config, false, 1024);
+      server.writeInbound(frames.toArray());
+      ByteArrayOutputStream received = new ByteArrayOutputStream();
+      ByteBuf decrypted;
+      while ((decrypted = (ByteBuf) server.readInbound()) != null) {
+        byte[] bytes = new byte[decrypted.readableBytes()];
+        decrypted.readBytes(bytes);
+        decrypted.release();
+        received.write(bytes);
+      }
+
+      byte[] expected = new byte[3000 + data.length];
+      System.arraycopy(data, 0, expected, 0, 3000);
+      System.arraycopy(data, 0, expected, 3000, data.length);
+      assertTrue(Arrays.equals(expected, received.toByteArray()));
+      server.close();
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testAesFramesAreAuthenticated() throws Exception {
+    byte[] data = new byte[8 * 1024];
+    new Random().nextBytes(data);
+    File file = File.createTempFile("sasltest", ".txt");
+    try {
+      Files.write(data, file);
+      AesConfigMessage config = AesConfigMessage.generate(32);
+
+      // A modified frame is rejected.
+      List<ByteBuf> frames = encryptAesFrames(config, data, file, 1024);
+      ByteBuf tampered = frames.get(1);
+      tampered.setByte(100, tampered.getByte(100) ^ 1);
+      assertAesFramesRejected(config, frames);
+
+      // So are valid frames received out of order.
+      frames = encryptAesFrames(config, data, file, 1024);
+      frames.add(0, frames.remove(1));
+      assertAesFramesRejected(config, frames);
+    } finally {
+      file.delete();
+    }
+  }
+
+  /** Encrypts the first 3000 bytes of the data as a buffer, then the file as a file region. */
+  private List<ByteBuf> encryptAesFrames(
+      AesConfigMessage config,
+      byte[] data,
+      File file,
+      int blockSize) throws Exception {
+    TransportConf conf = new TransportConf(new SystemPropertyConfigProvider());
+    EmbeddedChannel client = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+    AesEncryption.addToChannel(client, config, true, blockSize);
+    client.writeOutbound(Unpooled.copiedBuffer(data, 0, 3000),
+      new FileSegmentManagedBuffer(conf, file, 0, file.length()).convertToNetty());
+
+    List<ByteBuf> frames = Lists.newArrayList();
+    ByteBuf frame;
+    while ((frame = (ByteBuf) client.readOutbound()) != null) {
+      frames.add(frame);
+    }
+    client.close();
+    return frames;
+  }
+
+  private void assertAesFramesRejected(AesConfigMessage config, List<ByteBuf> frames)
+    throws Exception {
+    EmbeddedChannel server = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+    AesEncryption.addToChannel(server, config, false, 1024);
+    try {
+      server.writeInbound(frames.toArray());
+      fail("Should have failed to decrypt the frames.");
+    } catch (DecoderException e) {
+      assertTrue(e.getCause() instanceof AEADBadTagException);
+    } finally {
+      server.close();
+    }
+  }
+
   @Test
   public void testServerAlwaysEncrypt() throws Exception {
     final String alwaysEncryptConfName = "spark.network.sasl.serverAlwaysEncrypt";
@@ -314,6 +439,16 @@ public class SparkSaslSuite {
     }
   }
 
+  @Test
+  public void testAesDataEncryptionIsActuallyEnabled() throws Exception {
+    System.setProperty(AES_ENABLED_CONF, "true");
+    try {
+      testDataEncryptionIsActuallyEnabled();
+    } finally {
+      System.clearProperty(AES_ENABLED_CONF);
+    }
+  }
+
   @Test
   public void testDataEncryptionIsActuallyEnabled() throws Exception {
     // This test sets up an encrypted connection but then, using a client bootstrap, removes
@@ -403,7 +538,8 @@ public class SparkSaslSuite {
       throws Exception {
       if (!foundEncryptionHandler) {
         foundEncryptionHandler =
-          ctx.channel().pipeline().get(SaslEncryption.ENCRYPTION_HANDLER_NAME) != null;
+          ctx.channel().pipeline().get(SaslEncryption.ENCRYPTION_HANDLER_NAME) != null ||
+          ctx.channel().pipeline().get(AesEncryption.ENCRYPTION_HANDLER_NAME) != null;
       }
       ctx.write(msg, promise);
     }
@@ -425,7 +561,11 @@ public class SparkSaslSuite {
 
     @Override
     public void doBootstrap(TransportClient client, Channel channel) {
-      channel.pipeline().remove(SaslEncryption.ENCRYPTION_HANDLER_NAME);
+      if (channel.pipeline().get(AesEncryption.ENCRYPTION_HANDLER_NAME) != null) {
+        channel.pipeline().remove(AesEncryption.ENCRYPTION_HANDLER_NAME);
+      } else {
+        channel.pipeline().remove(SaslEncryption.ENCRYPTION_HANDLER_NAME);
+      }
     }
 
   }
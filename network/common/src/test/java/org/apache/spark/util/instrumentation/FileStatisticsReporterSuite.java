@@ -0,0 +1,84 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.util.instrumentation;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FileStatisticsReporterSuite {
+
+  private static class CollectingSink implements FileStatisticsSink {
+    final List<FileStatisticsSnapshot> snapshots = new ArrayList<FileStatisticsSnapshot>();
+
+    @Override
+    public void write(FileStatisticsSnapshot snapshot) {
+      snapshots.add(snapshot);
+    }
+
+    @Override
+    public void close() { }
+  }
+
+  private static int field(String name) {
+    return java.util.Arrays.asList(FileRoleStatistics.FIELD_NAMES).indexOf(name);
+  }
+
+  @Test
+  public void flushWritesDeltasAndSkipsIdleIntervals() throws Exception {
+    CollectingSink sink = new CollectingSink();
+    FileStatisticsReporter reporter = new FileStatisticsReporter(sink, "test");
+
+    FileStatisticsContext ctx = FileStatisticsContext.bind();
+    ctx.forRole(FileRole.SHUFFLE_INDEX).recordRead(10, 16);
+    ctx.forRole(FileRole.SHUFFLE_INDEX).recordRead(10, 16);
+    FileStatisticsContext.unbind();
+    reporter.flush();
+    reporter.flush();
+
+    assertEquals(1, sink.snapshots.size());
+    long[] index = sink.snapshots.get(0).forRole(FileRole.SHUFFLE_INDEX);
+    assertEquals(2, index[field("reads")]);
+    assertEquals(32, index[field("bytesRead")]);
+    reporter.stop();
+  }
+
+  @Test
+  public void jsonLinesSink() throws Exception {
+    File dir = Files.createTempDir();
+    FileStatisticsSink sink = FileStatisticsReporter.createSink(
+        JsonLinesFileStatisticsSink.class.getName(), dir.getPath(), "exec-1");
+    long[][] deltas = new long[FileRole.values().length][FileRoleStatistics.FIELD_NAMES.length];
+    deltas[FileRole.SPILL.ordinal()][field("writes")] = 3;
+    sink.write(new FileStatisticsSnapshot("exec-1", 1000, 2000, deltas));
+    sink.close();
+
+    File file = new File(dir, "file-io-exec-1.jsonl");
+    assertEquals(
+        "{\"source\":\"exec-1\",\"start\":1000,\"end\":2000,\"roles\":{\"SPILL\":{\"writes\":3}}}\n",
+        Files.toString(file, Charsets.UTF_8));
+    file.delete();
+    dir.delete();
+  }
+}
@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.util.instrumentation;
+
+import java.io.File;
+import java.nio.channels.FileChannel;
+
+import com.google.common.io.Files;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FileStreamStatisticsSuite {
+
+  @Test
+  public void classifyBlockFiles() {
+    assertEquals(FileRole.SHUFFLE_DATA, FileRole.fromPath("/tmp/blockmgr-1/0c/shuffle_1_2_0.data"));
+    assertEquals(FileRole.SHUFFLE_INDEX, FileRole.fromPath("/tmp/blockmgr-1/0c/shuffle_1_2_0.index"));
+    assertEquals(FileRole.SPILL, FileRole.fromPath("/tmp/blockmgr-1/11/temp_shuffle_abc"));
+    assertEquals(FileRole.SPILL, FileRole.fromPath("/tmp/blockmgr-1/11/temp_local_abc"));
+    assertEquals(FileRole.BLOCK_STORE, FileRole.fromPath("/tmp/blockmgr-1/3f/rdd_4_1"));
+    assertEquals(FileRole.OTHER, FileRole.fromPath("/etc/hosts"));
+    assertEquals(FileRole.OTHER, FileRole.fromPath(null));
+  }
+
+  @Test
+  public void recordIntoBoundContext() throws Exception {
+    File dir = Files.createTempDir();
+    File file = new File(dir, "temp_local_test");
+    FileRoleStatistics totals = FileStreamStatistics.totalsFor(FileRole.SPILL);
+    long readsBefore = totals.reads.sum();
+
+    FileStatisticsContext ctx = FileStatisticsContext.bind();
+    try {
+      InstrumentedFileOutputStream out = new InstrumentedFileOutputStream(file);
+      out.write(new byte[16]);
+      out.close();
+      InstrumentedFileInputStream in = new InstrumentedFileInputStream(file);
+      in.read(new byte[16]);
+      in.close();
+
+      FileRoleStatistics spill = ctx.forRole(FileRole.SPILL);
+      assertEquals(1, spill.outputOpens.sum());
+      assertEquals(1, spill.writes.sum());
+      assertEquals(1, spill.inputOpens.sum());
+      assertEquals(1, spill.inputCloses.sum());
+      assertEquals(1, spill.reads.sum());
+      assertEquals(16, spill.bytesWritten.sum());
+      assertEquals(16, spill.bytesRead.sum());
+      assertTrue(ctx.forRole(FileRole.SHUFFLE_DATA).isEmpty());
+      // Nothing reaches the executor-wide totals until the task ends.
+      assertEquals(readsBefore, totals.reads.sum());
+    } finally {
+      assertSame(ctx, FileStatisticsContext.unbind());
+      file.delete();
+      dir.delete();
+    }
+    assertNull(FileStatisticsContext.get());
+    assertEquals(readsBefore + 1, totals.reads.sum());
+  }
+
+  @Test
+  public void recordChannelTransfers() throws Exception {
+    File dir = Files.createTempDir();
+    File spill = new File(dir, "temp_shuffle_test");
+    File data = new File(dir, "shuffle_0_0_0.data");
+    Files.write(new byte[100], spill);
+
+    FileStatisticsContext ctx = FileStatisticsContext.bind();
+    try {
+      FileChannel in = new InstrumentedFileInputStream(spill).getChannel();
+      FileChannel out = new InstrumentedFileOutputStream(data, true).getChannel();
+      assertEquals(100, in.transferTo(0, 100, out));
+      assertEquals(100, out.position());
+      assertEquals(100, in.map(FileChannel.MapMode.READ_ONLY, 0, 100).remaining());
+      in.close();
+      out.close();
+
+      FileRoleStatistics spillStats = ctx.forRole(FileRole.SPILL);
+      FileRoleStatistics dataStats = ctx.forRole(FileRole.SHUFFLE_DATA);
+      assertEquals(1, spillStats.transfers.sum());
+      assertEquals(100, spillStats.bytesTransferred.sum());
+      assertEquals(100, spillStats.bytesMapped.sum());
+      assertEquals(1, spillStats.inputCloses.sum());
+      assertEquals(1, dataStats.transfers.sum());
+      assertEquals(100, dataStats.bytesTransferred.sum());
+      assertEquals(1, dataStats.positionCalls.sum());
+      assertEquals(1, dataStats.outputCloses.sum());
+      assertEquals(100, data.length());
+    } finally {
+      FileStatisticsContext.unbind();
+      spill.delete();
+      data.delete();
+      dir.delete();
+    }
+  }
+}
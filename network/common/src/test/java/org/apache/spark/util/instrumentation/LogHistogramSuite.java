@@ -0,0 +1,50 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.util.instrumentation;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LogHistogramSuite {
+
+  @Test
+  public void bucketsCoverValuesWithBoundedError() {
+    long[] values = { 0, 1, 7, 8, 15, 16, 17, 1000, 123456789L, Long.MAX_VALUE };
+    for (long v : values) {
+      long high = LogHistogram.highestValueIn(LogHistogram.bucketFor(v));
+      assertTrue(high >= v);
+      assertTrue(high - v <= v / LogHistogram.SUB_BUCKETS);
+    }
+  }
+
+  @Test
+  public void percentiles() {
+    LogHistogram h = new LogHistogram();
+    assertEquals(0, h.percentile(0.5));
+    for (int i = 1; i <= 1000; i++) {
+      h.record(i);
+    }
+    h.record(200000000L);
+    assertEquals(1001, h.count());
+    assertEquals(200000000L, h.max());
+    assertEquals(500, h.percentile(0.5), 500 / LogHistogram.SUB_BUCKETS);
+    assertEquals(990, h.percentile(0.99), 990 / LogHistogram.SUB_BUCKETS);
+    assertEquals(200000000L, h.percentile(1.0));
+  }
+}
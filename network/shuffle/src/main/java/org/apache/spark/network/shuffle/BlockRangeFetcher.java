@@ -0,0 +1,296 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.spark.network.shuffle;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import io.netty.buffer.ByteBuf;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.spark.network.buffer.ManagedBuffer;
+import org.apache.spark.network.buffer.NettyManagedBuffer;
+import org.apache.spark.network.buffer.NioManagedBuffer;
+import org.apache.spark.network.client.ChunkReceivedCallback;
+import org.apache.spark.network.client.RpcResponseCallback;
+import org.apache.spark.network.client.TransportClient;
+import org.apache.spark.network.shuffle.protocol.BlockTransferMessage;
+import org.apache.spark.network.shuffle.protocol.OpenBlockRanges;
+import org.apache.spark.network.shuffle.protocol.RangeStreamHandle;
+
+/**
+ * Fetches shuffle blocks of a single shuffle by grouping the blocks of each map output that are
+ * adjacent both in the request and in reduce partition order into ranges. Each range is opened
+ * with a single index lookup, and the server sends one or more consecutive ranges per chunk. Each
+ * chunk is split back into its blocks using the block counts and exact block lengths returned when
+ * opening the ranges. The listener is invoked once per block, just like with
+ * {@link OneForOneBlockFetcher}.
+ *
+ * The blocks handed to the listener share the memory of their chunk, so they must be retained
+ * like any other fetched block if they are used after the callback returns.
+ */
+public class BlockRangeFetcher {
+  private final Logger logger = LoggerFactory.getLogger(BlockRangeFetcher.class);
+
+  private final TransportClient client;
+  private final OpenBlockRanges openMessage;
+  private final String[] blockIds;
+  private final BlockFetchingListener listener;
+  private final Runnable rangesUnsupportedCallback;
+  private final ChunkReceivedCallback chunkCallback;
+
+  private RangeStreamHandle streamHandle = null;
+  /** Index in blockIds of the first block of each chunk, followed by blockIds.length. */
+  private int[] chunkStarts = null;
+
+  public BlockRangeFetcher(
+      TransportClient client,
+      String appId,
+      String execId,
+      String[] blockIds,
+      BlockFetchingListener listener) {
+    this(client, appId, execId, blockIds, listener, null);
+  }
+
+  /**
+   * Creates a fetcher that runs rangesUnsupportedCallback instead of failing the blocks if the
+   * server is too old to know {@link OpenBlockRanges}, so that the caller can fetch the blocks
+   * some other way. The callback may be null, in which case the blocks are failed.
+   */
+  public BlockRangeFetcher(
+      TransportClient client,
+      String appId,
+      String execId,
+      String[] blockIds,
+      BlockFetchingListener listener,
+      Runnable rangesUnsupportedCallback) {
+    int[][] ids = parseShuffleBlockIds(blockIds);
+    if (ids == null) {
+      throw new IllegalArgumentException(
+        "Expected shuffle blocks of a single shuffle, got: " + Arrays.toString(blockIds));
+    }
+    int numRanges = countRanges(ids);
+    int[] mapIds = new int[numRanges];
+    int[] startReduceIds = new int[numRanges];
+    int[] endReduceIds = new int[numRanges];
+    int range = -1;
+    for (int i = 0; i < blockIds.length; i++) {
+      if (i == 0 || !continuesRange(ids, i)) {
+        range++;
+        mapIds[range] = ids[1][i];
+        startReduceIds[range] = ids[2][i];
+      }
+      endReduceIds[range] = ids[2][i] + 1;
+    }
+
+    this.client = client;
+    this.openMessage =
+      new OpenBlockRanges(appId, execId, ids[0][0], mapIds, startReduceIds, endReduceIds);
+    this.blockIds = blockIds;
+    this.listener = listener;
+    this.rangesUnsupportedCallback = rangesUnsupportedCallback;
+    this.chunkCallback = new ChunkCallback();
+  }
+
+  /** Returns whether the given blocks are shuffle blocks that all belong to the same shuffle. */
+  public static boolean canFetchAsRanges(String[] blockIds) {
+    return parseShuffleBlockIds(blockIds) != null;
+  }
+
+  /**
+   * Returns whether the given blocks all belong to the same shuffle and fetching them as ranges
+   * takes fewer chunks than fetching them one by one, even if the server sends every range as its
+   * own chunk.
+   */
+  public static boolean shouldFetchAsRanges(String[] blockIds) {
+    int[][] ids = parseShuffleBlockIds(blockIds);
+    return ids != null && countRanges(ids) < blockIds.length;
+  }
+
+  /**
+   * Parses "shuffle_ShuffleId_MapId_ReduceId" block ids into their shuffle, map and reduce ids.
+   * Returns null if any id is not a shuffle block id or the blocks belong to several shuffles.
+   */
+  private static int[][] parseShuffleBlockIds(String[] blockIds) {
+    if (blockIds.length == 0) {
+      return null;
+    }
+    int[][] ids = new int[3][blockIds.length];
+    for (int i = 0; i < blockIds.length; i++) {
+      String[] blockIdParts = blockIds[i].split("_");
+      if (blockIdParts.length != 4 || !blockIdParts[0].equals("shuffle")) {
+        return null;
+      }
+      try {
+        for (int part = 0; part < 3; part++) {
+          ids[part][i] = Integer.parseInt(blockIdParts[part + 1]);
+        }
+      } catch (NumberFormatException e) {
+        return null;
+      }
+      if (ids[0][i] != ids[0][0]) {
+        return null;
+      }
+    }
+    return ids;
+  }
+
+  /** Returns whether block i directly follows block i - 1 in the same map output. */
+  private static boolean continuesRange(int[][] ids, int i) {
+    return ids[1][i] == ids[1][i - 1] && ids[2][i] == ids[2][i - 1] + 1;
+  }
+
+  private static int countRanges(int[][] ids) {
+    int numRanges = 1;
+    for (int i = 1; i < ids[0].length; i++) {
+      if (!continuesRange(ids, i)) {
+        numRanges++;
+      }
+    }
+    return numRanges;
+  }
+
+  /** Callback invoked on receipt of each chunk, which holds the blocks of one or more ranges. */
+  private class ChunkCallback implements ChunkReceivedCallback {
+    @Override
+    public void onSuccess(int chunkIndex, ManagedBuffer buffer) {
+      int firstBlock = chunkStarts[chunkIndex];
+      int endBlock = chunkStarts[chunkIndex + 1];
+      long rangeLength = 0;
+      for (int i = firstBlock; i < endBlock; i++) {
+        rangeLength += streamHandle.blockLengths[i];
+      }
+      if (buffer.size() != rangeLength) {
+        failRemainingBlocks(Arrays.copyOfRange(blockIds, firstBlock, endBlock),
+          new IllegalStateException(String.format("Expected %d bytes for blocks %s, got %d",
+            rangeLength, Arrays.toString(Arrays.copyOfRange(blockIds, firstBlock, endBlock)),
+            buffer.size())));
+        return;
+      }
+
+      ByteBuf nettyBuf = null;
+      ByteBuffer nioBuf = null;
+      try {
+        if (buffer instanceof NettyManagedBuffer) {
+          // Slices share the reference count of the chunk, so retaining a block keeps it alive.
+          nettyBuf = (ByteBuf) buffer.convertToNetty();
+        } else {
+          nioBuf = buffer.nioByteBuffer();
+        }
+      } catch (IOException e) {
+        failRemainingBlocks(Arrays.copyOfRange(blockIds, firstBlock, endBlock), e);
+        return;
+      }
+      int offset = 0;
+      for (int i = firstBlock; i < endBlock; i++) {
+        int length = (int) streamHandle.blockLengths[i];
+        ManagedBuffer block;
+        if (nettyBuf != null) {
+          block = new NettyManagedBuffer(nettyBuf.slice(nettyBuf.readerIndex() + offset, length));
+        } else {
+          ByteBuffer slice = nioBuf.duplicate();
+          slice.position(nioBuf.position() + offset);
+          slice.limit(nioBuf.position() + offset + length);
+          block = new NioManagedBuffer(slice.slice());
+        }
+        listener.onBlockFetchSuccess(blockIds[i], block);
+        offset += length;
+      }
+    }
+
+    @Override
+    public void onFailure(int chunkIndex, Throwable e) {
+      // On receipt of a failure, fail every block from the failed chunk onwards.
+      String[] remainingBlockIds =
+        Arrays.copyOfRange(blockIds, chunkStarts[chunkIndex], blockIds.length);
+      failRemainingBlocks(remainingBlockIds, e);
+    }
+  }
+
+  /**
+   * Begins the fetching process, calling the listener with every block fetched. The RPC must
+   * return a {@link RangeStreamHandle}. We will send all fetch requests immediately, without
+   * throttling.
+   */
+  public void start() {
+    client.sendRpc(openMessage.toByteArray(), new RpcResponseCallback() {
+      @Override
+      public void onSuccess(byte[] response) {
+        try {
+          RangeStreamHandle handle =
+            (RangeStreamHandle) BlockTransferMessage.Decoder.fromByteArray(response);
+          logger.trace("Successfully opened block ranges {}, preparing to fetch chunks.", handle);
+          int[] starts = new int[handle.numChunks + 1];
+          for (int i = 0; i < handle.numChunks; i++) {
+            starts[i + 1] = starts[i] + handle.chunkBlockCounts[i];
+          }
+          if (starts[handle.numChunks] != blockIds.length
+              || handle.blockLengths.length != blockIds.length) {
+            throw new IllegalStateException("Unexpected stream for " + openMessage + ": "
+              + handle);
+          }
+          chunkStarts = starts;
+          streamHandle = handle;
+
+          // Immediately request all chunks -- we expect that the total size of the request is
+          // reasonable due to higher level chunking in [[ShuffleBlockFetcherIterator]].
+          for (int i = 0; i < streamHandle.numChunks; i++) {
+            client.fetchChunk(streamHandle.streamId, i, chunkCallback);
+          }
+        } catch (Exception e) {
+          logger.error("Failed while starting block range fetches after success", e);
+          failRemainingBlocks(blockIds, e);
+        }
+      }
+
+      @Override
+      public void onFailure(Throwable e) {
+        if (rangesUnsupportedCallback != null && isUnknownMessage(e)) {
+          logger.warn("Server does not support fetching block ranges: {}", e.getMessage());
+          rangesUnsupportedCallback.run();
+          return;
+        }
+        logger.error("Failed while starting block range fetches", e);
+        failRemainingBlocks(blockIds, e);
+      }
+    });
+  }
+
+  /**
+   * Returns whether the server failed the RPC because it could not decode the message, which is
+   * what a shuffle service from before {@link OpenBlockRanges} existed does. The server only sends
+   * back the stack trace of its exception as a string, so we have to match on it.
+   */
+  private static boolean isUnknownMessage(Throwable e) {
+    String unknownMessage =
+      "Unknown message type: " + BlockTransferMessage.Type.OPEN_BLOCK_RANGES.id();
+    return e.getMessage() != null && e.getMessage().contains(unknownMessage);
+  }
+
+  /** Invokes the "onBlockFetchFailure" callback for every listed block id. */
+  private void failRemainingBlocks(String[] failedBlockIds, Throwable e) {
+    for (String blockId : failedBlockIds) {
+      try {
+        listener.onBlockFetchFailure(blockId, e);
+      } catch (Exception e2) {
+        logger.error("Error in block fetch failure callback", e2);
+      }
+    }
+  }
+}
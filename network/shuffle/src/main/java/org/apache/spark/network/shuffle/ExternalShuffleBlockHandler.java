@@ -20,11 +20,15 @@ package org.apache.spark.network.shuffle;
 import java.util.List;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.Lists;
+import com.google.common.primitives.Ints;
 import org.apache.spark.network.util.TransportConf;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.apache.spark.network.buffer.FileSegmentManagedBuffer;
+import org.apache.spark.network.buffer.FileSegmentsManagedBuffer;
 import org.apache.spark.network.buffer.ManagedBuffer;
 import org.apache.spark.network.client.RpcResponseCallback;
 import org.apache.spark.network.client.TransportClient;
@@ -32,7 +36,9 @@ import org.apache.spark.network.server.OneForOneStreamManager;
 import org.apache.spark.network.server.RpcHandler;
 import org.apache.spark.network.server.StreamManager;
 import org.apache.spark.network.shuffle.protocol.BlockTransferMessage;
+import org.apache.spark.network.shuffle.protocol.OpenBlockRanges;
 import org.apache.spark.network.shuffle.protocol.OpenBlocks;
+import org.apache.spark.network.shuffle.protocol.RangeStreamHandle;
 import org.apache.spark.network.shuffle.protocol.RegisterExecutor;
 import org.apache.spark.network.shuffle.protocol.StreamHandle;
 
@@ -41,16 +47,20 @@ import org.apache.spark.network.shuffle.protocol.StreamHandle;
  *
  * Handles registering executors and opening shuffle blocks from them. Shuffle blocks are registered
  * with the "one-for-one" strategy, meaning each Transport-layer Chunk is equivalent to one Spark-
- * level shuffle block.
+ * level shuffle block. Ranges of contiguous sort-based shuffle blocks of one map output can also
+ * be opened together, in which case each chunk covers a whole range, or several consecutive small
+ * ranges that are sent as a single transfer of their file segments.
  */
 public class ExternalShuffleBlockHandler extends RpcHandler {
   private final Logger logger = LoggerFactory.getLogger(ExternalShuffleBlockHandler.class);
 
   private final ExternalShuffleBlockResolver blockManager;
   private final OneForOneStreamManager streamManager;
+  /** Null if consecutive block ranges are never gathered into one chunk. */
+  private final TransportConf coalesceConf;
 
   public ExternalShuffleBlockHandler(TransportConf conf) {
-    this(new OneForOneStreamManager(), new ExternalShuffleBlockResolver(conf));
+    this(new OneForOneStreamManager(), new ExternalShuffleBlockResolver(conf), conf);
   }
 
   /** Enables mocking out the StreamManager and BlockManager. */
@@ -58,8 +68,17 @@ public class ExternalShuffleBlockHandler extends RpcHandler {
   ExternalShuffleBlockHandler(
       OneForOneStreamManager streamManager,
       ExternalShuffleBlockResolver blockManager) {
+    this(streamManager, blockManager, null);
+  }
+
+  @VisibleForTesting
+  ExternalShuffleBlockHandler(
+      OneForOneStreamManager streamManager,
+      ExternalShuffleBlockResolver blockManager,
+      TransportConf coalesceConf) {
     this.streamManager = streamManager;
     this.blockManager = blockManager;
+    this.coalesceConf = coalesceConf;
   }
 
   @Override
@@ -83,6 +102,49 @@ public class ExternalShuffleBlockHandler extends RpcHandler {
       logger.trace("Registered streamId {} with {} buffers", streamId, msg.blockIds.length);
       callback.onSuccess(new StreamHandle(streamId, msg.blockIds.length).toByteArray());
 
+    } else if (msgObj instanceof OpenBlockRanges) {
+      OpenBlockRanges msg = (OpenBlockRanges) msgObj;
+      long maxChunkSize = coalesceConf == null ? 0 : coalesceConf.coalescedChunkSize();
+      List<ManagedBuffer> chunks = Lists.newArrayList();
+      List<Integer> chunkBlockCounts = Lists.newArrayList();
+      long[] blockLengths = new long[msg.numBlocks()];
+
+      // Small ranges waiting to be sent together as the next chunk.
+      List<FileSegmentManagedBuffer> pending = Lists.newArrayList();
+      long pendingSize = 0;
+      int pendingBlocks = 0;
+      int blockIndex = 0;
+      for (int i = 0; i < msg.mapIds.length; i++) {
+        int width = msg.endReduceIds[i] - msg.startReduceIds[i];
+        long[] rangeLengths = new long[width];
+        ManagedBuffer range = blockManager.getBlockRangeData(msg.appId, msg.execId,
+          msg.shuffleId, msg.mapIds[i], msg.startReduceIds[i], msg.endReduceIds[i], rangeLengths);
+        System.arraycopy(rangeLengths, 0, blockLengths, blockIndex, width);
+        blockIndex += width;
+
+        if (pendingSize + range.size() > maxChunkSize
+            || !(range instanceof FileSegmentManagedBuffer)) {
+          addChunk(pending, pendingBlocks, chunks, chunkBlockCounts);
+          pendingSize = 0;
+          pendingBlocks = 0;
+        }
+        if (range.size() < maxChunkSize && range instanceof FileSegmentManagedBuffer) {
+          pending.add((FileSegmentManagedBuffer) range);
+          pendingSize += range.size();
+          pendingBlocks += width;
+        } else {
+          chunks.add(range);
+          chunkBlockCounts.add(width);
+        }
+      }
+      addChunk(pending, pendingBlocks, chunks, chunkBlockCounts);
+
+      long streamId = streamManager.registerStream(chunks.iterator());
+      logger.trace("Registered streamId {} with {} ranges of {} blocks in {} chunks",
+        streamId, msg.mapIds.length, blockLengths.length, chunks.size());
+      callback.onSuccess(new RangeStreamHandle(
+        streamId, Ints.toArray(chunkBlockCounts), blockLengths).toByteArray());
+
     } else if (msgObj instanceof RegisterExecutor) {
       RegisterExecutor msg = (RegisterExecutor) msgObj;
       blockManager.registerExecutor(msg.appId, msg.execId, msg.executorInfo);
@@ -93,6 +155,27 @@ public class ExternalShuffleBlockHandler extends RpcHandler {
     }
   }
 
+  /**
+   * Adds the pending ranges as a single chunk, which is sent as one transfer of all their file
+   * segments, and clears them.
+   */
+  private void addChunk(
+      List<FileSegmentManagedBuffer> pending,
+      int pendingBlocks,
+      List<ManagedBuffer> chunks,
+      List<Integer> chunkBlockCounts) {
+    if (pending.size() == 1) {
+      chunks.add(pending.get(0));
+    } else if (pending.size() > 1) {
+      chunks.add(new FileSegmentsManagedBuffer(
+        coalesceConf, Lists.newArrayList(pending)));
+    }
+    if (!pending.isEmpty()) {
+      chunkBlockCounts.add(pendingBlocks);
+      pending.clear();
+    }
+  }
+
   @Override
   public StreamManager getStreamManager() {
     return streamManager;
@@ -105,4 +188,9 @@ public class ExternalShuffleBlockHandler extends RpcHandler {
   public void applicationRemoved(String appId, boolean cleanupLocalDirs) {
     blockManager.applicationRemoved(appId, cleanupLocalDirs);
   }
+
+  /** Hit, miss and eviction counts of the resolver's shuffle index cache, for sizing it. */
+  public CacheStats getShuffleIndexCacheStats() {
+    return blockManager.getShuffleIndexCacheStats();
+  }
 }
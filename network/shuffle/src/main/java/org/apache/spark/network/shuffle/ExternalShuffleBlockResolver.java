@@ -17,29 +17,33 @@
 
 package org.apache.spark.network.shuffle;
 
-import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
 import com.google.common.collect.Maps;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.apache.spark.network.buffer.FileChannelPool;
 import org.apache.spark.network.buffer.FileSegmentManagedBuffer;
 import org.apache.spark.network.buffer.ManagedBuffer;
 import org.apache.spark.network.shuffle.protocol.ExecutorShuffleInfo;
 import org.apache.spark.network.util.JavaUtils;
 import org.apache.spark.network.util.NettyUtils;
 import org.apache.spark.network.util.TransportConf;
-import org.apache.spark.util.instrumentation.*;
 
 /**
  * Manages converting shuffle BlockIds into physical segments of local files, from a process outside
@@ -59,6 +63,9 @@ public class ExternalShuffleBlockResolver {
   // Single-threaded Java executor used to perform expensive recursive directory deletion.
   private final Executor directoryCleaner;
 
+  // Parsed sort-based shuffle index files, so that each block fetch does not reopen its index.
+  private final Cache<ShuffleIndexKey, ShuffleIndexInformation> shuffleIndexCache;
+
   private final TransportConf conf;
 
   public ExternalShuffleBlockResolver(TransportConf conf) {
@@ -73,6 +80,21 @@ public class ExternalShuffleBlockResolver {
     this.conf = conf;
     this.executors = Maps.newConcurrentMap();
     this.directoryCleaner = directoryCleaner;
+    this.shuffleIndexCache = CacheBuilder.newBuilder()
+      .maximumWeight(conf.shuffleIndexCacheSize())
+      .weigher(new Weigher<ShuffleIndexKey, ShuffleIndexInformation>() {
+        @Override
+        public int weigh(ShuffleIndexKey key, ShuffleIndexInformation value) {
+          return value.getRetainedSize();
+        }
+      })
+      .recordStats()
+      .build();
+  }
+
+  /** Hit, miss and eviction counts of the shuffle index cache. */
+  public CacheStats getShuffleIndexCacheStats() {
+    return shuffleIndexCache.stats();
   }
 
   /** Registers a new Executor with all the configuration we need to find its shuffle files. */
@@ -111,7 +133,7 @@ public class ExternalShuffleBlockResolver {
       return getHashBasedShuffleBlockData(executor, blockId);
     } else if ("org.apache.spark.shuffle.sort.SortShuffleManager".equals(executor.shuffleManager)
       || "org.apache.spark.shuffle.unsafe.UnsafeShuffleManager".equals(executor.shuffleManager)) {
-      return getSortBasedShuffleBlockData(executor, shuffleId, mapId, reduceId);
+      return getSortBasedShuffleBlockData(executor, appId, execId, shuffleId, mapId, reduceId);
     } else {
       throw new UnsupportedOperationException(
         "Unsupported shuffle manager: " + executor.shuffleManager);
@@ -151,6 +173,14 @@ public class ExternalShuffleBlockResolver {
         }
       }
     }
+
+    Iterator<ShuffleIndexKey> keys = shuffleIndexCache.asMap().keySet().iterator();
+    while (keys.hasNext()) {
+      if (appId.equals(keys.next().appId)) {
+        keys.remove();
+      }
+    }
+    logger.info("Shuffle index cache: {}", shuffleIndexCache.stats());
   }
 
   /**
@@ -160,6 +190,8 @@ public class ExternalShuffleBlockResolver {
   private void deleteExecutorDirs(String[] dirs) {
     for (String localDir : dirs) {
       try {
+        // Close pooled descriptors first, or they would keep the deleted files' space in use.
+        FileChannelPool.evictShared(new File(localDir));
         JavaUtils.deleteRecursively(new File(localDir));
         logger.debug("Successfully cleaned up directory: " + localDir);
       } catch (Exception e) {
@@ -178,34 +210,91 @@ public class ExternalShuffleBlockResolver {
     return new FileSegmentManagedBuffer(conf, shuffleFile, 0, shuffleFile.length());
   }
 
+  /**
+   * Obtains a single FileSegmentManagedBuffer covering the contiguous reduce partitions
+   * [startReduceId, endReduceId) of one sort-based map output, reading its index only once.
+   * The length of each block in the range is stored into blockLengths, which must have room for
+   * (endReduceId - startReduceId) entries.
+   */
+  public ManagedBuffer getBlockRangeData(
+      String appId,
+      String execId,
+      int shuffleId,
+      int mapId,
+      int startReduceId,
+      int endReduceId,
+      long[] blockLengths) {
+    if (startReduceId < 0 || endReduceId <= startReduceId) {
+      throw new IllegalArgumentException(String.format(
+        "Invalid reduce range [%d, %d) of shuffle %d map %d",
+        startReduceId, endReduceId, shuffleId, mapId));
+    }
+    ExecutorShuffleInfo executor = executors.get(new AppExecId(appId, execId));
+    if (executor == null) {
+      throw new RuntimeException(
+        String.format("Executor is not registered (appId=%s, execId=%s)", appId, execId));
+    }
+    if (!"org.apache.spark.shuffle.sort.SortShuffleManager".equals(executor.shuffleManager)
+      && !"org.apache.spark.shuffle.unsafe.UnsafeShuffleManager".equals(executor.shuffleManager)) {
+      throw new UnsupportedOperationException(
+        "Block ranges are not supported by shuffle manager: " + executor.shuffleManager);
+    }
+
+    ShuffleIndexInformation index = getShuffleIndex(executor, appId, execId, shuffleId, mapId);
+    for (int reduceId = startReduceId; reduceId < endReduceId; reduceId++) {
+      blockLengths[reduceId - startReduceId] = index.getLength(reduceId);
+    }
+    long offset = index.getOffset(startReduceId);
+    return new FileSegmentManagedBuffer(
+      conf,
+      getFile(executor.localDirs, executor.subDirsPerLocalDir,
+        "shuffle_" + shuffleId + "_" + mapId + "_0.data"),
+      offset,
+      index.getOffset(endReduceId) - offset);
+  }
+
   /**
    * Sort-based shuffle data uses an index called "shuffle_ShuffleId_MapId_0.index" into a data file
    * called "shuffle_ShuffleId_MapId_0.data". This logic is from IndexShuffleBlockResolver,
    * and the block id format is from ShuffleDataBlockId and ShuffleIndexBlockId.
    */
   private ManagedBuffer getSortBasedShuffleBlockData(
-    ExecutorShuffleInfo executor, int shuffleId, int mapId, int reduceId) {
-    File indexFile = getFile(executor.localDirs, executor.subDirsPerLocalDir,
+    ExecutorShuffleInfo executor, String appId, String execId, int shuffleId, int mapId,
+    int reduceId) {
+    ShuffleIndexInformation index = getShuffleIndex(executor, appId, execId, shuffleId, mapId);
+    return new FileSegmentManagedBuffer(
+      conf,
+      getFile(executor.localDirs, executor.subDirsPerLocalDir,
+        "shuffle_" + shuffleId + "_" + mapId + "_0.data"),
+      index.getOffset(reduceId),
+      index.getLength(reduceId));
+  }
+
+  /** Returns the parsed index of a sort-based map output, from the index cache if possible. */
+  private ShuffleIndexInformation getShuffleIndex(
+      ExecutorShuffleInfo executor, String appId, String execId, int shuffleId, int mapId) {
+    final File indexFile = getFile(executor.localDirs, executor.subDirsPerLocalDir,
       "shuffle_" + shuffleId + "_" + mapId + "_0.index");
 
-    DataInputStream in = null;
     try {
-      in = new DataInputStream(new InstrumentedFileInputStream(indexFile));
-      in.skipBytes(reduceId * 8);
-      long offset = in.readLong();
-      long nextOffset = in.readLong();
-      return new FileSegmentManagedBuffer(
-        conf,
-        getFile(executor.localDirs, executor.subDirsPerLocalDir,
-          "shuffle_" + shuffleId + "_" + mapId + "_0.data"),
-        offset,
-        nextOffset - offset);
+      ShuffleIndexKey key = new ShuffleIndexKey(appId, execId, shuffleId, mapId);
+      ShuffleIndexInformation index = shuffleIndexCache.get(key,
+        new Callable<ShuffleIndexInformation>() {
+          @Override
+          public ShuffleIndexInformation call() throws IOException {
+            return new ShuffleIndexInformation(indexFile);
+          }
+        });
+      // A re-executed map task may have rewritten the index since we cached it.
+      if (index.isStale(indexFile)) {
+        index = new ShuffleIndexInformation(indexFile);
+        shuffleIndexCache.put(key, index);
+      }
+      return index;
+    } catch (ExecutionException e) {
+      throw new RuntimeException("Failed to open file: " + indexFile, e.getCause());
     } catch (IOException e) {
       throw new RuntimeException("Failed to open file: " + indexFile, e);
-    } finally {
-      if (in != null) {
-        JavaUtils.closeQuietly(in);
-      }
     }
   }
 
@@ -221,6 +310,36 @@ public class ExternalShuffleBlockResolver {
     return new File(new File(localDir, String.format("%02x", subDirId)), filename);
   }
 
+  /** Identifies the index file of one map output of one executor. */
+  private static class ShuffleIndexKey {
+    final String appId;
+    final String execId;
+    final int shuffleId;
+    final int mapId;
+
+    private ShuffleIndexKey(String appId, String execId, int shuffleId, int mapId) {
+      this.appId = appId;
+      this.execId = execId;
+      this.shuffleId = shuffleId;
+      this.mapId = mapId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+
+      ShuffleIndexKey that = (ShuffleIndexKey) o;
+      return shuffleId == that.shuffleId && mapId == that.mapId &&
+        Objects.equal(appId, that.appId) && Objects.equal(execId, that.execId);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(appId, execId, shuffleId, mapId);
+    }
+  }
+
   /** Simply encodes an executor's full ID, which is appId + execId. */
   private static class AppExecId {
     final String appId;
@@ -18,7 +18,10 @@
 package org.apache.spark.network.shuffle;
 
 import java.io.IOException;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
@@ -49,6 +52,9 @@ public class ExternalShuffleClient extends ShuffleClient {
   private final boolean saslEnabled;
   private final boolean saslEncryptionEnabled;
   private final SecretKeyHolder secretKeyHolder;
+  /** host:port of the shuffle services that turned out not to support fetching block ranges. */
+  private final Set<String> servicesWithoutRanges =
+    Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
   protected TransportClientFactory clientFactory;
   protected String appId;
@@ -99,10 +105,28 @@ public class ExternalShuffleClient extends ShuffleClient {
       RetryingBlockFetcher.BlockFetchStarter blockFetchStarter =
         new RetryingBlockFetcher.BlockFetchStarter() {
           @Override
-          public void createAndStart(String[] blockIds, BlockFetchingListener listener)
-              throws IOException {
-            TransportClient client = clientFactory.createClient(host, port);
-            new OneForOneBlockFetcher(client, appId, execId, blockIds, listener).start();
+          public void createAndStart(
+              final String[] blockIds,
+              final BlockFetchingListener listener) throws IOException {
+            final TransportClient client = clientFactory.createClient(host, port);
+            final String service = host + ":" + port;
+            // The shuffle service gathers small ranges into larger chunks, so even single-block
+            // ranges are worth fetching through it.
+            if (conf.fetchBlockRanges() && !servicesWithoutRanges.contains(service)
+                && BlockRangeFetcher.canFetchAsRanges(blockIds)) {
+              // Shuffle services older than this client reject the request, in which case we
+              // fetch the blocks one by one from them from now on.
+              Runnable fallback = new Runnable() {
+                @Override
+                public void run() {
+                  servicesWithoutRanges.add(service);
+                  new OneForOneBlockFetcher(client, appId, execId, blockIds, listener).start();
+                }
+              };
+              new BlockRangeFetcher(client, appId, execId, blockIds, listener, fallback).start();
+            } else {
+              new OneForOneBlockFetcher(client, appId, execId, blockIds, listener).start();
+            }
           }
         };
 
@@ -0,0 +1,87 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.network.shuffle;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+
+import com.google.common.io.ByteStreams;
+
+import org.apache.spark.network.util.JavaUtils;
+import org.apache.spark.util.instrumentation.InstrumentedFileInputStream;
+
+/**
+ * The parsed contents of a sort-based shuffle index file: the offsets at which each reduce
+ * partition starts in the corresponding data file, followed by the length of that file.
+ */
+public class ShuffleIndexInformation {
+  private final long[] offsets;
+  /**
+   * Identity (inode where supported) and modification time of the index file when it was read,
+   * used to detect a rewritten file. Index files are replaced by renaming a new file over them,
+   * so a rewrite changes the file key even within the modification time's granularity.
+   */
+  private final Object fileKey;
+  private final FileTime lastModified;
+
+  public ShuffleIndexInformation(File indexFile) throws IOException {
+    BasicFileAttributes attributes = readAttributes(indexFile);
+    fileKey = attributes.fileKey();
+    lastModified = attributes.lastModifiedTime();
+    int size = (int) attributes.size();
+    byte[] bytes = new byte[size];
+    DataInputStream in = new DataInputStream(new InstrumentedFileInputStream(indexFile));
+    try {
+      ByteStreams.readFully(in, bytes);
+    } finally {
+      JavaUtils.closeQuietly(in);
+    }
+    offsets = new long[size / 8];
+    ByteBuffer.wrap(bytes).asLongBuffer().get(offsets);
+  }
+
+  private static BasicFileAttributes readAttributes(File file) throws IOException {
+    return Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+  }
+
+  /** Returns whether the index file has been replaced or modified since it was read. */
+  public boolean isStale(File indexFile) throws IOException {
+    BasicFileAttributes attributes = readAttributes(indexFile);
+    return (fileKey != null && !fileKey.equals(attributes.fileKey()))
+      || !lastModified.equals(attributes.lastModifiedTime())
+      || offsets.length * 8L != attributes.size();
+  }
+
+  public long getOffset(int reduceId) {
+    return offsets[reduceId];
+  }
+
+  public long getLength(int reduceId) {
+    return offsets[reduceId + 1] - offsets[reduceId];
+  }
+
+  /** Approximate memory used by this object, for weighing it in the index cache. */
+  public int getRetainedSize() {
+    return 8 * offsets.length + 48;
+  }
+}
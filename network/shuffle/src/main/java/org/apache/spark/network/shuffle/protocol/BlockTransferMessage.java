@@ -32,13 +32,16 @@ import org.apache.spark.network.shuffle.protocol.mesos.RegisterDriver;
  *     shuffle service. It returns a StreamHandle.
  *   - UploadBlock is only handled by the NettyBlockTransferService.
  *   - RegisterExecutor is only handled by the external shuffle service.
+ *   - OpenBlockRanges is handled by both services for sort-based shuffles. It returns a
+ *     RangeStreamHandle.
  */
 public abstract class BlockTransferMessage implements Encodable {
   protected abstract Type type();
 
   /** Preceding every serialized message is its type, which allows us to deserialize it. */
   public static enum Type {
-    OPEN_BLOCKS(0), UPLOAD_BLOCK(1), REGISTER_EXECUTOR(2), STREAM_HANDLE(3), REGISTER_DRIVER(4);
+    OPEN_BLOCKS(0), UPLOAD_BLOCK(1), REGISTER_EXECUTOR(2), STREAM_HANDLE(3), REGISTER_DRIVER(4),
+    OPEN_BLOCK_RANGES(5), RANGE_STREAM_HANDLE(6);
 
     private final byte id;
 
@@ -62,6 +65,8 @@ public abstract class BlockTransferMessage implements Encodable {
         case 2: return RegisterExecutor.decode(buf);
         case 3: return StreamHandle.decode(buf);
         case 4: return RegisterDriver.decode(buf);
+        case 5: return OpenBlockRanges.decode(buf);
+        case 6: return RangeStreamHandle.decode(buf);
         default: throw new IllegalArgumentException("Unknown message type: " + type);
       }
     }
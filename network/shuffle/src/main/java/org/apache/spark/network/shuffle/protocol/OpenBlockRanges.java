@@ -0,0 +1,133 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.spark.network.shuffle.protocol;
+
+import java.util.Arrays;
+
+import com.google.common.base.Objects;
+import io.netty.buffer.ByteBuf;
+
+import org.apache.spark.network.protocol.Encoders;
+
+// Needed by ScalaDoc. See SPARK-7726
+import static org.apache.spark.network.shuffle.protocol.BlockTransferMessage.Type;
+
+/**
+ * Request to read ranges of contiguous reduce partitions [startReduceId, endReduceId) of
+ * sort-based map outputs of one shuffle. Each range is served as a single file segment covering
+ * the whole range, and the server may gather consecutive small ranges into one chunk. Returns
+ * {@link RangeStreamHandle}.
+ */
+public class OpenBlockRanges extends BlockTransferMessage {
+  public final String appId;
+  public final String execId;
+  public final int shuffleId;
+  public final int[] mapIds;
+  public final int[] startReduceIds;
+  public final int[] endReduceIds;
+
+  public OpenBlockRanges(
+      String appId,
+      String execId,
+      int shuffleId,
+      int[] mapIds,
+      int[] startReduceIds,
+      int[] endReduceIds) {
+    this.appId = appId;
+    this.execId = execId;
+    this.shuffleId = shuffleId;
+    this.mapIds = mapIds;
+    this.startReduceIds = startReduceIds;
+    this.endReduceIds = endReduceIds;
+  }
+
+  /** Total number of blocks covered by all ranges. */
+  public int numBlocks() {
+    int numBlocks = 0;
+    for (int i = 0; i < mapIds.length; i++) {
+      numBlocks += endReduceIds[i] - startReduceIds[i];
+    }
+    return numBlocks;
+  }
+
+  @Override
+  protected Type type() { return Type.OPEN_BLOCK_RANGES; }
+
+  @Override
+  public int hashCode() {
+    int hash = Objects.hashCode(appId, execId, shuffleId);
+    hash = hash * 41 + Arrays.hashCode(mapIds);
+    hash = hash * 41 + Arrays.hashCode(startReduceIds);
+    return hash * 41 + Arrays.hashCode(endReduceIds);
+  }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+      .add("appId", appId)
+      .add("execId", execId)
+      .add("shuffleId", shuffleId)
+      .add("mapIds", Arrays.toString(mapIds))
+      .add("startReduceIds", Arrays.toString(startReduceIds))
+      .add("endReduceIds", Arrays.toString(endReduceIds))
+      .toString();
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (other != null && other instanceof OpenBlockRanges) {
+      OpenBlockRanges o = (OpenBlockRanges) other;
+      return Objects.equal(appId, o.appId)
+        && Objects.equal(execId, o.execId)
+        && shuffleId == o.shuffleId
+        && Arrays.equals(mapIds, o.mapIds)
+        && Arrays.equals(startReduceIds, o.startReduceIds)
+        && Arrays.equals(endReduceIds, o.endReduceIds);
+    }
+    return false;
+  }
+
+  @Override
+  public int encodedLength() {
+    return Encoders.Strings.encodedLength(appId)
+      + Encoders.Strings.encodedLength(execId)
+      + 4
+      + Encoders.IntArrays.encodedLength(mapIds)
+      + Encoders.IntArrays.encodedLength(startReduceIds)
+      + Encoders.IntArrays.encodedLength(endReduceIds);
+  }
+
+  @Override
+  public void encode(ByteBuf buf) {
+    Encoders.Strings.encode(buf, appId);
+    Encoders.Strings.encode(buf, execId);
+    buf.writeInt(shuffleId);
+    Encoders.IntArrays.encode(buf, mapIds);
+    Encoders.IntArrays.encode(buf, startReduceIds);
+    Encoders.IntArrays.encode(buf, endReduceIds);
+  }
+
+  public static OpenBlockRanges decode(ByteBuf buf) {
+    String appId = Encoders.Strings.decode(buf);
+    String execId = Encoders.Strings.decode(buf);
+    int shuffleId = buf.readInt();
+    int[] mapIds = Encoders.IntArrays.decode(buf);
+    int[] startReduceIds = Encoders.IntArrays.decode(buf);
+    int[] endReduceIds = Encoders.IntArrays.decode(buf);
+    return new OpenBlockRanges(appId, execId, shuffleId, mapIds, startReduceIds, endReduceIds);
+  }
+}
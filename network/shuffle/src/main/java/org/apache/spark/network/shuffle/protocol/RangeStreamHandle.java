@@ -0,0 +1,97 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.spark.network.shuffle.protocol;
+
+import java.util.Arrays;
+
+import com.google.common.base.Objects;
+import io.netty.buffer.ByteBuf;
+
+import org.apache.spark.network.protocol.Encoders;
+
+// Needed by ScalaDoc. See SPARK-7726
+import static org.apache.spark.network.shuffle.protocol.BlockTransferMessage.Type;
+
+/**
+ * Identifier for the stream created by an {@link OpenBlockRanges} message. Each chunk of the
+ * stream holds one or more consecutive requested ranges. The handle carries the number of blocks
+ * in each chunk and the exact length of every block, in request order, so that the client can
+ * split each chunk back into its blocks. This is used by
+ * {@link org.apache.spark.network.shuffle.BlockRangeFetcher}.
+ */
+public class RangeStreamHandle extends BlockTransferMessage {
+  public final long streamId;
+  public final int numChunks;
+  public final int[] chunkBlockCounts;
+  public final long[] blockLengths;
+
+  public RangeStreamHandle(long streamId, int[] chunkBlockCounts, long[] blockLengths) {
+    this.streamId = streamId;
+    this.numChunks = chunkBlockCounts.length;
+    this.chunkBlockCounts = chunkBlockCounts;
+    this.blockLengths = blockLengths;
+  }
+
+  @Override
+  protected Type type() { return Type.RANGE_STREAM_HANDLE; }
+
+  @Override
+  public int hashCode() {
+    return (Objects.hashCode(streamId) * 41 + Arrays.hashCode(chunkBlockCounts)) * 41
+      + Arrays.hashCode(blockLengths);
+  }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+      .add("streamId", streamId)
+      .add("chunkBlockCounts", Arrays.toString(chunkBlockCounts))
+      .add("blockLengths", Arrays.toString(blockLengths))
+      .toString();
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (other != null && other instanceof RangeStreamHandle) {
+      RangeStreamHandle o = (RangeStreamHandle) other;
+      return Objects.equal(streamId, o.streamId)
+        && Arrays.equals(chunkBlockCounts, o.chunkBlockCounts)
+        && Arrays.equals(blockLengths, o.blockLengths);
+    }
+    return false;
+  }
+
+  @Override
+  public int encodedLength() {
+    return 8 + Encoders.IntArrays.encodedLength(chunkBlockCounts)
+      + Encoders.LongArrays.encodedLength(blockLengths);
+  }
+
+  @Override
+  public void encode(ByteBuf buf) {
+    buf.writeLong(streamId);
+    Encoders.IntArrays.encode(buf, chunkBlockCounts);
+    Encoders.LongArrays.encode(buf, blockLengths);
+  }
+
+  public static RangeStreamHandle decode(ByteBuf buf) {
+    long streamId = buf.readLong();
+    int[] chunkBlockCounts = Encoders.IntArrays.decode(buf);
+    long[] blockLengths = Encoders.LongArrays.decode(buf);
+    return new RangeStreamHandle(streamId, chunkBlockCounts, blockLengths);
+  }
+}
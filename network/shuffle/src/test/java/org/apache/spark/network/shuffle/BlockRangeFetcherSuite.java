@@ -0,0 +1,282 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.spark.network.shuffle;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.Lists;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import org.apache.spark.network.buffer.ManagedBuffer;
+import org.apache.spark.network.buffer.NettyManagedBuffer;
+import org.apache.spark.network.buffer.NioManagedBuffer;
+import org.apache.spark.network.client.ChunkReceivedCallback;
+import org.apache.spark.network.client.RpcResponseCallback;
+import org.apache.spark.network.client.TransportClient;
+import org.apache.spark.network.shuffle.protocol.BlockTransferMessage;
+import org.apache.spark.network.shuffle.protocol.OpenBlockRanges;
+import org.apache.spark.network.shuffle.protocol.RangeStreamHandle;
+
+public class BlockRangeFetcherSuite {
+  @Test
+  public void testShouldFetchAsRanges() {
+    assertTrue(BlockRangeFetcher.shouldFetchAsRanges(
+      new String[] { "shuffle_0_1_2", "shuffle_0_1_3" }));
+    assertTrue(BlockRangeFetcher.shouldFetchAsRanges(
+      new String[] { "shuffle_0_0_0", "shuffle_0_1_0", "shuffle_0_1_1" }));
+    // Nothing to gain from ranges of single blocks.
+    assertFalse(BlockRangeFetcher.shouldFetchAsRanges(new String[] { "shuffle_0_1_2" }));
+    assertFalse(BlockRangeFetcher.shouldFetchAsRanges(
+      new String[] { "shuffle_0_1_2", "shuffle_0_1_4", "shuffle_0_2_3" }));
+    assertFalse(BlockRangeFetcher.shouldFetchAsRanges(
+      new String[] { "shuffle_0_1_3", "shuffle_0_1_2" }));
+    // Ranges may only be requested for shuffle blocks of a single shuffle.
+    assertFalse(BlockRangeFetcher.shouldFetchAsRanges(
+      new String[] { "shuffle_0_1_2", "shuffle_1_1_3" }));
+    assertFalse(BlockRangeFetcher.shouldFetchAsRanges(
+      new String[] { "shuffle_0_1_2", "rdd_1_3" }));
+    assertFalse(BlockRangeFetcher.shouldFetchAsRanges(new String[0]));
+
+    // Single blocks can still be fetched as ranges, for servers that gather ranges into chunks.
+    assertTrue(BlockRangeFetcher.canFetchAsRanges(new String[] { "shuffle_0_1_2" }));
+    assertTrue(BlockRangeFetcher.canFetchAsRanges(
+      new String[] { "shuffle_0_1_2", "shuffle_0_1_4", "shuffle_0_2_3" }));
+    assertFalse(BlockRangeFetcher.canFetchAsRanges(
+      new String[] { "shuffle_0_1_2", "shuffle_1_1_3" }));
+    assertFalse(BlockRangeFetcher.canFetchAsRanges(new String[] { "rdd_1_3" }));
+  }
+
+  @Test
+  public void testFetchRanges() {
+    String[] blockIds = { "shuffle_3_0_1", "shuffle_3_0_2", "shuffle_3_0_3", "shuffle_3_2_0" };
+    long[] blockLengths = { 2, 0, 8, 7 };
+    ByteBuf range0 = Unpooled.wrappedBuffer(new byte[] { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9 });
+    ManagedBuffer range1 =
+      new NioManagedBuffer(ByteBuffer.wrap(new byte[] { 1, 2, 3, 4, 5, 6, 7 }));
+    List<ManagedBuffer> ranges = Lists.newArrayList(new NettyManagedBuffer(range0), range1);
+
+    BlockFetchingListener listener = fetchRanges(blockIds, new OpenBlockRanges("app-id", "exec-id",
+      3, new int[] { 0, 2 }, new int[] { 1, 0 }, new int[] { 4, 1 }), new int[] { 3, 1 },
+      blockLengths, ranges);
+
+    ArgumentCaptor<ManagedBuffer> blocks = ArgumentCaptor.forClass(ManagedBuffer.class);
+    for (String blockId : blockIds) {
+      verify(listener, times(1)).onBlockFetchSuccess(eq(blockId), blocks.capture());
+    }
+    verify(listener, never()).onBlockFetchFailure(any(String.class), any(Throwable.class));
+    byte[][] expected = {
+      { 0, 1 }, { }, { 2, 3, 4, 5, 6, 7, 8, 9 }, { 1, 2, 3, 4, 5, 6, 7 }
+    };
+    for (int i = 0; i < expected.length; i++) {
+      assertArrayEquals(expected[i], toBytes(blocks.getAllValues().get(i)));
+    }
+
+    // Blocks of a Netty chunk share its reference count.
+    blocks.getAllValues().get(0).retain();
+    assertEquals(2, range0.refCnt());
+    blocks.getAllValues().get(0).release();
+    assertEquals(1, range0.refCnt());
+  }
+
+  @Test
+  public void testFetchGatheredRanges() {
+    // The server sent the first two ranges together, in one chunk.
+    String[] blockIds = { "shuffle_3_0_1", "shuffle_3_0_2", "shuffle_3_2_0", "shuffle_3_4_1" };
+    long[] blockLengths = { 1, 2, 3, 4 };
+    List<ManagedBuffer> ranges = Lists.<ManagedBuffer>newArrayList(
+      new NettyManagedBuffer(Unpooled.wrappedBuffer(new byte[] { 1, 2, 3, 4, 5, 6 })),
+      new NioManagedBuffer(ByteBuffer.wrap(new byte[] { 7, 8, 9, 10 })));
+
+    BlockFetchingListener listener = fetchRanges(blockIds, new OpenBlockRanges("app-id", "exec-id",
+      3, new int[] { 0, 2, 4 }, new int[] { 1, 0, 1 }, new int[] { 3, 1, 2 }), new int[] { 3, 1 },
+      blockLengths, ranges);
+
+    ArgumentCaptor<ManagedBuffer> blocks = ArgumentCaptor.forClass(ManagedBuffer.class);
+    for (String blockId : blockIds) {
+      verify(listener, times(1)).onBlockFetchSuccess(eq(blockId), blocks.capture());
+    }
+    verify(listener, never()).onBlockFetchFailure(any(String.class), any(Throwable.class));
+    byte[][] expected = { { 1 }, { 2, 3 }, { 4, 5, 6 }, { 7, 8, 9, 10 } };
+    for (int i = 0; i < expected.length; i++) {
+      assertArrayEquals(expected[i], toBytes(blocks.getAllValues().get(i)));
+    }
+  }
+
+  @Test
+  public void testFailure() {
+    String[] blockIds = { "shuffle_3_0_1", "shuffle_3_0_2", "shuffle_3_1_0", "shuffle_3_1_1" };
+    long[] blockLengths = { 1, 1, 1, 1 };
+    List<ManagedBuffer> ranges = Lists.<ManagedBuffer>newArrayList(
+      null, new NioManagedBuffer(ByteBuffer.wrap(new byte[2])));
+
+    BlockFetchingListener listener = fetchRanges(blockIds, new OpenBlockRanges("app-id", "exec-id",
+      3, new int[] { 0, 1 }, new int[] { 1, 0 }, new int[] { 3, 2 }), new int[] { 2, 2 },
+      blockLengths, ranges);
+
+    // A failed range fails all remaining blocks, like a failed block does.
+    verify(listener, times(1)).onBlockFetchFailure(eq("shuffle_3_0_1"), any(Throwable.class));
+    verify(listener, times(1)).onBlockFetchFailure(eq("shuffle_3_0_2"), any(Throwable.class));
+    verify(listener, times(1)).onBlockFetchFailure(eq("shuffle_3_1_0"), any(Throwable.class));
+    verify(listener, times(1)).onBlockFetchFailure(eq("shuffle_3_1_1"), any(Throwable.class));
+    verify(listener, times(1)).onBlockFetchSuccess(eq("shuffle_3_1_0"), any(ManagedBuffer.class));
+    verify(listener, times(1)).onBlockFetchSuccess(eq("shuffle_3_1_1"), any(ManagedBuffer.class));
+  }
+
+  @Test
+  public void testWrongRangeLength() {
+    String[] blockIds = { "shuffle_3_0_1", "shuffle_3_0_2" };
+    List<ManagedBuffer> ranges =
+      Lists.<ManagedBuffer>newArrayList(new NioManagedBuffer(ByteBuffer.wrap(new byte[3])));
+
+    BlockFetchingListener listener = fetchRanges(blockIds, new OpenBlockRanges("app-id", "exec-id",
+      3, new int[] { 0 }, new int[] { 1 }, new int[] { 3 }), new int[] { 2 }, new long[] { 1, 1 },
+      ranges);
+
+    verify(listener, times(1)).onBlockFetchFailure(eq("shuffle_3_0_1"), any(Throwable.class));
+    verify(listener, times(1)).onBlockFetchFailure(eq("shuffle_3_0_2"), any(Throwable.class));
+    verify(listener, never()).onBlockFetchSuccess(any(String.class), any(ManagedBuffer.class));
+  }
+
+  @Test
+  public void testServerWithoutRanges() {
+    String[] blockIds = { "shuffle_3_0_1", "shuffle_3_0_2" };
+    BlockFetchingListener listener = mock(BlockFetchingListener.class);
+    Runnable fallback = mock(Runnable.class);
+    String unknownMessage = "java.lang.IllegalArgumentException: Unknown message type: "
+      + BlockTransferMessage.Type.OPEN_BLOCK_RANGES.id();
+
+    // A server that does not know the message leaves the blocks to the fallback.
+    new BlockRangeFetcher(failingRpcClient(unknownMessage), "app-id", "exec-id", blockIds,
+      listener, fallback).start();
+    verify(fallback, times(1)).run();
+    verify(listener, never()).onBlockFetchFailure(any(String.class), any(Throwable.class));
+
+    // Without a fallback, or if the server fails for another reason, the blocks fail.
+    new BlockRangeFetcher(failingRpcClient(unknownMessage), "app-id", "exec-id", blockIds,
+      listener).start();
+    new BlockRangeFetcher(failingRpcClient("java.io.IOException: Disk failure"), "app-id",
+      "exec-id", blockIds, listener, fallback).start();
+    verify(fallback, times(1)).run();
+    verify(listener, times(2)).onBlockFetchFailure(eq("shuffle_3_0_1"), any(Throwable.class));
+    verify(listener, times(2)).onBlockFetchFailure(eq("shuffle_3_0_2"), any(Throwable.class));
+  }
+
+  /** Creates a client whose RPCs fail with the given error, as sent back by the server. */
+  private static TransportClient failingRpcClient(final String error) {
+    TransportClient client = mock(TransportClient.class);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocationOnMock) throws Throwable {
+        RpcResponseCallback callback = (RpcResponseCallback) invocationOnMock.getArguments()[1];
+        callback.onFailure(new RuntimeException(error));
+        return null;
+      }
+    }).when(client).sendRpc((byte[]) any(), (RpcResponseCallback) any());
+    return client;
+  }
+
+  private static byte[] toBytes(ManagedBuffer buffer) {
+    try {
+      ByteBuffer nio = buffer.nioByteBuffer();
+      byte[] bytes = new byte[nio.remaining()];
+      nio.get(bytes);
+      return bytes;
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Begins a fetch of the given blocks by mocking out the server side of the RPC, which checks
+   * that the expected ranges are requested and returns the given ranges as chunks. If a range's
+   * buffer is "null", an exception will be thrown instead.
+   */
+  private BlockFetchingListener fetchRanges(
+      String[] blockIds,
+      final OpenBlockRanges expectedMessage,
+      final int[] chunkBlockCounts,
+      final long[] blockLengths,
+      final List<ManagedBuffer> ranges) {
+    TransportClient client = mock(TransportClient.class);
+    BlockFetchingListener listener = mock(BlockFetchingListener.class);
+    BlockRangeFetcher fetcher =
+      new BlockRangeFetcher(client, "app-id", "exec-id", blockIds, listener);
+
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocationOnMock) throws Throwable {
+        BlockTransferMessage message = BlockTransferMessage.Decoder.fromByteArray(
+          (byte[]) invocationOnMock.getArguments()[0]);
+        RpcResponseCallback callback = (RpcResponseCallback) invocationOnMock.getArguments()[1];
+        assertEquals(expectedMessage, message);
+        callback.onSuccess(
+          new RangeStreamHandle(123, chunkBlockCounts, blockLengths).toByteArray());
+        return null;
+      }
+    }).when(client).sendRpc((byte[]) any(), (RpcResponseCallback) any());
+
+    final AtomicInteger expectedChunkIndex = new AtomicInteger(0);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        try {
+          long streamId = (Long) invocation.getArguments()[0];
+          int myChunkIndex = (Integer) invocation.getArguments()[1];
+          assertEquals(123, streamId);
+          assertEquals(expectedChunkIndex.getAndIncrement(), myChunkIndex);
+
+          ChunkReceivedCallback callback = (ChunkReceivedCallback) invocation.getArguments()[2];
+          ManagedBuffer result = ranges.get(myChunkIndex);
+          if (result != null) {
+            callback.onSuccess(myChunkIndex, result);
+          } else {
+            callback.onFailure(myChunkIndex, new RuntimeException("Failed " + myChunkIndex));
+          }
+        } catch (Exception e) {
+          e.printStackTrace();
+          fail("Unexpected failure");
+        }
+        return null;
+      }
+    }).when(client).fetchChunk(anyLong(), anyInt(), (ChunkReceivedCallback) any());
+
+    fetcher.start();
+    return listener;
+  }
+}
@@ -33,6 +33,10 @@ public class BlockTransferMessagesSuite {
     checkSerializeDeserialize(new UploadBlock("app-1", "exec-2", "block-3", new byte[] { 1, 2 },
       new byte[] { 4, 5, 6, 7} ));
     checkSerializeDeserialize(new StreamHandle(12345, 16));
+    checkSerializeDeserialize(new OpenBlockRanges("app-1", "exec-2", 3, new int[] { 0, 4 },
+      new int[] { 1, 0 }, new int[] { 5, 2 }));
+    checkSerializeDeserialize(new RangeStreamHandle(12345, new int[] { 2, 1 },
+      new long[] { 1, 0, 2L << 40 }));
   }
 
   private void checkSerializeDeserialize(BlockTransferMessage msg) {
@@ -17,17 +17,25 @@
 
 package org.apache.spark.network.shuffle;
 
+import java.io.File;
 import java.nio.ByteBuffer;
 import java.util.Iterator;
 
+import com.google.common.collect.ImmutableMap;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import static org.junit.Assert.*;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.*;
 
+import org.apache.spark.network.buffer.FileSegmentManagedBuffer;
+import org.apache.spark.network.buffer.FileSegmentsManagedBuffer;
 import org.apache.spark.network.buffer.ManagedBuffer;
 import org.apache.spark.network.buffer.NioManagedBuffer;
 import org.apache.spark.network.client.RpcResponseCallback;
@@ -36,10 +44,14 @@ import org.apache.spark.network.server.OneForOneStreamManager;
 import org.apache.spark.network.server.RpcHandler;
 import org.apache.spark.network.shuffle.protocol.BlockTransferMessage;
 import org.apache.spark.network.shuffle.protocol.ExecutorShuffleInfo;
+import org.apache.spark.network.shuffle.protocol.OpenBlockRanges;
 import org.apache.spark.network.shuffle.protocol.OpenBlocks;
+import org.apache.spark.network.shuffle.protocol.RangeStreamHandle;
 import org.apache.spark.network.shuffle.protocol.RegisterExecutor;
 import org.apache.spark.network.shuffle.protocol.StreamHandle;
 import org.apache.spark.network.shuffle.protocol.UploadBlock;
+import org.apache.spark.network.util.MapConfigProvider;
+import org.apache.spark.network.util.TransportConf;
 
 public class ExternalShuffleBlockHandlerSuite {
   TransportClient client = mock(TransportClient.class);
@@ -100,6 +112,105 @@ public class ExternalShuffleBlockHandlerSuite {
     assertFalse(buffers.hasNext());
   }
 
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testOpenShuffleBlockRanges() {
+    RpcResponseCallback callback = mock(RpcResponseCallback.class);
+
+    final ManagedBuffer range0Marker = new NioManagedBuffer(ByteBuffer.wrap(new byte[10]));
+    final ManagedBuffer range1Marker = new NioManagedBuffer(ByteBuffer.wrap(new byte[7]));
+    // Each range reports the lengths of its blocks: map 0 reduces [1, 4) and map 2 reduce [0, 1).
+    when(blockResolver.getBlockRangeData(eq("app0"), eq("exec1"), eq(3), anyInt(), anyInt(),
+      anyInt(), (long[]) any())).thenAnswer(new Answer<ManagedBuffer>() {
+        @Override
+        public ManagedBuffer answer(InvocationOnMock invocation) {
+          int mapId = (Integer) invocation.getArguments()[3];
+          long[] blockLengths = (long[]) invocation.getArguments()[6];
+          if (mapId == 0) {
+            blockLengths[0] = 2;
+            blockLengths[1] = 0;
+            blockLengths[2] = 8;
+            return range0Marker;
+          } else {
+            blockLengths[0] = 7;
+            return range1Marker;
+          }
+        }
+      });
+    byte[] openRanges = new OpenBlockRanges("app0", "exec1", 3, new int[] { 0, 2 },
+      new int[] { 1, 0 }, new int[] { 4, 1 }).toByteArray();
+    handler.receive(client, openRanges, callback);
+    verify(blockResolver, times(1)).getBlockRangeData(
+      eq("app0"), eq("exec1"), eq(3), eq(0), eq(1), eq(4), (long[]) any());
+    verify(blockResolver, times(1)).getBlockRangeData(
+      eq("app0"), eq("exec1"), eq(3), eq(2), eq(0), eq(1), (long[]) any());
+
+    ArgumentCaptor<byte[]> response = ArgumentCaptor.forClass(byte[].class);
+    verify(callback, times(1)).onSuccess(response.capture());
+    verify(callback, never()).onFailure((Throwable) any());
+
+    RangeStreamHandle handle =
+      (RangeStreamHandle) BlockTransferMessage.Decoder.fromByteArray(response.getValue());
+    assertEquals(2, handle.numChunks);
+    assertArrayEquals(new int[] { 3, 1 }, handle.chunkBlockCounts);
+    assertArrayEquals(new long[] { 2, 0, 8, 7 }, handle.blockLengths);
+
+    @SuppressWarnings("unchecked")
+    ArgumentCaptor<Iterator<ManagedBuffer>> stream = (ArgumentCaptor<Iterator<ManagedBuffer>>)
+        (ArgumentCaptor<?>) ArgumentCaptor.forClass(Iterator.class);
+    verify(streamManager, times(1)).registerStream(stream.capture());
+    Iterator<ManagedBuffer> buffers = stream.getValue();
+    assertEquals(range0Marker, buffers.next());
+    assertEquals(range1Marker, buffers.next());
+    assertFalse(buffers.hasNext());
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testGatherSmallBlockRanges() {
+    TransportConf conf = new TransportConf(new MapConfigProvider(ImmutableMap.of(
+      "spark.shuffle.service.coalescedChunkSize", "16")));
+    handler = new ExternalShuffleBlockHandler(streamManager, blockResolver, conf);
+    RpcResponseCallback callback = mock(RpcResponseCallback.class);
+
+    // Ranges of 10, 4, 20 and 3 bytes, with one block each.
+    final File dataFile = new File("shuffle_3_0_0.data");
+    final long[] sizes = { 10, 4, 20, 3 };
+    when(blockResolver.getBlockRangeData(eq("app0"), eq("exec1"), eq(3), anyInt(), anyInt(),
+      anyInt(), (long[]) any())).thenAnswer(new Answer<ManagedBuffer>() {
+        @Override
+        public ManagedBuffer answer(InvocationOnMock invocation) {
+          int mapId = (Integer) invocation.getArguments()[3];
+          long[] blockLengths = (long[]) invocation.getArguments()[6];
+          blockLengths[0] = sizes[mapId];
+          return new FileSegmentManagedBuffer(null, dataFile, 100 * mapId, sizes[mapId]);
+        }
+      });
+    byte[] openRanges = new OpenBlockRanges("app0", "exec1", 3, new int[] { 0, 1, 2, 3 },
+      new int[] { 0, 0, 0, 0 }, new int[] { 1, 1, 1, 1 }).toByteArray();
+    handler.receive(client, openRanges, callback);
+
+    ArgumentCaptor<byte[]> response = ArgumentCaptor.forClass(byte[].class);
+    verify(callback, times(1)).onSuccess(response.capture());
+    RangeStreamHandle handle =
+      (RangeStreamHandle) BlockTransferMessage.Decoder.fromByteArray(response.getValue());
+    // The first two ranges fit in one chunk, the third is too large to share one.
+    assertArrayEquals(new int[] { 2, 1, 1 }, handle.chunkBlockCounts);
+    assertArrayEquals(sizes, handle.blockLengths);
+
+    @SuppressWarnings("unchecked")
+    ArgumentCaptor<Iterator<ManagedBuffer>> stream = (ArgumentCaptor<Iterator<ManagedBuffer>>)
+        (ArgumentCaptor<?>) ArgumentCaptor.forClass(Iterator.class);
+    verify(streamManager, times(1)).registerStream(stream.capture());
+    Iterator<ManagedBuffer> buffers = stream.getValue();
+    FileSegmentsManagedBuffer gathered = (FileSegmentsManagedBuffer) buffers.next();
+    assertEquals(14, gathered.size());
+    assertEquals(2, gathered.getSegments().size());
+    assertEquals(200, ((FileSegmentManagedBuffer) buffers.next()).getOffset());
+    assertEquals(300, ((FileSegmentManagedBuffer) buffers.next()).getOffset());
+    assertFalse(buffers.hasNext());
+  }
+
   @Test
   public void testBadMessages() {
     RpcResponseCallback callback = mock(RpcResponseCallback.class);
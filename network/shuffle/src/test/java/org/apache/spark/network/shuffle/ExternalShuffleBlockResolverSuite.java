@@ -17,10 +17,12 @@
 
 package org.apache.spark.network.shuffle;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 
+import com.google.common.cache.CacheStats;
 import com.google.common.io.CharStreams;
 import org.apache.spark.network.util.SystemPropertyConfigProvider;
 import org.apache.spark.network.util.TransportConf;
@@ -108,6 +110,53 @@ public class ExternalShuffleBlockResolverSuite {
     assertEquals(sortBlock1, block1);
   }
 
+  @Test
+  public void testShuffleIndexCache() throws IOException {
+    ExternalShuffleBlockResolver resolver = new ExternalShuffleBlockResolver(conf);
+    resolver.registerExecutor("app0", "exec0",
+      dataContext.createExecutorInfo("org.apache.spark.shuffle.sort.SortShuffleManager"));
+
+    assertEquals(sortBlock0.length(),
+      resolver.getBlockData("app0", "exec0", "shuffle_0_0_0").size());
+    assertEquals(sortBlock1.length(),
+      resolver.getBlockData("app0", "exec0", "shuffle_0_0_1").size());
+    CacheStats stats = resolver.getShuffleIndexCacheStats();
+    assertEquals(1, stats.missCount());
+    assertEquals(1, stats.hitCount());
+
+    // Removing the application drops its cached indices.
+    resolver.applicationRemoved("app0", false);
+    resolver.registerExecutor("app0", "exec0",
+      dataContext.createExecutorInfo("org.apache.spark.shuffle.sort.SortShuffleManager"));
+    resolver.getBlockData("app0", "exec0", "shuffle_0_0_0");
+    assertEquals(2, resolver.getShuffleIndexCacheStats().missCount());
+  }
+
+  @Test
+  public void testShuffleIndexCacheDetectsRewrittenIndex() throws IOException {
+    ExternalShuffleBlockResolver resolver = new ExternalShuffleBlockResolver(conf);
+    resolver.registerExecutor("app0", "exec0",
+      dataContext.createExecutorInfo("org.apache.spark.shuffle.sort.SortShuffleManager"));
+    File indexFile = ExternalShuffleBlockResolver.getFile(dataContext.localDirs,
+      dataContext.subDirsPerLocalDir, "shuffle_2_0_0.index");
+    long lastModified = 1000000000000L;
+
+    dataContext.insertSortShuffleData(2, 0, new byte[][] { "ab".getBytes(), "cd".getBytes() });
+    assertTrue(indexFile.setLastModified(lastModified));
+    assertEquals(2, resolver.getBlockData("app0", "exec0", "shuffle_2_0_0").size());
+
+    // A re-executed map task rewrites the index with other offsets, but the same length and
+    // modification time, e.g. within the modification time's granularity.
+    dataContext.insertSortShuffleData(2, 0, new byte[][] { "a".getBytes(), "bcd".getBytes() });
+    assertTrue(indexFile.setLastModified(lastModified));
+    InputStream blockStream =
+      resolver.getBlockData("app0", "exec0", "shuffle_2_0_0").createInputStream();
+    String block = CharStreams.toString(new InputStreamReader(blockStream));
+    blockStream.close();
+    assertEquals("a", block);
+    assertEquals(3, resolver.getBlockData("app0", "exec0", "shuffle_2_0_1").size());
+  }
+
   @Test
   public void testHashShuffleBlocks() throws IOException {
     ExternalShuffleBlockResolver resolver = new ExternalShuffleBlockResolver(conf);
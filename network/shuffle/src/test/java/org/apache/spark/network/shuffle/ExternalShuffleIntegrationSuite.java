@@ -41,7 +41,12 @@ import org.apache.spark.network.TestUtils;
 import org.apache.spark.network.TransportContext;
 import org.apache.spark.network.buffer.ManagedBuffer;
 import org.apache.spark.network.buffer.NioManagedBuffer;
+import org.apache.spark.network.client.RpcResponseCallback;
+import org.apache.spark.network.client.TransportClient;
+import org.apache.spark.network.server.RpcHandler;
+import org.apache.spark.network.server.StreamManager;
 import org.apache.spark.network.server.TransportServer;
+import org.apache.spark.network.shuffle.protocol.BlockTransferMessage;
 import org.apache.spark.network.shuffle.protocol.ExecutorShuffleInfo;
 import org.apache.spark.network.util.SystemPropertyConfigProvider;
 import org.apache.spark.network.util.TransportConf;
@@ -67,6 +72,12 @@ public class ExternalShuffleIntegrationSuite {
     new byte[1234567],
   };
 
+  static byte[][] exec0Map1Blocks = new byte[][] {
+    new byte[10],
+    new byte[0],
+    new byte[77],
+  };
+
   static byte[][] exec1Blocks = new byte[][] {
     new byte[321],
     new byte[54321],
@@ -79,6 +90,9 @@ public class ExternalShuffleIntegrationSuite {
     for (byte[] block : exec0Blocks) {
       rand.nextBytes(block);
     }
+    for (byte[] block : exec0Map1Blocks) {
+      rand.nextBytes(block);
+    }
     for (byte[] block: exec1Blocks) {
       rand.nextBytes(block);
     }
@@ -86,6 +100,7 @@ public class ExternalShuffleIntegrationSuite {
     dataContext0 = new TestShuffleDataContext(2, 5);
     dataContext0.create();
     dataContext0.insertSortShuffleData(0, 0, exec0Blocks);
+    dataContext0.insertSortShuffleData(0, 1, exec0Map1Blocks);
 
     dataContext1 = new TestShuffleDataContext(6, 2);
     dataContext1.create();
@@ -192,6 +207,91 @@ public class ExternalShuffleIntegrationSuite {
     exec0Fetch.releaseBuffers();
   }
 
+  @Test
+  public void testFetchThreeSortAsRange() throws Exception {
+    System.setProperty("spark.shuffle.io.fetchBlockRanges", "true");
+    try {
+      registerExecutor("exec-0", dataContext0.createExecutorInfo(SORT_MANAGER));
+      FetchResult exec0Fetch = fetchBlocks("exec-0",
+        new String[] { "shuffle_0_0_0", "shuffle_0_0_1", "shuffle_0_0_2" });
+      assertEquals(Sets.newHashSet("shuffle_0_0_0", "shuffle_0_0_1", "shuffle_0_0_2"),
+        exec0Fetch.successBlocks);
+      assertTrue(exec0Fetch.failedBlocks.isEmpty());
+      assertBufferListsEqual(exec0Fetch.buffers, Lists.newArrayList(exec0Blocks));
+      exec0Fetch.releaseBuffers();
+    } finally {
+      System.clearProperty("spark.shuffle.io.fetchBlockRanges");
+    }
+  }
+
+  @Test
+  public void testFetchGatheredSmallBlocks() throws Exception {
+    System.setProperty("spark.shuffle.io.fetchBlockRanges", "true");
+    try {
+      registerExecutor("exec-0", dataContext0.createExecutorInfo(SORT_MANAGER));
+      // None of these are contiguous, but the server sends them all in one chunk.
+      FetchResult exec0Fetch = fetchBlocks("exec-0",
+        new String[] { "shuffle_0_0_0", "shuffle_0_1_0", "shuffle_0_1_2", "shuffle_0_0_1" });
+      assertEquals(
+        Sets.newHashSet("shuffle_0_0_0", "shuffle_0_1_0", "shuffle_0_1_2", "shuffle_0_0_1"),
+        exec0Fetch.successBlocks);
+      assertTrue(exec0Fetch.failedBlocks.isEmpty());
+      assertBufferListsEqual(exec0Fetch.buffers, Lists.newArrayList(
+        exec0Blocks[0], exec0Map1Blocks[0], exec0Map1Blocks[2], exec0Blocks[1]));
+      exec0Fetch.releaseBuffers();
+    } finally {
+      System.clearProperty("spark.shuffle.io.fetchBlockRanges");
+    }
+  }
+
+  @Test
+  public void testFetchRangeOfNonexistent() throws Exception {
+    System.setProperty("spark.shuffle.io.fetchBlockRanges", "true");
+    try {
+      registerExecutor("exec-0", dataContext0.createExecutorInfo(SORT_MANAGER));
+      FetchResult execFetch = fetchBlocks("exec-0",
+        new String[] { "shuffle_2_0_0", "shuffle_2_0_1" });
+      assertTrue(execFetch.successBlocks.isEmpty());
+      assertEquals(Sets.newHashSet("shuffle_2_0_0", "shuffle_2_0_1"), execFetch.failedBlocks);
+    } finally {
+      System.clearProperty("spark.shuffle.io.fetchBlockRanges");
+    }
+  }
+
+  @Test
+  public void testFetchRangesFromServiceWithoutRanges() throws Exception {
+    // Mimics a shuffle service from before block ranges, which cannot decode the request.
+    RpcHandler oldHandler = new RpcHandler() {
+      @Override
+      public void receive(TransportClient client, byte[] message, RpcResponseCallback callback) {
+        if (message[0] == BlockTransferMessage.Type.OPEN_BLOCK_RANGES.id()) {
+          throw new IllegalArgumentException("Unknown message type: " + message[0]);
+        }
+        handler.receive(client, message, callback);
+      }
+
+      @Override
+      public StreamManager getStreamManager() {
+        return handler.getStreamManager();
+      }
+    };
+    TransportServer oldServer = new TransportContext(conf, oldHandler).createServer();
+    System.setProperty("spark.shuffle.io.fetchBlockRanges", "true");
+    try {
+      registerExecutor("exec-0", dataContext0.createExecutorInfo(SORT_MANAGER));
+      FetchResult exec0Fetch = fetchBlocks("exec-0",
+        new String[] { "shuffle_0_0_0", "shuffle_0_0_1", "shuffle_0_0_2" }, oldServer.getPort());
+      assertEquals(Sets.newHashSet("shuffle_0_0_0", "shuffle_0_0_1", "shuffle_0_0_2"),
+        exec0Fetch.successBlocks);
+      assertTrue(exec0Fetch.failedBlocks.isEmpty());
+      assertBufferListsEqual(exec0Fetch.buffers, Lists.newArrayList(exec0Blocks));
+      exec0Fetch.releaseBuffers();
+    } finally {
+      System.clearProperty("spark.shuffle.io.fetchBlockRanges");
+      oldServer.close();
+    }
+  }
+
   @Test
   public void testFetchHash() throws Exception {
     registerExecutor("exec-1", dataContext1.createExecutorInfo(HASH_MANAGER));
@@ -56,14 +56,19 @@ public class TestShuffleDataContext {
     }
   }
 
-  /** Creates reducer blocks in a sort-based data format within our local dirs. */
+  /**
+   * Creates reducer blocks in a sort-based data format within our local dirs. Like Spark's
+   * IndexShuffleBlockResolver, the index is written to a temporary file renamed over the index.
+   */
   public void insertSortShuffleData(int shuffleId, int mapId, byte[][] blocks) throws IOException {
     String blockId = "shuffle_" + shuffleId + "_" + mapId + "_0";
 
     OutputStream dataStream = new FileOutputStream(
       ExternalShuffleBlockResolver.getFile(localDirs, subDirsPerLocalDir, blockId + ".data"));
-    DataOutputStream indexStream = new DataOutputStream(new FileOutputStream(
-      ExternalShuffleBlockResolver.getFile(localDirs, subDirsPerLocalDir, blockId + ".index")));
+    File indexFile =
+      ExternalShuffleBlockResolver.getFile(localDirs, subDirsPerLocalDir, blockId + ".index");
+    File tmpIndexFile = new File(indexFile.getPath() + ".tmp");
+    DataOutputStream indexStream = new DataOutputStream(new FileOutputStream(tmpIndexFile));
 
     long offset = 0;
     indexStream.writeLong(offset);
@@ -75,6 +80,9 @@ public class TestShuffleDataContext {
 
     dataStream.close();
     indexStream.close();
+    if (!tmpIndexFile.renameTo(indexFile)) {
+      throw new IOException("Failed to rename " + tmpIndexFile + " to " + indexFile);
+    }
   }
 
   /** Creates reducer blocks in a hash-based data format within our local dirs. */
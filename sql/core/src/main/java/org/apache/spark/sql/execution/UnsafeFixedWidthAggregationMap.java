@@ -18,6 +18,7 @@
 package org.apache.spark.sql.execution;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 import org.apache.spark.SparkEnv;
 import org.apache.spark.shuffle.ShuffleMemoryManager;
@@ -66,6 +67,11 @@ public final class UnsafeFixedWidthAggregationMap {
 
   private final boolean enablePerfMetrics;
 
+  /** Scratch space of {@link #prefetchAggregationBuffers}, grown to the batch size. */
+  private Object[] batchKeyBaseObjects = new Object[0];
+  private long[] batchKeyOffsets = new long[0];
+  private int[] batchKeyLengths = new int[0];
+
   /**
    * @return true if UnsafeFixedWidthAggregationMap supports aggregation buffers with the given
    *         schema, false otherwise.
@@ -128,6 +134,49 @@ public final class UnsafeFixedWidthAggregationMap {
       unsafeGroupingKeyRow.getBaseObject(),
       unsafeGroupingKeyRow.getBaseOffset(),
       unsafeGroupingKeyRow.getSizeInBytes());
+    return getAggregationBuffer(unsafeGroupingKeyRow, loc);
+  }
+
+  /**
+   * Prepares the lookups of a batch of grouping keys, already encoded as UnsafeRows, so that
+   * their cache misses overlap; see {@link BytesToBytesMap#prefetch}. The aggregation buffers of
+   * the keys are then obtained in order from {@link #getAggregationBuffer(UnsafeRow, int)}, with
+   * the hashcodes written to {@code hashcodes}.
+   */
+  public void prefetchAggregationBuffers(UnsafeRow[] groupingKeys, int numKeys, int[] hashcodes) {
+    if (batchKeyOffsets.length < numKeys) {
+      batchKeyBaseObjects = new Object[numKeys];
+      batchKeyOffsets = new long[numKeys];
+      batchKeyLengths = new int[numKeys];
+    }
+    for (int i = 0; i < numKeys; i++) {
+      batchKeyBaseObjects[i] = groupingKeys[i].getBaseObject();
+      batchKeyOffsets[i] = groupingKeys[i].getBaseOffset();
+      batchKeyLengths[i] = groupingKeys[i].getSizeInBytes();
+    }
+    map.prefetch(batchKeyBaseObjects, batchKeyOffsets, batchKeyLengths, numKeys, hashcodes);
+    // Do not keep the rows of this batch reachable
+    Arrays.fill(batchKeyBaseObjects, 0, numKeys, null);
+  }
+
+  /**
+   * Return the aggregation buffer for a grouping key passed to
+   * {@link #prefetchAggregationBuffers}, given the hashcode computed there. For efficiency, all
+   * calls to this method return the same object. If additional memory could not be allocated,
+   * then this method will signal an error by returning null.
+   */
+  public UnsafeRow getAggregationBuffer(UnsafeRow unsafeGroupingKeyRow, int hashcode) {
+    final BytesToBytesMap.Location loc = map.lookup(
+      unsafeGroupingKeyRow.getBaseObject(),
+      unsafeGroupingKeyRow.getBaseOffset(),
+      unsafeGroupingKeyRow.getSizeInBytes(),
+      hashcode);
+    return getAggregationBuffer(unsafeGroupingKeyRow, loc);
+  }
+
+  private UnsafeRow getAggregationBuffer(
+      UnsafeRow unsafeGroupingKeyRow,
+      BytesToBytesMap.Location loc) {
     if (!loc.isDefined()) {
       // This is the first time that we've seen this grouping key, so we'll insert a copy of the
       // empty aggregation buffer into the map:
@@ -208,6 +257,78 @@ public final class UnsafeFixedWidthAggregationMap {
     };
   }
 
+  /**
+   * Returns an iterator over the keys and values in this map and in its spills, in which all
+   * buffers of a grouping key are adjacent; the buffers of a key that was looked up both before
+   * and after a spill have to be merged by the caller. This destroys the map's hash table, so the
+   * map can only be freed afterwards.
+   *
+   * For efficiency, each call returns the same object.
+   */
+  public KVIterator<UnsafeRow, UnsafeRow> hashOrderedIterator() throws IOException {
+    final BytesToBytesMap.HashOrderedIterator mapLocationIterator = map.hashOrderedIterator();
+    return new KVIterator<UnsafeRow, UnsafeRow>() {
+
+      private final UnsafeRow key = new UnsafeRow();
+      private final UnsafeRow value = new UnsafeRow();
+
+      @Override
+      public boolean next() throws IOException {
+        if (mapLocationIterator.hasNext()) {
+          final BytesToBytesMap.Location loc = mapLocationIterator.next();
+          final MemoryLocation keyAddress = loc.getKeyAddress();
+          final MemoryLocation valueAddress = loc.getValueAddress();
+          key.pointTo(
+            keyAddress.getBaseObject(),
+            keyAddress.getBaseOffset(),
+            groupingKeySchema.length(),
+            loc.getKeyLength()
+          );
+          value.pointTo(
+            valueAddress.getBaseObject(),
+            valueAddress.getBaseOffset(),
+            aggregationBufferSchema.length(),
+            loc.getValueLength()
+          );
+          return true;
+        } else {
+          return false;
+        }
+      }
+
+      @Override
+      public UnsafeRow getKey() {
+        return key;
+      }
+
+      @Override
+      public UnsafeRow getValue() {
+        return value;
+      }
+
+      @Override
+      public void close() {
+        // Do nothing.
+      }
+    };
+  }
+
+  /**
+   * Writes the buffers in this map to disk and empties it, so that lookups can allocate memory
+   * again. Returns false if there was nothing to spill.
+   */
+  public boolean spill() throws IOException {
+    return map.spill() > 0;
+  }
+
+  /**
+   * Returns true if some buffers have been spilled, in which case the results have to be read
+   * through {@link #hashOrderedIterator()}.
+   */
+  public boolean hasSpilled() {
+    return map.hasSpilled();
+  }
+
   /**
    * The memory used by this map's managed structures, in bytes.
    * Note that this is also the peak memory used by this map, since the map is append-only.
@@ -229,6 +350,8 @@ public final class UnsafeFixedWidthAggregationMap {
       throw new IllegalStateException("Perf metrics not enabled");
     }
     System.out.println("Average probes per lookup: " + map.getAverageProbesPerLookup());
+    System.out.println("Average key comparisons per lookup: " +
+      map.getAverageKeyComparisonsPerLookup());
     System.out.println("Number of hash collisions: " + map.getNumHashCollisions());
     System.out.println("Time spent resizing (ns): " + map.getTimeSpentResizingNs());
     System.out.println("Total memory consumption (bytes): " + map.getTotalMemoryConsumption());
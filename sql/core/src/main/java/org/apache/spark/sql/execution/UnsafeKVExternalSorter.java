@@ -70,7 +70,7 @@ public final class UnsafeKVExternalSorter {
 
     TaskMemoryManager taskMemoryManager = taskContext.taskMemoryManager();
 
-    if (map == null) {
+    if (map == null || map.hasSpilled()) {
       sorter = UnsafeExternalSorter.create(
         taskMemoryManager,
         shuffleMemoryManager,
@@ -80,6 +80,25 @@ public final class UnsafeKVExternalSorter {
         prefixComparator,
         /* initialSize */ 4096,
         pageSizeBytes);
+      if (map != null) {
+        // The map's entries are partly on disk, so they can't be sorted in place; spill the rest
+        // as well to release the map's memory, then copy all of them into the sorter.
+        map.spill();
+        final int numKeyFields = keySchema.size();
+        final BytesToBytesMap.HashOrderedIterator iter = map.hashOrderedIterator();
+        final UnsafeRow row = new UnsafeRow();
+        while (iter.hasNext()) {
+          final BytesToBytesMap.Location loc = iter.next();
+          final Object baseObject = loc.getKeyAddress().getBaseObject();
+          final long baseOffset = loc.getKeyAddress().getBaseOffset();
+          row.pointTo(baseObject, baseOffset, numKeyFields, loc.getKeyLength());
+          sorter.insertKVRecord(
+            baseObject, baseOffset, loc.getKeyLength(),
+            loc.getValueAddress().getBaseObject(), loc.getValueAddress().getBaseOffset(),
+            loc.getValueLength(), prefixComputer.computePrefix(row));
+        }
+        map.free();
+      }
     } else {
       // Insert the records into the in-memory sorter.
       final UnsafeInMemorySorter inMemSorter = new UnsafeInMemorySorter(
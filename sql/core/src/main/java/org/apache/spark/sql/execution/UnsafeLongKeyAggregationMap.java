@@ -0,0 +1,396 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.spark.shuffle.ShuffleMemoryManager;
+import org.apache.spark.sql.catalyst.InternalRow;
+import org.apache.spark.sql.catalyst.expressions.UnsafeProjection;
+import org.apache.spark.sql.catalyst.expressions.UnsafeRow;
+import org.apache.spark.sql.types.*;
+import org.apache.spark.unsafe.KVIterator;
+import org.apache.spark.unsafe.PlatformDependent;
+import org.apache.spark.unsafe.memory.MemoryBlock;
+import org.apache.spark.unsafe.memory.TaskMemoryManager;
+
+/**
+ * Hash map for aggregations grouped by a single integral column, where the aggregated values are
+ * fixed-width. It plays the role of {@link UnsafeFixedWidthAggregationMap} without encoding each
+ * grouping key as an UnsafeRow: keys are stored inline as longs in an open-addressing table with
+ * linear probing, and the aggregation buffers live in a parallel array of fixed-size UnsafeRows
+ * allocated through the {@link TaskMemoryManager} (so off-heap when Tungsten is).
+ *
+ * Two keys that cannot be stored in the key array, null and {@link #EMPTY_KEY} (which marks
+ * empty slots), have buffers in two extra slots after the table.
+ */
+public final class UnsafeLongKeyAggregationMap {
+
+  /** Marks an empty slot of the key array. */
+  private static final long EMPTY_KEY = Long.MIN_VALUE;
+
+  private static final double LOAD_FACTOR = 0.5;
+
+  /** Multiplier for Fibonacci hashing, which spreads out runs of consecutive keys. */
+  private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+  /**
+   * An empty aggregation buffer, encoded in UnsafeRow format. When inserting a new key into the
+   * map, we copy this buffer and use it as the value.
+   */
+  private final byte[] emptyAggregationBuffer;
+
+  private final int numBufferFields;
+
+  private final DataType keyType;
+
+  private final TaskMemoryManager taskMemoryManager;
+
+  private final ShuffleMemoryManager shuffleMemoryManager;
+
+  /** Keys of the table slots, or {@link #EMPTY_KEY} for empty slots. */
+  private long[] keys;
+
+  /**
+   * Aggregation buffers of the table slots, followed by those of the {@link #EMPTY_KEY} and null
+   * keys, each {@code emptyAggregationBuffer.length} bytes long.
+   */
+  private MemoryBlock buffers;
+
+  /** Bytes acquired from the shuffle memory manager for {@link #keys} and {@link #buffers}. */
+  private long acquiredMemory = 0;
+
+  private int capacity;
+
+  /** log2 of capacity, for Fibonacci hashing. */
+  private int shift;
+
+  private int numKeysInTable = 0;
+
+  private int growthThreshold;
+
+  private boolean hasEmptyKey = false;
+
+  private boolean hasNullKey = false;
+
+  /**
+   * Re-used pointer to the current aggregation buffer
+   */
+  private final UnsafeRow currentAggregationBuffer = new UnsafeRow();
+
+  /**
+   * @return true if UnsafeLongKeyAggregationMap supports grouping keys with the given schema, that
+   *         is a single integral column; false otherwise.
+   */
+  public static boolean supportsGroupingKeySchema(StructType schema) {
+    return schema.length() == 1 && isSupportedKeyType(schema.fields()[0].dataType());
+  }
+
+  private static boolean isSupportedKeyType(DataType dataType) {
+    return dataType instanceof LongType || dataType instanceof IntegerType ||
+      dataType instanceof ShortType || dataType instanceof ByteType ||
+      dataType instanceof DateType || dataType instanceof TimestampType;
+  }
+
+  /**
+   * Create a new UnsafeLongKeyAggregationMap.
+   *
+   * @param emptyAggregationBuffer the default value for new keys (a "zero" of the agg. function)
+   * @param aggregationBufferSchema the schema of the aggregation buffer, used for row conversion.
+   * @param groupingKeySchema the schema of the grouping key, which must be a single integral
+   *                          column (see {@link #supportsGroupingKeySchema(StructType)}).
+   * @param taskMemoryManager the memory manager used to allocate the aggregation buffers.
+   * @param shuffleMemoryManager the shuffle memory manager, for coordinating our memory usage with
+   *                             other tasks.
+   * @param initialCapacity the initial capacity of the map (a sizing hint to avoid re-hashing).
+   */
+  public UnsafeLongKeyAggregationMap(
+      InternalRow emptyAggregationBuffer,
+      StructType aggregationBufferSchema,
+      StructType groupingKeySchema,
+      TaskMemoryManager taskMemoryManager,
+      ShuffleMemoryManager shuffleMemoryManager,
+      int initialCapacity) throws IOException {
+    if (!supportsGroupingKeySchema(groupingKeySchema)) {
+      throw new IllegalArgumentException("Unsupported grouping key schema " + groupingKeySchema);
+    }
+    this.keyType = groupingKeySchema.fields()[0].dataType();
+    this.numBufferFields = aggregationBufferSchema.length();
+    this.taskMemoryManager = taskMemoryManager;
+    this.shuffleMemoryManager = shuffleMemoryManager;
+
+    // Initialize the buffer for aggregation value
+    final UnsafeProjection valueProjection = UnsafeProjection.create(aggregationBufferSchema);
+    this.emptyAggregationBuffer = valueProjection.apply(emptyAggregationBuffer).getBytes();
+    assert(this.emptyAggregationBuffer.length == aggregationBufferSchema.length() * 8 +
+      UnsafeRow.calculateBitSetWidthInBytes(aggregationBufferSchema.length()));
+
+    int initialTableSize = 64;
+    while (initialTableSize * LOAD_FACTOR < initialCapacity && initialTableSize < (1 << 30)) {
+      initialTableSize <<= 1;
+    }
+    if (!allocate(initialTableSize)) {
+      throw new IOException("Could not acquire memory for the aggregation map");
+    }
+  }
+
+  /**
+   * Allocates an empty table of the given power-of-2 size, acquiring memory for it first; returns
+   * false if the memory could not be acquired, in which case nothing is changed.
+   */
+  private boolean allocate(int tableSize) {
+    final long required = tableSize * 8L + buffersSize(tableSize);
+    final long granted = shuffleMemoryManager.tryToAcquire(required);
+    if (granted != required) {
+      shuffleMemoryManager.release(granted);
+      return false;
+    }
+    acquiredMemory += granted;
+    keys = new long[tableSize];
+    Arrays.fill(keys, EMPTY_KEY);
+    buffers = taskMemoryManager.allocate(buffersSize(tableSize));
+    capacity = tableSize;
+    shift = 64 - Integer.numberOfTrailingZeros(tableSize);
+    growthThreshold = (int) (tableSize * LOAD_FACTOR);
+    return true;
+  }
+
+  /**
+   * Size of the buffer array for a table of the given size; never zero, even if aggregation
+   * buffers have no fields, since empty blocks cannot be allocated.
+   */
+  private long buffersSize(int tableSize) {
+    return Math.max((tableSize + 2L) * emptyAggregationBuffer.length, 8L);
+  }
+
+  /**
+   * Return the aggregation buffer for the group whose key is the column {@code ordinal} of
+   * {@code row}, which has the map's key type. For efficiency, all calls to this method return the
+   * same object. If additional memory could not be allocated, then this method will signal an
+   * error by returning null.
+   */
+  public UnsafeRow getAggregationBuffer(InternalRow row, int ordinal) {
+    if (row.isNullAt(ordinal)) {
+      if (!hasNullKey) {
+        initializeBuffer(capacity + 1);
+        hasNullKey = true;
+      }
+      return pointToBuffer(capacity + 1);
+    }
+    final long key;
+    if (keyType instanceof LongType || keyType instanceof TimestampType) {
+      key = row.getLong(ordinal);
+    } else if (keyType instanceof IntegerType || keyType instanceof DateType) {
+      key = row.getInt(ordinal);
+    } else if (keyType instanceof ShortType) {
+      key = row.getShort(ordinal);
+    } else {
+      key = row.getByte(ordinal);
+    }
+    return getAggregationBuffer(key);
+  }
+
+  /**
+   * Return the aggregation buffer for the current group; this is the same as
+   * {@code getAggregationBuffer(groupingKey, 0)}.
+   */
+  public UnsafeRow getAggregationBuffer(InternalRow groupingKey) {
+    return getAggregationBuffer(groupingKey, 0);
+  }
+
+  /**
+   * Return the aggregation buffer for the given non-null key, or null if additional memory could
+   * not be allocated.
+   */
+  public UnsafeRow getAggregationBuffer(long key) {
+    if (key == EMPTY_KEY) {
+      if (!hasEmptyKey) {
+        initializeBuffer(capacity);
+        hasEmptyKey = true;
+      }
+      return pointToBuffer(capacity);
+    }
+    int pos = (int) ((key * HASH_MULTIPLIER) >>> shift);
+    while (true) {
+      final long stored = keys[pos];
+      if (stored == key) {
+        return pointToBuffer(pos);
+      } else if (stored == EMPTY_KEY) {
+        if (numKeysInTable >= growthThreshold) {
+          if (!growAndRehash()) {
+            return null;
+          }
+          return getAggregationBuffer(key);
+        }
+        keys[pos] = key;
+        numKeysInTable++;
+        initializeBuffer(pos);
+        return pointToBuffer(pos);
+      }
+      pos = (pos + 1) & (capacity - 1);
+    }
+  }
+
+  private long bufferOffset(int slot) {
+    return buffers.getBaseOffset() + (long) slot * emptyAggregationBuffer.length;
+  }
+
+  private void initializeBuffer(int slot) {
+    PlatformDependent.copyMemory(
+      emptyAggregationBuffer,
+      PlatformDependent.BYTE_ARRAY_OFFSET,
+      buffers.getBaseObject(),
+      bufferOffset(slot),
+      emptyAggregationBuffer.length);
+  }
+
+  private UnsafeRow pointToBuffer(int slot) {
+    currentAggregationBuffer.pointTo(
+      buffers.getBaseObject(), bufferOffset(slot), numBufferFields, emptyAggregationBuffer.length);
+    return currentAggregationBuffer;
+  }
+
+  /**
+   * Doubles the table, moving keys and their buffers; returns false if the memory for the new
+   * table could not be acquired, in which case the map is unchanged.
+   */
+  private boolean growAndRehash() {
+    final long[] oldKeys = keys;
+    final MemoryBlock oldBuffers = buffers;
+    final int oldCapacity = capacity;
+    if (capacity >= (1 << 30) || !allocate(capacity * 2)) {
+      return false;
+    }
+    final int bufferSize = emptyAggregationBuffer.length;
+    for (int oldPos = 0; oldPos < oldCapacity; oldPos++) {
+      final long key = oldKeys[oldPos];
+      if (key != EMPTY_KEY) {
+        int pos = (int) ((key * HASH_MULTIPLIER) >>> shift);
+        while (keys[pos] != EMPTY_KEY) {
+          pos = (pos + 1) & (capacity - 1);
+        }
+        keys[pos] = key;
+        PlatformDependent.copyMemory(
+          oldBuffers.getBaseObject(), oldBuffers.getBaseOffset() + (long) oldPos * bufferSize,
+          buffers.getBaseObject(), bufferOffset(pos), bufferSize);
+      }
+    }
+    // The buffers of the special keys follow the table.
+    PlatformDependent.copyMemory(
+      oldBuffers.getBaseObject(), oldBuffers.getBaseOffset() + (long) oldCapacity * bufferSize,
+      buffers.getBaseObject(), bufferOffset(capacity), 2L * bufferSize);
+    taskMemoryManager.free(oldBuffers);
+    final long oldMemory = oldCapacity * 8L + buffersSize(oldCapacity);
+    shuffleMemoryManager.release(oldMemory);
+    acquiredMemory -= oldMemory;
+    return true;
+  }
+
+  /**
+   * Returns the number of groups in the map.
+   */
+  public int numGroups() {
+    return numKeysInTable + (hasEmptyKey ? 1 : 0) + (hasNullKey ? 1 : 0);
+  }
+
+  /**
+   * Returns an iterator over the keys and values in this map. The key is a one-column UnsafeRow
+   * of the map's key type.
+   *
+   * For efficiency, each call returns the same object.
+   */
+  public KVIterator<UnsafeRow, UnsafeRow> iterator() {
+    return new KVIterator<UnsafeRow, UnsafeRow>() {
+
+      private final UnsafeRow key = new UnsafeRow();
+      private int slot = -1;
+
+      {
+        key.pointTo(new byte[16], 1, 16);
+      }
+
+      @Override
+      public boolean next() {
+        slot++;
+        while (slot < capacity && keys[slot] == EMPTY_KEY) {
+          slot++;
+        }
+        if (slot < capacity) {
+          setKey(keys[slot]);
+        } else if (slot == capacity && hasEmptyKey) {
+          setKey(EMPTY_KEY);
+        } else if (slot <= capacity + 1 && hasNullKey) {
+          slot = capacity + 1;
+          key.setNullAt(0);
+        } else {
+          return false;
+        }
+        pointToBuffer(slot);
+        return true;
+      }
+
+      private void setKey(long value) {
+        if (keyType instanceof LongType || keyType instanceof TimestampType) {
+          key.setLong(0, value);
+        } else if (keyType instanceof IntegerType || keyType instanceof DateType) {
+          key.setInt(0, (int) value);
+        } else if (keyType instanceof ShortType) {
+          key.setShort(0, (short) value);
+        } else {
+          key.setByte(0, (byte) value);
+        }
+      }
+
+      @Override
+      public UnsafeRow getKey() {
+        return key;
+      }
+
+      @Override
+      public UnsafeRow getValue() {
+        return currentAggregationBuffer;
+      }
+
+      @Override
+      public void close() {
+        // Do nothing.
+      }
+    };
+  }
+
+  /**
+   * The memory used by this map's managed structures, in bytes.
+   */
+  public long getMemoryUsage() {
+    return acquiredMemory;
+  }
+
+  /**
+   * Free the memory associated with this map. This is idempotent and can be called multiple times.
+   */
+  public void free() {
+    if (buffers != null) {
+      taskMemoryManager.free(buffers);
+      buffers = null;
+      keys = null;
+      shuffleMemoryManager.release(acquiredMemory);
+      acquiredMemory = 0;
+    }
+  }
+}
@@ -264,33 +264,66 @@ case class GeneratedAggregate(
         log.info("Using Unsafe-based aggregator")
         val pageSizeBytes = SparkEnv.get.conf.getSizeAsBytes("spark.buffer.pageSize", "64m")
         val taskContext = TaskContext.get()
-        val aggregationMap = new UnsafeFixedWidthAggregationMap(
-          newAggregationBuffer(EmptyRow),
-          aggregationBufferSchema,
-          groupKeySchema,
-          taskContext.taskMemoryManager(),
-          SparkEnv.get.shuffleMemoryManager,
-          1024 * 16, // initial capacity
-          pageSizeBytes,
-          false // disable tracking of performance metrics
-        )
+        val (mapIterator, memoryUsage, freeMap) =
+          if (UnsafeLongKeyAggregationMap.supportsGroupingKeySchema(groupKeySchema)) {
+            log.info("Using primitive grouping keys")
+            val aggregationMap = new UnsafeLongKeyAggregationMap(
+              newAggregationBuffer(EmptyRow),
+              aggregationBufferSchema,
+              groupKeySchema,
+              taskContext.taskMemoryManager(),
+              SparkEnv.get.shuffleMemoryManager,
+              1024 * 16 // initial capacity
+            )
+            // If we group by a column of the input, read the key directly from the input row.
+            val keyOrdinal =
+              BindReferences.bindReference(groupingExpressions.head, child.output) match {
+                case BoundReference(ordinal, _, _) => ordinal
+                case _ => -1
+              }
 
-        while (iter.hasNext) {
-          val currentRow: InternalRow = iter.next()
-          val groupKey: InternalRow = groupProjection(currentRow)
-          val aggregationBuffer = aggregationMap.getAggregationBuffer(groupKey)
-          if (aggregationBuffer == null) {
-            throw new IOException("Could not allocate memory to grow aggregation buffer")
+            while (iter.hasNext) {
+              val currentRow: InternalRow = iter.next()
+              val aggregationBuffer = if (keyOrdinal >= 0) {
+                aggregationMap.getAggregationBuffer(currentRow, keyOrdinal)
+              } else {
+                aggregationMap.getAggregationBuffer(groupProjection(currentRow))
+              }
+              if (aggregationBuffer == null) {
+                throw new IOException("Could not allocate memory to grow aggregation buffer")
+              }
+              updateProjection.target(aggregationBuffer)(joinedRow(aggregationBuffer, currentRow))
+            }
+            (aggregationMap.iterator(), aggregationMap.getMemoryUsage, () => aggregationMap.free())
+          } else {
+            val aggregationMap = new UnsafeFixedWidthAggregationMap(
+              newAggregationBuffer(EmptyRow),
+              aggregationBufferSchema,
+              groupKeySchema,
+              taskContext.taskMemoryManager(),
+              SparkEnv.get.shuffleMemoryManager,
+              1024 * 16, // initial capacity
+              pageSizeBytes,
+              false // disable tracking of performance metrics
+            )
+
+            while (iter.hasNext) {
+              val currentRow: InternalRow = iter.next()
+              val groupKey: InternalRow = groupProjection(currentRow)
+              val aggregationBuffer = aggregationMap.getAggregationBuffer(groupKey)
+              if (aggregationBuffer == null) {
+                throw new IOException("Could not allocate memory to grow aggregation buffer")
+              }
+              updateProjection.target(aggregationBuffer)(joinedRow(aggregationBuffer, currentRow))
+            }
+            (aggregationMap.iterator(), aggregationMap.getMemoryUsage, () => aggregationMap.free())
           }
-          updateProjection.target(aggregationBuffer)(joinedRow(aggregationBuffer, currentRow))
-        }
 
         // Record memory used in the process
         taskContext.internalMetricsToAccumulators(
-          InternalAccumulator.PEAK_EXECUTION_MEMORY).add(aggregationMap.getMemoryUsage)
+          InternalAccumulator.PEAK_EXECUTION_MEMORY).add(memoryUsage)
 
         new Iterator[InternalRow] {
-          private[this] val mapIterator = aggregationMap.iterator()
           private[this] val resultProjection = resultProjectionBuilder()
           private[this] var _hasNext = mapIterator.next()
 
@@ -307,7 +340,7 @@ case class GeneratedAggregate(
                 // though, we need to make a defensive copy of the result so that we don't return an
                 // object that might contain dangling pointers to the freed memory.
                 val resultCopy = result.copy()
-                aggregationMap.free()
+                freeMap()
                 resultCopy
               }
             } else {
@@ -28,8 +28,9 @@ import org.apache.spark.sql.types.StructType
 /**
  * An iterator used to evaluate [[AggregateFunction2]].
  * It first tries to use in-memory hash-based aggregation. If we cannot allocate more
- * space for the hash map, we spill the sorted map entries, free the map, and then
- * switch to sort-based aggregation.
+ * space for the hash map, we spill its entries to disk, ordered by hash, and carry on with an
+ * empty map; the spills are merged at the end. If even an empty map cannot allocate memory, we
+ * spill the sorted map entries, free the map, and then switch to sort-based aggregation.
  */
 class UnsafeHybridAggregationIterator(
     groupingKeyAttributes: Seq[Attribute],
@@ -233,6 +234,44 @@ class UnsafeHybridAggregationIterator(
     val sortedKVIterator: UnsafeKVExternalSorter#KVSorterIterator = externalSorter.sortedIterator()
 
     // Step 6: We now create a SortBasedAggregationIterator based on sortedKVIterator.
+    sortBasedAggregationIterator = createMergingIterator(sortedKVIterator)
+  }
+
+  /**
+   * Once all input has been consumed by a map that had to spill, merges the aggregation buffers
+   * of the spills and of the map. The map returns them ordered by hash of the grouping key, so
+   * the buffers of a key are adjacent, which is all sort-based aggregation needs.
+   */
+  private def mergeSpilledBuffers(): Unit = {
+    logInfo("merging spilled aggregation buffers.")
+    val mapIterator = buffers.hashOrderedIterator()
+    val mergedKVIterator = new KVIterator[UnsafeRow, UnsafeRow] {
+      override def next(): Boolean = {
+        val hasNext = mapIterator.next()
+        // The map's memory backs the rows we return, so free it only once we have read them all.
+        if (!hasNext) {
+          buffers.free()
+        }
+        hasNext
+      }
+
+      override def getKey(): UnsafeRow = mapIterator.getKey()
+
+      override def getValue(): UnsafeRow = mapIterator.getValue()
+
+      override def close(): Unit = {
+        buffers.free()
+      }
+    }
+    sortBasedAggregationIterator = createMergingIterator(mergedKVIterator)
+  }
+
+  /**
+   * Creates a SortBasedAggregationIterator merging the aggregation buffers of `sortedKVIterator`,
+   * whose entries with equal grouping keys have to be adjacent.
+   */
+  private def createMergingIterator(
+      sortedKVIterator: KVIterator[UnsafeRow, UnsafeRow]): SortBasedAggregationIterator = {
     // For a aggregate function with mode Partial, its mode in the SortBasedAggregationIterator
     // will be PartialMerge. For a aggregate function with mode Complete,
     // its mode in the SortBasedAggregationIterator will be Final.
@@ -249,7 +288,7 @@ class UnsafeHybridAggregationIterator(
     val newValueAttributes =
       allAggregateExpressions.flatMap(_.aggregateFunction.cloneBufferAttributes)
 
-    sortBasedAggregationIterator = SortBasedAggregationIterator.createFromKVIterator(
+    SortBasedAggregationIterator.createFromKVIterator(
       groupingKeyAttributes = groupingKeyAttributes,
       valueAttributes = newValueAttributes,
       inputKVIterator = sortedKVIterator.asInstanceOf[KVIterator[InternalRow, InternalRow]],
@@ -273,9 +312,14 @@ class UnsafeHybridAggregationIterator(
     while (!sortBased && hasNext) {
       val groupingKey = inputKVIterator.getKey()
       val currentRow = inputKVIterator.getValue()
-      val buffer = buffers.getAggregationBuffer(groupingKey)
+      var buffer = buffers.getAggregationBuffer(groupingKey)
+      if (buffer == null && buffers.spill()) {
+        // buffer == null means that we could not allocate more memory. Spilling the map to disk
+        // releases its memory, so we retry; the spills are merged back once the input is consumed.
+        buffer = buffers.getAggregationBuffer(groupingKey)
+      }
       if (buffer == null) {
-        // buffer == null means that we could not allocate more memory.
+        // Even an empty map could not allocate memory.
         // Now, we need to spill the map and switch to sort-based aggregation.
         switchToSortBasedAggregation(groupingKey, currentRow)
         sortBased = true
@@ -284,6 +328,10 @@ class UnsafeHybridAggregationIterator(
         hasNext = inputKVIterator.next()
       }
     }
+    if (!sortBased && buffers.hasSpilled()) {
+      mergeSpilledBuffers()
+      sortBased = true
+    }
   }
 
   // This is the starting point of this iterator.
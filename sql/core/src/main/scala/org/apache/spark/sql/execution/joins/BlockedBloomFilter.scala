@@ -0,0 +1,116 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.spark.sql.execution.joins
+
+import org.apache.spark.unsafe.PlatformDependent
+
+/**
+ * A Bloom filter over the 32-bit hash codes of join keys, used to rule out most streamed rows
+ * that have no match in a [[HashedRelation]] without probing it.
+ *
+ * The filter is blocked: all the bits of a key are set in a single block of 512 bits, which is a
+ * cache line, so that testing a key costs at most one cache miss. With 10 bits per key and 6 bits
+ * set per key, its false positive rate is about 1.5%.
+ */
+private[joins] final class BlockedBloomFilter private (private val words: Array[Long]) {
+
+  import BlockedBloomFilter._
+
+  private[this] val blockMask = words.length / WORDS_PER_BLOCK - 1
+
+  def put(hash: Int): Unit = {
+    val blockStart = (hash & blockMask) * WORDS_PER_BLOCK
+    var bits = mix(hash)
+    var i = 0
+    while (i < NUM_PROBES) {
+      val bit = (bits & (BITS_PER_BLOCK - 1)).toInt
+      words(blockStart + (bit >>> 6)) |= 1L << bit
+      bits >>>= 9
+      i += 1
+    }
+  }
+
+  /**
+   * Returns false if no key with the given hash code was put into this filter, and true if one
+   * probably was.
+   */
+  def mightContain(hash: Int): Boolean = {
+    val blockStart = (hash & blockMask) * WORDS_PER_BLOCK
+    var bits = mix(hash)
+    var i = 0
+    while (i < NUM_PROBES) {
+      val bit = (bits & (BITS_PER_BLOCK - 1)).toInt
+      if ((words(blockStart + (bit >>> 6)) & (1L << bit)) == 0) {
+        return false
+      }
+      bits >>>= 9
+      i += 1
+    }
+    true
+  }
+
+  def sizeInBytes: Long = 8L * words.length
+
+  def toByteArray: Array[Byte] = {
+    val bytes = new Array[Byte](words.length * 8)
+    PlatformDependent.copyMemory(words, PlatformDependent.LONG_ARRAY_OFFSET,
+      bytes, PlatformDependent.BYTE_ARRAY_OFFSET, bytes.length)
+    bytes
+  }
+}
+
+private[joins] object BlockedBloomFilter {
+
+  private val BITS_PER_BLOCK = 512
+
+  private val WORDS_PER_BLOCK = BITS_PER_BLOCK / 64
+
+  private val BITS_PER_KEY = 10
+
+  private val NUM_PROBES = 6
+
+  /** Creates an empty filter sized for the given number of keys. */
+  def apply(expectedNumKeys: Int): BlockedBloomFilter = {
+    var numBlocks = 1
+    while (numBlocks.toLong * BITS_PER_BLOCK < expectedNumKeys.toLong * BITS_PER_KEY) {
+      numBlocks *= 2
+    }
+    new BlockedBloomFilter(new Array[Long](numBlocks * WORDS_PER_BLOCK))
+  }
+
+  /** Reads back a filter written by [[BlockedBloomFilter.toByteArray]]. */
+  def fromByteArray(bytes: Array[Byte]): BlockedBloomFilter = {
+    val words = new Array[Long](bytes.length / 8)
+    PlatformDependent.copyMemory(bytes, PlatformDependent.BYTE_ARRAY_OFFSET,
+      words, PlatformDependent.LONG_ARRAY_OFFSET, bytes.length)
+    new BlockedBloomFilter(words)
+  }
+
+  /**
+   * Spreads a hash code over 64 bits (the finalizer of MurmurHash3's 64-bit variant), which
+   * supply the positions of the bits of a key within its block, 9 bits each.
+   */
+  private def mix(hash: Int): Long = {
+    var h = hash.toLong
+    h ^= h >>> 33
+    h *= 0xff51afd7ed558ccdL
+    h ^= h >>> 33
+    h *= 0xc4ceb9fe1a85ec53L
+    h ^= h >>> 33
+    h
+  }
+}
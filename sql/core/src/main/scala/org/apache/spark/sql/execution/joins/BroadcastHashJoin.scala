@@ -47,6 +47,9 @@ case class BroadcastHashJoin(
 
   override protected[sql] val trackNumOfRowsEnabled = true
 
+  private[sql] override lazy val accumulators = super.accumulators +
+    ("numPrunedRows" -> sparkContext.internalAccumulator(0L, "number of pruned rows"))
+
   val timeout: Duration = {
     val timeoutValue = sqlContext.conf.broadcastTimeout
     if (timeoutValue < 0) {
@@ -86,6 +89,7 @@ case class BroadcastHashJoin(
 
   protected override def doExecute(): RDD[InternalRow] = {
     val broadcastRelation = Await.result(broadcastFuture, timeout)
+    val numPrunedRows = accumulator[Long]("numPrunedRows")
 
     streamedPlan.execute().mapPartitions { streamedIter =>
       val hashedRelation = broadcastRelation.value
@@ -95,7 +99,7 @@ case class BroadcastHashJoin(
             InternalAccumulator.PEAK_EXECUTION_MEMORY).add(unsafe.getUnsafeSize)
         case _ =>
       }
-      hashJoin(streamedIter, hashedRelation)
+      hashJoin(streamedIter, hashedRelation, numPrunedRows)
     }
   }
 }
@@ -17,6 +17,7 @@
 
 package org.apache.spark.sql.execution.joins
 
+import org.apache.spark.Accumulator
 import org.apache.spark.sql.catalyst.InternalRow
 import org.apache.spark.sql.catalyst.expressions._
 import org.apache.spark.sql.execution.SparkPlan
@@ -66,9 +67,15 @@ trait HashJoin {
       newMutableProjection(streamedKeys, streamedPlan.output)()
     }
 
+  /**
+   * Joins the streamed rows with the hashed relation. Streamed rows whose key the relation rules
+   * out with [[HashedRelation.mightContain]] are skipped without a lookup and counted in
+   * `numPrunedRows`.
+   */
   protected def hashJoin(
       streamIter: Iterator[InternalRow],
-      hashedRelation: HashedRelation): Iterator[InternalRow] =
+      hashedRelation: HashedRelation,
+      numPrunedRows: Accumulator[Long]): Iterator[InternalRow] =
   {
     new Iterator[InternalRow] {
       private[this] var currentStreamedRow: InternalRow = _
@@ -114,7 +121,11 @@ trait HashJoin {
           currentStreamedRow = streamIter.next()
           val key = joinKeys(currentStreamedRow)
           if (!key.anyNull) {
-            currentHashMatches = hashedRelation.get(key)
+            if (hashedRelation.mightContain(key)) {
+              currentHashMatches = hashedRelation.get(key)
+            } else {
+              numPrunedRows += 1
+            }
           }
         }
 
@@ -17,18 +17,15 @@
 
 package org.apache.spark.sql.execution.joins
 
-import java.io.{IOException, Externalizable, ObjectInput, ObjectOutput}
-import java.nio.ByteOrder
+import java.io.{Externalizable, ObjectInput, ObjectOutput}
 import java.util.{HashMap => JavaHashMap}
 
-import org.apache.spark.shuffle.ShuffleMemoryManager
-import org.apache.spark.{SparkConf, SparkEnv, TaskContext}
 import org.apache.spark.sql.catalyst.InternalRow
 import org.apache.spark.sql.catalyst.expressions._
 import org.apache.spark.sql.execution.SparkSqlSerializer
 import org.apache.spark.unsafe.PlatformDependent
-import org.apache.spark.unsafe.map.BytesToBytesMap
-import org.apache.spark.unsafe.memory.{ExecutorMemoryManager, MemoryAllocator, TaskMemoryManager}
+import org.apache.spark.unsafe.array.ByteArrayMethods
+import org.apache.spark.unsafe.hash.Murmur3_x86_32
 import org.apache.spark.util.Utils
 import org.apache.spark.util.collection.CompactBuffer
 
@@ -40,15 +37,21 @@ import org.apache.spark.util.collection.CompactBuffer
 private[joins] sealed trait HashedRelation {
   def get(key: InternalRow): Seq[InternalRow]
 
+  /**
+   * Returns false if `get(key)` would certainly return null, which some relations can tell much
+   * faster than by looking up the key.
+   */
+  def mightContain(key: InternalRow): Boolean = true
+
   // This is a helper method to implement Externalizable, and is used by
-  // GeneralHashedRelation and UniqueKeyHashedRelation
+  // GeneralHashedRelation, UniqueKeyHashedRelation and UnsafeHashedRelation
   protected def writeBytes(out: ObjectOutput, serialized: Array[Byte]): Unit = {
     out.writeInt(serialized.length) // Write the length of serialized bytes first
     out.write(serialized)
   }
 
   // This is a helper method to implement Externalizable, and is used by
-  // GeneralHashedRelation and UniqueKeyHashedRelation
+  // GeneralHashedRelation, UniqueKeyHashedRelation and UnsafeHashedRelation
   protected def readBytes(in: ObjectInput): Array[Byte] = {
     val serializedSize = in.readInt() // Read the length of serialized bytes first
     val bytes = new Array[Byte](serializedSize)
@@ -160,74 +163,75 @@ private[joins] object HashedRelation {
 }
 
 /**
- * A HashedRelation for UnsafeRow, which is backed by HashMap or BytesToBytesMap that maps the key
- * into a sequence of values.
+ * A HashedRelation for UnsafeRow, which is backed by HashMap or, on the executors of a broadcast
+ * join, by a binary hash table that maps the key into a sequence of values.
  *
- * When it's created, it uses HashMap. After it's serialized and deserialized, it switch to use
- * BytesToBytesMap for better memory performance (multiple values for the same are stored as a
- * continuous byte array.
+ * When it's created, it uses HashMap. It is serialized as the binary hash table, which is a
+ * single byte array that is probed in place after deserialization: nothing is rebuilt on the
+ * executors, and a probe returns a view of the matching rows in the table instead of copies.
  *
- * It's serialized in the following format:
- *  [number of keys]
- *  [size of key] [size of all values in bytes] [key bytes] [bytes for all values]
+ * The table is laid out as follows, with all integers in native byte order so that they can be
+ * read by UNSAFE.getInt(), and all keys and rows 8-byte aligned:
+ *  [capacity: int] [number of keys: int]
+ *  [slot 0: long] ... [slot capacity - 1: long]
+ *  [size of key: int] [number of values: int] [key bytes] [values]
  *  ...
  *
- * All the values are serialized as following:
+ * A slot is 0 if empty and otherwise holds the hash code of a key in its upper 32 bits and the
+ * offset of the key in the table in its lower 32 bits; keys are placed by linear probing at a load
+ * factor of at most 0.5. The values are stored as following:
  *   [number of fields] [number of bytes] [underlying bytes of UnsafeRow]
  *   ...
+ *
+ * The relation also keeps a [[BlockedBloomFilter]] of its keys, which is serialized after the
+ * table, to answer `mightContain`.
  */
 private[joins] final class UnsafeHashedRelation(
-    private var hashTable: JavaHashMap[UnsafeRow, CompactBuffer[UnsafeRow]])
+    private var hashTable: JavaHashMap[UnsafeRow, CompactBuffer[UnsafeRow]],
+    @transient private var bloomFilter: BlockedBloomFilter)
   extends HashedRelation with Externalizable {
 
-  private[joins] def this() = this(null)  // Needed for serialization
+  import UnsafeHashedRelation._
 
-  // Use BytesToBytesMap in executor for better performance (it's created when deserialization)
-  // This is used in broadcast joins and distributed mode only
-  @transient private[this] var binaryMap: BytesToBytesMap = _
+  private[joins] def this() = this(null, null)  // Needed for serialization
+
+  // The binary hash table, which is only used in broadcast joins and distributed mode: it is
+  // created when deserialized.
+  @transient private[this] var binaryTable: Array[Byte] = _
 
   /**
-   * Return the size of the unsafe map on the executors.
+   * Return the size of the binary hash table on the executors.
    *
    * For broadcast joins, this hashed relation is bigger on the driver because it is
    * represented as a Java hash map there. While serializing the map to the executors,
-   * however, we rehash the contents in a binary map to reduce the memory footprint on
+   * however, we lay out its contents in a binary hash table to reduce the memory footprint on
    * the executors.
    *
    * For non-broadcast joins or in local mode, return 0.
    */
   def getUnsafeSize: Long = {
-    if (binaryMap != null) {
-      binaryMap.getTotalMemoryConsumption
+    if (binaryTable != null) {
+      binaryTable.length
     } else {
       0
     }
   }
 
+  override def mightContain(key: InternalRow): Boolean = {
+    val unsafeKey = key.asInstanceOf[UnsafeRow]
+    bloomFilter.mightContain(
+      HASHER.hashUnsafeWords(unsafeKey.getBaseObject, unsafeKey.getBaseOffset,
+        unsafeKey.getSizeInBytes))
+  }
+
   override def get(key: InternalRow): Seq[InternalRow] = {
     val unsafeKey = key.asInstanceOf[UnsafeRow]
 
-    if (binaryMap != null) {
+    if (binaryTable != null) {
       // Used in Broadcast join
-      val loc = binaryMap.lookup(unsafeKey.getBaseObject, unsafeKey.getBaseOffset,
-        unsafeKey.getSizeInBytes)
-      if (loc.isDefined) {
-        val buffer = CompactBuffer[UnsafeRow]()
-
-        val base = loc.getValueAddress.getBaseObject
-        var offset = loc.getValueAddress.getBaseOffset
-        val last = loc.getValueAddress.getBaseOffset + loc.getValueLength
-        while (offset < last) {
-          val numFields = PlatformDependent.UNSAFE.getInt(base, offset)
-          val sizeInBytes = PlatformDependent.UNSAFE.getInt(base, offset + 4)
-          offset += 8
-
-          val row = new UnsafeRow
-          row.pointTo(base, offset, numFields, sizeInBytes)
-          buffer += row
-          offset += sizeInBytes
-        }
-        buffer
+      val entryOffset = lookup(binaryTable, unsafeKey)
+      if (entryOffset >= 0) {
+        new UnsafeRowsView(binaryTable, entryOffset)
       } else {
         null
       }
@@ -239,96 +243,150 @@ private[joins] final class UnsafeHashedRelation(
   }
 
   override def writeExternal(out: ObjectOutput): Unit = Utils.tryOrIOException {
-    out.writeInt(hashTable.size())
+    writeBytes(out, buildBinaryTable(hashTable))
+    writeBytes(out, bloomFilter.toByteArray)
+  }
+
+  override def readExternal(in: ObjectInput): Unit = Utils.tryOrIOException {
+    binaryTable = readBytes(in)
+    bloomFilter = BlockedBloomFilter.fromByteArray(readBytes(in))
+  }
+}
+
+/**
+ * The rows stored for a key of the binary hash table of an [[UnsafeHashedRelation]], read in
+ * place from the table. For efficiency, all calls to `apply` return the same row, pointed at the
+ * requested value; reading the values in order is cheap, other accesses scan from the start.
+ */
+private[joins] final class UnsafeRowsView(table: Array[Byte], entryOffset: Int)
+  extends IndexedSeq[InternalRow] {
+
+  import UnsafeHashedRelation._
+
+  override val length: Int = PlatformDependent.UNSAFE.getInt(table, BASE + entryOffset + 4)
+
+  private[this] val firstValueOffset: Long = BASE + entryOffset + ENTRY_HEADER_SIZE +
+    PlatformDependent.UNSAFE.getInt(table, BASE + entryOffset)
+  private[this] val row = new UnsafeRow
+  private[this] var index = 0
+  private[this] var valueOffset = firstValueOffset
+
+  override def apply(i: Int): InternalRow = {
+    if (i < 0 || i >= length) {
+      throw new IndexOutOfBoundsException(i.toString)
+    }
+    if (i < index) {
+      index = 0
+      valueOffset = firstValueOffset
+    }
+    while (index < i) {
+      valueOffset += 8 + PlatformDependent.UNSAFE.getInt(table, valueOffset + 4)
+      index += 1
+    }
+    row.pointTo(table, valueOffset + 8, PlatformDependent.UNSAFE.getInt(table, valueOffset),
+      PlatformDependent.UNSAFE.getInt(table, valueOffset + 4))
+    row
+  }
+}
+
+private[joins] object UnsafeHashedRelation {
+
+  private[joins] val HASHER = new Murmur3_x86_32(0)
 
-    val iter = hashTable.entrySet().iterator()
+  private[joins] val BASE: Long = PlatformDependent.BYTE_ARRAY_OFFSET
+
+  /** The size of the capacity and number of keys at the start of a binary hash table. */
+  private val HEADER_SIZE = 8
+
+  /** The size of the key size and number of values before each key in a binary hash table. */
+  private[joins] val ENTRY_HEADER_SIZE = 8
+
+  /**
+   * Lays out the contents of a hash map in a binary hash table; see [[UnsafeHashedRelation]].
+   */
+  def buildBinaryTable(hashTable: JavaHashMap[UnsafeRow, CompactBuffer[UnsafeRow]]): Array[Byte] = {
+    val numKeys = hashTable.size()
+    assert(numKeys < (1 << 28), "too many keys")
+    // Keep the load factor at or below 0.5, so that probe sequences stay short
+    val capacity = math.max(64, Integer.highestOneBit(numKeys) * 4)
+    val mask = capacity - 1
+
+    var totalSize = HEADER_SIZE + 8L * capacity
+    var iter = hashTable.entrySet().iterator()
     while (iter.hasNext) {
       val entry = iter.next()
-      val key = entry.getKey
+      totalSize += ENTRY_HEADER_SIZE + entry.getKey.getSizeInBytes
       val values = entry.getValue
-
-      // write all the values as single byte array
-      var totalSize = 0L
       var i = 0
       while (i < values.length) {
-        totalSize += values(i).getSizeInBytes + 4 + 4
+        totalSize += 8 + values(i).getSizeInBytes
         i += 1
       }
-      assert(totalSize < Integer.MAX_VALUE, "values are too big")
+    }
+    assert(totalSize < Integer.MAX_VALUE, "values are too big")
 
-      // [key size] [values size] [key bytes] [values bytes]
-      out.writeInt(key.getSizeInBytes)
-      out.writeInt(totalSize.toInt)
-      out.write(key.getBytes)
-      i = 0
+    val table = new Array[Byte](totalSize.toInt)
+    PlatformDependent.UNSAFE.putInt(table, BASE, capacity)
+    PlatformDependent.UNSAFE.putInt(table, BASE + 4, numKeys)
+    var cursor = HEADER_SIZE + 8L * capacity
+    iter = hashTable.entrySet().iterator()
+    while (iter.hasNext) {
+      val entry = iter.next()
+      val key = entry.getKey
+      val values = entry.getValue
+
+      val hash = HASHER.hashUnsafeWords(key.getBaseObject, key.getBaseOffset, key.getSizeInBytes)
+      var slot = hash & mask
+      while (PlatformDependent.UNSAFE.getLong(table, BASE + HEADER_SIZE + 8L * slot) != 0) {
+        slot = (slot + 1) & mask
+      }
+      PlatformDependent.UNSAFE.putLong(
+        table, BASE + HEADER_SIZE + 8L * slot, (hash.toLong << 32) | cursor)
+
+      // [key size] [number of values] [key bytes] [values]
+      PlatformDependent.UNSAFE.putInt(table, BASE + cursor, key.getSizeInBytes)
+      PlatformDependent.UNSAFE.putInt(table, BASE + cursor + 4, values.length)
+      cursor += ENTRY_HEADER_SIZE
+      PlatformDependent.copyMemory(
+        key.getBaseObject, key.getBaseOffset, table, BASE + cursor, key.getSizeInBytes)
+      cursor += key.getSizeInBytes
+      var i = 0
       while (i < values.length) {
         // [num of fields] [num of bytes] [row bytes]
-        // write the integer in native order, so they can be read by UNSAFE.getInt()
-        if (ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN) {
-          out.writeInt(values(i).numFields())
-          out.writeInt(values(i).getSizeInBytes)
-        } else {
-          out.writeInt(Integer.reverseBytes(values(i).numFields()))
-          out.writeInt(Integer.reverseBytes(values(i).getSizeInBytes))
-        }
-        out.write(values(i).getBytes)
+        val value = values(i)
+        PlatformDependent.UNSAFE.putInt(table, BASE + cursor, value.numFields())
+        PlatformDependent.UNSAFE.putInt(table, BASE + cursor + 4, value.getSizeInBytes)
+        cursor += 8
+        PlatformDependent.copyMemory(
+          value.getBaseObject, value.getBaseOffset, table, BASE + cursor, value.getSizeInBytes)
+        cursor += value.getSizeInBytes
         i += 1
       }
     }
+    table
   }
 
-  override def readExternal(in: ObjectInput): Unit = Utils.tryOrIOException {
-    val nKeys = in.readInt()
-    // This is used in Broadcast, shared by multiple tasks, so we use on-heap memory
-    val taskMemoryManager = new TaskMemoryManager(new ExecutorMemoryManager(MemoryAllocator.HEAP))
-
-    // Dummy shuffle memory manager which always grants all memory allocation requests.
-    // We use this because it doesn't make sense count shared broadcast variables' memory usage
-    // towards individual tasks' quotas. In the future, we should devise a better way of handling
-    // this.
-    val shuffleMemoryManager = new ShuffleMemoryManager(new SparkConf()) {
-      override def tryToAcquire(numBytes: Long): Long = numBytes
-      override def release(numBytes: Long): Unit = {}
-    }
-
-    val pageSizeBytes = Option(SparkEnv.get).map(_.conf).getOrElse(new SparkConf())
-      .getSizeAsBytes("spark.buffer.pageSize", "64m")
-
-    binaryMap = new BytesToBytesMap(
-      taskMemoryManager,
-      shuffleMemoryManager,
-      nKeys * 2, // reduce hash collision
-      pageSizeBytes)
-
-    var i = 0
-    var keyBuffer = new Array[Byte](1024)
-    var valuesBuffer = new Array[Byte](1024)
-    while (i < nKeys) {
-      val keySize = in.readInt()
-      val valuesSize = in.readInt()
-      if (keySize > keyBuffer.size) {
-        keyBuffer = new Array[Byte](keySize)
-      }
-      in.readFully(keyBuffer, 0, keySize)
-      if (valuesSize > valuesBuffer.size) {
-        valuesBuffer = new Array[Byte](valuesSize)
-      }
-      in.readFully(valuesBuffer, 0, valuesSize)
-
-      // put it into binary map
-      val loc = binaryMap.lookup(keyBuffer, PlatformDependent.BYTE_ARRAY_OFFSET, keySize)
-      assert(!loc.isDefined, "Duplicated key found!")
-      val putSuceeded = loc.putNewKey(keyBuffer, PlatformDependent.BYTE_ARRAY_OFFSET, keySize,
-        valuesBuffer, PlatformDependent.BYTE_ARRAY_OFFSET, valuesSize)
-      if (!putSuceeded) {
-        throw new IOException("Could not allocate memory to grow BytesToBytesMap")
+  /**
+   * Returns the offset of the given key in a binary hash table, or -1 if it is not there.
+   */
+  def lookup(table: Array[Byte], key: UnsafeRow): Int = {
+    val mask = PlatformDependent.UNSAFE.getInt(table, BASE) - 1
+    val hash = HASHER.hashUnsafeWords(key.getBaseObject, key.getBaseOffset, key.getSizeInBytes)
+    var slot = hash & mask
+    var stored = PlatformDependent.UNSAFE.getLong(table, BASE + HEADER_SIZE + 8L * slot)
+    while (stored != 0) {
+      val entryOffset = stored.toInt
+      if ((stored >>> 32).toInt == hash &&
+          PlatformDependent.UNSAFE.getInt(table, BASE + entryOffset) == key.getSizeInBytes &&
+          ByteArrayMethods.arrayEquals(key.getBaseObject, key.getBaseOffset,
+            table, BASE + entryOffset + ENTRY_HEADER_SIZE, key.getSizeInBytes)) {
+        return entryOffset
       }
-      i += 1
+      slot = (slot + 1) & mask
+      stored = PlatformDependent.UNSAFE.getLong(table, BASE + HEADER_SIZE + 8L * slot)
     }
+    -1
   }
-}
-
-private[joins] object UnsafeHashedRelation {
 
   def apply(
       input: Iterator[InternalRow],
@@ -355,6 +413,15 @@ private[joins] object UnsafeHashedRelation {
       }
     }
 
-    new UnsafeHashedRelation(hashTable)
+    // Size the filter once the number of keys is known
+    val bloomFilter = BlockedBloomFilter(hashTable.size())
+    val keys = hashTable.keySet().iterator()
+    while (keys.hasNext) {
+      val key = keys.next()
+      bloomFilter.put(
+        HASHER.hashUnsafeWords(key.getBaseObject, key.getBaseOffset, key.getSizeInBytes))
+    }
+
+    new UnsafeHashedRelation(hashTable, bloomFilter)
   }
 }
@@ -40,6 +40,9 @@ case class ShuffledHashJoin(
 
   override protected[sql] val trackNumOfRowsEnabled = true
 
+  private[sql] override lazy val accumulators = super.accumulators +
+    ("numPrunedRows" -> sparkContext.internalAccumulator(0L, "number of pruned rows"))
+
   override def outputPartitioning: Partitioning =
     PartitioningCollection(Seq(left.outputPartitioning, right.outputPartitioning))
 
@@ -47,9 +50,10 @@ case class ShuffledHashJoin(
     ClusteredDistribution(leftKeys) :: ClusteredDistribution(rightKeys) :: Nil
 
   protected override def doExecute(): RDD[InternalRow] = {
+    val numPrunedRows = accumulator[Long]("numPrunedRows")
     buildPlan.execute().zipPartitions(streamedPlan.execute()) { (buildIter, streamIter) =>
       val hashed = HashedRelation(buildIter, buildSideKeyGenerator)
-      hashJoin(streamIter, hashed)
+      hashJoin(streamIter, hashed, numPrunedRows)
     }
   }
 }
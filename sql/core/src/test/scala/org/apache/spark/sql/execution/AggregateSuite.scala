@@ -17,7 +17,7 @@
 
 package org.apache.spark.sql.execution
 
-import org.apache.spark.sql.SQLConf
+import org.apache.spark.sql.{Row, SQLConf}
 import org.apache.spark.sql.catalyst.expressions._
 import org.apache.spark.sql.test.TestSQLContext
 
@@ -45,4 +45,31 @@ class AggregateSuite extends SparkPlanTest {
       TestSQLContext.setConf(SQLConf.UNSAFE_ENABLED, unsafeDefault)
     }
   }
+
+  test("unsafe aggregation with a single integral grouping key") {
+    val codegenDefault = TestSQLContext.getConf(SQLConf.CODEGEN_ENABLED)
+    val unsafeDefault = TestSQLContext.getConf(SQLConf.UNSAFE_ENABLED)
+    try {
+      TestSQLContext.setConf(SQLConf.CODEGEN_ENABLED, true)
+      TestSQLContext.setConf(SQLConf.UNSAFE_ENABLED, true)
+      // A single partition, so that the partial aggregation sees all rows of each group.
+      val df = TestSQLContext.createDataFrame(TestSQLContext.sparkContext.parallelize(
+        Seq[(Int, Option[Long])](
+          (1, Some(Long.MinValue)), (2, None), (3, Some(5L)), (4, Some(5L)), (5, None)), 1))
+        .toDF("a", "b")
+      checkAnswer(
+        df,
+        GeneratedAggregate(
+          partial = true,
+          Seq(df.col("b").expr),
+          Seq(Alias(Count(df.col("a").expr), "cnt")(), Alias(Sum(df.col("a").expr), "sum")()),
+          unsafeEnabled = true,
+          _: SparkPlan),
+        Seq(Row(1L, 1L), Row(2L, 7L), Row(2L, 7L))
+      )
+    } finally {
+      TestSQLContext.setConf(SQLConf.CODEGEN_ENABLED, codegenDefault)
+      TestSQLContext.setConf(SQLConf.UNSAFE_ENABLED, unsafeDefault)
+    }
+  }
 }
@@ -170,6 +170,46 @@ class UnsafeFixedWidthAggregationMapSuite extends SparkFunSuite with Matchers {
     map.free()
   }
 
+  testWithMemoryLeakDetection("prefetched batches of keys") {
+    val map = new UnsafeFixedWidthAggregationMap(
+      emptyAggregationBuffer,
+      aggBufferSchema,
+      groupKeySchema,
+      taskMemoryManager,
+      shuffleMemoryManager,
+      16, // initial capacity
+      PAGE_SIZE_BYTES,
+      false // disable perf metrics
+    )
+    val keyProjection = UnsafeProjection.create(groupKeySchema)
+    val rand = new Random(42)
+    val batchSize = 32
+    val hashcodes = new Array[Int](batchSize)
+    val expected = new mutable.HashMap[String, Int]
+    for (batch <- 0 until 64) {
+      // Keys repeat within and across batches, and new keys make the map grow mid-batch
+      val keyStrings = Seq.fill(batchSize)(rand.nextInt(300).toString)
+      val keys = keyStrings.map { k =>
+        keyProjection.apply(InternalRow(UTF8String.fromString(k))).copy()
+      }.toArray
+      map.prefetchAggregationBuffers(keys, batchSize, hashcodes)
+      for (i <- 0 until batchSize) {
+        val buffer = map.getAggregationBuffer(keys(i), hashcodes(i))
+        assert(buffer != null)
+        buffer.setInt(0, buffer.getInt(0) + 1)
+        expected(keyStrings(i)) = expected.getOrElse(keyStrings(i), 0) + 1
+      }
+    }
+
+    val seen = new mutable.HashMap[String, Int]
+    val iter = map.iterator()
+    while (iter.next()) {
+      seen(iter.getKey.getString(0)) = iter.getValue.getInt(0)
+    }
+    assert(seen === expected)
+    map.free()
+  }
+
   testWithMemoryLeakDetection("test external sorting") {
     // Calling this make sure we have block manager and everything else setup.
     TestSQLContext
@@ -231,4 +271,90 @@ class UnsafeFixedWidthAggregationMapSuite extends SparkFunSuite with Matchers {
 
     map.free()
   }
+
+  testWithMemoryLeakDetection("spilling and merging buffers by hash") {
+    // Calling this make sure we have block manager and everything else setup.
+    TestSQLContext
+
+    val map = new UnsafeFixedWidthAggregationMap(
+      emptyAggregationBuffer,
+      aggBufferSchema,
+      groupKeySchema,
+      taskMemoryManager,
+      shuffleMemoryManager,
+      128, // initial capacity
+      PAGE_SIZE_BYTES,
+      false // disable perf metrics
+    )
+
+    // Count the occurrences of each key, spilling a few times along the way.
+    val keys = randomStrings(1024)
+    val input = Seq.fill(3)(keys.take(300)).flatten ++ keys
+    val expected = input.groupBy(identity).mapValues(_.size)
+    input.zipWithIndex.foreach { case (str, i) =>
+      val buf = map.getAggregationBuffer(InternalRow(UTF8String.fromString(str)))
+      assert(buf != null)
+      buf.setInt(0, buf.getInt(0) + 1)
+      if (i % 400 == 399) {
+        assert(map.spill())
+        assert(shuffleMemoryManager.getMemoryConsumptionForThisTask() === 0)
+      }
+    }
+    assert(map.hasSpilled())
+
+    val counts = new mutable.HashMap[String, Int]
+    var previousKey: String = null
+    val iter = map.hashOrderedIterator()
+    while (iter.next()) {
+      val key = iter.getKey.getString(0)
+      if (key != previousKey) {
+        withClue(s"buffers of $key should be adjacent") {
+          assert(!counts.contains(key))
+        }
+        counts(key) = 0
+      }
+      counts(key) += iter.getValue.getInt(0)
+      previousKey = key
+    }
+    assert(counts === expected)
+
+    map.free()
+  }
+
+  testWithMemoryLeakDetection("test external sorting after spilling") {
+    // Calling this make sure we have block manager and everything else setup.
+    TestSQLContext
+
+    val map = new UnsafeFixedWidthAggregationMap(
+      emptyAggregationBuffer,
+      aggBufferSchema,
+      groupKeySchema,
+      taskMemoryManager,
+      shuffleMemoryManager,
+      128, // initial capacity
+      PAGE_SIZE_BYTES,
+      false // disable perf metrics
+    )
+
+    val keys = randomStrings(1024).take(512)
+    keys.zipWithIndex.foreach { case (keyString, i) =>
+      val buf = map.getAggregationBuffer(InternalRow(UTF8String.fromString(keyString)))
+      buf.setInt(0, keyString.length)
+      if (i == 255) {
+        assert(map.spill())
+      }
+    }
+
+    // The sorter has to pick up the spilled buffers as well as those still in memory.
+    val sorter = map.destructAndCreateExternalSorter()
+    val out = new scala.collection.mutable.ArrayBuffer[String]
+    val iter = sorter.sortedIterator()
+    while (iter.next()) {
+      assert(iter.getKey.getString(0).length === iter.getValue.getInt(0))
+      out += iter.getKey.getString(0)
+    }
+    assert(out === keys.sorted)
+
+    map.free()
+  }
 }
@@ -0,0 +1,153 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution
+
+import scala.collection.mutable
+import scala.util.Random
+
+import org.apache.spark.{SparkFunSuite, TaskContext, TaskContextImpl}
+import org.apache.spark.sql.catalyst.InternalRow
+import org.apache.spark.sql.types._
+import org.apache.spark.unsafe.memory.{ExecutorMemoryManager, MemoryAllocator, TaskMemoryManager}
+
+/**
+ * Test suite for [[UnsafeLongKeyAggregationMap]].
+ */
+class UnsafeLongKeyAggregationMapSuite extends SparkFunSuite {
+
+  import UnsafeLongKeyAggregationMap._
+
+  private val aggBufferSchema = StructType(StructField("count", LongType) :: Nil)
+  private def emptyAggregationBuffer: InternalRow = InternalRow(0L)
+
+  private var taskMemoryManager: TaskMemoryManager = null
+  private var shuffleMemoryManager: TestShuffleMemoryManager = null
+
+  private def keySchema(dataType: DataType): StructType =
+    StructType(StructField("key", dataType) :: Nil)
+
+  def testWithMemoryLeakDetection(name: String)(f: => Unit) {
+    test(name) {
+      taskMemoryManager = new TaskMemoryManager(new ExecutorMemoryManager(MemoryAllocator.HEAP))
+      shuffleMemoryManager = new TestShuffleMemoryManager
+      TaskContext.setTaskContext(new TaskContextImpl(
+        stageId = 0,
+        partitionId = 0,
+        taskAttemptId = Random.nextInt(10000),
+        attemptNumber = 0,
+        taskMemoryManager = taskMemoryManager,
+        metricsSystem = null,
+        internalAccumulators = Seq.empty))
+      try {
+        f
+        assert(shuffleMemoryManager.getMemoryConsumptionForThisTask() === 0)
+        assert(taskMemoryManager.cleanUpAllAllocatedMemory() === 0)
+      } finally {
+        TaskContext.unset()
+      }
+    }
+  }
+
+  private def newMap(keyType: DataType, initialCapacity: Int = 16): UnsafeLongKeyAggregationMap =
+    new UnsafeLongKeyAggregationMap(
+      emptyAggregationBuffer,
+      aggBufferSchema,
+      keySchema(keyType),
+      taskMemoryManager,
+      shuffleMemoryManager,
+      initialCapacity)
+
+  /** Counts the keys with the map and returns the resulting (key, count) pairs. */
+  private def count(
+      map: UnsafeLongKeyAggregationMap,
+      keyType: DataType,
+      keys: Seq[Any]): Map[Any, Long] = {
+    keys.foreach { key =>
+      val buffer = map.getAggregationBuffer(InternalRow(key))
+      assert(buffer != null)
+      buffer.setLong(0, buffer.getLong(0) + 1)
+    }
+    val result = new mutable.HashMap[Any, Long]
+    val iter = map.iterator()
+    while (iter.next()) {
+      val key = iter.getKey
+      val value = if (key.isNullAt(0)) null else key.get(0, keyType)
+      assert(!result.contains(value))
+      result(value) = iter.getValue.getLong(0)
+    }
+    result.toMap
+  }
+
+  test("supported schemas") {
+    Seq(LongType, IntegerType, ShortType, ByteType, DateType, TimestampType).foreach { t =>
+      assert(supportsGroupingKeySchema(keySchema(t)))
+    }
+    assert(!supportsGroupingKeySchema(keySchema(StringType)))
+    assert(!supportsGroupingKeySchema(keySchema(DoubleType)))
+    assert(!supportsGroupingKeySchema(
+      StructType(StructField("a", LongType) :: StructField("b", LongType) :: Nil)))
+  }
+
+  testWithMemoryLeakDetection("empty map") {
+    val map = newMap(LongType)
+    assert(map.numGroups() === 0)
+    assert(!map.iterator().next())
+    map.free()
+  }
+
+  testWithMemoryLeakDetection("long keys, including null and the empty slot marker") {
+    val map = newMap(LongType)
+    val rand = new Random(42)
+    val distinctKeys: Seq[Any] =
+      Seq.fill(10000)(rand.nextLong()).distinct ++ Seq(0L, Long.MinValue, Long.MaxValue, null)
+    // Repeat keys so that buffers are updated after the table has grown and moved them.
+    val keys = rand.shuffle(distinctKeys ++ distinctKeys.take(5000) ++ distinctKeys.takeRight(10))
+    val expected = keys.groupBy(identity).mapValues(_.size.toLong)
+    assert(count(map, LongType, keys) === expected)
+    assert(map.numGroups() === distinctKeys.size)
+    map.free()
+  }
+
+  testWithMemoryLeakDetection("narrower integral keys") {
+    Seq[(DataType, Seq[Any])](
+      IntegerType -> Seq(1, -1, Int.MinValue, Int.MaxValue, 1, null, -1),
+      DateType -> Seq(16000, 16001, 16000, null),
+      ShortType -> Seq(1.toShort, Short.MinValue, 1.toShort),
+      ByteType -> Seq(1.toByte, Byte.MaxValue, Byte.MaxValue, null)
+    ).foreach { case (keyType, keys) =>
+      val map = newMap(keyType)
+      assert(count(map, keyType, keys) === keys.groupBy(identity).mapValues(_.size.toLong))
+      map.free()
+    }
+  }
+
+  testWithMemoryLeakDetection("failure to grow returns null") {
+    val map = newMap(LongType)
+    shuffleMemoryManager.markAsOutOfMemory()
+    var i = 0L
+    var buffer = map.getAggregationBuffer(i)
+    while (buffer != null) {
+      i += 1
+      buffer = map.getAggregationBuffer(i)
+    }
+    // The keys inserted before the failure are still there.
+    assert(map.numGroups() === i)
+    assert(map.getAggregationBuffer(0L) != null)
+    map.free()
+  }
+}
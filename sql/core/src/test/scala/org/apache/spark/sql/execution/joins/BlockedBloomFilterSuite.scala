@@ -0,0 +1,53 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.spark.sql.execution.joins
+
+import scala.util.Random
+
+import org.apache.spark.SparkFunSuite
+
+class BlockedBloomFilterSuite extends SparkFunSuite {
+
+  test("no false negatives and few false positives") {
+    val rand = new Random(42)
+    val numKeys = 100000
+    val keys = Array.fill(numKeys)(rand.nextInt())
+    val filter = BlockedBloomFilter(numKeys)
+    keys.foreach(filter.put)
+    assert(keys.forall(filter.mightContain))
+
+    val keySet = keys.toSet
+    val others = Iterator.continually(rand.nextInt()).filterNot(keySet.contains).take(numKeys)
+    val falsePositives = others.count(filter.mightContain)
+    assert(falsePositives < numKeys * 0.03, s"$falsePositives false positives")
+  }
+
+  test("round trip through a byte array") {
+    val filter = BlockedBloomFilter(1000)
+    (0 until 1000).foreach(i => filter.put(i * 31))
+    val filter2 = BlockedBloomFilter.fromByteArray(filter.toByteArray)
+    assert(filter2.sizeInBytes === filter.sizeInBytes)
+    (0 until 10000).foreach { i =>
+      assert(filter2.mightContain(i) === filter.mightContain(i))
+    }
+  }
+
+  test("an empty filter contains nothing") {
+    val filter = BlockedBloomFilter(0)
+    assert(!(0 until 1000).exists(filter.mightContain))
+  }
+}
@@ -22,7 +22,8 @@ import java.io.{ByteArrayInputStream, ByteArrayOutputStream, ObjectInputStream,
 import org.apache.spark.SparkFunSuite
 import org.apache.spark.sql.catalyst.InternalRow
 import org.apache.spark.sql.catalyst.expressions._
-import org.apache.spark.sql.types.{IntegerType, StructField, StructType}
+import org.apache.spark.sql.types.{IntegerType, StringType, StructField, StructType}
+import org.apache.spark.unsafe.types.UTF8String
 import org.apache.spark.util.collection.CompactBuffer
 
 
@@ -95,4 +96,52 @@ class HashedRelationSuite extends SparkFunSuite {
     assert(hashed2.get(toUnsafe(InternalRow(10))) === null)
     assert(hashed2.get(unsafeData(2)) === data2)
   }
+
+  test("UnsafeHashedRelation is probed in place after deserialization") {
+    val schema = StructType(
+      StructField("k", IntegerType, false) :: StructField("v", StringType, true) :: Nil)
+    val toUnsafe = UnsafeProjection.create(schema)
+    // Key i has i % 5 values, of different lengths
+    val data = (0 until 1000).flatMap { k =>
+      (0 until k % 5).map(v => toUnsafe(InternalRow(k, UTF8String.fromString("v" * v))).copy())
+    }
+    val keyGenerator = UnsafeProjection.create(Seq(BoundReference(0, IntegerType, false)))
+    val hashed = UnsafeHashedRelation(data.iterator, keyGenerator, 1)
+
+    val os = new ByteArrayOutputStream()
+    val out = new ObjectOutputStream(os)
+    hashed.asInstanceOf[UnsafeHashedRelation].writeExternal(out)
+    out.flush()
+    val in = new ObjectInputStream(new ByteArrayInputStream(os.toByteArray))
+    val hashed2 = new UnsafeHashedRelation()
+    hashed2.readExternal(in)
+    assert(hashed2.getUnsafeSize > 0)
+
+    val toKey = UnsafeProjection.create(StructType(StructField("k", IntegerType, false) :: Nil))
+    (0 until 1100).foreach { k =>
+      val matches = hashed2.get(toKey(InternalRow(k)))
+      if (k >= 1000 || k % 5 == 0) {
+        assert(matches === null)
+      } else {
+        assert(hashed.mightContain(toKey(InternalRow(k))))
+        assert(hashed2.mightContain(toKey(InternalRow(k))))
+        assert(matches.length === k % 5)
+        assert(matches.map(_.getString(1)) === (0 until k % 5).map("v" * _))
+        // Going back to an earlier value works as well
+        assert(matches(0).getInt(0) === k)
+        assert(matches(0).getString(1) === "")
+      }
+    }
+  }
+
+  test("UnsafeHashedRelation rules out most absent keys") {
+    val toUnsafe = UnsafeProjection.create(StructType(StructField("a", IntegerType, false) :: Nil))
+    val data = (0 until 1000).map(i => toUnsafe(InternalRow(i * 2)).copy())
+    val keyGenerator = UnsafeProjection.create(Seq(BoundReference(0, IntegerType, false)))
+    val hashed = UnsafeHashedRelation(data.iterator, keyGenerator, 1)
+    assert((0 until 1000).forall(i => hashed.mightContain(toUnsafe(InternalRow(i * 2)))))
+    val falsePositives =
+      (0 until 1000).count(i => hashed.mightContain(toUnsafe(InternalRow(i * 2 + 1))))
+    assert(falsePositives < 50)
+  }
 }
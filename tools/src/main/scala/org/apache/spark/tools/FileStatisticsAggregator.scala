@@ -0,0 +1,102 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.tools
+
+import java.io.File
+
+import scala.collection.mutable
+import scala.io.Source
+
+import org.json4s._
+import org.json4s.jackson.JsonMethods._
+
+import org.apache.spark.util.instrumentation.FileRoleStatistics
+
+/**
+ * Aggregates the JSON-lines files written by the file statistics sink on every executor
+ * into one CSV time series, so that file I/O can be lined up against stage boundaries.
+ *
+ * Usage: FileStatisticsAggregator <file or directory>... [--bucket seconds]
+ *
+ * Prints one row per time bucket and file role, with the counters summed across all executors
+ * that reported in that bucket, followed by a `<TOTAL>` row per role.
+ */
+object FileStatisticsAggregator {
+  private val fields = FileRoleStatistics.FIELD_NAMES.toSeq
+
+  def main(args: Array[String]): Unit = {
+    var bucketMs = 10000L
+    val inputs = new mutable.ArrayBuffer[File]
+    var i = 0
+    while (i < args.length) {
+      if (args(i) == "--bucket" && i + 1 < args.length) {
+        bucketMs = args(i + 1).toLong * 1000
+        i += 2
+      } else {
+        inputs += new File(args(i))
+        i += 1
+      }
+    }
+    if (inputs.isEmpty) {
+      // scalastyle:off println
+      System.err.println(
+        "Usage: FileStatisticsAggregator <file or directory>... [--bucket seconds]")
+      // scalastyle:on println
+      System.exit(1)
+    }
+
+    val files = inputs.flatMap { f =>
+      if (f.isDirectory) f.listFiles().filter(_.getName.endsWith(".jsonl")).toSeq else Seq(f)
+    }
+    // (bucket start, role) -> summed counters, and (bucket start) -> reporting sources
+    val buckets = new mutable.HashMap[(Long, String), Array[Long]]
+    val sources = new mutable.HashMap[Long, mutable.Set[String]]
+    for (file <- files; line <- Source.fromFile(file, "UTF-8").getLines() if line.nonEmpty) {
+      val json = parse(line)
+      val source = (json \ "source").asInstanceOf[JString].s
+      val bucket = (json \ "end").asInstanceOf[JInt].num.toLong / bucketMs * bucketMs
+      sources.getOrElseUpdate(bucket, new mutable.HashSet[String]) += source
+      val JObject(roles) = json \ "roles"
+      for ((role, JObject(counters)) <- roles) {
+        val sums = buckets.getOrElseUpdate((bucket, role), new Array[Long](fields.length))
+        for ((name, JInt(value)) <- counters) {
+          val index = fields.indexOf(name)
+          if (index >= 0) {
+            sums(index) += value.toLong
+          }
+        }
+      }
+    }
+
+    // scalastyle:off println
+    println(("bucketStart" +: "executors" +: "role" +: fields).mkString(","))
+    val totals = new mutable.HashMap[String, Array[Long]]
+    for (((bucket, role), sums) <- buckets.toSeq.sortBy(_._1)) {
+      println((Seq(bucket, sources(bucket).size, role) ++ sums).mkString(","))
+      val total = totals.getOrElseUpdate(role, new Array[Long](fields.length))
+      for (j <- sums.indices) {
+        total(j) += sums(j)
+      }
+    }
+    val allSources = sources.values.flatten.toSet.size
+    for ((role, total) <- totals.toSeq.sortBy(_._1)) {
+      println((Seq("<TOTAL>", allSources, role) ++ total).mkString(","))
+    }
+    // scalastyle:on println
+  }
+}
@@ -17,12 +17,6 @@
 
 package org.apache.spark.unsafe.memory;
 
-import java.lang.ref.WeakReference;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Map;
-import javax.annotation.concurrent.GuardedBy;
-
 /**
  * Manages memory for an executor. Individual operators / tasks allocate memory through
  * {@link TaskMemoryManager} objects, which obtain their memory from ExecutorMemoryManager.
@@ -39,20 +33,42 @@ public class ExecutorMemoryManager {
    */
   final boolean inHeap;
 
-  @GuardedBy("this")
-  private final Map<Long, LinkedList<WeakReference<MemoryBlock>>> bufferPoolsBySize =
-    new HashMap<Long, LinkedList<WeakReference<MemoryBlock>>>();
+  /**
+   * Cache of freed pages for reuse, or null if pooling is disabled.
+   */
+  private final PagePool pagePool;
 
   private static final int POOLING_THRESHOLD_BYTES = 1024 * 1024;
 
   /**
-   * Construct a new ExecutorMemoryManager.
+   * Construct a new ExecutorMemoryManager which does not pool freed pages.
    *
    * @param allocator the allocator that will be used
    */
   public ExecutorMemoryManager(MemoryAllocator allocator) {
+    this(allocator, 0, 0);
+  }
+
+  /**
+   * Construct a new ExecutorMemoryManager.
+   *
+   * @param allocator the allocator that will be used
+   * @param pagePoolCapacity maximum number of bytes of freed pages to keep for reuse; zero
+   *                         disables pooling
+   * @param pagePoolIdleTimeoutMs time after which an unused pooled page is released
+   */
+  public ExecutorMemoryManager(
+      MemoryAllocator allocator,
+      long pagePoolCapacity,
+      long pagePoolIdleTimeoutMs) {
     this.inHeap = allocator instanceof HeapMemoryAllocator;
     this.allocator = allocator;
+    if (pagePoolCapacity > 0) {
+      this.pagePool =
+        new PagePool(allocator, pagePoolCapacity, pagePoolIdleTimeoutMs * 1000 * 1000);
+    } else {
+      this.pagePool = null;
+    }
   }
 
   /**
@@ -61,9 +77,7 @@ public class ExecutorMemoryManager {
    */
   private boolean shouldPool(long size) {
     // Very small allocations are less likely to benefit from pooling.
-    // At some point, we should explore supporting pooling for off-heap memory, but for now we'll
-    // ignore that case in the interest of simplicity.
-    return size >= POOLING_THRESHOLD_BYTES && allocator instanceof HeapMemoryAllocator;
+    return pagePool != null && size >= POOLING_THRESHOLD_BYTES;
   }
 
   /**
@@ -72,40 +86,60 @@ public class ExecutorMemoryManager {
    */
   MemoryBlock allocate(long size) throws OutOfMemoryError {
     if (shouldPool(size)) {
-      synchronized (this) {
-        final LinkedList<WeakReference<MemoryBlock>> pool = bufferPoolsBySize.get(size);
-        if (pool != null) {
-          while (!pool.isEmpty()) {
-            final WeakReference<MemoryBlock> blockReference = pool.pop();
-            final MemoryBlock memory = blockReference.get();
-            if (memory != null) {
-              assert (memory.size() == size);
-              return memory;
-            }
-          }
-          bufferPoolsBySize.remove(size);
-        }
-      }
-      return allocator.allocate(size);
+      return pagePool.allocate(size);
     } else {
       return allocator.allocate(size);
     }
   }
 
   void free(MemoryBlock memory) {
-    final long size = memory.size();
-    if (shouldPool(size)) {
-      synchronized (this) {
-        LinkedList<WeakReference<MemoryBlock>> pool = bufferPoolsBySize.get(size);
-        if (pool == null) {
-          pool = new LinkedList<WeakReference<MemoryBlock>>();
-          bufferPoolsBySize.put(size, pool);
-        }
-        pool.add(new WeakReference<MemoryBlock>(memory));
-      }
+    if (shouldPool(memory.size())) {
+      pagePool.free(memory);
     } else {
       allocator.free(memory);
     }
   }
 
+  /**
+   * Releases the pages kept for reuse. Pages still in use are unaffected and are freed normally
+   * when released.
+   */
+  public void releasePooledMemory() {
+    if (pagePool != null) {
+      pagePool.releaseAll();
+    }
+  }
+
+  /**
+   * Limits the bytes of freed pages kept for reuse, e.g. to the memory that tasks have not been
+   * granted. Pages beyond the limit are released, least recently freed first, when an allocation
+   * finds no page to reuse or a page is freed, so that they are never released just before an
+   * allocation could have reused them.
+   */
+  public void setPooledMemoryLimit(long bytes) {
+    if (pagePool != null) {
+      pagePool.setLimit(bytes);
+    }
+  }
+
+  /**
+   * Returns the number of bytes of freed pages currently kept for reuse.
+   */
+  public long pagePoolRetainedBytes() {
+    return pagePool != null ? pagePool.retainedBytes() : 0;
+  }
+
+  /**
+   * Returns the number of page allocations served by reusing a freed page.
+   */
+  public long pagePoolHits() {
+    return pagePool != null ? pagePool.hits() : 0;
+  }
+
+  /**
+   * Returns the number of poolable page allocations that found no freed page to reuse.
+   */
+  public long pagePoolMisses() {
+    return pagePool != null ? pagePool.misses() : 0;
+  }
 }
@@ -0,0 +1,258 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.unsafe.memory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache of freed pages, so that tasks allocating and freeing large pages at a high rate do not
+ * pay for a fresh allocation each time: a {@code malloc} and {@code free} off-heap, or a large
+ * array allocation and the old-generation garbage it becomes on-heap.
+ *
+ * Requests are rounded up to size classes, four per power of two, so that pages of similar but
+ * not identical sizes can be reused at the cost of at most 25% extra memory. Each size class has
+ * its own lock-free free list, used most recently freed first, so threads only contend when they
+ * allocate pages of the same size at the same moment.
+ *
+ * The cache retains at most {@code capacity} bytes of idle pages. A page freed into a full cache
+ * evicts the least recently freed pages of any size class to make room, and pages left idle for
+ * longer than {@code idleTimeoutNanos} are released. Idle pages are trimmed by whichever caller
+ * first notices that a trim is due, so the cache needs no thread of its own. Pages whose size
+ * class exceeds the capacity bypass the cache entirely.
+ *
+ * The memory the cache may hold can further be limited with {@link #setLimit(long)}. Idle pages
+ * beyond the limit are released only when an allocation misses the cache or a page is freed, so
+ * an allocation that reuses an idle page never has it evicted first.
+ */
+final class PagePool {
+
+  private final MemoryAllocator allocator;
+  private final long capacity;
+  private final long idleTimeoutNanos;
+
+  private final ConcurrentMap<Long, ConcurrentLinkedDeque<IdlePage>> freeListsBySize =
+    new ConcurrentHashMap<Long, ConcurrentLinkedDeque<IdlePage>>();
+
+  /** Bytes held by idle pages, including those reserved by frees still being added to a list. */
+  private final AtomicLong retainedBytes = new AtomicLong(0);
+
+  private final AtomicLong hits = new AtomicLong(0);
+  private final AtomicLong misses = new AtomicLong(0);
+
+  private final AtomicLong lastTrimNanos = new AtomicLong(System.nanoTime());
+
+  private volatile long limit = Long.MAX_VALUE;
+
+  PagePool(MemoryAllocator allocator, long capacity, long idleTimeoutNanos) {
+    this.allocator = allocator;
+    this.capacity = capacity;
+    this.idleTimeoutNanos = idleTimeoutNanos;
+  }
+
+  /**
+   * Returns the size class a request of {@code size} bytes is served from: {@code size} rounded
+   * up to a multiple of a quarter of the largest power of two below it.
+   */
+  static long sizeClass(long size) {
+    final long granularity = Math.max(8, Long.highestOneBit(size - 1) >>> 2);
+    return (size + granularity - 1) & ~(granularity - 1);
+  }
+
+  MemoryBlock allocate(long size) throws OutOfMemoryError {
+    final long classSize = sizeClass(size);
+    if (classSize > capacity) {
+      return allocator.allocate(size);
+    }
+    maybeTrim();
+    final ConcurrentLinkedDeque<IdlePage> freeList = freeListsBySize.get(classSize);
+    if (freeList != null) {
+      final IdlePage page = freeList.pollFirst();
+      if (page != null) {
+        retainedBytes.addAndGet(-classSize);
+        hits.incrementAndGet();
+        return new MemoryBlock(page.obj, page.offset, size);
+      }
+    }
+    misses.incrementAndGet();
+    // The new page takes memory the idle pages may have been counted in.
+    releaseAbove(limit);
+    final MemoryBlock block = allocator.allocate(classSize);
+    return new MemoryBlock(block.getBaseObject(), block.getBaseOffset(), size);
+  }
+
+  void free(MemoryBlock memory) {
+    final long classSize = sizeClass(memory.size());
+    if (classSize > capacity) {
+      allocator.free(memory);
+      return;
+    }
+    while (!reserve(classSize)) {
+      if (!evictLeastRecentlyUsed()) {
+        allocator.free(new MemoryBlock(memory.getBaseObject(), memory.getBaseOffset(), classSize));
+        return;
+      }
+    }
+    ConcurrentLinkedDeque<IdlePage> freeList = freeListsBySize.get(classSize);
+    if (freeList == null) {
+      final ConcurrentLinkedDeque<IdlePage> newList = new ConcurrentLinkedDeque<IdlePage>();
+      freeList = freeListsBySize.putIfAbsent(classSize, newList);
+      if (freeList == null) {
+        freeList = newList;
+      }
+    }
+    freeList.offerFirst(
+      new IdlePage(memory.getBaseObject(), memory.getBaseOffset(), System.nanoTime()));
+    // The freed page still counts against the limit of its owner until the owner releases it.
+    final long currentLimit = limit;
+    if (currentLimit < Long.MAX_VALUE - memory.size()) {
+      releaseAbove(currentLimit + memory.size());
+    }
+    maybeTrim();
+  }
+
+  /** Reserves room for an idle page of {@code classSize} bytes, if the cache has it. */
+  private boolean reserve(long classSize) {
+    while (true) {
+      final long current = retainedBytes.get();
+      if (current + classSize > capacity) {
+        return false;
+      }
+      if (retainedBytes.compareAndSet(current, current + classSize)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Releases the least recently freed idle page of any size class. Returns false if there were
+   * no idle pages left to release.
+   */
+  private boolean evictLeastRecentlyUsed() {
+    ConcurrentLinkedDeque<IdlePage> oldestList = null;
+    long oldestClassSize = 0;
+    IdlePage oldest = null;
+    for (Map.Entry<Long, ConcurrentLinkedDeque<IdlePage>> entry : freeListsBySize.entrySet()) {
+      final IdlePage tail = entry.getValue().peekLast();
+      if (tail != null && (oldest == null || tail.freedAtNanos - oldest.freedAtNanos < 0)) {
+        oldest = tail;
+        oldestList = entry.getValue();
+        oldestClassSize = entry.getKey();
+      }
+    }
+    if (oldest == null) {
+      return false;
+    }
+    // Another thread may have taken this page in the meantime; then this evicts its neighbour.
+    final IdlePage page = oldestList.pollLast();
+    if (page != null) {
+      release(page, oldestClassSize);
+    }
+    return true;
+  }
+
+  private void maybeTrim() {
+    final long now = System.nanoTime();
+    final long last = lastTrimNanos.get();
+    if (now - last >= idleTimeoutNanos && lastTrimNanos.compareAndSet(last, now)) {
+      trim(now - idleTimeoutNanos, false);
+    }
+  }
+
+  /**
+   * Releases the pages that have been idle since before {@code idleSinceNanos}, or all of them
+   * if {@code all} is set. Free lists are ordered most recently freed first, so each list is
+   * trimmed from its tail.
+   */
+  private void trim(long idleSinceNanos, boolean all) {
+    for (Map.Entry<Long, ConcurrentLinkedDeque<IdlePage>> entry : freeListsBySize.entrySet()) {
+      final long classSize = entry.getKey();
+      final ConcurrentLinkedDeque<IdlePage> freeList = entry.getValue();
+      while (true) {
+        final IdlePage page = freeList.pollLast();
+        if (page == null) {
+          break;
+        }
+        if (!all && page.freedAtNanos - idleSinceNanos > 0) {
+          freeList.offerLast(page);
+          break;
+        }
+        release(page, classSize);
+      }
+    }
+  }
+
+  private void release(IdlePage page, long classSize) {
+    retainedBytes.addAndGet(-classSize);
+    allocator.free(new MemoryBlock(page.obj, page.offset, classSize));
+  }
+
+  /** Releases every idle page. */
+  void releaseAll() {
+    trim(0, true);
+  }
+
+  /**
+   * Sets the number of bytes idle pages may hold besides the capacity. Pages beyond it are
+   * released at the next allocation that misses the cache or the next free.
+   */
+  void setLimit(long bytes) {
+    limit = bytes;
+  }
+
+  /**
+   * Releases idle pages, least recently freed first, until they hold at most {@code bytes} bytes
+   * or none are left.
+   */
+  private void releaseAbove(long bytes) {
+    while (retainedBytes.get() > bytes && evictLeastRecentlyUsed()) {
+      // Keep evicting.
+    }
+  }
+
+  /** Bytes currently held by idle pages. */
+  long retainedBytes() {
+    return retainedBytes.get();
+  }
+
+  /** Number of allocations served from an idle page. */
+  long hits() {
+    return hits.get();
+  }
+
+  /** Number of cacheable allocations that found no idle page of their size class. */
+  long misses() {
+    return misses.get();
+  }
+
+  private static final class IdlePage {
+    /** The array backing an on-heap page, or null off-heap. */
+    final Object obj;
+    final long offset;
+    final long freedAtNanos;
+
+    IdlePage(Object obj, long offset, long freedAtNanos) {
+      this.obj = obj;
+      this.offset = offset;
+      this.freedAtNanos = freedAtNanos;
+    }
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.unsafe.memory;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.spark.unsafe.PlatformDependent;
+
+/**
+ * Measures page allocate/free throughput of {@link ExecutorMemoryManager} on-heap and off-heap,
+ * each with and without page pooling, with several threads allocating concurrently as
+ * tasks of one executor do. Each allocated page has one byte per 4 KB written to it, so that
+ * the cost of faulting in fresh pages is included.
+ *
+ * Usage: ExecutorMemoryManagerBenchmark [pageSizeBytes] [threads] [iterationsPerThread]
+ */
+public class ExecutorMemoryManagerBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    final long pageSize = args.length > 0 ? Long.parseLong(args[0]) : 4 * 1024 * 1024;
+    final int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+    final int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+
+    System.out.println(String.format("page size %d bytes, %d threads, %d iterations per thread",
+      pageSize, threads, iterations));
+    for (int run = 0; run < 2; run++) {
+      // The first run warms up the JIT and the pool; report both.
+      final long poolSize = 4L * threads * pageSize;
+      report("heap, unpooled", new ExecutorMemoryManager(MemoryAllocator.HEAP),
+        pageSize, threads, iterations);
+      final ExecutorMemoryManager heapPooled =
+        new ExecutorMemoryManager(MemoryAllocator.HEAP, poolSize, 60000);
+      report("heap, pooled", heapPooled, pageSize, threads, iterations);
+      heapPooled.releasePooledMemory();
+      report("off-heap, unpooled", new ExecutorMemoryManager(MemoryAllocator.UNSAFE),
+        pageSize, threads, iterations);
+      final ExecutorMemoryManager offHeapPooled =
+        new ExecutorMemoryManager(MemoryAllocator.UNSAFE, poolSize, 60000);
+      report("off-heap, pooled", offHeapPooled, pageSize, threads, iterations);
+      offHeapPooled.releasePooledMemory();
+    }
+  }
+
+  private static void report(
+      String name,
+      ExecutorMemoryManager manager,
+      long pageSize,
+      int threads,
+      int iterations) throws InterruptedException {
+    final long elapsedNs = run(manager, pageSize, threads, iterations);
+    final long ops = (long) threads * iterations;
+    System.out.println(String.format("%-20s %12.0f allocate/free pairs per second (%d ns each)",
+      name, ops * 1e9 / elapsedNs, elapsedNs * threads / ops));
+  }
+
+  private static long run(
+      final ExecutorMemoryManager manager,
+      final long pageSize,
+      int threads,
+      final int iterations) throws InterruptedException {
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(threads);
+    for (int t = 0; t < threads; t++) {
+      new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            for (int i = 0; i < iterations; i++) {
+              final MemoryBlock page = manager.allocate(pageSize);
+              for (long offset = 0; offset < pageSize; offset += 4096) {
+                PlatformDependent.UNSAFE.putByte(
+                  page.getBaseObject(), page.getBaseOffset() + offset, (byte) i);
+              }
+              manager.free(page);
+            }
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          } finally {
+            done.countDown();
+          }
+        }
+      }).start();
+    }
+    final long startNs = System.nanoTime();
+    start.countDown();
+    done.await();
+    return System.nanoTime() - startNs;
+  }
+}
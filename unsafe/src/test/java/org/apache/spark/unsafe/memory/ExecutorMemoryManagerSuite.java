@@ -0,0 +1,166 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.unsafe.memory;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ExecutorMemoryManagerSuite {
+
+  private static final long MB = 1024 * 1024;
+
+  /** Counts the allocations that reach the underlying off-heap allocator. */
+  private static class CountingAllocator extends UnsafeMemoryAllocator {
+    int allocations = 0;
+    int frees = 0;
+
+    @Override
+    public MemoryBlock allocate(long size) {
+      allocations++;
+      return super.allocate(size);
+    }
+
+    @Override
+    public void free(MemoryBlock memory) {
+      frees++;
+      super.free(memory);
+    }
+  }
+
+  @Test
+  public void sizeClasses() {
+    Assert.assertEquals(MB, PagePool.sizeClass(MB));
+    Assert.assertEquals(MB + MB / 4, PagePool.sizeClass(MB + 8));
+    Assert.assertEquals(64 * MB, PagePool.sizeClass(64 * MB));
+    Assert.assertEquals(80 * MB, PagePool.sizeClass(65 * MB));
+  }
+
+  @Test
+  public void reusesFreedOffHeapPages() {
+    final CountingAllocator allocator = new CountingAllocator();
+    final ExecutorMemoryManager manager = new ExecutorMemoryManager(allocator, 16 * MB, 60000);
+    final MemoryBlock first = manager.allocate(4 * MB);
+    manager.free(first);
+    Assert.assertEquals(4 * MB, manager.pagePoolRetainedBytes());
+
+    // A request in the same size class reuses the freed page.
+    final MemoryBlock second = manager.allocate(4 * MB - 64);
+    Assert.assertEquals(first.getBaseOffset(), second.getBaseOffset());
+    Assert.assertEquals(4 * MB - 64, second.size());
+    Assert.assertEquals(1, allocator.allocations);
+    Assert.assertEquals(0, manager.pagePoolRetainedBytes());
+    Assert.assertEquals(1, manager.pagePoolHits());
+    Assert.assertEquals(1, manager.pagePoolMisses());
+
+    manager.free(second);
+    manager.releasePooledMemory();
+    Assert.assertEquals(1, allocator.frees);
+    Assert.assertEquals(0, manager.pagePoolRetainedBytes());
+  }
+
+  @Test
+  public void poolEvictsLeastRecentlyFreedPages() {
+    final CountingAllocator allocator = new CountingAllocator();
+    final ExecutorMemoryManager manager = new ExecutorMemoryManager(allocator, 8 * MB, 60000);
+    final MemoryBlock first = manager.allocate(4 * MB);
+    final MemoryBlock second = manager.allocate(2 * MB);
+    final MemoryBlock third = manager.allocate(4 * MB);
+    manager.free(first);
+    manager.free(second);
+    // Making room for the third page evicts the first, the least recently freed one.
+    manager.free(third);
+    Assert.assertEquals(6 * MB, manager.pagePoolRetainedBytes());
+    Assert.assertEquals(1, allocator.frees);
+    Assert.assertEquals(third.getBaseOffset(), manager.allocate(4 * MB).getBaseOffset());
+    Assert.assertEquals(second.getBaseOffset(), manager.allocate(2 * MB).getBaseOffset());
+    manager.releasePooledMemory();
+  }
+
+  @Test
+  public void pooledPagesBeyondTheLimitAreReleasedOnAMiss() {
+    final CountingAllocator allocator = new CountingAllocator();
+    final ExecutorMemoryManager manager = new ExecutorMemoryManager(allocator, 16 * MB, 60000);
+    final MemoryBlock first = manager.allocate(4 * MB);
+    final MemoryBlock second = manager.allocate(2 * MB);
+    final MemoryBlock third = manager.allocate(2 * MB);
+    manager.free(first);
+    manager.free(second);
+    manager.free(third);
+    manager.setPooledMemoryLimit(3 * MB);
+    // A hit releases nothing, even though the pool holds more than the limit.
+    Assert.assertEquals(third.getBaseOffset(), manager.allocate(2 * MB).getBaseOffset());
+    Assert.assertEquals(0, allocator.frees);
+    // A miss releases the least recently freed pages until the rest fit the limit.
+    manager.allocate(1 * MB);
+    Assert.assertEquals(2 * MB, manager.pagePoolRetainedBytes());
+    Assert.assertEquals(1, allocator.frees);
+    Assert.assertEquals(second.getBaseOffset(), manager.allocate(2 * MB).getBaseOffset());
+  }
+
+  @Test
+  public void pagesLargerThanThePoolAreNotPooled() {
+    final CountingAllocator allocator = new CountingAllocator();
+    final ExecutorMemoryManager manager = new ExecutorMemoryManager(allocator, 4 * MB, 60000);
+    manager.free(manager.allocate(6 * MB));
+    Assert.assertEquals(0, manager.pagePoolRetainedBytes());
+    Assert.assertEquals(1, allocator.frees);
+    Assert.assertEquals(0, manager.pagePoolMisses());
+  }
+
+  @Test
+  public void idlePagesAreTrimmed() {
+    final CountingAllocator allocator = new CountingAllocator();
+    final ExecutorMemoryManager manager = new ExecutorMemoryManager(allocator, 16 * MB, 0);
+    manager.free(manager.allocate(2 * MB));
+    Assert.assertEquals(0, manager.pagePoolRetainedBytes());
+    Assert.assertEquals(1, allocator.frees);
+  }
+
+  @Test
+  public void smallAllocationsAreNotPooled() {
+    final CountingAllocator allocator = new CountingAllocator();
+    final ExecutorMemoryManager manager = new ExecutorMemoryManager(allocator, 16 * MB, 60000);
+    manager.free(manager.allocate(4096));
+    Assert.assertEquals(0, manager.pagePoolRetainedBytes());
+    Assert.assertEquals(1, allocator.frees);
+  }
+
+  @Test
+  public void reusesFreedHeapPages() {
+    final ExecutorMemoryManager manager =
+      new ExecutorMemoryManager(MemoryAllocator.HEAP, 16 * MB, 60000);
+    final MemoryBlock first = manager.allocate(4 * MB);
+    manager.free(first);
+    Assert.assertEquals(4 * MB, manager.pagePoolRetainedBytes());
+    final MemoryBlock second = manager.allocate(4 * MB);
+    Assert.assertSame(first.getBaseObject(), second.getBaseObject());
+    Assert.assertEquals(1, manager.pagePoolHits());
+    manager.free(second);
+    manager.releasePooledMemory();
+    Assert.assertEquals(0, manager.pagePoolRetainedBytes());
+  }
+
+  @Test
+  public void poolingCanBeDisabled() {
+    final ExecutorMemoryManager manager = new ExecutorMemoryManager(MemoryAllocator.HEAP);
+    final MemoryBlock first = manager.allocate(4 * MB);
+    manager.free(first);
+    Assert.assertNotSame(first.getBaseObject(), manager.allocate(4 * MB).getBaseObject());
+    Assert.assertEquals(0, manager.pagePoolMisses());
+  }
+}